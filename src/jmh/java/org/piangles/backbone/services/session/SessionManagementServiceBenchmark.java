@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.piangles.backbone.services.logging.LoggingService;
+import org.piangles.backbone.services.session.dao.BenchmarkDAOs;
+import org.piangles.backbone.services.session.dao.RedisFixture;
+import org.piangles.backbone.services.session.dao.SessionManagementDAO;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Throughput and allocation of the SessionManagementServiceImpl operations on the hot
+ * path, end to end through the DAO. The service is built without CentralClient or the
+ * Locator, logging goes nowhere. The DistributedCache runs against a redis-server on the
+ * loopback, see RedisFixture, so it includes Jedis, the scripts and a round trip per call
+ * but no network.
+ *
+ * Every trial starts with USER_COUNT users with sessionsPerUser sessions each. Run
+ * through main for 1, 4 and 16 threads with the GC profiler, JMH options on the command
+ * line apply on top, for example -p daoType=CompactInMemory or -t 8.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionManagementServiceBenchmark
+{
+	private static final int[] THREAD_COUNTS = {1, 4, 16};
+	private static final int USER_COUNT = 1024;
+	private static final String DISTRIBUTED_CACHE_DAO_TYPE = "DistributedCache";
+	private static final int SESSION_TIMEOUT = 3600;
+	private static final int MARK_SESSION_TIMEOUT = 60;
+
+	private static final AtomicInteger THREAD_USER_SEQUENCE = new AtomicInteger();
+
+	@Param({"InMemory", "DistributedCache"})
+	public String daoType;
+
+	@Param({"1", "4", "16"})
+	public int sessionsPerUser;
+
+	private JedisPool jedisPool = null;
+	private SessionManagementServiceImpl sessionManagementService = null;
+	private String[] userIds = null;
+	private String[][] sessionIds = null;
+
+	/**
+	 * A user of its own for each benchmark thread, register and invalidateAllSessions
+	 * work on it so they do not compete with the other threads for the session limit.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadUser
+	{
+		private String userId = null;
+
+		@Setup(Level.Trial)
+		public void setUp()
+		{
+			userId = "benchmarkThreadUser" + THREAD_USER_SEQUENCE.incrementAndGet();
+		}
+
+		String getUserId()
+		{
+			return userId;
+		}
+	}
+
+	//Fresh sessions before every call, invalidateAllSessions has to have something to invalidate.
+	@State(Scope.Thread)
+	public static class ThreadUserWithSessions extends ThreadUser
+	{
+		@Setup(Level.Invocation)
+		public void register(SessionManagementServiceBenchmark benchmark) throws Exception
+		{
+			for (int i = 0; i < benchmark.sessionsPerUser; ++i)
+			{
+				benchmark.sessionManagementService.register(getUserId());
+			}
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		Properties sessionMgmtProperties = new Properties();
+		sessionMgmtProperties.setProperty("SessionTimeout", "" + SESSION_TIMEOUT);
+		sessionMgmtProperties.setProperty("MarkSessionTimeout", "" + MARK_SESSION_TIMEOUT);
+		sessionMgmtProperties.setProperty("AllowMultipleSessions", "true");
+		sessionMgmtProperties.setProperty("MaxSessionCount", "" + sessionsPerUser);
+		sessionMgmtProperties.setProperty("DAOType", daoType);
+
+		SessionManagementDAO sessionManagementDAO = null;
+		if (DISTRIBUTED_CACHE_DAO_TYPE.equals(daoType))
+		{
+			RedisFixture redis = RedisFixture.getShared();
+			redis.flushAll();
+			jedisPool = BenchmarkDAOs.createJedisPool(redis.getHost(), redis.getPort());
+			sessionManagementDAO = BenchmarkDAOs.createDistributedCacheDAO(jedisPool, SESSION_TIMEOUT, MARK_SESSION_TIMEOUT);
+		}
+		sessionManagementService = new SessionManagementServiceImpl(sessionMgmtProperties, new HashMap<>(), createLoggingService(), sessionManagementDAO);
+
+		userIds = new String[USER_COUNT];
+		sessionIds = new String[USER_COUNT][sessionsPerUser];
+		for (int i = 0; i < USER_COUNT; ++i)
+		{
+			userIds[i] = "benchmarkUser" + i;
+			for (int j = 0; j < sessionsPerUser; ++j)
+			{
+				sessionIds[i][j] = sessionManagementService.register(userIds[i]).getSessionId();
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		if (jedisPool != null)
+		{
+			jedisPool.close();
+		}
+	}
+
+	@Benchmark
+	public boolean isValid() throws Exception
+	{
+		int user = ThreadLocalRandom.current().nextInt(USER_COUNT);
+		return sessionManagementService.isValid(userIds[user], sessionIds[user][ThreadLocalRandom.current().nextInt(sessionsPerUser)]);
+	}
+
+	@Benchmark
+	public void makeLastAccessedCurrent() throws Exception
+	{
+		int user = ThreadLocalRandom.current().nextInt(USER_COUNT);
+		sessionManagementService.makeLastAccessedCurrent(userIds[user], sessionIds[user][ThreadLocalRandom.current().nextInt(sessionsPerUser)]);
+	}
+
+	@Benchmark
+	public Object getAllSessions() throws Exception
+	{
+		return sessionManagementService.getAllSessions(userIds[ThreadLocalRandom.current().nextInt(USER_COUNT)]);
+	}
+
+	//Unregistered again right away, the store stays at its initial size and the user below its limit.
+	@Benchmark
+	public void register(ThreadUser threadUser) throws Exception
+	{
+		SessionDetails sessionDetails = sessionManagementService.register(threadUser.getUserId());
+		sessionManagementService.unregister(threadUser.getUserId(), sessionDetails.getSessionId());
+	}
+
+	@Benchmark
+	public void invalidateAllSessions(ThreadUserWithSessions threadUser) throws Exception
+	{
+		sessionManagementService.invalidateAllSessions(threadUser.getUserId());
+	}
+
+	private static LoggingService createLoggingService()
+	{
+		return (LoggingService)Proxy.newProxyInstance(LoggingService.class.getClassLoader(), new Class<?>[] {LoggingService.class}, (proxy, method, args) -> {
+			return null;
+		});
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		for (int threads : THREAD_COUNTS)
+		{
+			Options options = new OptionsBuilder()
+										.parent(new CommandLineOptions(args))
+										.include(SessionManagementServiceBenchmark.class.getSimpleName())
+										.threads(threads)
+										.addProfiler(GCProfiler.class)
+										.resultFormat(ResultFormatType.JSON)
+										.result("target/jmh-SessionManagementService-" + threads + "-threads.json")
+										.build();
+			new Runner(options).run();
+		}
+	}
+}
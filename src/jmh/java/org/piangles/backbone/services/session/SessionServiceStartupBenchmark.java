@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session;
+
+import java.lang.reflect.Proxy;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.piangles.backbone.services.logging.LoggingService;
+
+/**
+ * Cold start of SessionManagementServiceImpl, PreApprovedSessionId discovery of
+ * serviceCount managed services and the construction of the service with an InMemory
+ * DAO. The stand in for CentralClient.discover takes lookupLatency milliseconds per
+ * service. discoveryParallelism 1 is how discovery went before it was concurrent.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec@jmh -Djmh.main=org.piangles.backbone.services.session.SessionServiceStartupBenchmark
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionServiceStartupBenchmark
+{
+	@Param({"8", "32"})
+	public int serviceCount;
+
+	@Param({"1", "16"})
+	public int discoveryParallelism;
+
+	@Param({"50"})
+	public long lookupLatency;
+
+	private Properties sessionMgmtProperties = null;
+	private LoggingService logger = null;
+
+	@Setup
+	public void setUp()
+	{
+		sessionMgmtProperties = new Properties();
+		sessionMgmtProperties.setProperty("SessionTimeout", "3600");
+		sessionMgmtProperties.setProperty("MarkSessionTimeout", "60");
+		sessionMgmtProperties.setProperty("AllowMultipleSessions", "false");
+		sessionMgmtProperties.setProperty("DAOType", "InMemory");
+		sessionMgmtProperties.setProperty("DiscoveryParallelism", "" + discoveryParallelism);
+		for (int i = 1; i <= serviceCount; ++i)
+		{
+			sessionMgmtProperties.setProperty("ManagedService" + i, "BenchmarkService" + i);
+		}
+
+		logger = (LoggingService)Proxy.newProxyInstance(LoggingService.class.getClassLoader(), new Class<?>[] {LoggingService.class}, (proxy, method, args) -> {
+			return null;
+		});
+	}
+
+	@Benchmark
+	public SessionManagementServiceImpl start() throws Exception
+	{
+		return new SessionManagementServiceImpl(sessionMgmtProperties,
+												SessionManagementServiceImpl.discoverPreApprovedSessionIds(sessionMgmtProperties, this::discover, logger),
+												logger, null);
+	}
+
+	private Properties discover(String serviceName) throws Exception
+	{
+		Thread.sleep(lookupLatency);
+		Properties discoveryProperties = new Properties();
+		discoveryProperties.setProperty("PreApprovedSessionId", serviceName + "-PreApprovedSessionId");
+		return discoveryProperties;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new OptionsBuilder()
+									.parent(new CommandLineOptions(args))
+									.include(SessionServiceStartupBenchmark.class.getSimpleName())
+									.build();
+		new Runner(options).run();
+	}
+}
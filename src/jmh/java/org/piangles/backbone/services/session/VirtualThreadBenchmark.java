@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.piangles.backbone.services.logging.LoggingService;
+import org.piangles.backbone.services.session.dao.BenchmarkDAOs;
+import org.piangles.backbone.services.session.dao.RedisFixture;
+import org.piangles.backbone.services.session.dao.RedisLatencyProxy;
+import org.piangles.backbone.services.session.dao.SessionManagementDAO;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Time for inFlight concurrent isValid calls to complete, each call on a thread of its
+ * own the way a container runs requests: a pool of PLATFORM_THREAD_COUNT platform threads,
+ * a typical request pool, or a virtual thread per call. Validations per second are
+ * inFlight over the score.
+ *
+ * The DistributedCache runs against a redis-server, see RedisFixture, behind a
+ * RedisLatencyProxy adding ROUND_TRIP_LATENCY to each round trip, so a call mostly waits. With platform threads at most PLATFORM_THREAD_COUNT
+ * wait at a time, virtual threads are only bounded by the connections of the pool.
+ * InMemory shows the cost of the threads themselves and of contending on the DAO lock.
+ *
+ * Run through main, JMH options on the command line apply on top, for example -p inFlight=1000.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VirtualThreadBenchmark
+{
+	private static final int PLATFORM_THREAD_COUNT = 200;
+	private static final int USER_COUNT = 1024;
+	private static final String DISTRIBUTED_CACHE_DAO_TYPE = "DistributedCache";
+	private static final String VIRTUAL_THREADS = "Virtual";
+	private static final int SESSION_TIMEOUT = 3600;
+	private static final int MARK_SESSION_TIMEOUT = 60;
+	private static final long ROUND_TRIP_LATENCY_IN_NANOSECONDS = 200000L;
+
+	@Param({"100", "1000", "10000"})
+	public int inFlight;
+
+	@Param({"Platform", "Virtual"})
+	public String threads;
+
+	@Param({"InMemory", "DistributedCache"})
+	public String daoType;
+
+	private RedisLatencyProxy redisLatencyProxy = null;
+	private JedisPool jedisPool = null;
+	private SessionManagementServiceImpl sessionManagementService = null;
+	private ExecutorService executor = null;
+	private String[] userIds = null;
+	private String[] sessionIds = null;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		Properties sessionMgmtProperties = new Properties();
+		sessionMgmtProperties.setProperty("SessionTimeout", "" + SESSION_TIMEOUT);
+		sessionMgmtProperties.setProperty("MarkSessionTimeout", "" + MARK_SESSION_TIMEOUT);
+		sessionMgmtProperties.setProperty("AllowMultipleSessions", "false");
+		sessionMgmtProperties.setProperty("DAOType", daoType);
+
+		SessionManagementDAO sessionManagementDAO = null;
+		if (DISTRIBUTED_CACHE_DAO_TYPE.equals(daoType))
+		{
+			RedisFixture redis = RedisFixture.getShared();
+			redis.flushAll();
+			redisLatencyProxy = new RedisLatencyProxy(redis.getHost(), redis.getPort());
+			jedisPool = BenchmarkDAOs.createJedisPool(redisLatencyProxy.getHost(), redisLatencyProxy.getPort());
+			sessionManagementDAO = BenchmarkDAOs.createDistributedCacheDAO(jedisPool, SESSION_TIMEOUT, MARK_SESSION_TIMEOUT);
+		}
+		sessionManagementService = new SessionManagementServiceImpl(sessionMgmtProperties, new HashMap<>(), createLoggingService(), sessionManagementDAO);
+
+		userIds = new String[USER_COUNT];
+		sessionIds = new String[USER_COUNT];
+		for (int i = 0; i < USER_COUNT; ++i)
+		{
+			userIds[i] = "virtualThreadBenchmarkUser" + i;
+			sessionIds[i] = sessionManagementService.register(userIds[i]).getSessionId();
+		}
+		if (redisLatencyProxy != null)
+		{
+			redisLatencyProxy.setRoundTripLatency(ROUND_TRIP_LATENCY_IN_NANOSECONDS);
+		}
+
+		if (VIRTUAL_THREADS.equals(threads))
+		{
+			executor = Executors.newVirtualThreadPerTaskExecutor();
+		}
+		else
+		{
+			executor = Executors.newFixedThreadPool(PLATFORM_THREAD_COUNT);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		if (jedisPool != null)
+		{
+			jedisPool.close();
+		}
+		if (redisLatencyProxy != null)
+		{
+			redisLatencyProxy.close();
+		}
+	}
+
+	@Benchmark
+	public int isValid() throws Exception
+	{
+		List<Future<Boolean>> validations = new ArrayList<>(inFlight);
+		for (int i = 0; i < inFlight; ++i)
+		{
+			int user = ThreadLocalRandom.current().nextInt(USER_COUNT);
+			validations.add(executor.submit(() -> sessionManagementService.isValid(userIds[user], sessionIds[user])));
+		}
+
+		int validCount = 0;
+		for (Future<Boolean> validation : validations)
+		{
+			validCount += validation.get() ? 1 : 0;
+		}
+		return validCount;
+	}
+
+	private static LoggingService createLoggingService()
+	{
+		return (LoggingService)Proxy.newProxyInstance(LoggingService.class.getClassLoader(), new Class<?>[] {LoggingService.class}, (proxy, method, args) -> {
+			return null;
+		});
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new OptionsBuilder()
+									.parent(new CommandLineOptions(args))
+									.include(VirtualThreadBenchmark.class.getSimpleName())
+									.resultFormat(ResultFormatType.JSON)
+									.result("target/jmh-VirtualThread.json")
+									.build();
+		new Runner(options).run();
+	}
+}
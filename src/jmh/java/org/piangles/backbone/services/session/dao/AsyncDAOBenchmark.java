@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.piangles.backbone.services.session.SessionDetails;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Throughput against the number of Redis connections, of the blocking DistributedCacheDAOImpl
+ * with a pool of that many connections and of AsyncDistributedCacheDAOImpl pipelining over
+ * that many. THREAD_COUNT callers each wait for their call, so the blocking DAO has at most
+ * connections calls out at a time while the async one has all of them. A RedisLatencyProxy
+ * in front of the redis-server of RedisFixture adds ROUND_TRIP_LATENCY to each round trip, about what a network hop within a data
+ * center costs, which is what a blocked connection spends its time on.
+ *
+ * Run through main, JMH options on the command line apply on top, for example -p connections=2.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(AsyncDAOBenchmark.THREAD_COUNT)
+@State(Scope.Benchmark)
+public class AsyncDAOBenchmark
+{
+	static final int THREAD_COUNT = 64;
+	private static final int USER_COUNT = 1024;
+	private static final int SESSION_TIMEOUT = 3600;
+	private static final int MARK_SESSION_TIMEOUT = 60;
+	private static final long ROUND_TRIP_LATENCY_IN_NANOSECONDS = 200000L;
+	private static final String POST_AUTHENTICATION_STATE = "PostAuthentication";
+
+	private static final AtomicInteger THREAD_USER_SEQUENCE = new AtomicInteger();
+
+	@Param({"1", "2", "4", "8"})
+	public int connections;
+
+	@Param({"Blocking", "Async"})
+	public String daoType;
+
+	private RedisLatencyProxy redisLatencyProxy = null;
+	private JedisPool jedisPool = null;
+	private AsyncDistributedCacheDAOImpl asyncDistributedCacheDAO = null;
+	private AsyncSessionManagementDAO asyncSessionManagementDAO = null;
+	private String[] userIds = null;
+	private String[] sessionIds = null;
+
+	//A user of its own for each benchmark thread, so register does not compete for the session limit.
+	@State(Scope.Thread)
+	public static class ThreadUser
+	{
+		private String userId = null;
+
+		@Setup(Level.Trial)
+		public void setUp()
+		{
+			userId = "asyncBenchmarkThreadUser" + THREAD_USER_SEQUENCE.incrementAndGet();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		RedisFixture redis = RedisFixture.getShared();
+		redis.flushAll();
+		redisLatencyProxy = new RedisLatencyProxy(redis.getHost(), redis.getPort());
+		jedisPool = BenchmarkDAOs.createJedisPool(redisLatencyProxy.getHost(), redisLatencyProxy.getPort(), connections);
+		SessionManagementDAO sessionManagementDAO = BenchmarkDAOs.createDistributedCacheDAO(jedisPool, SESSION_TIMEOUT, MARK_SESSION_TIMEOUT);
+
+		userIds = new String[USER_COUNT];
+		sessionIds = new String[USER_COUNT];
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < USER_COUNT; ++i)
+		{
+			userIds[i] = "asyncBenchmarkUser" + i;
+			sessionIds[i] = UUID.randomUUID().toString();
+			sessionManagementDAO.storeSessionDetails(new SessionDetails(userIds[i], sessionIds[i], POST_AUTHENTICATION_STATE, SESSION_TIMEOUT, now, now));
+		}
+		redisLatencyProxy.setRoundTripLatency(ROUND_TRIP_LATENCY_IN_NANOSECONDS);
+
+		if ("Async".equals(daoType))
+		{
+			asyncDistributedCacheDAO = BenchmarkDAOs.createAsyncDistributedCacheDAO(sessionManagementDAO, connections);
+			asyncSessionManagementDAO = asyncDistributedCacheDAO;
+		}
+		else
+		{
+			//Each call on its caller thread, holding a connection of the pool for the round trip.
+			asyncSessionManagementDAO = new AsyncSessionManagementDAOAdapter(sessionManagementDAO, Runnable::run);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		if (asyncDistributedCacheDAO != null)
+		{
+			asyncDistributedCacheDAO.close();
+		}
+		jedisPool.close();
+		redisLatencyProxy.close();
+	}
+
+	@Benchmark
+	public boolean isValid()
+	{
+		int user = ThreadLocalRandom.current().nextInt(USER_COUNT);
+		return asyncSessionManagementDAO.isValid(userIds[user], sessionIds[user]).toCompletableFuture().join();
+	}
+
+	//Removed again right away, the store stays at its initial size.
+	@Benchmark
+	public int register(ThreadUser threadUser)
+	{
+		SessionDetails sessionDetails = new SessionDetails(threadUser.userId, UUID.randomUUID().toString(), POST_AUTHENTICATION_STATE, SESSION_TIMEOUT);
+		return asyncSessionManagementDAO.storeSessionDetailsIfBelowLimit(sessionDetails, Integer.MAX_VALUE)
+					.thenCompose((existingSessionCount) -> asyncSessionManagementDAO.removeSessionDetails(threadUser.userId, sessionDetails.getSessionId())
+																	.thenApply((removed) -> existingSessionCount))
+					.toCompletableFuture().join();
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new OptionsBuilder()
+									.parent(new CommandLineOptions(args))
+									.include(AsyncDAOBenchmark.class.getSimpleName())
+									.resultFormat(ResultFormatType.JSON)
+									.result("target/jmh-AsyncDAO.json")
+									.build();
+		new Runner(options).run();
+	}
+}
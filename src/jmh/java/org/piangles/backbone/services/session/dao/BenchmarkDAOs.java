@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.List;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * DAOs for benchmarks outside this package, wired without ResourceManager or CentralConfig.
+ */
+public final class BenchmarkDAOs
+{
+	private static final int MAX_CONNECTIONS = 64;
+
+	private BenchmarkDAOs()
+	{
+	}
+
+	//Of a RedisFixture or a RedisLatencyProxy in front of one, has to be closed once done.
+	public static JedisPool createJedisPool(String host, int port)
+	{
+		return createJedisPool(host, port, MAX_CONNECTIONS);
+	}
+
+	//Has to be closed once done, callers wait for a connection once maxConnections are in use.
+	public static JedisPool createJedisPool(String host, int port, int maxConnections)
+	{
+		JedisPoolConfig poolConfig = new JedisPoolConfig();
+		poolConfig.setMaxTotal(maxConnections);
+		poolConfig.setMaxIdle(maxConnections);
+		return new JedisPool(poolConfig, host, port);
+	}
+
+	/**
+	 * A DistributedCacheDAOImpl with the List index and no validity cache, every call
+	 * borrows a connection from jedisPool the way RedisCache does.
+	 */
+	public static SessionManagementDAO createDistributedCacheDAO(JedisPool jedisPool, long sessionTimeout, int markSessionTimeout) throws Exception
+	{
+		return new DistributedCacheDAOImpl(RedisFixture.forJedisPool(jedisPool), sessionTimeout, markSessionTimeout, null, User2SessionIndexType.List);
+	}
+
+	/**
+	 * Same as createDistributedCacheDAO on a Redis Cluster with HashTagged keys, seedPool
+	 * is a pool of one of its nodes. The pools of the other nodes are added to nodePools
+	 * as they are created and have to be closed once done.
+	 */
+	public static SessionManagementDAO createClusterDistributedCacheDAO(JedisPool seedPool, List<JedisPool> nodePools, long sessionTimeout, int markSessionTimeout) throws Exception
+	{
+		RedisExecutor redisExecutor = new RedisClusterExecutor(RedisFixture.forJedisPool(seedPool), (node) -> {
+			JedisPool nodePool = createJedisPool(node.getHost(), node.getPort());
+			nodePools.add(nodePool);
+			return nodePool;
+		});
+		return new DistributedCacheDAOImpl(redisExecutor, sessionTimeout, markSessionTimeout, null, User2SessionIndexType.List, RedisKeyLayout.HashTagged, null, RedisSessionEncoding.Hash);
+	}
+
+	/**
+	 * distributedCacheDAO, from createDistributedCacheDAO, with its Redis commands pipelined
+	 * over connectionCount connections of its pool. Has to be closed once done.
+	 */
+	public static AsyncDistributedCacheDAOImpl createAsyncDistributedCacheDAO(SessionManagementDAO distributedCacheDAO, int connectionCount)
+	{
+		return new AsyncDistributedCacheDAOImpl((DistributedCacheDAOImpl)distributedCacheDAO, connectionCount);
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.piangles.backbone.services.session.SessionDetails;
+
+/**
+ * Throughput of InMemoryDAOImpl, every call through the DAO monitor, against
+ * ConcurrentInMemoryDAOImpl as the number of threads grows. requestMix is a request like
+ * mix of 90% isValid, 9% updateLastAccessed and 1% register plus unregister, the others
+ * are each of them on its own.
+ *
+ * Run through main for 1 thread up to twice the available cores, JMH options on the
+ * command line apply on top, for example -p daoType=ConcurrentInMemory or -t 8.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec@jmh -Djmh.main=org.piangles.backbone.services.session.dao.InMemoryDAOThroughputBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class InMemoryDAOThroughputBenchmark
+{
+	private static final long SESSION_TIMEOUT = 3600;
+	private static final int MARK_SESSION_TIMEOUT = 5;
+	private static final int USER_COUNT = 10000;
+	private static final String POST_AUTHENTICATION = "PostAuthentication";
+
+	@Param({"InMemory", "ConcurrentInMemory"})
+	public String daoType;
+
+	private SessionManagementDAO dao = null;
+	private String[] userIds = null;
+	private String[] sessionIds = null;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		if ("ConcurrentInMemory".equals(daoType))
+		{
+			dao = new ConcurrentInMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT);
+		}
+		else
+		{
+			dao = new InMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT);
+		}
+
+		userIds = new String[USER_COUNT];
+		sessionIds = new String[USER_COUNT];
+		for (int i = 0; i < USER_COUNT; ++i)
+		{
+			userIds[i] = "user" + i;
+			sessionIds[i] = UUID.randomUUID().toString();
+			dao.storeSessionDetails(new SessionDetails(userIds[i], sessionIds[i], POST_AUTHENTICATION, SESSION_TIMEOUT));
+		}
+	}
+
+	@Benchmark
+	public Object requestMix() throws Exception
+	{
+		Object result = null;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int user = random.nextInt(USER_COUNT);
+		int op = random.nextInt(100);
+		if (op < 90)
+		{
+			result = dao.isValid(userIds[user], sessionIds[user]);
+		}
+		else if (op < 99)
+		{
+			dao.updateLastAccessed(userIds[user], sessionIds[user]);
+		}
+		else
+		{
+			result = register(user);
+		}
+		return result;
+	}
+
+	@Benchmark
+	public boolean isValid() throws Exception
+	{
+		int user = ThreadLocalRandom.current().nextInt(USER_COUNT);
+		return dao.isValid(userIds[user], sessionIds[user]);
+	}
+
+	@Benchmark
+	public void updateLastAccessed() throws Exception
+	{
+		int user = ThreadLocalRandom.current().nextInt(USER_COUNT);
+		dao.updateLastAccessed(userIds[user], sessionIds[user]);
+	}
+
+	@Benchmark
+	public int register() throws Exception
+	{
+		return register(ThreadLocalRandom.current().nextInt(USER_COUNT));
+	}
+
+	//Removed again right away, the store stays at its initial size.
+	private int register(int user) throws Exception
+	{
+		String sessionId = UUID.randomUUID().toString();
+		int existingSessionCount = dao.storeSessionDetailsIfBelowLimit(new SessionDetails(userIds[user], sessionId, POST_AUTHENTICATION, SESSION_TIMEOUT), Integer.MAX_VALUE);
+		dao.removeSessionDetails(userIds[user], sessionId);
+		return existingSessionCount;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+		for (int threads = 1; threads <= maxThreads; threads = threads * 2)
+		{
+			Options options = new OptionsBuilder()
+										.parent(new CommandLineOptions(args))
+										.include(InMemoryDAOThroughputBenchmark.class.getSimpleName())
+										.threads(threads)
+										.resultFormat(ResultFormatType.JSON)
+										.result("target/jmh-InMemoryDAOThroughput-" + threads + "-threads.json")
+										.build();
+			new Runner(options).run();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.piangles.backbone.services.session.SessionDetails;
+
+/**
+ * Heap retained by InMemoryDAOImpl against CompactInMemoryDAOImpl holding sessionCount
+ * sessions, two sessions per user. Each iteration fills a DAO of its own and measures
+ * the used heap after a full GC, before and after, reported as the retainedBytes and
+ * retainedBytesPerSession counters. The figure includes the userId Strings, which both
+ * keep. The score is the time to fill the DAO and includes those GCs. JMH adds EVENTS
+ * counters up over iterations and forks, so there is a single measured iteration in a
+ * single fork, -i or -f above 1 would add the figures of the runs up.
+ *
+ * The heap has to be large enough for InMemoryDAOImpl at the largest sessionCount, on
+ * a smaller machine lower both, for example -p sessionCount=1000000 -jvmArgsAppend -Xmx3g.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec@jmh -Djmh.main=org.piangles.backbone.services.session.dao.InMemoryFootprintBenchmark
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+@Threads(1)
+@State(Scope.Benchmark)
+public class InMemoryFootprintBenchmark
+{
+	private static final long SESSION_TIMEOUT = 3600;
+	private static final int MARK_SESSION_TIMEOUT = 5;
+	private static final int SESSIONS_PER_USER = 2;
+	private static final int GC_COUNT = 3;
+	private static final long GC_PAUSE_IN_MILLISECONDS = 200;
+
+	@Param({"1000000", "5000000", "10000000"})
+	public int sessionCount;
+
+	@Param({"InMemory", "CompactInMemory"})
+	public String daoType;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Footprint
+	{
+		public long retainedBytes;
+		public long retainedBytesPerSession;
+
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			retainedBytes = 0;
+			retainedBytesPerSession = 0;
+		}
+	}
+
+	@Benchmark
+	public int fill(Footprint footprint) throws Exception
+	{
+		long before = usedHeap();
+		SessionManagementDAO dao = createDAO();
+		for (int i = 0; i < sessionCount; ++i)
+		{
+			dao.storeSessionDetails(new SessionDetails("user" + (i / SESSIONS_PER_USER), UUID.randomUUID().toString(), "PostAuthentication", SESSION_TIMEOUT));
+		}
+		long after = usedHeap();
+		footprint.retainedBytes = after - before;
+		footprint.retainedBytesPerSession = footprint.retainedBytes / sessionCount;
+
+		//Keeps the DAO reachable until after it has been measured.
+		return dao.getAllSessionDetails("user0").size();
+	}
+
+	private SessionManagementDAO createDAO() throws Exception
+	{
+		SessionManagementDAO dao = null;
+		if ("CompactInMemory".equals(daoType))
+		{
+			dao = new CompactInMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT);
+		}
+		else
+		{
+			dao = new InMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT);
+		}
+		return dao;
+	}
+
+	private static long usedHeap() throws Exception
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < GC_COUNT; ++i)
+		{
+			System.gc();
+			Thread.sleep(GC_PAUSE_IN_MILLISECONDS);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new OptionsBuilder()
+									.parent(new CommandLineOptions(args))
+									.include(InMemoryFootprintBenchmark.class.getSimpleName())
+									.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.piangles.backbone.services.session.SessionDetails;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Throughput of DistributedCacheDAOImpl on a Redis Cluster of shardCount nodes, with
+ * HashTagged keys and every command sent by RedisClusterExecutor to the node of its
+ * user. The nodes are redis-servers, see RedisFixture, each running one command at a
+ * time, so with THREAD_COUNT threads a single node is the bottleneck and the results show
+ * how far throughput goes up as the users are split over more nodes. That takes a core
+ * for each node on top of what the benchmark threads use, on fewer cores the nodes
+ * compete for them and the results show the cost of routing instead.
+ *
+ * Run through main, JMH options on the command line apply on top, for example -p shardCount=8.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(RedisClusterBenchmark.THREAD_COUNT)
+@State(Scope.Benchmark)
+public class RedisClusterBenchmark
+{
+	static final int THREAD_COUNT = 16;
+	private static final int USER_COUNT = 1024;
+	private static final int SESSION_TIMEOUT = 3600;
+	private static final int MARK_SESSION_TIMEOUT = 60;
+	private static final String POST_AUTHENTICATION_STATE = "PostAuthentication";
+
+	private static final AtomicInteger THREAD_USER_SEQUENCE = new AtomicInteger();
+
+	@Param({"1", "2", "4"})
+	public int shardCount;
+
+	private RedisFixture cluster = null;
+	private JedisPool seedPool = null;
+	private List<JedisPool> nodePools = null;
+	private SessionManagementDAO sessionManagementDAO = null;
+	private String[] userIds = null;
+	private String[] sessionIds = null;
+
+	//A user of its own for each benchmark thread, so register does not compete for the session limit.
+	@State(Scope.Thread)
+	public static class ThreadUser
+	{
+		private String userId = null;
+
+		@Setup(Level.Trial)
+		public void setUp()
+		{
+			userId = "clusterBenchmarkThreadUser" + THREAD_USER_SEQUENCE.incrementAndGet();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		cluster = RedisFixture.startCluster(shardCount);
+		seedPool = BenchmarkDAOs.createJedisPool(cluster.getHost(), cluster.getPort());
+		nodePools = new CopyOnWriteArrayList<>();
+		sessionManagementDAO = BenchmarkDAOs.createClusterDistributedCacheDAO(seedPool, nodePools, SESSION_TIMEOUT, MARK_SESSION_TIMEOUT);
+
+		userIds = new String[USER_COUNT];
+		sessionIds = new String[USER_COUNT];
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < USER_COUNT; ++i)
+		{
+			userIds[i] = "clusterBenchmarkUser" + i;
+			sessionIds[i] = UUID.randomUUID().toString();
+			sessionManagementDAO.storeSessionDetails(new SessionDetails(userIds[i], sessionIds[i], POST_AUTHENTICATION_STATE, SESSION_TIMEOUT, now, now));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		for (JedisPool nodePool : nodePools)
+		{
+			nodePool.close();
+		}
+		seedPool.close();
+		cluster.close();
+	}
+
+	@Benchmark
+	public boolean isValid() throws Exception
+	{
+		int user = ThreadLocalRandom.current().nextInt(USER_COUNT);
+		return sessionManagementDAO.isValid(userIds[user], sessionIds[user]);
+	}
+
+	//Removed again right away, the store stays at its initial size.
+	@Benchmark
+	public int register(ThreadUser threadUser) throws Exception
+	{
+		SessionDetails sessionDetails = new SessionDetails(threadUser.userId, UUID.randomUUID().toString(), POST_AUTHENTICATION_STATE, SESSION_TIMEOUT);
+		int existingSessionCount = sessionManagementDAO.storeSessionDetailsIfBelowLimit(sessionDetails, Integer.MAX_VALUE);
+		sessionManagementDAO.removeSessionDetails(threadUser.userId, sessionDetails.getSessionId());
+		return existingSessionCount;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new OptionsBuilder()
+									.parent(new CommandLineOptions(args))
+									.include(RedisClusterBenchmark.class.getSimpleName())
+									.resultFormat(ResultFormatType.JSON)
+									.result("target/jmh-RedisCluster.json")
+									.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.piangles.backbone.services.session.SessionDetails;
+
+/**
+ * Ops/sec and bytes allocated per op, from the gc profiler, of the DistributedCacheDAOImpl
+ * methods. The *Keys benchmarks are the keys and values each method builds per call, with
+ * keyEncoding StringFormat the way it did before, String.format and then UTF-8 encoding in
+ * Jedis, against Binary, RedisKeyEncoder as it does now. The others are the methods against
+ * a redis-server, see RedisFixture, where Jedis and the round trip come on top.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec@jmh -Djmh.main=org.piangles.backbone.services.session.dao.RedisKeyEncodingBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RedisKeyEncodingBenchmark
+{
+	private static final long SESSION_TIMEOUT = 3600;
+	private static final int MARK_SESSION_TIMEOUT = 60;
+	private static final int USER_COUNT = 1024;
+	private static final String POST_AUTHENTICATION = "PostAuthentication";
+
+	@State(Scope.Benchmark)
+	public static class Keys
+	{
+		@Param({"StringFormat", "Binary"})
+		public String keyEncoding;
+
+		private RedisKeyLayout keyLayout = RedisKeyLayout.Standard;
+		private String userId = "user12345";
+		private String sessionId = UUID.randomUUID().toString();
+		private long lastAccessedTS = System.currentTimeMillis();
+
+		private boolean isBinary()
+		{
+			return "Binary".equals(keyEncoding);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Redis
+	{
+		private DistributedCacheDAOImpl dao = null;
+		private String[] userIds = null;
+		private String[] sessionIds = null;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception
+		{
+			RedisFixture redis = RedisFixture.getShared();
+			redis.flushAll();
+			dao = new DistributedCacheDAOImpl(redis.createExecutor(), SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, null, User2SessionIndexType.SortedSet);
+
+			userIds = new String[USER_COUNT];
+			sessionIds = new String[USER_COUNT];
+			for (int i = 0; i < USER_COUNT; ++i)
+			{
+				userIds[i] = "keyBenchmarkUser" + i;
+				sessionIds[i] = UUID.randomUUID().toString();
+				dao.storeSessionDetails(new SessionDetails(userIds[i], sessionIds[i], POST_AUTHENTICATION, SESSION_TIMEOUT));
+			}
+		}
+
+		private int nextUser()
+		{
+			return ThreadLocalRandom.current().nextInt(USER_COUNT);
+		}
+	}
+
+	//The session and the generation.
+	@Benchmark
+	public void isValidKeys(Keys keys, Blackhole blackhole)
+	{
+		if (keys.isBinary())
+		{
+			blackhole.consume(keys.keyLayout.createUser2SessionDetailsKeyBytes(keys.userId, keys.sessionId));
+			blackhole.consume(keys.keyLayout.createUser2SessionGenerationKeyBytes(keys.userId));
+		}
+		else
+		{
+			blackhole.consume(encode(keys.keyLayout.createUser2SessionDetailsKey(keys.userId, keys.sessionId)));
+			blackhole.consume(encode(keys.keyLayout.createUser2SessionGenerationKey(keys.userId)));
+		}
+	}
+
+	//The session, LastAccessedTS, the index and the generation.
+	@Benchmark
+	public void updateLastAccessedKeys(Keys keys, Blackhole blackhole)
+	{
+		if (keys.isBinary())
+		{
+			blackhole.consume(keys.keyLayout.createUser2SessionDetailsKeyBytes(keys.userId, keys.sessionId));
+			blackhole.consume(RedisKeyEncoder.encode(keys.lastAccessedTS));
+			blackhole.consume(keys.keyLayout.createUser2SessionIndexKeyBytes(keys.userId));
+			blackhole.consume(keys.keyLayout.createUser2SessionGenerationKeyBytes(keys.userId));
+		}
+		else
+		{
+			blackhole.consume(encode(keys.keyLayout.createUser2SessionDetailsKey(keys.userId, keys.sessionId)));
+			blackhole.consume(encode("" + keys.lastAccessedTS));
+			blackhole.consume(encode(keys.keyLayout.createUser2SessionIndexKey(keys.userId)));
+			blackhole.consume(encode(keys.keyLayout.createUser2SessionGenerationKey(keys.userId)));
+		}
+	}
+
+	//The generation, the index, the session and its sessionId in the index.
+	@Benchmark
+	public void storeSessionDetailsKeys(Keys keys, Blackhole blackhole)
+	{
+		if (keys.isBinary())
+		{
+			blackhole.consume(keys.keyLayout.createUser2SessionGenerationKeyBytes(keys.userId));
+			blackhole.consume(keys.keyLayout.createUser2SessionIndexKeyBytes(keys.userId));
+			blackhole.consume(keys.keyLayout.createUser2SessionDetailsKeyBytes(keys.userId, keys.sessionId));
+			blackhole.consume(RedisKeyEncoder.encode(keys.sessionId));
+		}
+		else
+		{
+			blackhole.consume(encode(keys.keyLayout.createUser2SessionGenerationKey(keys.userId)));
+			blackhole.consume(encode(keys.keyLayout.createUser2SessionIndexKey(keys.userId)));
+			blackhole.consume(encode(keys.keyLayout.createUser2SessionDetailsKey(keys.userId, keys.sessionId)));
+			blackhole.consume(encode(keys.sessionId));
+		}
+	}
+
+	@Benchmark
+	public boolean isValid(Redis redis) throws Exception
+	{
+		int user = redis.nextUser();
+		return redis.dao.isValid(redis.userIds[user], redis.sessionIds[user]);
+	}
+
+	@Benchmark
+	public SessionDetails getSessionDetails(Redis redis) throws Exception
+	{
+		int user = redis.nextUser();
+		return redis.dao.getSessionDetails(redis.userIds[user], redis.sessionIds[user]);
+	}
+
+	@Benchmark
+	public void updateLastAccessed(Redis redis) throws Exception
+	{
+		int user = redis.nextUser();
+		redis.dao.updateLastAccessed(redis.userIds[user], redis.sessionIds[user]);
+	}
+
+	//Removed again right away, the store stays at its initial size.
+	@Benchmark
+	public void storeSessionDetails(Redis redis) throws Exception
+	{
+		int user = redis.nextUser();
+		String sessionId = UUID.randomUUID().toString();
+		redis.dao.storeSessionDetails(new SessionDetails(redis.userIds[user], sessionId, POST_AUTHENTICATION, SESSION_TIMEOUT));
+		redis.dao.removeSessionDetails(redis.userIds[user], sessionId);
+	}
+
+	//What Jedis does with a String key or argument.
+	private static byte[] encode(String value)
+	{
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new OptionsBuilder()
+									.parent(new CommandLineOptions(args))
+									.include(RedisKeyEncodingBenchmark.class.getSimpleName())
+									.addProfiler(GCProfiler.class)
+									.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sits between Jedis and a real Redis, see RedisFixture, and holds every reply back by
+ * the round trip latency, about what a network hop within a data center costs while
+ * the loopback alone costs next to nothing. Replies to pipelined commands which arrive
+ * together are held back together, a pipeline is one round trip like on a network.
+ */
+public final class RedisLatencyProxy implements AutoCloseable
+{
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private String redisHost = null;
+	private int redisPort;
+	private ServerSocket serverSocket = null;
+	private List<Socket> sockets = null;
+	private volatile long roundTripLatencyInNanoSeconds;
+
+	public RedisLatencyProxy(String redisHost, int redisPort) throws IOException
+	{
+		this.redisHost = redisHost;
+		this.redisPort = redisPort;
+		sockets = new ArrayList<>();
+		serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(this::accept, "RedisLatencyProxy");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	//Replies are not held back until this is set, so the setup of a benchmark is not slowed down.
+	public void setRoundTripLatency(long roundTripLatencyInNanoSeconds)
+	{
+		this.roundTripLatencyInNanoSeconds = roundTripLatencyInNanoSeconds;
+	}
+
+	public String getHost()
+	{
+		return serverSocket.getInetAddress().getHostAddress();
+	}
+
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		serverSocket.close();
+		synchronized (sockets)
+		{
+			for (Socket socket : sockets)
+			{
+				socket.close();
+			}
+		}
+	}
+
+	private void accept()
+	{
+		while (!serverSocket.isClosed())
+		{
+			try
+			{
+				Socket client = serverSocket.accept();
+				Socket redis = new Socket(redisHost, redisPort);
+				client.setTcpNoDelay(true);
+				redis.setTcpNoDelay(true);
+				synchronized (sockets)
+				{
+					sockets.add(client);
+					sockets.add(redis);
+				}
+				start(() -> relay(client, redis, false), "RedisLatencyProxy-" + client.getPort() + "-Commands");
+				start(() -> relay(redis, client, true), "RedisLatencyProxy-" + client.getPort() + "-Replies");
+			}
+			catch (IOException e)
+			{
+				//Closed, the loop ends.
+			}
+		}
+	}
+
+	//Whatever is available is read before the replies are held back and written, see the class comment.
+	private void relay(Socket from, Socket to, boolean holdBack)
+	{
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try
+		{
+			InputStream in = from.getInputStream();
+			OutputStream out = to.getOutputStream();
+			int read = in.read(buffer);
+			while (read >= 0)
+			{
+				int length = read;
+				while (length < buffer.length && in.available() > 0)
+				{
+					length = length + in.read(buffer, length, Math.min(in.available(), buffer.length - length));
+				}
+				if (holdBack && roundTripLatencyInNanoSeconds > 0)
+				{
+					LockSupport.parkNanos(roundTripLatencyInNanoSeconds);
+				}
+				out.write(buffer, 0, length);
+				out.flush();
+				read = in.read(buffer);
+			}
+		}
+		catch (IOException e)
+		{
+			//Either side went away.
+		}
+		finally
+		{
+			close(from);
+			close(to);
+		}
+	}
+
+	private static void start(Runnable runnable, String name)
+	{
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void close(Socket socket)
+	{
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			//Already closed.
+		}
+	}
+}
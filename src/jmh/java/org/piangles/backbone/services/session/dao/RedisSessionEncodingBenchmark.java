@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.piangles.backbone.services.session.SessionDetails;
+
+import redis.clients.jedis.Protocol;
+
+/**
+ * RedisSessionEncoding Hash against Record. decode is the cost of decoding a read
+ * session without Redis, the Hash as the content keyed map Jedis returns, run with
+ * -prof gc for the bytes allocated per op. storeSessions stores SESSIONS sessions in a
+ * redis-server, see RedisFixture, and reports what MEMORY USAGE has for each session key
+ * as redisBytesPerSession.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec@jmh -Djmh.main=org.piangles.backbone.services.session.dao.RedisSessionEncodingBenchmark
+ */
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RedisSessionEncodingBenchmark
+{
+	private static final long SESSION_TIMEOUT = 3600;
+	private static final int MARK_SESSION_TIMEOUT = 5;
+	private static final int SESSIONS = 1000;
+	private static final byte[] USER_ID_FIELD = RedisKeyEncoder.encode("UserId");
+	private static final byte[] SESSION_ID_FIELD = RedisKeyEncoder.encode("SessionId");
+	private static final byte[] AUTHENTICATION_STATE_FIELD = RedisKeyEncoder.encode("authenticationState");
+	private static final byte[] CREATED_TS_FIELD = RedisKeyEncoder.encode("CreatedTS");
+	private static final byte[] LAST_ACCESSED_TS_FIELD = RedisKeyEncoder.encode("LastAccessedTS");
+	private static final byte[] GENERATION_FIELD = RedisKeyEncoder.encode("Generation");
+	private static final byte[] USAGE = RedisKeyEncoder.encode("USAGE");
+
+	@Param({"Hash", "Record"})
+	public RedisSessionEncoding encoding;
+
+	private Map<byte[], byte[]> hash = null;
+	private byte[] record = null;
+	private DistributedCacheDAOImpl dao = null;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class RedisMemory
+	{
+		public long redisBytesPerSession;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		long now = System.currentTimeMillis();
+		hash = new TreeMap<>(Arrays::compare);
+		hash.put(USER_ID_FIELD, RedisKeyEncoder.encode("user12345"));
+		hash.put(SESSION_ID_FIELD, RedisKeyEncoder.encode(UUID.randomUUID().toString()));
+		hash.put(AUTHENTICATION_STATE_FIELD, RedisKeyEncoder.encode("PostAuthentication"));
+		hash.put(CREATED_TS_FIELD, RedisKeyEncoder.encode(now));
+		hash.put(LAST_ACCESSED_TS_FIELD, RedisKeyEncoder.encode(now));
+		hash.put(GENERATION_FIELD, RedisKeyEncoder.encode(0L));
+		record = SessionRecord.encode("PostAuthentication", now, now, 0);
+
+		dao = new DistributedCacheDAOImpl(RedisFixture.getShared().createExecutor(), SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, null, User2SessionIndexType.List,
+											RedisKeyLayout.Standard, null, encoding);
+	}
+
+	//What DistributedCacheDAOImpl reads out of each, the userId and sessionId of a Record come from the caller.
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	public void decode(Blackhole blackhole)
+	{
+		if (encoding == RedisSessionEncoding.Hash)
+		{
+			blackhole.consume(RedisKeyEncoder.decode(hash.get(USER_ID_FIELD)));
+			blackhole.consume(RedisKeyEncoder.decode(hash.get(SESSION_ID_FIELD)));
+			blackhole.consume(RedisKeyEncoder.decode(hash.get(AUTHENTICATION_STATE_FIELD)));
+			blackhole.consume(RedisKeyEncoder.parseLong(hash.get(CREATED_TS_FIELD)));
+			blackhole.consume(RedisKeyEncoder.parseLong(hash.get(LAST_ACCESSED_TS_FIELD)));
+			blackhole.consume(RedisKeyEncoder.parseLong(hash.get(GENERATION_FIELD)));
+		}
+		else if (SessionRecord.isSession(record))
+		{
+			blackhole.consume(SessionRecord.getAuthenticationState(record));
+			blackhole.consume(SessionRecord.getCreatedTS(record));
+			blackhole.consume(SessionRecord.getLastAccessedTS(record));
+			blackhole.consume(SessionRecord.getGeneration(record));
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 0)
+	@Measurement(iterations = 1)
+	public void storeSessions(RedisMemory memory) throws Exception
+	{
+		String userId = "EncodingBenchmark-" + encoding;
+		long bytes = 0;
+		for (int i = 0; i < SESSIONS; ++i)
+		{
+			String sessionId = UUID.randomUUID().toString();
+			dao.storeSessionDetails(new SessionDetails(userId, sessionId, "PostAuthentication", SESSION_TIMEOUT));
+			byte[] key = encoding.createUser2SessionDetailsKeyBytes(RedisKeyLayout.Standard, userId, sessionId);
+			bytes = bytes + dao.getRedisExecutor().execute(key, (jedis) -> (Long)jedis.sendCommand(Protocol.Command.MEMORY, USAGE, key));
+		}
+		memory.redisBytesPerSession = bytes / SESSIONS;
+		dao.removeAllSessionDetails(userId);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new OptionsBuilder()
+									.parent(new CommandLineOptions(args))
+									.include(RedisSessionEncodingBenchmark.class.getSimpleName())
+									.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.piangles.backbone.services.session.SessionDetails;
+
+/**
+ * Time for InMemoryDAOImpl to recover its sessions from a SessionJournal on startup, from
+ * a snapshot of sessionCount sessions followed by a tail of a tenth as many changes in
+ * segments. Each iteration recovers into a DAO of its own.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec@jmh -Djmh.main=org.piangles.backbone.services.session.dao.SessionJournalRecoveryBenchmark
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class SessionJournalRecoveryBenchmark
+{
+	private static final long SESSION_TIMEOUT = 3600;
+	private static final int MARK_SESSION_TIMEOUT = 5;
+	private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final long COMMIT_INTERVAL = 50;
+
+	@Param({"1000000"})
+	public int sessionCount;
+
+	private Path directory = null;
+	private SessionJournal journal = null;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		directory = Files.createTempDirectory("SessionJournalRecoveryBenchmark");
+		try (SessionJournal journal = new SessionJournal(directory, SEGMENT_SIZE, COMMIT_INTERVAL, Integer.MAX_VALUE))
+		{
+			InMemoryDAOImpl dao = new InMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, System::currentTimeMillis);
+			dao.enablePersistence(journal);
+			for (int i = 0; i < sessionCount; ++i)
+			{
+				dao.storeSessionDetails(new SessionDetails("user" + i, UUID.randomUUID().toString(), "PostAuthentication", SESSION_TIMEOUT));
+			}
+			journal.flush();
+			journal.compact();
+			for (int i = 0; i < sessionCount / 10; ++i)
+			{
+				dao.updateLastAccessed("user" + i, dao.getAllSessionDetails("user" + i).get(0).getSessionId());
+			}
+			journal.flush();
+		}
+	}
+
+	//The DAO of the iteration is collected here rather than during the next recovery.
+	@TearDown(Level.Iteration)
+	public void closeJournal()
+	{
+		journal.close();
+		journal = null;
+		System.gc();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		try (Stream<Path> paths = Files.walk(directory))
+		{
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	//The number of records replayed, the snapshot and the tail.
+	@Benchmark
+	public long recover() throws Exception
+	{
+		journal = new SessionJournal(directory, SEGMENT_SIZE, COMMIT_INTERVAL, Integer.MAX_VALUE);
+		InMemoryDAOImpl dao = new InMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, System::currentTimeMillis);
+		return dao.enablePersistence(journal);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new OptionsBuilder()
+									.parent(new CommandLineOptions(args))
+									.include(SessionJournalRecoveryBenchmark.class.getSimpleName())
+									.build();
+		new Runner(options).run();
+	}
+}
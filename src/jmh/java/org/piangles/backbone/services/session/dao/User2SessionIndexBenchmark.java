@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.piangles.backbone.services.session.SessionDetails;
+
+/**
+ * Compares the List and SortedSet User->SessionId index for a user with hundreds of
+ * sessions, like a shared service account, against the redis-server of RedisFixture.
+ * Every iteration starts the user over with sessionsPerUser sessions of which one in
+ * ten has expired, the first register of the iteration prunes those. register removes
+ * its session again right away, so the user stays at the same size.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec@jmh -Djmh.main=org.piangles.backbone.services.session.dao.User2SessionIndexBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class User2SessionIndexBenchmark
+{
+	private static final long SESSION_TIMEOUT = 3600;
+	private static final int MARK_SESSION_TIMEOUT = 5;
+	private static final String POST_AUTHENTICATION = "PostAuthentication";
+
+	@Param({"List", "SortedSet"})
+	public User2SessionIndexType indexType;
+
+	@Param({"10", "100", "300", "500"})
+	public int sessionsPerUser;
+
+	private RedisFixture redis = null;
+	private DistributedCacheDAOImpl dao = null;
+	private String userId = null;
+	private String[] validSessionIds = null;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		redis = RedisFixture.getShared();
+		dao = new DistributedCacheDAOImpl(redis.createExecutor(), SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, null, indexType);
+		userId = "IndexBenchmark-" + indexType + "-" + sessionsPerUser;
+	}
+
+	@Setup(Level.Iteration)
+	public void storeSessions() throws Exception
+	{
+		//removeAllSessionDetails would leave the sessions of earlier iterations in the index until they expire.
+		redis.flushAll();
+
+		long now = System.currentTimeMillis();
+		long expiredTS = now - (SESSION_TIMEOUT * 1000) - 1;
+		validSessionIds = new String[sessionsPerUser - (sessionsPerUser + 9) / 10];
+		int validSessionCount = 0;
+		for (int i = 0; i < sessionsPerUser; ++i)
+		{
+			String sessionId = UUID.randomUUID().toString();
+			//One in ten sessions has expired and has to be pruned on register.
+			boolean expired = (i % 10 == 0);
+			long lastAccessedTS = expired ? expiredTS : now;
+			dao.storeSessionDetails(new SessionDetails(userId, sessionId, POST_AUTHENTICATION, SESSION_TIMEOUT, lastAccessedTS, lastAccessedTS));
+			if (!expired)
+			{
+				validSessionIds[validSessionCount++] = sessionId;
+			}
+		}
+	}
+
+	@Benchmark
+	public int register() throws Exception
+	{
+		String sessionId = UUID.randomUUID().toString();
+		int existingSessionCount = dao.storeSessionDetailsIfBelowLimit(new SessionDetails(userId, sessionId, POST_AUTHENTICATION, SESSION_TIMEOUT), Integer.MAX_VALUE);
+		dao.removeSessionDetails(userId, sessionId);
+		return existingSessionCount;
+	}
+
+	@Benchmark
+	public void updateLastAccessed() throws Exception
+	{
+		dao.updateLastAccessed(userId, validSessionIds[ThreadLocalRandom.current().nextInt(validSessionIds.length)]);
+	}
+
+	@Benchmark
+	public int getExistingValidSessionCount() throws Exception
+	{
+		return dao.getExistingValidSessionCount(userId);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options options = new OptionsBuilder()
+									.parent(new CommandLineOptions(args))
+									.include(User2SessionIndexBenchmark.class.getSimpleName())
+									.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.id;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * SessionIds per second from UUIDSessionIdGenerator, UUID.randomUUID from the JVM wide
+ * SecureRandom, against DRBGSessionIdGenerator in both formats. UUID.randomUUID is
+ * expected to flatten out as threads are added while the DRBG grows with cores.
+ *
+ * Run through main for 1 to 64 threads, JMH options on the command line apply on top,
+ * for example -p generator=DRBG or -t 8.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec@jmh -Djmh.main=org.piangles.backbone.services.session.id.SessionIdGeneratorBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class SessionIdGeneratorBenchmark
+{
+	private static final int MAX_THREADS = 64;
+
+	@Param({"RandomUUID", "DRBG"})
+	public String generator;
+
+	@Param({"UUID", "Base64Url"})
+	public SessionIdFormat format;
+
+	private SessionIdGenerator sessionIdGenerator = null;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		if ("DRBG".equals(generator))
+		{
+			sessionIdGenerator = new DRBGSessionIdGenerator(format);
+		}
+		else
+		{
+			sessionIdGenerator = new UUIDSessionIdGenerator(format);
+		}
+	}
+
+	@Benchmark
+	public String generate()
+	{
+		return sessionIdGenerator.generate();
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		for (int threads = 1; threads <= MAX_THREADS; threads = threads * 2)
+		{
+			Options options = new OptionsBuilder()
+										.parent(new CommandLineOptions(args))
+										.include(SessionIdGeneratorBenchmark.class.getSimpleName())
+										.threads(threads)
+										.resultFormat(ResultFormatType.JSON)
+										.result("target/jmh-SessionIdGenerator-" + threads + "-threads.json")
+										.build();
+			new Runner(options).run();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.log;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.piangles.backbone.services.logging.LoggingService;
+
+/**
+ * Cost on the calling thread of one routine log line of makeLastAccessedCurrent:
+ * Concatenated is how SessionManagementServiceImpl logged before SessionLogger, the
+ * others are the SessionLogger implementations. The LoggingService stands in for an
+ * appender, it timestamps the line and writes it to a synchronized stream going nowhere.
+ *
+ * Run with: mvn -Pjmh test-compile exec:exec@jmh -Djmh.main=org.piangles.backbone.services.session.log.SessionLoggingBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionLoggingBenchmark
+{
+	private static final int[] THREAD_COUNTS = {1, 16};
+	private static final int BUFFER_SIZE = 8192;
+	private static final int SAMPLE_RATE = 100;
+
+	@Param({"Concatenated", "Synchronous", "Async", "AsyncSampled"})
+	public String loggingMode;
+
+	private LoggingService logger = null;
+	private SessionLogger sessionLogger = null;
+	private String userId = "benchmarkUser";
+	private String sessionId = "0f8fad5b-d9cb-469f-a165-70867728950e";
+
+	@Setup
+	public void setUp()
+	{
+		PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+		logger = (LoggingService)Proxy.newProxyInstance(LoggingService.class.getClassLoader(), new Class<?>[] {LoggingService.class}, (proxy, method, args) -> {
+			sink.println(System.currentTimeMillis() + " " + Thread.currentThread().getName() + " " + method.getName() + " " + args[0]);
+			return null;
+		});
+
+		if ("Async".equals(loggingMode))
+		{
+			sessionLogger = new AsyncSessionLogger(logger, BUFFER_SIZE, 1);
+		}
+		else if ("AsyncSampled".equals(loggingMode))
+		{
+			sessionLogger = new AsyncSessionLogger(logger, BUFFER_SIZE, SAMPLE_RATE);
+		}
+		else
+		{
+			sessionLogger = new SynchronousSessionLogger(logger);
+		}
+	}
+
+	@Benchmark
+	public void logRoutineEvent()
+	{
+		if ("Concatenated".equals(loggingMode))
+		{
+			logger.info("Making LastAccessedCurrent Session for UserId:" + userId + " SessionId:"+sessionId);
+		}
+		else
+		{
+			sessionLogger.info("Making LastAccessedCurrent Session for UserId:{} SessionId:{}", userId, sessionId);
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		for (int threads : THREAD_COUNTS)
+		{
+			Options options = new OptionsBuilder()
+										.parent(new CommandLineOptions(args))
+										.include(SessionLoggingBenchmark.class.getSimpleName())
+										.threads(threads)
+										.addProfiler(GCProfiler.class)
+										.build();
+			new Runner(options).run();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.piangles.backbone.services.logging.LoggingService;
+
+/**
+ * Looks up the PreApprovedSessionId of the managed services concurrently, on at most
+ * parallelism threads which are gone once discovery is done. Startup takes about as
+ * long as the slowest lookup instead of the sum of them.
+ *
+ * Each lookup gets timeoutInMilliSeconds once it is being waited on. A lookup that fails
+ * or does not complete in time fails discovery, the same as a failing lookup failed
+ * startup when they were done one after the other.
+ */
+final class PreApprovedSessionIdDiscovery
+{
+	private static final String PRE_APPROVED_SESSION_ID = "PreApprovedSessionId";
+
+	//CentralClient::discover in production.
+	interface ServiceDiscovery
+	{
+		public Properties discover(String serviceName) throws Exception;
+	}
+
+	private ServiceDiscovery serviceDiscovery = null;
+	private int parallelism;
+	private long timeoutInMilliSeconds;
+	private LoggingService logger = null;
+
+	PreApprovedSessionIdDiscovery(ServiceDiscovery serviceDiscovery, int parallelism, long timeoutInMilliSeconds, LoggingService logger)
+	{
+		if (parallelism < 1)
+		{
+			throw new IllegalArgumentException("Parallelism has to be at least 1, it is " + parallelism + ".");
+		}
+		this.serviceDiscovery = serviceDiscovery;
+		this.parallelism = parallelism;
+		this.timeoutInMilliSeconds = timeoutInMilliSeconds;
+		this.logger = logger;
+	}
+
+	/**
+	 * Returns an immutable map of service name to PreApprovedSessionId. A service without
+	 * a PreApprovedSessionId is left out, a lookup of it finds nothing either way.
+	 */
+	Map<String, String> discover(List<String> serviceNames) throws Exception
+	{
+		Map<String, String> predeterminedSessionIdMap = new HashMap<>();
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, serviceNames.size())), runnable -> {
+			Thread thread = new Thread(runnable, "PreApprovedSessionIdDiscovery");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try
+		{
+			Map<String, Future<Properties>> discoveries = new LinkedHashMap<>();
+			for (String serviceName : serviceNames)
+			{
+				logger.info("Looking up for " + PRE_APPROVED_SESSION_ID + " for service: " + serviceName);
+				discoveries.put(serviceName, executor.submit(() -> serviceDiscovery.discover(serviceName)));
+			}
+
+			for (Map.Entry<String, Future<Properties>> discovery : discoveries.entrySet())
+			{
+				Properties discoveryProperties = null;
+				try
+				{
+					discoveryProperties = discovery.getValue().get(timeoutInMilliSeconds, TimeUnit.MILLISECONDS);
+				}
+				catch (TimeoutException expt)
+				{
+					throw new Exception("Discovery of service: " + discovery.getKey() + " did not complete within " + timeoutInMilliSeconds + "ms.", expt);
+				}
+				catch (ExecutionException expt)
+				{
+					throw new Exception("Discovery of service: " + discovery.getKey() + " failed.", expt.getCause());
+				}
+
+				String preApprovedSessionId = discoveryProperties.getProperty(PRE_APPROVED_SESSION_ID);
+				if (preApprovedSessionId != null)
+				{
+					predeterminedSessionIdMap.put(discovery.getKey(), preApprovedSessionId);
+				}
+				else
+				{
+					logger.info("There is no " + PRE_APPROVED_SESSION_ID + " for service: " + discovery.getKey());
+				}
+			}
+		}
+		finally
+		{
+			//Anything still running is abandoned, discovery has failed by then.
+			executor.shutdownNow();
+		}
+
+		return Map.copyOf(predeterminedSessionIdMap);
+	}
+}
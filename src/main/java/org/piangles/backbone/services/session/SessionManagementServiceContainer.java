@@ -22,6 +22,17 @@ package org.piangles.backbone.services.session;
 import org.piangles.core.services.remoting.AbstractContainer;
 import org.piangles.core.services.remoting.ContainerException;
 
+/**
+ * Requests are run by AbstractContainer on its RequestProcessor threads, platform threads
+ * which carry the SessionId of the request as a SessionIdProvider. There is no mode
+ * running them on virtual threads: AbstractContainer creates its RequestProcessors itself
+ * and cannot be given an executor, and handing a call over to a virtual thread from the
+ * service would leave the RequestProcessor blocked waiting for it all the same.
+ *
+ * Virtual threads are used by registerAsync and isValidAsync and by the blocking
+ * fallbacks of AsyncDistributedCacheDAOImpl. The DAOs do not pin a carrier thread,
+ * see VirtualThreadBenchmark.
+ */
 public class SessionManagementServiceContainer extends AbstractContainer
 {
 	public static void main(String[] args)
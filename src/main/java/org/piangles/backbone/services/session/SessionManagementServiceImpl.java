@@ -19,17 +19,50 @@
  
 package org.piangles.backbone.services.session;
 
-import java.util.HashMap;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
 import org.piangles.backbone.services.Locator;
 import org.piangles.backbone.services.logging.LoggingService;
+import org.piangles.backbone.services.session.dao.AsyncDistributedCacheDAOImpl;
+import org.piangles.backbone.services.session.dao.AsyncSessionManagementDAO;
+import org.piangles.backbone.services.session.dao.AsyncSessionManagementDAOAdapter;
+import org.piangles.backbone.services.session.dao.CompactInMemoryDAOImpl;
+import org.piangles.backbone.services.session.dao.ConcurrentInMemoryDAOImpl;
 import org.piangles.backbone.services.session.dao.DistributedCacheDAOImpl;
+import org.piangles.backbone.services.session.dao.RedisKeyLayout;
+import org.piangles.backbone.services.session.dao.RedisSessionEncoding;
 import org.piangles.backbone.services.session.dao.InMemoryDAOImpl;
+import org.piangles.backbone.services.session.dao.SessionJournal;
+import org.piangles.backbone.services.session.dao.InstrumentedSessionManagementDAO;
+import org.piangles.backbone.services.session.dao.RedisSessionReaper;
 import org.piangles.backbone.services.session.dao.SessionManagementDAO;
+import org.piangles.backbone.services.session.dao.TwoTierDAOImpl;
+import org.piangles.backbone.services.session.dao.SessionDetailsCache;
+import org.piangles.backbone.services.session.dao.SessionValidityCache;
+import org.piangles.backbone.services.session.dao.User2SessionIndexType;
+import org.piangles.backbone.services.session.id.DRBGSessionIdGenerator;
+import org.piangles.backbone.services.session.id.SessionIdFormat;
+import org.piangles.backbone.services.session.id.SessionIdGenerator;
+import org.piangles.backbone.services.session.id.UUIDSessionIdGenerator;
+import org.piangles.backbone.services.session.log.AsyncSessionLogger;
+import org.piangles.backbone.services.session.log.SessionLogger;
+import org.piangles.backbone.services.session.log.SynchronousSessionLogger;
+import org.piangles.backbone.services.session.metrics.OperationMetrics;
+import org.piangles.backbone.services.session.metrics.SessionMetrics;
+import org.piangles.backbone.services.session.token.SessionTokens;
 import org.piangles.core.dao.DAOException;
 import org.piangles.core.expt.ValidationException;
 import org.piangles.core.util.central.CentralClient;
@@ -59,27 +92,605 @@ import org.piangles.core.util.central.CentralClient;
 public class SessionManagementServiceImpl implements SessionManagementService
 {
 	private static final String MANAGED_SERVICE = "ManagedService";
-	private static final String PRE_APPROVED_SESSION_ID = "PreApprovedSessionId";
+	private static final String DISCOVERY_PARALLELISM = "DiscoveryParallelism";
+	private static final String DISCOVERY_TIMEOUT = "DiscoveryTimeout";
+	private static final int DEFAULT_DISCOVERY_PARALLELISM = 16;
+	private static final long DEFAULT_DISCOVERY_TIMEOUT = 10000L;
 	private static final String SESSION_TIMEOUT = "SessionTimeout";
 	private static final String MARK_SESSION_TIMEOUT = "MarkSessionTimeout";
 	private static final String ALLOW_MULTIPLE_SESSIONS = "AllowMultipleSessions";
 	private static final String MAX_SESSION_COUNT = "MaxSessionCount";
 	private static final String DAO_TYPE = "DAOType";
+	//Existing behaviour, a new session was refused only once a user had more than one.
+	private static final int SINGLE_SESSION_LIMIT = 2;
 	private static final String DEFAULT_DAO_TYPE = "DistributedCache";
+	private static final String CONCURRENT_IN_MEMORY_DAO_TYPE = "ConcurrentInMemory";
+	private static final String COMPACT_IN_MEMORY_DAO_TYPE = "CompactInMemory";
+	private static final String TWO_TIER_DAO_TYPE = "TwoTier";
+	private static final String L1_CACHE_MAX_SIZE = "L1CacheMaxSize";
+	private static final String L1_CACHE_TTL = "L1CacheTTL";
+	private static final int DEFAULT_L1_CACHE_MAX_SIZE = 100000;
+	private static final long DEFAULT_L1_CACHE_TTL = 1000L;
+	private static final String PERSISTENCE_DIRECTORY = "PersistenceDirectory";
+	private static final String PERSISTENCE_SEGMENT_SIZE = "PersistenceSegmentSize";
+	private static final String PERSISTENCE_COMMIT_INTERVAL = "PersistenceCommitInterval";
+	private static final String PERSISTENCE_COMPACT_AFTER_SEGMENTS = "PersistenceCompactAfterSegments";
+	private static final int DEFAULT_PERSISTENCE_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final long DEFAULT_PERSISTENCE_COMMIT_INTERVAL = 50L;
+	private static final int DEFAULT_PERSISTENCE_COMPACT_AFTER_SEGMENTS = 4;
+	private static final String VALIDITY_CACHE_MAX_SIZE = "ValidityCacheMaxSize";
+	private static final String VALIDITY_CACHE_TTL = "ValidityCacheTTL";
+	private static final long DEFAULT_VALIDITY_CACHE_TTL = 1000L;
+	private static final String USER2SESSION_INDEX = "User2SessionIndex";
+	private static final String REDIS_KEY_LAYOUT = "RedisKeyLayout";
+	private static final String REDIS_CLUSTER = "RedisCluster";
+	private static final String REDIS_SESSION_ENCODING = "RedisSessionEncoding";
+	private static final String REDIS_SLIDING_EXPIRY = "RedisSlidingExpiry";
+	private static final String LAST_ACCESSED_FLUSH_INTERVAL = "LastAccessedFlushInterval";
+	private static final String LAST_ACCESSED_FLUSH_SIZE = "LastAccessedFlushSize";
+	private static final String LAST_ACCESSED_MAX_PENDING = "LastAccessedMaxPending";
+	private static final int DEFAULT_LAST_ACCESSED_FLUSH_SIZE = 500;
+	private static final int DEFAULT_LAST_ACCESSED_MAX_PENDING = 100000;
+	//LastAccessedTS in the cache can be stale by the flush interval, keep that to a fraction of SessionTimeout.
+	private static final int MAX_FLUSH_INTERVAL_FRACTION_OF_SESSION_TIMEOUT = 10;
+	private static final String SESSION_ID_GENERATOR = "SessionIdGenerator";
+	private static final String SESSION_ID_FORMAT = "SessionIdFormat";
+	private static final String DRBG_SESSION_ID_GENERATOR = "DRBG";
+	private static final String UUID_SESSION_ID_GENERATOR = "UUID";
+	private static final String METRICS_DUMP_INTERVAL = "MetricsDumpInterval";
+	private static final String OPERATION_PREFIX = "SessionManagementService.";
+	private static final String LOGGING_MODE = "LoggingMode";
+	private static final String LOGGING_SAMPLE_RATE = "LoggingSampleRate";
+	private static final String LOGGING_BUFFER_SIZE = "LoggingBufferSize";
+	private static final String ASYNC_LOGGING_MODE = "Async";
+	private static final int DEFAULT_LOGGING_BUFFER_SIZE = 8192;
+	private static final String SESSION_TOKEN_KEY = "SessionTokenKey";
+	private static final String SESSION_TOKEN_VALIDITY = "SessionTokenValidity";
+	private static final long DEFAULT_SESSION_TOKEN_VALIDITY = 30000L;
+	private static final String ASYNC_REDIS_CONNECTIONS = "AsyncRedisConnections";
+	private static final String REAPER_INTERVAL = "ReaperInterval";
+	private static final String REAPER_MAX_USERS_PER_SECOND = "ReaperMaxUsersPerSecond";
+	private static final long DEFAULT_REAPER_INTERVAL = 300L;
+	private static final int DEFAULT_REAPER_MAX_USERS_PER_SECOND = 1000;
 	
-	private LoggingService logger = Locator.getInstance().getLoggingService();
+	private LoggingService logger = null;
+	private SessionLogger sessionLogger = null;
 	
-	private HashMap<String, String> predeterminedSessionIdMap = null;
+	private Map<String, String> predeterminedSessionIdMap = null;
 	private SessionManagementDAO sessionManagementDAO;
+	private AsyncSessionManagementDAO asyncSessionManagementDAO = null;
+	private SessionIdGenerator sessionIdGenerator = null;
+	private SessionTokens sessionTokens = null;
 	
 	private long sessionTimeout = 0L;
 	private boolean allowMultipleSessionsPerUser = false;
 	private int maxSessiontCountPerUser = 1;
+
+	private SessionMetrics metrics = null;
+	private OperationMetrics registerMetrics = null;
+	private OperationMetrics getSessionDetailsMetrics = null;
+	private OperationMetrics isValidMetrics = null;
+	private OperationMetrics registerAsyncMetrics = null;
+	private OperationMetrics isValidAsyncMetrics = null;
+	private OperationMetrics isValidBatchMetrics = null;
+	private OperationMetrics unregisterMetrics = null;
+	private OperationMetrics markForUnregisterMetrics = null;
+	private OperationMetrics makeLastAccessedCurrentMetrics = null;
+	private OperationMetrics updateAuthenticationStateMetrics = null;
+	private OperationMetrics getAllSessionsMetrics = null;
+	private OperationMetrics invalidateAllSessionsMetrics = null;
+	private ScheduledExecutorService metricsDumper = null;
 	
 
 	public SessionManagementServiceImpl() throws Exception
 	{
-		predeterminedSessionIdMap = new HashMap<String, String>();
+		this(CentralClient.getInstance().tier1Config(NAME), Locator.getInstance().getLoggingService());
+	}
+
+	private SessionManagementServiceImpl(Properties sessionMgmtProperties, LoggingService logger) throws Exception
+	{
+		this(sessionMgmtProperties, discoverPreApprovedSessionIds(sessionMgmtProperties, CentralClient.getInstance()::discover, logger), logger, null);
+	}
+
+	/**
+	 * Does not go to CentralClient or the Locator, which is what benchmarks and tests need.
+	 * sessionManagementDAO is created as configured by DAOType when null.
+	 */
+	SessionManagementServiceImpl(Properties sessionMgmtProperties, Map<String, String> predeterminedSessionIdMap, LoggingService logger, SessionManagementDAO sessionManagementDAO) throws Exception
+	{
+		this.predeterminedSessionIdMap = predeterminedSessionIdMap;
+		this.logger = logger;
+		this.sessionManagementDAO = sessionManagementDAO;
+
+		metrics = new SessionMetrics();
+		registerMetrics = metrics.getOperation(OPERATION_PREFIX + "register");
+		getSessionDetailsMetrics = metrics.getOperation(OPERATION_PREFIX + "getSessionDetails");
+		isValidMetrics = metrics.getOperation(OPERATION_PREFIX + "isValid");
+		registerAsyncMetrics = metrics.getOperation(OPERATION_PREFIX + "registerAsync");
+		isValidAsyncMetrics = metrics.getOperation(OPERATION_PREFIX + "isValidAsync");
+		isValidBatchMetrics = metrics.getOperation(OPERATION_PREFIX + "isValidBatch");
+		unregisterMetrics = metrics.getOperation(OPERATION_PREFIX + "unregister");
+		markForUnregisterMetrics = metrics.getOperation(OPERATION_PREFIX + "markForUnregister");
+		makeLastAccessedCurrentMetrics = metrics.getOperation(OPERATION_PREFIX + "makeLastAccessedCurrent");
+		updateAuthenticationStateMetrics = metrics.getOperation(OPERATION_PREFIX + "updateAuthenticationState");
+		getAllSessionsMetrics = metrics.getOperation(OPERATION_PREFIX + "getAllSessions");
+		invalidateAllSessionsMetrics = metrics.getOperation(OPERATION_PREFIX + "invalidateAllSessions");
+
+		String sessionTimeoutAsStr = sessionMgmtProperties.getProperty(SESSION_TIMEOUT);
+		String markSessionTimeoutAsStr = sessionMgmtProperties.getProperty(MARK_SESSION_TIMEOUT);
+		int markSessionTimeout;
+		try
+		{
+			sessionTimeout = Integer.parseInt(sessionTimeoutAsStr);
+			markSessionTimeout = Integer.parseInt(markSessionTimeoutAsStr);
+		}
+		catch(Exception expt)
+		{
+			System.err.println("Could not parse into Integer " + SESSION_TIMEOUT + " property:" + sessionTimeoutAsStr);
+			throw expt;
+		}
+		
+		String allowMultipleSessionsPerUserAsStr = sessionMgmtProperties.getProperty(ALLOW_MULTIPLE_SESSIONS);
+		try
+		{
+			if (allowMultipleSessionsPerUserAsStr == null)
+			{
+				throw new Exception(ALLOW_MULTIPLE_SESSIONS + " is null.");
+			}
+			allowMultipleSessionsPerUser = Boolean.parseBoolean(allowMultipleSessionsPerUserAsStr);
+		}
+		catch(Exception expt)
+		{
+			System.err.println("Could not parse into Boolean " + ALLOW_MULTIPLE_SESSIONS + " property:" + allowMultipleSessionsPerUserAsStr);
+			throw expt;
+		}
+
+		String maxSessiontCountPerUserAsStr = sessionMgmtProperties.getProperty(MAX_SESSION_COUNT);
+		try
+		{
+			if (allowMultipleSessionsPerUser)
+			{
+				maxSessiontCountPerUser = Integer.parseInt(maxSessiontCountPerUserAsStr);
+			}
+		}
+		catch(Exception expt)
+		{
+			System.err.println("Could not parse into Integer " + MAX_SESSION_COUNT + " property:" + maxSessiontCountPerUserAsStr);
+			throw expt;
+		}
+
+		/**
+		 * ValidityCache is optional and only applies to the DistributedCache, it is enabled
+		 * by configuring ValidityCacheMaxSize. ValidityCacheTTL is in milliseconds and should
+		 * be kept short, it bounds how long a session removed on another node can still be
+		 * seen as valid here if an invalidation message is lost.
+		 */
+		SessionValidityCache validityCache = null;
+		String validityCacheMaxSizeAsStr = sessionMgmtProperties.getProperty(VALIDITY_CACHE_MAX_SIZE);
+		String validityCacheTTLAsStr = sessionMgmtProperties.getProperty(VALIDITY_CACHE_TTL);
+		try
+		{
+			if (validityCacheMaxSizeAsStr != null)
+			{
+				long validityCacheTTL = DEFAULT_VALIDITY_CACHE_TTL;
+				if (validityCacheTTLAsStr != null)
+				{
+					validityCacheTTL = Long.parseLong(validityCacheTTLAsStr);
+				}
+				validityCache = new SessionValidityCache(Integer.parseInt(validityCacheMaxSizeAsStr), validityCacheTTL);
+			}
+		}
+		catch(Exception expt)
+		{
+			System.err.println("Could not parse " + VALIDITY_CACHE_MAX_SIZE + " property:" + validityCacheMaxSizeAsStr + " or " + VALIDITY_CACHE_TTL + " property:" + validityCacheTTLAsStr);
+			throw expt;
+		}
+
+		User2SessionIndexType indexType = User2SessionIndexType.List;
+		String indexTypeAsStr = sessionMgmtProperties.getProperty(USER2SESSION_INDEX);
+		try
+		{
+			if (indexTypeAsStr != null)
+			{
+				indexType = User2SessionIndexType.valueOf(indexTypeAsStr);
+			}
+		}
+		catch(Exception expt)
+		{
+			System.err.println("Could not parse into User2SessionIndexType " + USER2SESSION_INDEX + " property:" + indexTypeAsStr);
+			throw expt;
+		}
+
+		/**
+		 * RedisCluster is true when the DistributedCache is a Redis Cluster, the configured
+		 * Redis is then one of its nodes and RedisKeyLayout has to be HashTagged. Switching
+		 * an existing deployment to HashTagged moves its keys in the background.
+		 */
+		RedisKeyLayout keyLayout = RedisKeyLayout.Standard;
+		String keyLayoutAsStr = sessionMgmtProperties.getProperty(REDIS_KEY_LAYOUT);
+		boolean redisCluster = Boolean.parseBoolean(sessionMgmtProperties.getProperty(REDIS_CLUSTER));
+		try
+		{
+			if (keyLayoutAsStr != null)
+			{
+				keyLayout = RedisKeyLayout.valueOf(keyLayoutAsStr);
+			}
+			if (redisCluster && keyLayout != RedisKeyLayout.HashTagged)
+			{
+				throw new Exception(REDIS_CLUSTER + " requires " + REDIS_KEY_LAYOUT + " " + RedisKeyLayout.HashTagged + ", the keys of a user have to be in one slot.");
+			}
+		}
+		catch(Exception expt)
+		{
+			System.err.println("Could not parse into RedisKeyLayout " + REDIS_KEY_LAYOUT + " property:" + keyLayoutAsStr + " with " + REDIS_CLUSTER + " property:" + redisCluster);
+			throw expt;
+		}
+
+		//Sessions are not moved when this changes, those stored with the other encoding are gone.
+		RedisSessionEncoding sessionEncoding = RedisSessionEncoding.Hash;
+		String sessionEncodingAsStr = sessionMgmtProperties.getProperty(REDIS_SESSION_ENCODING);
+		try
+		{
+			if (sessionEncodingAsStr != null)
+			{
+				sessionEncoding = RedisSessionEncoding.valueOf(sessionEncodingAsStr);
+			}
+		}
+		catch(Exception expt)
+		{
+			System.err.println("Could not parse into RedisSessionEncoding " + REDIS_SESSION_ENCODING + " property:" + sessionEncodingAsStr);
+			throw expt;
+		}
+
+		/**
+		 * SessionIdGenerator is DRBG by default, UUID for the JVM wide UUID.randomUUID or the
+		 * class name of a SessionIdGenerator with a no argument constructor. SessionIdFormat
+		 * applies to DRBG and UUID, Base64Url gives 22 char instead of 36 char SessionIds.
+		 * Changing either while sessions are live is fine, existing SessionIds stay valid,
+		 * except with the CompactInMemory DAO which only takes SessionIds in its format.
+		 */
+		SessionIdFormat sessionIdFormat = SessionIdFormat.UUID;
+		String sessionIdFormatAsStr = sessionMgmtProperties.getProperty(SESSION_ID_FORMAT);
+		String sessionIdGeneratorAsStr = sessionMgmtProperties.getProperty(SESSION_ID_GENERATOR);
+		try
+		{
+			if (sessionIdFormatAsStr != null)
+			{
+				sessionIdFormat = SessionIdFormat.valueOf(sessionIdFormatAsStr);
+			}
+
+			if (sessionIdGeneratorAsStr == null || DRBG_SESSION_ID_GENERATOR.equals(sessionIdGeneratorAsStr))
+			{
+				sessionIdGenerator = new DRBGSessionIdGenerator(sessionIdFormat);
+			}
+			else if (UUID_SESSION_ID_GENERATOR.equals(sessionIdGeneratorAsStr))
+			{
+				sessionIdGenerator = new UUIDSessionIdGenerator(sessionIdFormat);
+			}
+			else
+			{
+				sessionIdGenerator = (SessionIdGenerator)Class.forName(sessionIdGeneratorAsStr).getDeclaredConstructor().newInstance();
+			}
+		}
+		catch(Exception expt)
+		{
+			System.err.println("Could not create SessionIdGenerator from " + SESSION_ID_GENERATOR + " property:" + sessionIdGeneratorAsStr + " and " + SESSION_ID_FORMAT + " property:" + sessionIdFormatAsStr);
+			throw expt;
+		}
+		//Generated once here so a generator that cannot seed fails startup and not the first login.
+		logger.info("Starting SessionManagementService with SessionIdGenerator: " + sessionIdGenerator.getClass() + " sample SessionId length: " + sessionIdGenerator.generate().length());
+
+		/**
+		 * TwoTier is the DistributedCache behind a node local L1 of L1CacheMaxSize SessionDetails.
+		 * Like ValidityCacheTTL, L1CacheTTL in milliseconds bounds how long the L1 can be stale
+		 * if an invalidation is lost. The ValidityCache is not used, the L1 takes its place.
+		 */
+		SessionDetailsCache sessionDetailsCache = null;
+		if (this.sessionManagementDAO == null && TWO_TIER_DAO_TYPE.equals(sessionMgmtProperties.getProperty(DAO_TYPE)))
+		{
+			String l1CacheMaxSizeAsStr = sessionMgmtProperties.getProperty(L1_CACHE_MAX_SIZE);
+			String l1CacheTTLAsStr = sessionMgmtProperties.getProperty(L1_CACHE_TTL);
+			try
+			{
+				int l1CacheMaxSize = l1CacheMaxSizeAsStr != null ? Integer.parseInt(l1CacheMaxSizeAsStr) : DEFAULT_L1_CACHE_MAX_SIZE;
+				long l1CacheTTL = l1CacheTTLAsStr != null ? Long.parseLong(l1CacheTTLAsStr) : DEFAULT_L1_CACHE_TTL;
+				sessionDetailsCache = new SessionDetailsCache(l1CacheMaxSize, l1CacheTTL);
+			}
+			catch(Exception expt)
+			{
+				System.err.println("Could not parse " + L1_CACHE_MAX_SIZE + " property:" + l1CacheMaxSizeAsStr + " or " + L1_CACHE_TTL + " property:" + l1CacheTTLAsStr);
+				throw expt;
+			}
+			validityCache = null;
+		}
+
+		RedisSessionReaper reaper = null;
+		if (this.sessionManagementDAO == null)
+		{
+			if (DEFAULT_DAO_TYPE.equals(sessionMgmtProperties.getProperty(DAO_TYPE)) || sessionDetailsCache != null)
+			{
+				DistributedCacheDAOImpl distributedCacheDAO = new DistributedCacheDAOImpl(sessionTimeout, markSessionTimeout, validityCache, indexType, keyLayout, redisCluster, sessionEncoding);
+			
+				/**
+				 * LastAccessed write behind is optional and enabled by configuring LastAccessedFlushInterval
+				 * in milliseconds. makeLastAccessedCurrent then only records the touch and touches are 
+				 * written out in batches.
+				 */
+				String flushIntervalAsStr = sessionMgmtProperties.getProperty(LAST_ACCESSED_FLUSH_INTERVAL);
+				if (flushIntervalAsStr != null)
+				{
+					long flushInterval;
+					int flushSize = DEFAULT_LAST_ACCESSED_FLUSH_SIZE;
+					int maxPending = DEFAULT_LAST_ACCESSED_MAX_PENDING;
+					try
+					{
+						flushInterval = Long.parseLong(flushIntervalAsStr);
+						if (sessionMgmtProperties.getProperty(LAST_ACCESSED_FLUSH_SIZE) != null)
+						{
+							flushSize = Integer.parseInt(sessionMgmtProperties.getProperty(LAST_ACCESSED_FLUSH_SIZE));
+						}
+						if (sessionMgmtProperties.getProperty(LAST_ACCESSED_MAX_PENDING) != null)
+						{
+							maxPending = Integer.parseInt(sessionMgmtProperties.getProperty(LAST_ACCESSED_MAX_PENDING));
+						}
+					}
+					catch(Exception expt)
+					{
+						System.err.println("Could not parse into Integer " + LAST_ACCESSED_FLUSH_INTERVAL + "/" + LAST_ACCESSED_FLUSH_SIZE + "/" + LAST_ACCESSED_MAX_PENDING + " properties.");
+						throw expt;
+					}
+				
+					if (flushInterval * MAX_FLUSH_INTERVAL_FRACTION_OF_SESSION_TIMEOUT > sessionTimeout * 1000)
+					{
+						throw new Exception(LAST_ACCESSED_FLUSH_INTERVAL + " " + flushInterval + "ms has to be within 1/" + MAX_FLUSH_INTERVAL_FRACTION_OF_SESSION_TIMEOUT + " of " + SESSION_TIMEOUT + ".");
+					}
+					distributedCacheDAO.enableLastAccessedWriteBehind(flushInterval, flushSize, maxPending);
+				}
+
+				/**
+				 * RedisSlidingExpiry true has Redis expire sessions SessionTimeout after they were last
+				 * accessed and isValid ask it for how long, see DistributedCacheDAOImpl.enableSlidingExpiry.
+				 */
+				if (Boolean.parseBoolean(sessionMgmtProperties.getProperty(REDIS_SLIDING_EXPIRY)))
+				{
+					distributedCacheDAO.enableSlidingExpiry();
+				}
+
+				/**
+				 * Expired sessions are removed by a background reaper every ReaperInterval seconds,
+				 * at most ReaperMaxUsersPerSecond users a second. A ReaperInterval of 0 leaves this
+				 * node out, register does not remove them.
+				 */
+				String reaperIntervalAsStr = sessionMgmtProperties.getProperty(REAPER_INTERVAL);
+				String reaperMaxUsersPerSecondAsStr = sessionMgmtProperties.getProperty(REAPER_MAX_USERS_PER_SECOND);
+				long reaperInterval;
+				int reaperMaxUsersPerSecond;
+				try
+				{
+					reaperInterval = reaperIntervalAsStr != null ? Long.parseLong(reaperIntervalAsStr) : DEFAULT_REAPER_INTERVAL;
+					reaperMaxUsersPerSecond = reaperMaxUsersPerSecondAsStr != null ? Integer.parseInt(reaperMaxUsersPerSecondAsStr) : DEFAULT_REAPER_MAX_USERS_PER_SECOND;
+				}
+				catch(Exception expt)
+				{
+					System.err.println("Could not parse " + REAPER_INTERVAL + " property:" + reaperIntervalAsStr + " or " + REAPER_MAX_USERS_PER_SECOND + " property:" + reaperMaxUsersPerSecondAsStr);
+					throw expt;
+				}
+				if (reaperInterval > 0)
+				{
+					if (reaperMaxUsersPerSecond <= 0)
+					{
+						throw new Exception(REAPER_MAX_USERS_PER_SECOND + " " + reaperMaxUsersPerSecond + " has to be greater than 0.");
+					}
+					distributedCacheDAO.enableReaper(reaperInterval, reaperMaxUsersPerSecond);
+					reaper = distributedCacheDAO.getReaper();
+				}
+				this.sessionManagementDAO = distributedCacheDAO;
+				if (sessionDetailsCache != null)
+				{
+					this.sessionManagementDAO = new TwoTierDAOImpl(distributedCacheDAO, sessionDetailsCache, sessionTimeout);
+				}
+			}
+			else if (CONCURRENT_IN_MEMORY_DAO_TYPE.equals(sessionMgmtProperties.getProperty(DAO_TYPE)))
+			{
+				this.sessionManagementDAO = new ConcurrentInMemoryDAOImpl(sessionTimeout, markSessionTimeout);
+			}
+			else if (COMPACT_IN_MEMORY_DAO_TYPE.equals(sessionMgmtProperties.getProperty(DAO_TYPE)))
+			{
+				this.sessionManagementDAO = new CompactInMemoryDAOImpl(sessionTimeout, markSessionTimeout, sessionIdFormat);
+			}
+			else
+			{
+				InMemoryDAOImpl inMemoryDAO = new InMemoryDAOImpl(sessionTimeout, markSessionTimeout);
+
+				/**
+				 * Persistence of the InMemory DAO is optional and enabled by configuring PersistenceDirectory.
+				 * Changes are journaled to PersistenceSegmentSize byte segments and forced to disk every
+				 * PersistenceCommitInterval milliseconds, after PersistenceCompactAfterSegments segments
+				 * they are compacted into a snapshot. Sessions in the directory are loaded on startup.
+				 */
+				String persistenceDirectoryAsStr = sessionMgmtProperties.getProperty(PERSISTENCE_DIRECTORY);
+				if (persistenceDirectoryAsStr != null)
+				{
+					String segmentSizeAsStr = sessionMgmtProperties.getProperty(PERSISTENCE_SEGMENT_SIZE);
+					String commitIntervalAsStr = sessionMgmtProperties.getProperty(PERSISTENCE_COMMIT_INTERVAL);
+					String compactAfterSegmentsAsStr = sessionMgmtProperties.getProperty(PERSISTENCE_COMPACT_AFTER_SEGMENTS);
+					SessionJournal journal = null;
+					try
+					{
+						int segmentSize = segmentSizeAsStr != null ? Integer.parseInt(segmentSizeAsStr) : DEFAULT_PERSISTENCE_SEGMENT_SIZE;
+						long commitInterval = commitIntervalAsStr != null ? Long.parseLong(commitIntervalAsStr) : DEFAULT_PERSISTENCE_COMMIT_INTERVAL;
+						int compactAfterSegments = compactAfterSegmentsAsStr != null ? Integer.parseInt(compactAfterSegmentsAsStr) : DEFAULT_PERSISTENCE_COMPACT_AFTER_SEGMENTS;
+						journal = new SessionJournal(Paths.get(persistenceDirectoryAsStr), segmentSize, commitInterval, compactAfterSegments);
+					}
+					catch(Exception expt)
+					{
+						System.err.println("Could not create SessionJournal in " + PERSISTENCE_DIRECTORY + " property:" + persistenceDirectoryAsStr + " from " + PERSISTENCE_SEGMENT_SIZE + "/" + PERSISTENCE_COMMIT_INTERVAL + "/" + PERSISTENCE_COMPACT_AFTER_SEGMENTS + " properties.");
+						throw expt;
+					}
+					long startedAt = System.currentTimeMillis();
+					long replayed = inMemoryDAO.enablePersistence(journal);
+					logger.info("Starting SessionManagementService with persistence in " + persistenceDirectoryAsStr + ", replayed " + replayed + " journal records in " + (System.currentTimeMillis() - startedAt) + "ms.");
+				}
+				this.sessionManagementDAO = inMemoryDAO;
+			}
+		}
+		if (sessionMgmtProperties.getProperty(PERSISTENCE_DIRECTORY) != null && !(this.sessionManagementDAO instanceof InMemoryDAOImpl))
+		{
+			throw new Exception(PERSISTENCE_DIRECTORY + " can only be used with the InMemory DAO.");
+		}
+		/**
+		 * Logging of the request paths is synchronous unless LoggingMode is Async, then events
+		 * go through a ring buffer of LoggingBufferSize to a background thread. LoggingSampleRate
+		 * N keeps one in N routine events, errors are always logged.
+		 */
+		String loggingSampleRateAsStr = sessionMgmtProperties.getProperty(LOGGING_SAMPLE_RATE);
+		String loggingBufferSizeAsStr = sessionMgmtProperties.getProperty(LOGGING_BUFFER_SIZE);
+		try
+		{
+			if (ASYNC_LOGGING_MODE.equals(sessionMgmtProperties.getProperty(LOGGING_MODE)))
+			{
+				int loggingSampleRate = loggingSampleRateAsStr != null ? Integer.parseInt(loggingSampleRateAsStr) : 1;
+				int loggingBufferSize = loggingBufferSizeAsStr != null ? Integer.parseInt(loggingBufferSizeAsStr) : DEFAULT_LOGGING_BUFFER_SIZE;
+				sessionLogger = new AsyncSessionLogger(logger, loggingBufferSize, loggingSampleRate);
+			}
+			else
+			{
+				sessionLogger = new SynchronousSessionLogger(logger);
+			}
+		}
+		catch(Exception expt)
+		{
+			System.err.println("Could not parse into Integer " + LOGGING_SAMPLE_RATE + " property:" + loggingSampleRateAsStr + " or " + LOGGING_BUFFER_SIZE + " property:" + loggingBufferSizeAsStr);
+			throw expt;
+		}
+
+		/**
+		 * SessionTokens are optional and enabled by configuring SessionTokenKey, a Base64 encoded
+		 * secret shared by all nodes. register then hands out signed SessionIds which isValid
+		 * accepts without the DAO for SessionTokenValidity milliseconds after they are issued.
+		 * Sessions expiring or marked for unregister are not revoked, so the validity cannot
+		 * be more than either SessionTimeout or MarkSessionTimeout.
+		 */
+		String sessionTokenKeyAsStr = sessionMgmtProperties.getProperty(SESSION_TOKEN_KEY);
+		if (sessionTokenKeyAsStr != null)
+		{
+			long maxSessionTokenValidity = Math.min(sessionTimeout, markSessionTimeout) * 1000L;
+			long sessionTokenValidity = Math.min(DEFAULT_SESSION_TOKEN_VALIDITY, maxSessionTokenValidity);
+			String sessionTokenValidityAsStr = sessionMgmtProperties.getProperty(SESSION_TOKEN_VALIDITY);
+			byte[] sessionTokenKey = null;
+			try
+			{
+				if (sessionTokenValidityAsStr != null)
+				{
+					sessionTokenValidity = Long.parseLong(sessionTokenValidityAsStr);
+				}
+				sessionTokenKey = Base64.getDecoder().decode(sessionTokenKeyAsStr);
+			}
+			catch(Exception expt)
+			{
+				System.err.println("Could not parse into Long " + SESSION_TOKEN_VALIDITY + " property:" + sessionTokenValidityAsStr + " or decode Base64 " + SESSION_TOKEN_KEY + " property.");
+				throw expt;
+			}
+
+			if (sessionTokenValidity > maxSessionTokenValidity)
+			{
+				throw new Exception(SESSION_TOKEN_VALIDITY + " " + sessionTokenValidity + "ms cannot be more than " + SESSION_TIMEOUT + " or " + MARK_SESSION_TIMEOUT + ".");
+			}
+			if (this.sessionManagementDAO instanceof CompactInMemoryDAOImpl)
+			{
+				throw new Exception(SESSION_TOKEN_KEY + " cannot be used with the " + COMPACT_IN_MEMORY_DAO_TYPE + " DAO, it only takes SessionIds in its own format.");
+			}
+			sessionTokens = new SessionTokens(sessionTokenKey, sessionTokenValidity);
+			//Revocations by other nodes, this node revokes on unregister itself.
+			this.sessionManagementDAO.subscribeInvalidations(sessionTokens);
+			logger.info("Starting SessionManagementService with SessionTokens valid for " + sessionTokenValidity + "ms.");
+		}
+
+		logger.info("Starting SessionManagementService with DAO: " + this.sessionManagementDAO.getClass() + " SessionLogger: " + sessionLogger.getClass());
+		SessionManagementDAO configuredDAO = this.sessionManagementDAO;
+		this.sessionManagementDAO = new InstrumentedSessionManagementDAO(this.sessionManagementDAO, metrics);
+
+		/**
+		 * registerAsync and isValidAsync call the DistributedCache and TwoTier DAOs each on
+		 * a virtual thread of its own, the in memory DAOs on the calling thread. Configuring
+		 * AsyncRedisConnections, which only applies to the DistributedCache, instead has the
+		 * Redis commands of all callers pipelined over that many connections.
+		 */
+		String asyncRedisConnectionsAsStr = sessionMgmtProperties.getProperty(ASYNC_REDIS_CONNECTIONS);
+		if (asyncRedisConnectionsAsStr != null)
+		{
+			int asyncRedisConnections;
+			try
+			{
+				asyncRedisConnections = Integer.parseInt(asyncRedisConnectionsAsStr);
+			}
+			catch(Exception expt)
+			{
+				System.err.println("Could not parse into Integer " + ASYNC_REDIS_CONNECTIONS + " property:" + asyncRedisConnectionsAsStr);
+				throw expt;
+			}
+			if (!(configuredDAO instanceof DistributedCacheDAOImpl))
+			{
+				throw new Exception(ASYNC_REDIS_CONNECTIONS + " can only be used with the " + DEFAULT_DAO_TYPE + " DAO.");
+			}
+			asyncSessionManagementDAO = new AsyncDistributedCacheDAOImpl((DistributedCacheDAOImpl)configuredDAO, asyncRedisConnections);
+			logger.info("Starting SessionManagementService with " + asyncRedisConnections + " asynchronous Redis connections.");
+		}
+		else if (configuredDAO instanceof DistributedCacheDAOImpl || configuredDAO instanceof TwoTierDAOImpl)
+		{
+			asyncSessionManagementDAO = new AsyncSessionManagementDAOAdapter(this.sessionManagementDAO, Executors.newVirtualThreadPerTaskExecutor());
+		}
+		else
+		{
+			asyncSessionManagementDAO = new AsyncSessionManagementDAOAdapter(this.sessionManagementDAO, Runnable::run);
+		}
+
+		/**
+		 * Metrics are always recorded and available through getMetricsSnapshot. Configuring
+		 * MetricsDumpInterval in seconds also has them logged periodically, along with the
+		 * ValidityCache or L1 hit rate if there is one and the keys reclaimed by the RedisSessionReaper.
+		 */
+		String metricsDumpIntervalAsStr = sessionMgmtProperties.getProperty(METRICS_DUMP_INTERVAL);
+		long metricsDumpInterval = 0;
+		try
+		{
+			if (metricsDumpIntervalAsStr != null)
+			{
+				metricsDumpInterval = Long.parseLong(metricsDumpIntervalAsStr);
+			}
+		}
+		catch(Exception expt)
+		{
+			System.err.println("Could not parse into Long " + METRICS_DUMP_INTERVAL + " property:" + metricsDumpIntervalAsStr);
+			throw expt;
+		}
+		if (metricsDumpInterval > 0)
+		{
+			Object dumpedCache = validityCache != null ? validityCache : sessionDetailsCache;
+			RedisSessionReaper dumpedReaper = reaper;
+			metricsDumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "SessionMetricsDump");
+				thread.setDaemon(true);
+				return thread;
+			});
+			metricsDumper.scheduleAtFixedRate(() -> {
+				logger.info(metrics.snapshot() + (dumpedCache != null ? System.lineSeparator() + "\t" + dumpedCache : "") + (dumpedReaper != null ? System.lineSeparator() + "\t" + dumpedReaper : ""));
+			}, metricsDumpInterval, metricsDumpInterval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Latency percentiles, errors and Redis traffic of every service method and DAO call
+	 * since startup. Cheap enough to be polled, it copies counters and takes no locks.
+	 */
+	SessionMetrics.Snapshot getMetricsSnapshot()
+	{
+		return metrics.snapshot();
+	}
+
+	static Map<String, String> discoverPreApprovedSessionIds(Properties sessionMgmtProperties, PreApprovedSessionIdDiscovery.ServiceDiscovery serviceDiscovery, LoggingService logger) throws Exception
+	{
+		List<String> serviceNames = new ArrayList<>();
 
 		/**
 		 * SessionService will always have a PassThruSessionValidator any calls to it
@@ -102,8 +713,6 @@ public class SessionManagementServiceImpl implements SessionManagementService
 		 * help lookup faster.
 		 * 
 		 */
-		Properties sessionMgmtProperties = CentralClient.getInstance().tier1Config(NAME);
-		Properties discoveryProperties = null;
 		int count = 0;
 		while (true)
 		{
@@ -118,70 +727,42 @@ public class SessionManagementServiceImpl implements SessionManagementService
 			}
 			else if (serviceName != null)
 			{
-				logger.info("Looking up for " + PRE_APPROVED_SESSION_ID + " for service: " + serviceName);
-				discoveryProperties = CentralClient.getInstance().discover(serviceName);
-				predeterminedSessionIdMap.put(serviceName, discoveryProperties.getProperty(PRE_APPROVED_SESSION_ID));
+				serviceNames.add(serviceName);
 			}
 			count++;
 		}
 		
-		if (predeterminedSessionIdMap.size() == 0)
+		if (serviceNames.size() == 0)
 		{
 			throw new Exception("There are no PreApprovedSessionId configured.");
 		}
-		
-		String sessionTimeoutAsStr = sessionMgmtProperties.getProperty(SESSION_TIMEOUT);
-		String markSessionTimeoutAsStr = sessionMgmtProperties.getProperty(MARK_SESSION_TIMEOUT);
-		int markSessionTimeout;
-		try
-		{
-			sessionTimeout = Integer.parseInt(sessionTimeoutAsStr);
-			markSessionTimeout = Integer.parseInt(markSessionTimeoutAsStr);
-		}
-		catch(Exception expt)
-		{
-			System.err.println("Could not parse into Integer " + SESSION_TIMEOUT + " property:" + sessionTimeoutAsStr);
-			throw expt;
-		}
-		
-		String allowMultipleSessionsPerUserAsStr = sessionMgmtProperties.getProperty(ALLOW_MULTIPLE_SESSIONS);
+
+		/**
+		 * The lookups run concurrently on up to DiscoveryParallelism threads, DiscoveryTimeout
+		 * in milliseconds is how long each of them is waited for before startup fails.
+		 */
+		int discoveryParallelism = DEFAULT_DISCOVERY_PARALLELISM;
+		long discoveryTimeout = DEFAULT_DISCOVERY_TIMEOUT;
+		String discoveryParallelismAsStr = sessionMgmtProperties.getProperty(DISCOVERY_PARALLELISM);
+		String discoveryTimeoutAsStr = sessionMgmtProperties.getProperty(DISCOVERY_TIMEOUT);
 		try
 		{
-			if (allowMultipleSessionsPerUserAsStr == null)
+			if (discoveryParallelismAsStr != null)
 			{
-				throw new Exception(ALLOW_MULTIPLE_SESSIONS + " is null.");
+				discoveryParallelism = Integer.parseInt(discoveryParallelismAsStr);
 			}
-			allowMultipleSessionsPerUser = Boolean.parseBoolean(allowMultipleSessionsPerUserAsStr);
-		}
-		catch(Exception expt)
-		{
-			System.err.println("Could not parse into Boolean " + ALLOW_MULTIPLE_SESSIONS + " property:" + allowMultipleSessionsPerUserAsStr);
-			throw expt;
-		}
-
-		String maxSessiontCountPerUserAsStr = sessionMgmtProperties.getProperty(MAX_SESSION_COUNT);
-		try
-		{
-			if (allowMultipleSessionsPerUser)
+			if (discoveryTimeoutAsStr != null)
 			{
-				maxSessiontCountPerUser = Integer.parseInt(maxSessiontCountPerUserAsStr);
+				discoveryTimeout = Long.parseLong(discoveryTimeoutAsStr);
 			}
 		}
 		catch(Exception expt)
 		{
-			System.err.println("Could not parse into Integer " + MAX_SESSION_COUNT + " property:" + maxSessiontCountPerUserAsStr);
+			System.err.println("Could not parse " + DISCOVERY_PARALLELISM + " property:" + discoveryParallelismAsStr + " or " + DISCOVERY_TIMEOUT + " property:" + discoveryTimeoutAsStr);
 			throw expt;
 		}
 
-		if (DEFAULT_DAO_TYPE.equals(sessionMgmtProperties.getProperty(DAO_TYPE)))
-		{
-			sessionManagementDAO = new DistributedCacheDAOImpl(sessionTimeout, markSessionTimeout);
-		}
-		else
-		{
-			sessionManagementDAO = new InMemoryDAOImpl(sessionTimeout, markSessionTimeout);
-		}
-		logger.info("Starting SessionManagementService with DAO: " + sessionManagementDAO.getClass());
+		return new PreApprovedSessionIdDiscovery(serviceDiscovery, discoveryParallelism, discoveryTimeout, logger).discover(serviceNames);
 	}
 
 	@Override
@@ -189,37 +770,51 @@ public class SessionManagementServiceImpl implements SessionManagementService
 	{
 		SessionDetails sessionDetails = null;
 		
-		logger.info("Registering Session for UserId:" + userId);
+		sessionLogger.info("Registering Session for UserId:{}", userId);
 		if (StringUtils.isBlank(userId))
 		{
 			throw new ValidationException("Invalid userId. UserId cannot be empty or null.");
 		}
 
+		long start = System.nanoTime();
+		boolean failed = true;
 		try
 		{
-			int existingValidSessionCount = sessionManagementDAO.getExistingValidSessionCount(userId);
-			if (!allowMultipleSessionsPerUser && existingValidSessionCount > 1)
+			String sessionId = sessionIdGenerator.generate();
+			if (sessionTokens != null)
+			{
+				sessionId = sessionTokens.issue(userId, sessionId);
+			}
+			sessionDetails = new SessionDetails(userId, sessionId, "PostAuthentication", sessionTimeout);
+
+			/**
+			 * Counting the existing sessions and storing the new one is a single atomic step
+			 * in the DAO, concurrent logins of the same user cannot go past the limit.
+			 */
+			int maxSessionCount = allowMultipleSessionsPerUser ? maxSessiontCountPerUser : SINGLE_SESSION_LIMIT;
+			int existingValidSessionCount = sessionManagementDAO.storeSessionDetailsIfBelowLimit(sessionDetails, maxSessionCount);
+			if (!allowMultipleSessionsPerUser && existingValidSessionCount >= maxSessionCount)
 			{
 				throw new SessionManagementException("User " + userId + " already has an active session.");
 			}
-			else if (allowMultipleSessionsPerUser && existingValidSessionCount >= maxSessiontCountPerUser)
+			else if (allowMultipleSessionsPerUser && existingValidSessionCount >= maxSessionCount)
 			{
 				throw new SessionManagementException("User " + userId + " has reached maximum active sessions.");
 			}
 
-			String sessionId = UUID.randomUUID().toString();
-			sessionDetails = new SessionDetails(userId, sessionId, "PostAuthentication", sessionTimeout);
-
-			logger.info("Registered Session for UserId:" + userId + " SessionId:"+sessionId);
-
-			sessionManagementDAO.storeSessionDetails(sessionDetails);
+			sessionLogger.info("Registered Session for UserId:{} SessionId:{}", userId, sessionId);
+			failed = false;
 		}
 		catch (DAOException e)
 		{
 			String message = "Unable to register session for UserId: " + userId;
-			logger.error(message + ". Reason: " + e.getMessage(), e);
+			sessionLogger.error(message + ". Reason: " + e.getMessage(), e);
 			throw new SessionManagementException(message);
 		}
+		finally
+		{
+			registerMetrics.record(start, failed);
+		}
 
 		return sessionDetails;
 	}
@@ -229,23 +824,30 @@ public class SessionManagementServiceImpl implements SessionManagementService
 	{
 		SessionDetails sessionDetails = null;
 		
-		logger.info("Retreving Session for UserId:" + userId + " SessionId:" + sessionId);
+		sessionLogger.info("Retreving Session for UserId:{} SessionId:{}", userId, sessionId);
 		
 		if (StringUtils.isAnyBlank(userId, sessionId))
 		{
 			throw new ValidationException("Invalid userId/sessionId. UserId and SessionId cannot be empty or null.");
 		}
 		
+		long start = System.nanoTime();
+		boolean failed = true;
 		try
 		{
 			sessionDetails = sessionManagementDAO.getSessionDetails(userId, sessionId);
+			failed = false;
 		}
 		catch (DAOException e)
 		{
 			String message = "Unable to getSessionDetails for UserId: " + userId;
-			logger.error(message + ". Reason: " + e.getMessage(), e);
+			sessionLogger.error(message + ". Reason: " + e.getMessage(), e);
 			throw new SessionManagementException(message);
 		}
+		finally
+		{
+			getSessionDetailsMetrics.record(start, failed);
+		}
 
 		return sessionDetails;
 	}
@@ -261,152 +863,382 @@ public class SessionManagementServiceImpl implements SessionManagementService
 			throw new ValidationException("Invalid userId/sessionId. UserId and SessionId cannot be empty or null.");
 		}
 
+		long start = System.nanoTime();
+		boolean failed = true;
 		try
 		{
 			String preApprovedSessionId = predeterminedSessionIdMap.get(userId);
 			if (preApprovedSessionId != null && preApprovedSessionId.equals(sessionId))
 			{
+				metrics.preApprovedValidation();
+				valid = true;
+			}
+			else if (sessionTokens != null && sessionTokens.isValid(userId, sessionId))
+			{
+				metrics.tokenValidation();
 				valid = true;
 			}
 			else
 			{
+				metrics.daoValidation();
 				valid = sessionManagementDAO.isValid(userId, sessionId);
 			}
+			failed = false;
 		}
 		catch (DAOException e)
 		{
 			String message = "Unable to validate session for UserId: " + userId;
-			logger.error(message + ". Reason: " + e.getMessage(), e);
+			sessionLogger.error(message + ". Reason: " + e.getMessage(), e);
 			throw new SessionManagementException(message);
 		}
+		finally
+		{
+			isValidMetrics.record(start, failed);
+		}
 		//System.out.println("Validating Session for UserId:" + userId + " SessionId:"+sessionId + " Validation result: " + valid);
 		
 		return valid;
 	}
 
+	/**
+	 * register without waiting on the DAO, the stage completes with the new SessionDetails
+	 * or fails with a SessionManagementException. Counting the existing sessions and storing
+	 * the new one is the same single step in the DAO as in register.
+	 */
+	CompletionStage<SessionDetails> registerAsync(String userId)
+	{
+		sessionLogger.info("Registering Session for UserId:{}", userId);
+		if (StringUtils.isBlank(userId))
+		{
+			throw new ValidationException("Invalid userId. UserId cannot be empty or null.");
+		}
+
+		long start = System.nanoTime();
+		String sessionId = sessionIdGenerator.generate();
+		if (sessionTokens != null)
+		{
+			sessionId = sessionTokens.issue(userId, sessionId);
+		}
+		SessionDetails sessionDetails = new SessionDetails(userId, sessionId, "PostAuthentication", sessionTimeout);
+		int maxSessionCount = allowMultipleSessionsPerUser ? maxSessiontCountPerUser : SINGLE_SESSION_LIMIT;
+
+		return asyncSessionManagementDAO.storeSessionDetailsIfBelowLimit(sessionDetails, maxSessionCount).handle((existingValidSessionCount, failure) -> {
+			Exception exception = null;
+			if (failure != null)
+			{
+				String message = "Unable to register session for UserId: " + userId;
+				sessionLogger.error(message + ". Reason: " + failure.getMessage(), failure);
+				exception = new SessionManagementException(message);
+			}
+			else if (!allowMultipleSessionsPerUser && existingValidSessionCount >= maxSessionCount)
+			{
+				exception = new SessionManagementException("User " + userId + " already has an active session.");
+			}
+			else if (allowMultipleSessionsPerUser && existingValidSessionCount >= maxSessionCount)
+			{
+				exception = new SessionManagementException("User " + userId + " has reached maximum active sessions.");
+			}
+			registerAsyncMetrics.record(start, exception != null);
+			if (exception != null)
+			{
+				throw new CompletionException(exception);
+			}
+
+			sessionLogger.info("Registered Session for UserId:{} SessionId:{}", userId, sessionDetails.getSessionId());
+			return sessionDetails;
+		});
+	}
+
+	/**
+	 * isValid without waiting on the DAO, PreApproved sessions and SessionTokens complete
+	 * right away. A failure of the DAO fails the stage with a SessionManagementException.
+	 */
+	CompletionStage<Boolean> isValidAsync(String userId, String sessionId)
+	{
+		CompletionStage<Boolean> valid = null;
+		if (StringUtils.isAnyBlank(userId, sessionId))
+		{
+			throw new ValidationException("Invalid userId/sessionId. UserId and SessionId cannot be empty or null.");
+		}
+
+		long start = System.nanoTime();
+		String preApprovedSessionId = predeterminedSessionIdMap.get(userId);
+		if (preApprovedSessionId != null && preApprovedSessionId.equals(sessionId))
+		{
+			metrics.preApprovedValidation();
+			valid = CompletableFuture.completedFuture(Boolean.TRUE);
+			isValidAsyncMetrics.record(start, false);
+		}
+		else if (sessionTokens != null && sessionTokens.isValid(userId, sessionId))
+		{
+			metrics.tokenValidation();
+			valid = CompletableFuture.completedFuture(Boolean.TRUE);
+			isValidAsyncMetrics.record(start, false);
+		}
+		else
+		{
+			metrics.daoValidation();
+			valid = asyncSessionManagementDAO.isValid(userId, sessionId).handle((daoValid, failure) -> {
+				isValidAsyncMetrics.record(start, failure != null);
+				if (failure != null)
+				{
+					String message = "Unable to validate session for UserId: " + userId;
+					sessionLogger.error(message + ". Reason: " + failure.getMessage(), failure);
+					throw new CompletionException(new SessionManagementException(message));
+				}
+				return daoValid;
+			});
+		}
+		
+		return valid;
+	}
+
+	/**
+	 * Batch form of isValid for callers, like gateways, validating many requests at once.
+	 * Bit i of the result is set if userIds[i] and sessionIds[i] is a valid session.
+	 * PreApproved sessions are resolved here, the rest in a single call to the DAO.
+	 * Unlike isValid a blank pair does not fail the whole batch, it is just not valid.
+	 * 
+	 * Only callers in the same process reach it, SessionManagementService comes from
+	 * BackboneServicesLocator and does not declare it.
+	 */
+	public BitSet isValidBatch(String[] userIds, String[] sessionIds) throws SessionManagementException
+	{
+		if (userIds == null || sessionIds == null || userIds.length != sessionIds.length)
+		{
+			throw new ValidationException("Invalid userIds/sessionIds. UserIds and SessionIds cannot be null and must be of the same length.");
+		}
+
+		BitSet valid = new BitSet(userIds.length);
+		long start = System.nanoTime();
+		boolean failed = true;
+		try
+		{
+			int[] lookupIndexes = new int[userIds.length];
+			int lookupCount = 0;
+			for (int i = 0; i < userIds.length; ++i)
+			{
+				if (!StringUtils.isAnyBlank(userIds[i], sessionIds[i]))
+				{
+					String preApprovedSessionId = predeterminedSessionIdMap.get(userIds[i]);
+					if (preApprovedSessionId != null && preApprovedSessionId.equals(sessionIds[i]))
+					{
+						metrics.preApprovedValidation();
+						valid.set(i);
+					}
+					else if (sessionTokens != null && sessionTokens.isValid(userIds[i], sessionIds[i]))
+					{
+						metrics.tokenValidation();
+						valid.set(i);
+					}
+					else
+					{
+						metrics.daoValidation();
+						lookupIndexes[lookupCount++] = i;
+					}
+				}
+			}
+
+			if (lookupCount > 0)
+			{
+				String[] lookupUserIds = new String[lookupCount];
+				String[] lookupSessionIds = new String[lookupCount];
+				for (int i = 0; i < lookupCount; ++i)
+				{
+					lookupUserIds[i] = userIds[lookupIndexes[i]];
+					lookupSessionIds[i] = sessionIds[lookupIndexes[i]];
+				}
+
+				BitSet lookupValid = sessionManagementDAO.isValidBatch(lookupUserIds, lookupSessionIds);
+				for (int i = lookupValid.nextSetBit(0); i >= 0; i = lookupValid.nextSetBit(i + 1))
+				{
+					valid.set(lookupIndexes[i]);
+				}
+			}
+			failed = false;
+		}
+		catch (DAOException e)
+		{
+			String message = "Unable to validate batch of " + userIds.length + " sessions";
+			sessionLogger.error(message + ". Reason: " + e.getMessage(), e);
+			throw new SessionManagementException(message);
+		}
+		finally
+		{
+			isValidBatchMetrics.record(start, failed);
+		}
+
+		return valid;
+	}
+
 	@Override
 	public void unregister(String userId, String sessionId) throws SessionManagementException
 	{
-		logger.info("Unregister Session for UserId:" + userId + " SessionId:"+sessionId);
+		sessionLogger.info("Unregister Session for UserId:{} SessionId:{}", userId, sessionId);
 		if (StringUtils.isAnyBlank(userId, sessionId))
 		{
 			throw new ValidationException("Invalid userId/sessionId. UserId and SessionId cannot be empty or null.");
 		}
 
+		long start = System.nanoTime();
+		boolean failed = true;
 		try
 		{
 			sessionManagementDAO.removeSessionDetails(userId, sessionId);
+			if (sessionTokens != null)
+			{
+				sessionTokens.invalidated(userId, sessionId);
+			}
+			failed = false;
 		}
 		catch (DAOException e)
 		{
 			String message = "Unable to unregister session for UserId: " + userId;
-			logger.error(message + ". Reason: " + e.getMessage(), e);
+			sessionLogger.error(message + ". Reason: " + e.getMessage(), e);
 			throw new SessionManagementException(message);
 		}
+		finally
+		{
+			unregisterMetrics.record(start, failed);
+		}
 	}
 
 	@Override
 	public void markForUnregister(String userId, String sessionId) throws SessionManagementException
 	{
-		logger.info("Marking for Unregister Session for UserId:" + userId + " SessionId:"+sessionId);
+		sessionLogger.info("Marking for Unregister Session for UserId:{} SessionId:{}", userId, sessionId);
 		if (StringUtils.isAnyBlank(userId, sessionId))
 		{
 			throw new ValidationException("Invalid userId/sessionId. UserId and SessionId cannot be empty or null.");
 		}
 
+		long start = System.nanoTime();
+		boolean failed = true;
 		try
 		{
 			sessionManagementDAO.markForRemoveSessionDetails(userId, sessionId);
+			failed = false;
 		}
 		catch (DAOException e)
 		{
 			String message = "Unable to markForUnregister session for UserId: " + userId;
-			logger.error(message + ". Reason: " + e.getMessage(), e);
+			sessionLogger.error(message + ". Reason: " + e.getMessage(), e);
 			throw new SessionManagementException(message);
 		}
+		finally
+		{
+			markForUnregisterMetrics.record(start, failed);
+		}
 	}
 
 	@Override
 	public void makeLastAccessedCurrent(String userId, String sessionId) throws SessionManagementException
 	{
-		logger.info("Making LastAccessedCurrent Session for UserId:" + userId + " SessionId:"+sessionId);
+		sessionLogger.info("Making LastAccessedCurrent Session for UserId:{} SessionId:{}", userId, sessionId);
 		if (StringUtils.isAnyBlank(userId, sessionId))
 		{
 			throw new ValidationException("Invalid userId/sessionId. UserId and SessionId cannot be empty or null.");
 		}
 
+		long start = System.nanoTime();
+		boolean failed = true;
 		try
 		{
 			sessionManagementDAO.updateLastAccessed(userId, sessionId);
+			failed = false;
 		}
 		catch (DAOException e)
 		{
 			String message = "Unable to makeLastAccessedCurrent session for UserId: " + userId;
-			logger.error(message + ". Reason: " + e.getMessage(), e);
+			sessionLogger.error(message + ". Reason: " + e.getMessage(), e);
 			throw new SessionManagementException(message);
 		}
+		finally
+		{
+			makeLastAccessedCurrentMetrics.record(start, failed);
+		}
 	}
 
 	@Override
 	public void updateAuthenticationState(String userId, String sessionId, String authenticationState) throws SessionManagementException
 	{
-		logger.info("Updating Session AuthenticationState  for UserId:" + userId + " SessionId:" + sessionId + " AuthenticationState:" + authenticationState);
+		sessionLogger.info("Updating Session AuthenticationState  for UserId:{} SessionId:{} AuthenticationState:{}", userId, sessionId, authenticationState);
 		if (StringUtils.isAnyBlank(userId, sessionId))
 		{
 			throw new ValidationException("Invalid userId/sessionId. UserId and SessionId cannot be empty or null.");
 		}
 
+		long start = System.nanoTime();
+		boolean failed = true;
 		try
 		{
 			sessionManagementDAO.updateAuthenticationState(userId, sessionId, authenticationState);
+			failed = false;
 		}
 		catch (DAOException e)
 		{
 			String message = "Unable to updateAuthenticationState for UserId: " + userId;
-			logger.error(message + ". Reason: " + e.getMessage(), e);
+			sessionLogger.error(message + ". Reason: " + e.getMessage(), e);
 			throw new SessionManagementException(message);
 		}
+		finally
+		{
+			updateAuthenticationStateMetrics.record(start, failed);
+		}
 	}
 
 	@Override
 	public List<SessionDetails> getAllSessions(String userId) throws SessionManagementException 
 	{
 		List<SessionDetails> userSessionDetails = null;
-		logger.info("Retrieving all SessionDetails for UserId:" + userId );
+		sessionLogger.info("Retrieving all SessionDetails for UserId:{}", userId);
 		
+		long start = System.nanoTime();
+		boolean failed = true;
 		try 
 		{
 			userSessionDetails= sessionManagementDAO.getAllSessionDetails(userId);
+			failed = false;
 		} 
 		catch (DAOException e) 
 		{
 			String message = "Unable to getAllSessions for UserId: " + userId;
-			logger.error(message + ". Reason: " + e.getMessage(), e);
+			sessionLogger.error(message + ". Reason: " + e.getMessage(), e);
 			throw new SessionManagementException(message);
 		}
+		finally
+		{
+			getAllSessionsMetrics.record(start, failed);
+		}
 		return userSessionDetails;
 	}
 
 	@Override
 	public void invalidateAllSessions(String userId) throws SessionManagementException 
 	{
-		logger.info("invalidating all sessions for UserId:" + userId );
-		
-		List<SessionDetails> sessionDetailsList = getAllSessions(userId);
-		
-		if(sessionDetailsList != null && !sessionDetailsList.isEmpty())
+		sessionLogger.info("invalidating all sessions for UserId:{}", userId);
+
+		long start = System.nanoTime();
+		boolean failed = true;
+		try
 		{
-			for(SessionDetails sessionDetails : sessionDetailsList)
+			//One step in the DAO, sessions registered meanwhile either go with the rest or are not touched.
+			sessionManagementDAO.removeAllSessionDetails(userId);
+			if (sessionTokens != null)
 			{
-				if(sessionDetails != null)
-				{
-					unregister(userId, sessionDetails.getSessionId());
-				}
+				sessionTokens.invalidatedAll(userId);
 			}
+			failed = false;
 		}
-		else
+		catch (DAOException e)
+		{
+			String message = "Unable to invalidateAllSessions for UserId: " + userId;
+			sessionLogger.error(message + ". Reason: " + e.getMessage(), e);
+			throw new SessionManagementException(message);
+		}
+		finally
 		{
-			logger.info("No SessionDetails found for UserId:" + userId + ". Skipping unregister");
+			invalidateAllSessionsMetrics.record(start, failed);
 		}
 	}
 }
@@ -0,0 +1,308 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * What SessionValidityCache and SessionDetailsCache have in common: node local entries
+ * by user and session which expire at a time of their own, the stamp against lost
+ * invalidations and the hit rate.
+ *
+ * Entries are kept by user, so all sessions of a user go at once. A full cache makes
+ * room through a sampled sweep, each put looks at no more than EVICTION_SAMPLE_SIZE
+ * entries, continuing where the last one stopped, and drops those which have expired
+ * or, if none has, the one of them which expires first.
+ */
+public abstract class AbstractSessionCache<V> implements SessionInvalidationListener
+{
+	private static final int EVICTION_SAMPLE_SIZE = 16;
+
+	protected static final class Entry<V>
+	{
+		private V value;
+		private long expiresAt;
+
+		private Entry(V value, long expiresAt)
+		{
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		protected V getValue()
+		{
+			return value;
+		}
+	}
+
+	private int maxSize;
+	private long ttlInMilliSeconds;
+
+	//Only changed within a compute of the user, which keeps size right.
+	private Map<String, Map<String, Entry<V>>> userMap = null;
+	private AtomicInteger size = null;
+	private AtomicLong invalidationCount = null;
+
+	private ReentrantLock evictionLock = null;
+	private Iterator<Map.Entry<String, Map<String, Entry<V>>>> userSweep = null;
+	private String sweptUserId = null;
+	private Iterator<Map.Entry<String, Entry<V>>> sessionSweep = null;
+
+	private LongAdder hitCount = null;
+	private LongAdder missCount = null;
+
+	protected AbstractSessionCache(int maxSize, long ttlInMilliSeconds)
+	{
+		this.maxSize = maxSize;
+		this.ttlInMilliSeconds = ttlInMilliSeconds;
+
+		userMap = new ConcurrentHashMap<>();
+		size = new AtomicInteger();
+		invalidationCount = new AtomicLong();
+		evictionLock = new ReentrantLock();
+		hitCount = new LongAdder();
+		missCount = new LongAdder();
+	}
+
+	public final long stamp()
+	{
+		return invalidationCount.get();
+	}
+
+	@Override
+	public final void invalidated(String userId, String sessionId)
+	{
+		invalidationCount.incrementAndGet();
+		remove(userId, sessionId, null);
+	}
+
+	@Override
+	public final void invalidatedAll(String userId)
+	{
+		invalidationCount.incrementAndGet();
+		userMap.computeIfPresent(userId, (id, sessionMap) -> {
+			size.addAndGet(-sessionMap.size());
+			return null;
+		});
+	}
+
+	@Override
+	public final void resynchronize()
+	{
+		invalidationCount.incrementAndGet();
+		for (String userId : userMap.keySet())
+		{
+			userMap.computeIfPresent(userId, (id, sessionMap) -> {
+				size.addAndGet(-sessionMap.size());
+				return null;
+			});
+		}
+	}
+
+	public final int size()
+	{
+		return size.get();
+	}
+
+	public final long getHitCount()
+	{
+		return hitCount.sum();
+	}
+
+	public final long getMissCount()
+	{
+		return missCount.sum();
+	}
+
+	public final double getHitRate()
+	{
+		long hits = hitCount.sum();
+		long total = hits + missCount.sum();
+
+		return total == 0 ? 0.0 : (double)hits / total;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " [size=" + size() + ", hitCount=" + getHitCount() + ", missCount=" + getMissCount() + ", hitRate=" + getHitRate() + "]";
+	}
+
+	//Null if not cached or no longer fresh, counted as a hit or a miss.
+	protected final V lookup(String userId, String sessionId)
+	{
+		V value = null;
+
+		Map<String, Entry<V>> sessionMap = userMap.get(userId);
+		Entry<V> entry = sessionMap != null ? sessionMap.get(sessionId) : null;
+		if (entry != null)
+		{
+			if (System.currentTimeMillis() < entry.expiresAt)
+			{
+				value = entry.value;
+			}
+			else
+			{
+				remove(userId, sessionId, entry);
+			}
+		}
+
+		if (value != null)
+		{
+			hitCount.increment();
+		}
+		else
+		{
+			missCount.increment();
+		}
+
+		return value;
+	}
+
+	//Cached until the earlier of the TTL and sessionExpiresAt, unless an invalidation came in since stamp.
+	protected final void cache(String userId, String sessionId, V value, long sessionExpiresAt, long stamp)
+	{
+		if (size.get() >= maxSize)
+		{
+			evict();
+		}
+
+		Entry<V> entry = new Entry<>(value, getExpiresAt(sessionExpiresAt));
+		userMap.compute(userId, (id, sessionMap) -> {
+			if (sessionMap == null)
+			{
+				sessionMap = new ConcurrentHashMap<>(2);
+			}
+			if (sessionMap.put(sessionId, entry) == null)
+			{
+				size.incrementAndGet();
+			}
+			return sessionMap;
+		});
+
+		//An invalidation came in while the caller was reading, what was read may already be stale.
+		if (invalidationCount.get() != stamp)
+		{
+			remove(userId, sessionId, entry);
+		}
+	}
+
+	//Same as cache for an entry which is cached already, what is not is left alone.
+	protected final void replace(String userId, String sessionId, UnaryOperator<V> update, long sessionExpiresAt, long stamp)
+	{
+		long expiresAt = getExpiresAt(sessionExpiresAt);
+		userMap.computeIfPresent(userId, (id, sessionMap) -> {
+			sessionMap.computeIfPresent(sessionId, (sid, entry) -> new Entry<>(update.apply(entry.value), expiresAt));
+			return sessionMap;
+		});
+
+		if (invalidationCount.get() != stamp)
+		{
+			remove(userId, sessionId, null);
+		}
+	}
+
+	private long getExpiresAt(long sessionExpiresAt)
+	{
+		return Math.min(System.currentTimeMillis() + ttlInMilliSeconds, sessionExpiresAt);
+	}
+
+	//Only if it is still entry, any entry if that is null.
+	private void remove(String userId, String sessionId, Entry<V> entry)
+	{
+		userMap.computeIfPresent(userId, (id, sessionMap) -> {
+			boolean removed = entry != null ? sessionMap.remove(sessionId, entry) : sessionMap.remove(sessionId) != null;
+			if (removed)
+			{
+				size.decrementAndGet();
+			}
+			return sessionMap.isEmpty() ? null : sessionMap;
+		});
+	}
+
+	/**
+	 * The sweep goes on from where the last one left it and starts over at the end. A put
+	 * which finds another one evicting does not wait for it, the cache may go over maxSize
+	 * by as many puts as run at the same time.
+	 */
+	private void evict()
+	{
+		if (evictionLock.tryLock())
+		{
+			try
+			{
+				long now = System.currentTimeMillis();
+				int sampled = 0;
+				int restarts = 0;
+				boolean expiredFound = false;
+				String earliestUserId = null;
+				String earliestSessionId = null;
+				Entry<V> earliest = null;
+				while (sampled < EVICTION_SAMPLE_SIZE && restarts < 2)
+				{
+					if (sessionSweep != null && sessionSweep.hasNext())
+					{
+						Map.Entry<String, Entry<V>> session = sessionSweep.next();
+						Entry<V> entry = session.getValue();
+						++sampled;
+						if (entry.expiresAt <= now)
+						{
+							remove(sweptUserId, session.getKey(), entry);
+							expiredFound = true;
+						}
+						else if (earliest == null || entry.expiresAt < earliest.expiresAt)
+						{
+							earliestUserId = sweptUserId;
+							earliestSessionId = session.getKey();
+							earliest = entry;
+						}
+					}
+					else if (userSweep != null && userSweep.hasNext())
+					{
+						Map.Entry<String, Map<String, Entry<V>>> user = userSweep.next();
+						sweptUserId = user.getKey();
+						sessionSweep = user.getValue().entrySet().iterator();
+					}
+					else
+					{
+						userSweep = userMap.entrySet().iterator();
+						++restarts;
+					}
+				}
+
+				if (!expiredFound && earliest != null)
+				{
+					remove(earliestUserId, earliestSessionId, earliest);
+				}
+			}
+			finally
+			{
+				evictionLock.unlock();
+			}
+		}
+	}
+}
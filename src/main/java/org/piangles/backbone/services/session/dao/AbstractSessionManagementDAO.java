@@ -19,7 +19,10 @@
  
 package org.piangles.backbone.services.session.dao;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.function.LongSupplier;
 
 import org.piangles.backbone.services.session.SessionDetails;
 import org.piangles.core.dao.DAOException;
@@ -29,22 +32,92 @@ public abstract class AbstractSessionManagementDAO implements SessionManagementD
 	private static final String POST_AUTHENTICATION_STATE = "PostAuthentication";
 	private long sessionTimeout;
 	private int markSessionTimeout;
+	private LongSupplier clock = null;
+	
+	private SessionValidityCache validityCache = null;
+	private SessionInvalidationChannel invalidationChannel = null;
+	private volatile boolean publishInvalidations = false;
 
 	public AbstractSessionManagementDAO(long sessionTimeout, int markSessionTimeout)
+	{
+		this(sessionTimeout, markSessionTimeout, System::currentTimeMillis);
+	}
+
+	//Clock is only ever anything but System::currentTimeMillis in tests.
+	protected AbstractSessionManagementDAO(long sessionTimeout, int markSessionTimeout, LongSupplier clock)
 	{
 		this.sessionTimeout = sessionTimeout;
 		this.markSessionTimeout = markSessionTimeout;
+		this.clock = clock;
 	}
 	
 	@Override
 	public final boolean isValid(String userId, String sessionId) throws DAOException
 	{
 		boolean valid = false;
-		SessionDetails sessionDetails = getSessionDetailsIfValidById(userId, sessionId);
-		if (sessionDetails != null)
+		if (validityCache != null && validityCache.isValid(userId, sessionId))
 		{
 			valid = true;
 		}
+		else
+		{
+			long stamp = validityCache != null ? validityCache.stamp() : 0L;
+			long validUntil = getValidUntil(userId, sessionId);
+			if (validUntil > 0)
+			{
+				valid = true;
+				if (validityCache != null)
+				{
+					validityCache.put(userId, sessionId, validUntil, stamp);
+				}
+			}
+		}
+		
+		return valid;
+	}
+
+	@Override
+	public final BitSet isValidBatch(String[] userIds, String[] sessionIds) throws DAOException
+	{
+		BitSet valid = new BitSet(userIds.length);
+		
+		List<Integer> lookupIndexes = new ArrayList<>(userIds.length);
+		for (int i = 0; i < userIds.length; ++i)
+		{
+			if (validityCache != null && validityCache.isValid(userIds[i], sessionIds[i]))
+			{
+				valid.set(i);
+			}
+			else
+			{
+				lookupIndexes.add(i);
+			}
+		}
+		
+		if (!lookupIndexes.isEmpty())
+		{
+			String[] lookupUserIds = new String[lookupIndexes.size()];
+			String[] lookupSessionIds = new String[lookupIndexes.size()];
+			for (int i = 0; i < lookupIndexes.size(); ++i)
+			{
+				lookupUserIds[i] = userIds[lookupIndexes.get(i)];
+				lookupSessionIds[i] = sessionIds[lookupIndexes.get(i)];
+			}
+
+			long stamp = validityCache != null ? validityCache.stamp() : 0L;
+			SessionDetails[] sessionDetails = getSessionDetailsBatch(lookupUserIds, lookupSessionIds);
+			for (int i = 0; i < sessionDetails.length; ++i)
+			{
+				if (isSessionDetailsValid(lookupUserIds[i], sessionDetails[i]))
+				{
+					valid.set(lookupIndexes.get(i));
+					if (validityCache != null)
+					{
+						validityCache.put(lookupUserIds[i], lookupSessionIds[i], sessionDetails[i].getLastAccessedTS() + (sessionTimeout * 1000), stamp);
+					}
+				}
+			}
+		}
 		
 		return valid;
 	}
@@ -73,29 +146,153 @@ public abstract class AbstractSessionManagementDAO implements SessionManagementD
 		return existingSessionCount;
 	}
 	
-	protected final SessionDetails getSessionDetailsIfValidById(String userId, String sessionId) throws DAOException
+	/**
+	 * Count and store are separate steps here, implementations have to override
+	 * this to make it atomic. 
+	 */
+	@Override
+	public int storeSessionDetailsIfBelowLimit(SessionDetails sessionDetails, int maxSessionCount) throws DAOException
 	{
-		SessionDetails sessionDetails = getSessionDetails(userId, sessionId);
-		if (sessionDetails != null && sessionDetails.getUserId().equals(userId))
+		int existingSessionCount = getExistingValidSessionCount(sessionDetails.getUserId());
+		if (existingSessionCount < maxSessionCount)
+		{
+			storeSessionDetails(sessionDetails);
+		}
+		return existingSessionCount;
+	}
+	
+	/**
+	 * One removeSessionDetails per session here, implementations should override
+	 * this to make it a single step.
+	 */
+	@Override
+	public void removeAllSessionDetails(String userId) throws DAOException
+	{
+		List<String> sessionIds = getAllUserSessionIds(userId);
+		if (sessionIds != null)
 		{
-			if (!isSessionValid(sessionDetails.getLastAccessedTS()))
+			//A copy, some implementations hand out the list they remove from.
+			for (String sessionId : new ArrayList<>(sessionIds))
 			{
-				sessionDetails = null;
+				removeSessionDetails(userId, sessionId);
 			}
 		}
-		else
+	}
+	
+	protected final SessionDetails getSessionDetailsIfValidById(String userId, String sessionId) throws DAOException
+	{
+		SessionDetails sessionDetails = getSessionDetails(userId, sessionId);
+		if (!isSessionDetailsValid(userId, sessionDetails))
 		{
 			sessionDetails = null;
 		}
 		return sessionDetails;
 	}
 
+	/**
+	 * Time in milliseconds until which the session is valid, 0 if it is not. Worked out
+	 * from its SessionDetails here, implementations whose store expires sessions itself
+	 * can override this to ask the store without reading them.
+	 */
+	protected long getValidUntil(String userId, String sessionId) throws DAOException
+	{
+		long validUntil = 0L;
+		SessionDetails sessionDetails = getSessionDetailsIfValidById(userId, sessionId);
+		if (sessionDetails != null)
+		{
+			validUntil = sessionDetails.getLastAccessedTS() + (sessionTimeout * 1000);
+		}
+		return validUntil;
+	}
+
+	/**
+	 * Looks up the SessionDetails of each pair, null where there is none. Implementations
+	 * should override this to fetch them all in one exchange with their store.
+	 */
+	protected SessionDetails[] getSessionDetailsBatch(String[] userIds, String[] sessionIds) throws DAOException
+	{
+		SessionDetails[] sessionDetails = new SessionDetails[userIds.length];
+		for (int i = 0; i < userIds.length; ++i)
+		{
+			sessionDetails[i] = getSessionDetails(userIds[i], sessionIds[i]);
+		}
+		return sessionDetails;
+	}
+
+	private boolean isSessionDetailsValid(String userId, SessionDetails sessionDetails)
+	{
+		return sessionDetails != null && sessionDetails.getUserId().equals(userId) && isSessionValid(sessionDetails.getLastAccessedTS());
+	}
+
 
 	protected final boolean isSessionValid(long lastAccessedTS)
 	{
-		return ((System.currentTimeMillis() - lastAccessedTS) < (sessionTimeout * 1000));
+		return ((clock.getAsLong() - lastAccessedTS) < (sessionTimeout * 1000));
+	}
+
+	protected final long currentTimeMillis()
+	{
+		return clock.getAsLong();
 	}
 	
+	/**
+	 * Puts a node local validity cache in front of isValid, the cache is kept
+	 * in sync across nodes through the invalidationChannel. 
+	 */
+	protected final void enableValidityCache(SessionValidityCache validityCache, SessionInvalidationChannel invalidationChannel)
+	{
+		this.validityCache = validityCache;
+		setInvalidationChannel(invalidationChannel);
+		subscribeInvalidations(validityCache);
+	}
+
+	//Invalidations are only published once something is subscribed.
+	protected final void setInvalidationChannel(SessionInvalidationChannel invalidationChannel)
+	{
+		this.invalidationChannel = invalidationChannel;
+	}
+
+	@Override
+	public final void subscribeInvalidations(SessionInvalidationListener listener)
+	{
+		if (invalidationChannel != null)
+		{
+			invalidationChannel.subscribe(listener);
+			publishInvalidations = true;
+		}
+	}
+
+	//Has to be called by implementations once a session has been removed or changed.
+	protected final void invalidate(String userId, String sessionId) throws DAOException
+	{
+		if (validityCache != null)
+		{
+			validityCache.invalidated(userId, sessionId);
+		}
+		if (publishInvalidations)
+		{
+			invalidationChannel.publish(userId, sessionId);
+		}
+	}
+
+	//Same as invalidate, for all the sessions of a user removed at once.
+	protected final void invalidateAll(String userId) throws DAOException
+	{
+		if (validityCache != null)
+		{
+			validityCache.invalidatedAll(userId);
+		}
+		if (publishInvalidations)
+		{
+			invalidationChannel.publishAll(userId);
+		}
+	}
+
+	public final SessionValidityCache getValidityCache()
+	{
+		return validityCache;
+	}
+
 	protected final long getSessionTimeout()
 	{
 		return sessionTimeout;
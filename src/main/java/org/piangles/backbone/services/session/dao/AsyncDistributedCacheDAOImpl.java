@@ -0,0 +1,335 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.piangles.backbone.services.session.SessionDetails;
+import org.piangles.core.dao.DAOException;
+
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * DistributedCacheDAOImpl without blocking the caller, the Redis commands of all callers
+ * go through a RedisCommandMultiplexer of connectionCount connections.
+ *
+ * A few calls still block, each on a virtual thread of its own: everything while a key layout migration
+ * is running, getExistingValidSessionCount which takes several dependent exchanges,
+ * getAllSessionDetails, storeSessionDetailsIfBelowLimit and markForRemoveSessionDetails when the node has lost the script,
+ * and the invalidation after a change, which publishes to the other nodes.
+ */
+public final class AsyncDistributedCacheDAOImpl implements AsyncSessionManagementDAO, AutoCloseable
+{
+	private DistributedCacheDAOImpl distributedCacheDAO = null;
+	private RedisCommandMultiplexer multiplexer = null;
+	private ExecutorService blockingExecutor = null;
+	private AsyncSessionManagementDAOAdapter blockingDAO = null;
+
+	public AsyncDistributedCacheDAOImpl(DistributedCacheDAOImpl distributedCacheDAO, int connectionCount)
+	{
+		this.distributedCacheDAO = distributedCacheDAO;
+		multiplexer = new RedisCommandMultiplexer(distributedCacheDAO.getRedisExecutor(), connectionCount);
+		blockingExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("AsyncDistributedCacheDAO-", 0).factory());
+		blockingDAO = new AsyncSessionManagementDAOAdapter(distributedCacheDAO, blockingExecutor);
+	}
+
+	@Override
+	public CompletionStage<Void> storeSessionDetails(SessionDetails sessionDetails)
+	{
+		CompletionStage<Void> stored = null;
+		if (distributedCacheDAO.isMigrating())
+		{
+			stored = blockingDAO.storeSessionDetails(sessionDetails);
+		}
+		else
+		{
+			stored = distributedCacheDAO.writeSessionDetails(multiplexer, sessionDetails);
+		}
+		return stored;
+	}
+
+	@Override
+	public CompletionStage<SessionDetails> getSessionDetails(String userId, String sessionId)
+	{
+		CompletionStage<SessionDetails> sessionDetails = null;
+		if (distributedCacheDAO.isMigrating())
+		{
+			sessionDetails = blockingDAO.getSessionDetails(userId, sessionId);
+		}
+		else
+		{
+			sessionDetails = distributedCacheDAO.readSessionDetails(multiplexer, userId, sessionId);
+		}
+		return sessionDetails;
+	}
+
+	@Override
+	public CompletionStage<List<SessionDetails>> getAllSessionDetails(String userId)
+	{
+		CompletionStage<List<SessionDetails>> userSessionDetails = null;
+		if (distributedCacheDAO.isMigrating())
+		{
+			userSessionDetails = blockingDAO.getAllSessionDetails(userId);
+		}
+		else
+		{
+			userSessionDetails = distributedCacheDAO.readAllSessionDetails(multiplexer, userId).handle((sessionDetails, failure) -> {
+				CompletionStage<List<SessionDetails>> result = null;
+				if (failure == null)
+				{
+					result = CompletableFuture.completedFuture(sessionDetails);
+				}
+				else if (unwrap(failure).getCause() instanceof JedisNoScriptException)
+				{
+					//The blocking call loads the script again.
+					result = blockingDAO.getAllSessionDetails(userId);
+				}
+				else
+				{
+					result = failed(unwrap(failure));
+				}
+				return result;
+			}).thenCompose((result) -> result);
+		}
+		return userSessionDetails;
+	}
+
+	@Override
+	public CompletionStage<Void> removeSessionDetails(String userId, String sessionId)
+	{
+		CompletionStage<Void> removed = null;
+		if (distributedCacheDAO.isMigrating())
+		{
+			removed = blockingDAO.removeSessionDetails(userId, sessionId);
+		}
+		else
+		{
+			removed = invalidateAfter(distributedCacheDAO.deleteSessionDetails(multiplexer, userId, sessionId), userId, sessionId);
+		}
+		return removed;
+	}
+
+	@Override
+	public CompletionStage<Void> markForRemoveSessionDetails(String userId, String sessionId)
+	{
+		CompletionStage<Void> marked = null;
+		if (distributedCacheDAO.isMigrating())
+		{
+			marked = blockingDAO.markForRemoveSessionDetails(userId, sessionId);
+		}
+		else
+		{
+			marked = distributedCacheDAO.expireSessionDetails(multiplexer, userId, sessionId).handle((expired, failure) -> {
+				CompletionStage<Void> result = null;
+				if (failure == null)
+				{
+					result = invalidateAfter(CompletableFuture.completedFuture(null), userId, sessionId);
+				}
+				else if (unwrap(failure).getCause() instanceof JedisNoScriptException)
+				{
+					//The blocking call loads the script again.
+					result = blockingDAO.markForRemoveSessionDetails(userId, sessionId);
+				}
+				else
+				{
+					result = failed(unwrap(failure));
+				}
+				return result;
+			}).thenCompose((result) -> result);
+		}
+		return marked;
+	}
+
+	/**
+	 * Same as DistributedCacheDAOImpl.isValid, a hit in its validity cache completes
+	 * right away and what is looked up goes into it. With sliding expiry only PTTL and
+	 * the generation of the session are read, see DistributedCacheDAOImpl.getValidUntil.
+	 */
+	@Override
+	public CompletionStage<Boolean> isValid(String userId, String sessionId)
+	{
+		CompletionStage<Boolean> valid = null;
+		SessionValidityCache validityCache = distributedCacheDAO.getValidityCache();
+		if (validityCache != null && validityCache.isValid(userId, sessionId))
+		{
+			valid = CompletableFuture.completedFuture(Boolean.TRUE);
+		}
+		else if (distributedCacheDAO.isMigrating())
+		{
+			valid = blockingDAO.isValid(userId, sessionId);
+		}
+		else
+		{
+			long stamp = validityCache != null ? validityCache.stamp() : 0L;
+			CompletionStage<Long> validUntil = null;
+			if (distributedCacheDAO.isSlidingExpiry())
+			{
+				validUntil = distributedCacheDAO.readValidUntil(multiplexer, userId, sessionId).thenCompose((expiresAt) -> 
+								expiresAt < 0 ? readValidUntil(userId, sessionId) : CompletableFuture.completedFuture(expiresAt));
+			}
+			else
+			{
+				validUntil = readValidUntil(userId, sessionId);
+			}
+			valid = validUntil.thenApply((expiresAt) -> {
+				boolean sessionValid = expiresAt > 0;
+				if (sessionValid && validityCache != null)
+				{
+					validityCache.put(userId, sessionId, expiresAt, stamp);
+				}
+				return sessionValid;
+			});
+		}
+		return valid;
+	}
+
+	@Override
+	public CompletionStage<Void> updateLastAccessed(String userId, String sessionId)
+	{
+		CompletionStage<Void> touched = null;
+		if (distributedCacheDAO.touchBehind(userId, sessionId))
+		{
+			touched = CompletableFuture.completedFuture(null);
+		}
+		else
+		{
+			//A session not yet moved to the current layout only gets LastAccessedTS there, as with the blocking call.
+			touched = distributedCacheDAO.writeLastAccessed(multiplexer, userId, sessionId);
+		}
+		return touched;
+	}
+
+	@Override
+	public CompletionStage<Void> updateAuthenticationState(String userId, String sessionId, String authenticationState)
+	{
+		CompletionStage<Void> updated = null;
+		if (distributedCacheDAO.isMigrating())
+		{
+			updated = blockingDAO.updateAuthenticationState(userId, sessionId, authenticationState);
+		}
+		else
+		{
+			updated = invalidateAfter(distributedCacheDAO.writeAuthenticationState(multiplexer, userId, sessionId, authenticationState), userId, sessionId);
+		}
+		return updated;
+	}
+
+	@Override
+	public CompletionStage<Integer> getExistingValidSessionCount(String userId)
+	{
+		return blockingDAO.getExistingValidSessionCount(userId);
+	}
+
+	@Override
+	public CompletionStage<Integer> storeSessionDetailsIfBelowLimit(SessionDetails sessionDetails, int maxSessionCount)
+	{
+		CompletionStage<Integer> existingSessionCount = null;
+		if (distributedCacheDAO.isMigrating())
+		{
+			existingSessionCount = blockingDAO.storeSessionDetailsIfBelowLimit(sessionDetails, maxSessionCount);
+		}
+		else
+		{
+			existingSessionCount = distributedCacheDAO.writeSessionDetailsIfBelowLimit(multiplexer, sessionDetails, maxSessionCount).handle((count, failure) -> {
+				CompletionStage<Integer> result = null;
+				if (failure == null)
+				{
+					result = CompletableFuture.completedFuture(count);
+				}
+				else if (unwrap(failure).getCause() instanceof JedisNoScriptException)
+				{
+					//The blocking call loads the script again.
+					result = blockingDAO.storeSessionDetailsIfBelowLimit(sessionDetails, maxSessionCount);
+				}
+				else
+				{
+					result = failed(unwrap(failure));
+				}
+				return result;
+			}).thenCompose((result) -> result);
+		}
+		return existingSessionCount;
+	}
+
+	public DistributedCacheDAOImpl getDistributedCacheDAO()
+	{
+		return distributedCacheDAO;
+	}
+
+	public int getConnectionCount()
+	{
+		return multiplexer.getConnectionCount();
+	}
+
+	/**
+	 * Sends what is still queued, the DistributedCacheDAOImpl is left open.
+	 */
+	@Override
+	public void close()
+	{
+		multiplexer.close();
+		blockingExecutor.shutdown();
+	}
+
+	//From the SessionDetails, 0 if the session is not valid.
+	private CompletionStage<Long> readValidUntil(String userId, String sessionId)
+	{
+		return distributedCacheDAO.readSessionDetails(multiplexer, userId, sessionId).thenApply((sessionDetails) -> {
+			long validUntil = 0L;
+			if (sessionDetails != null && sessionDetails.getUserId().equals(userId) && distributedCacheDAO.isSessionValid(sessionDetails.getLastAccessedTS()))
+			{
+				validUntil = sessionDetails.getLastAccessedTS() + (distributedCacheDAO.getSessionTimeout() * 1000);
+			}
+			return validUntil;
+		});
+	}
+
+	private CompletionStage<Void> invalidateAfter(CompletableFuture<Void> changed, String userId, String sessionId)
+	{
+		return changed.thenApplyAsync((ignored) -> {
+			try
+			{
+				distributedCacheDAO.invalidate(userId, sessionId);
+			}
+			catch (DAOException e)
+			{
+				throw new CompletionException(e);
+			}
+			return null;
+		}, blockingExecutor);
+	}
+
+	private static Throwable unwrap(Throwable failure)
+	{
+		return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+	}
+
+	private static <R> CompletionStage<R> failed(Throwable failure)
+	{
+		CompletableFuture<R> future = new CompletableFuture<>();
+		future.completeExceptionally(failure);
+		return future;
+	}
+}
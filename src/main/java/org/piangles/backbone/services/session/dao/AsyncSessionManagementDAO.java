@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+import org.piangles.backbone.services.session.SessionDetails;
+
+/**
+ * SessionManagementDAO with every call returning a CompletionStage instead of waiting
+ * for the store, what each does is the same as its blocking counterpart. A failure
+ * completes the stage exceptionally with a DAOException.
+ *
+ * Stages may complete on a thread of the DAO, dependent stages which block have to be
+ * given an executor of their own.
+ */
+public interface AsyncSessionManagementDAO
+{
+	public CompletionStage<Void> storeSessionDetails(SessionDetails sessionDetails);
+
+	public CompletionStage<SessionDetails> getSessionDetails(String userId, String sessionId);
+
+	public CompletionStage<List<SessionDetails>> getAllSessionDetails(String userId);
+
+	public CompletionStage<Void> removeSessionDetails(String userId, String sessionId);
+
+	public CompletionStage<Void> markForRemoveSessionDetails(String userId, String sessionId);
+
+	public CompletionStage<Boolean> isValid(String userId, String sessionId);
+
+	public CompletionStage<Void> updateLastAccessed(String userId, String sessionId);
+
+	public CompletionStage<Void> updateAuthenticationState(String userId, String sessionId, String authenticationState);
+
+	public CompletionStage<Integer> getExistingValidSessionCount(String userId);
+
+	public CompletionStage<Integer> storeSessionDetailsIfBelowLimit(SessionDetails sessionDetails, int maxSessionCount);
+}
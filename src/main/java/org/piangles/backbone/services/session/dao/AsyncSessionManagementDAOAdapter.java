@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+import org.piangles.backbone.services.session.SessionDetails;
+import org.piangles.core.dao.DAOException;
+
+/**
+ * Any SessionManagementDAO as an AsyncSessionManagementDAO, each call runs on executor.
+ * For the in memory DAOs, which never wait on anything but their own lock, the executor
+ * can be Runnable::run and the stages are complete when returned.
+ */
+public final class AsyncSessionManagementDAOAdapter implements AsyncSessionManagementDAO
+{
+	private interface DAOCall<R>
+	{
+		public R call() throws DAOException;
+	}
+
+	private SessionManagementDAO sessionManagementDAO = null;
+	private Executor executor = null;
+
+	public AsyncSessionManagementDAOAdapter(SessionManagementDAO sessionManagementDAO, Executor executor)
+	{
+		this.sessionManagementDAO = sessionManagementDAO;
+		this.executor = executor;
+	}
+
+	@Override
+	public CompletionStage<Void> storeSessionDetails(SessionDetails sessionDetails)
+	{
+		return run(() -> {
+			sessionManagementDAO.storeSessionDetails(sessionDetails);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletionStage<SessionDetails> getSessionDetails(String userId, String sessionId)
+	{
+		return run(() -> sessionManagementDAO.getSessionDetails(userId, sessionId));
+	}
+
+	@Override
+	public CompletionStage<List<SessionDetails>> getAllSessionDetails(String userId)
+	{
+		return run(() -> sessionManagementDAO.getAllSessionDetails(userId));
+	}
+
+	@Override
+	public CompletionStage<Void> removeSessionDetails(String userId, String sessionId)
+	{
+		return run(() -> {
+			sessionManagementDAO.removeSessionDetails(userId, sessionId);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletionStage<Void> markForRemoveSessionDetails(String userId, String sessionId)
+	{
+		return run(() -> {
+			sessionManagementDAO.markForRemoveSessionDetails(userId, sessionId);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletionStage<Boolean> isValid(String userId, String sessionId)
+	{
+		return run(() -> sessionManagementDAO.isValid(userId, sessionId));
+	}
+
+	@Override
+	public CompletionStage<Void> updateLastAccessed(String userId, String sessionId)
+	{
+		return run(() -> {
+			sessionManagementDAO.updateLastAccessed(userId, sessionId);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletionStage<Void> updateAuthenticationState(String userId, String sessionId, String authenticationState)
+	{
+		return run(() -> {
+			sessionManagementDAO.updateAuthenticationState(userId, sessionId, authenticationState);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletionStage<Integer> getExistingValidSessionCount(String userId)
+	{
+		return run(() -> sessionManagementDAO.getExistingValidSessionCount(userId));
+	}
+
+	@Override
+	public CompletionStage<Integer> storeSessionDetailsIfBelowLimit(SessionDetails sessionDetails, int maxSessionCount)
+	{
+		return run(() -> sessionManagementDAO.storeSessionDetailsIfBelowLimit(sessionDetails, maxSessionCount));
+	}
+
+	public SessionManagementDAO getSessionManagementDAO()
+	{
+		return sessionManagementDAO;
+	}
+
+	private <R> CompletableFuture<R> run(DAOCall<R> call)
+	{
+		CompletableFuture<R> future = new CompletableFuture<>();
+		executor.execute(() -> {
+			try
+			{
+				future.complete(call.call());
+			}
+			catch (DAOException e)
+			{
+				future.completeExceptionally(e);
+			}
+			catch (RuntimeException e)
+			{
+				future.completeExceptionally(new DAOException(e));
+			}
+		});
+		return future;
+	}
+}
@@ -0,0 +1,661 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+import org.piangles.backbone.services.session.SessionDetails;
+import org.piangles.backbone.services.session.id.SessionIdFormat;
+import org.piangles.core.dao.DAOException;
+
+/**
+ * In memory store for millions of sessions. A session is a record spread over parallel
+ * primitive arrays: the 128 bit SessionId as two longs, timestamps, timeout, an index into
+ * the interned authenticationStates and a reference to the user. Records are found
+ * through an open addressed table of record numbers, the records of a user are chained
+ * through nextRecord. Around 70 bytes per session plus one entry per user, against
+ * several hundred for InMemoryDAOImpl. SessionDetails are only created when asked for.
+ *
+ * SessionIds have to be in the SessionIdFormat the store was created with.
+ * Expired and marked for remove sessions are swept in the background, a bounded number
+ * of records at a time so that every record is looked at about once per sessionTimeout.
+ */
+public final class CompactInMemoryDAOImpl extends AbstractSessionManagementDAO
+{
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int NONE = -1;
+	private static final long SWEEP_INTERVAL_IN_MILLISECONDS = 1000;
+	private static final int MIN_SWEEP_SIZE = 1024;
+
+	//Records, a removed record is put on the free list and reused.
+	private long[] sessionIdHighBits = null;
+	private long[] sessionIdLowBits = null;
+	private long[] createdTS = null;
+	private long[] lastAccessedTS = null;
+	//When a record marked for remove goes, 0 if it is not marked.
+	private long[] removeAtTS = null;
+	private int[] timeouts = null;
+	private byte[] authenticationStates = null;
+	private int[] userRefs = null;
+	//Next record of the same user, or the next free record.
+	private int[] nextRecord = null;
+	private int recordCount;
+	private int freeRecord = NONE;
+	private int size;
+
+	//Record number plus one, 0 is an empty slot. Linear probing.
+	private int[] table = null;
+
+	private Map<String, Integer> userRefMap = null;
+	private String[] userIds = null;
+	//First record of the user, or the next free user reference.
+	private int[] firstRecord = null;
+	private int userCount;
+	private int freeUserRef = NONE;
+
+	private List<String> authenticationStateNames = null;
+
+	private SessionIdFormat sessionIdFormat = null;
+
+	private int sweepPosition;
+	private ScheduledExecutorService sweeper = null;
+	//Not a monitor, a virtual thread waiting on a monitor holds on to its carrier thread.
+	private ReentrantLock lock = null;
+
+	public CompactInMemoryDAOImpl(long sessionTimeout, int markSessionTimeout) throws Exception
+	{
+		this(sessionTimeout, markSessionTimeout, SessionIdFormat.UUID);
+	}
+
+	public CompactInMemoryDAOImpl(long sessionTimeout, int markSessionTimeout, SessionIdFormat sessionIdFormat) throws Exception
+	{
+		this(sessionTimeout, markSessionTimeout, sessionIdFormat, System::currentTimeMillis);
+		sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "CompactInMemorySessionSweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_IN_MILLISECONDS, SWEEP_INTERVAL_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+	}
+
+	//The sweeper is not started, whoever controls the clock calls sweep.
+	CompactInMemoryDAOImpl(long sessionTimeout, int markSessionTimeout, LongSupplier clock)
+	{
+		this(sessionTimeout, markSessionTimeout, SessionIdFormat.UUID, clock);
+	}
+
+	CompactInMemoryDAOImpl(long sessionTimeout, int markSessionTimeout, SessionIdFormat sessionIdFormat, LongSupplier clock)
+	{
+		super(sessionTimeout, markSessionTimeout, clock);
+		lock = new ReentrantLock();
+		this.sessionIdFormat = sessionIdFormat;
+		sessionIdHighBits = new long[INITIAL_CAPACITY];
+		sessionIdLowBits = new long[INITIAL_CAPACITY];
+		createdTS = new long[INITIAL_CAPACITY];
+		lastAccessedTS = new long[INITIAL_CAPACITY];
+		removeAtTS = new long[INITIAL_CAPACITY];
+		timeouts = new int[INITIAL_CAPACITY];
+		authenticationStates = new byte[INITIAL_CAPACITY];
+		userRefs = new int[INITIAL_CAPACITY];
+		nextRecord = new int[INITIAL_CAPACITY];
+		table = new int[INITIAL_CAPACITY * 2];
+
+		userRefMap = new HashMap<>();
+		userIds = new String[INITIAL_CAPACITY];
+		firstRecord = new int[INITIAL_CAPACITY];
+
+		authenticationStateNames = new ArrayList<>();
+	}
+
+	@Override
+	public void storeSessionDetails(SessionDetails sessionDetails) throws DAOException
+	{
+		lock.lock();
+		try
+		{
+			String sessionId = sessionDetails.getSessionId();
+			if (!sessionIdFormat.matches(sessionId))
+			{
+				throw new DAOException("SessionId " + sessionId + " is not in " + sessionIdFormat + " format and cannot be stored.");
+			}
+			byte authenticationState = getAuthenticationStateRef(sessionDetails.getAuthenticationState());
+			long highBits = sessionIdFormat.getHighBits(sessionId);
+			long lowBits = sessionIdFormat.getLowBits(sessionId);
+
+			int record = findRecord(highBits, lowBits);
+			if (record != NONE)
+			{
+				removeRecord(record);
+			}
+
+			record = allocateRecord();
+			int userRef = getOrCreateUserRef(sessionDetails.getUserId());
+			sessionIdHighBits[record] = highBits;
+			sessionIdLowBits[record] = lowBits;
+			createdTS[record] = sessionDetails.getCreatedTS();
+			lastAccessedTS[record] = sessionDetails.getLastAccessedTS();
+			removeAtTS[record] = 0L;
+			timeouts[record] = (int)sessionDetails.getInactivityExpiryTimeInSeconds();
+			authenticationStates[record] = authenticationState;
+			userRefs[record] = userRef;
+			nextRecord[record] = firstRecord[userRef];
+			firstRecord[userRef] = record;
+
+			insertIntoTable(record);
+			size++;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int storeSessionDetailsIfBelowLimit(SessionDetails sessionDetails, int maxSessionCount) throws DAOException
+	{
+		int existingSessionCount;
+		lock.lock();
+		try
+		{
+			existingSessionCount = super.storeSessionDetailsIfBelowLimit(sessionDetails, maxSessionCount);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return existingSessionCount;
+	}
+
+	@Override
+	public void removeSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		lock.lock();
+		try
+		{
+			int record = findRecord(userId, sessionId);
+			if (record != NONE)
+			{
+				removeRecord(record);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void markForRemoveSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		lock.lock();
+		try
+		{
+			int record = findRecord(userId, sessionId);
+			if (record != NONE)
+			{
+				removeAtTS[record] = currentTimeMillis() + getMarkSessionTimeout() * 1000L;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void updateLastAccessed(String userId, String sessionId) throws DAOException
+	{
+		lock.lock();
+		try
+		{
+			int record = findRecord(userId, sessionId);
+			if (record != NONE && isRecordValid(record))
+			{
+				lastAccessedTS[record] = currentTimeMillis();
+				//Same as a Redis PERSIST, a touch takes back markForRemove.
+				removeAtTS[record] = 0L;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void updateAuthenticationState(String userId, String sessionId, String authenticationState) throws DAOException
+	{
+		lock.lock();
+		try
+		{
+			int record = findRecord(userId, sessionId);
+			if (record != NONE && isRecordValid(record))
+			{
+				authenticationStates[record] = getAuthenticationStateRef(authenticationState);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	protected List<String> getAllUserSessionIds(String userId) throws DAOException
+	{
+		List<String> sessionIds = null;
+		lock.lock();
+		try
+		{
+			Integer userRef = userRefMap.get(userId);
+			if (userRef != null)
+			{
+				sessionIds = new ArrayList<>();
+				for (int record = firstRecord[userRef]; record != NONE; record = nextRecord[record])
+				{
+					sessionIds.add(sessionIdFormat.format(sessionIdHighBits[record], sessionIdLowBits[record]));
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return sessionIds;
+	}
+
+	@Override
+	public SessionDetails getSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		SessionDetails sessionDetails = null;
+		lock.lock();
+		try
+		{
+			if (sessionIdFormat.matches(sessionId))
+			{
+				int record = findRecord(sessionIdFormat.getHighBits(sessionId), sessionIdFormat.getLowBits(sessionId));
+				if (record != NONE && !isRemoveDue(record))
+				{
+					sessionDetails = createSessionDetails(record, sessionId);
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return sessionDetails;
+	}
+
+	@Override
+	protected SessionDetails[] getSessionDetailsBatch(String[] userIds, String[] sessionIds) throws DAOException
+	{
+		SessionDetails[] sessionDetails = new SessionDetails[sessionIds.length];
+		lock.lock();
+		try
+		{
+			for (int i = 0; i < sessionIds.length; ++i)
+			{
+				sessionDetails[i] = getSessionDetails(userIds[i], sessionIds[i]);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return sessionDetails;
+	}
+
+	@Override
+	public List<SessionDetails> getAllSessionDetails(String userId) throws DAOException
+	{
+		List<SessionDetails> userSessionDetails = new ArrayList<>();
+		lock.lock();
+		try
+		{
+			Integer userRef = userRefMap.get(userId);
+			if (userRef != null)
+			{
+				for (int record = firstRecord[userRef]; record != NONE; record = nextRecord[record])
+				{
+					if (!isRemoveDue(record))
+					{
+						userSessionDetails.add(createSessionDetails(record, sessionIdFormat.format(sessionIdHighBits[record], sessionIdLowBits[record])));
+					}
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return userSessionDetails;
+	}
+
+	@Override
+	protected void removeAllExpiredSessionDetails(String userId) throws DAOException
+	{
+		lock.lock();
+		try
+		{
+			Integer userRef = userRefMap.get(userId);
+			if (userRef != null)
+			{
+				int record = firstRecord[userRef];
+				while (record != NONE)
+				{
+					int next = nextRecord[record];
+					if (!isRecordValid(record))
+					{
+						removeRecord(record);
+					}
+					record = next;
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public int size()
+	{
+		int currentSize;
+		lock.lock();
+		try
+		{
+			currentSize = size;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return currentSize;
+	}
+
+	/**
+	 * Looks at the next slice of records and removes the expired and the marked for
+	 * remove ones that are due. Called by the sweeper, the slice is sized so the whole
+	 * store is covered about once per sessionTimeout.
+	 */
+	int sweep()
+	{
+		int removedCount = 0;
+		lock.lock();
+		try
+		{
+			int sliceSize = (int)Math.max(MIN_SWEEP_SIZE, recordCount / Math.max(1, getSessionTimeout()));
+			for (int i = 0; i < sliceSize && recordCount > 0; ++i)
+			{
+				if (sweepPosition >= recordCount)
+				{
+					sweepPosition = 0;
+				}
+				if (userRefs[sweepPosition] != NONE && !isRecordValid(sweepPosition))
+				{
+					removeRecord(sweepPosition);
+					removedCount++;
+				}
+				sweepPosition++;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return removedCount;
+	}
+
+	private SessionDetails createSessionDetails(int record, String sessionId)
+	{
+		return new SessionDetails(userIds[userRefs[record]], sessionId,
+									authenticationStateNames.get(authenticationStates[record]),
+									timeouts[record], createdTS[record], lastAccessedTS[record]);
+	}
+
+	private boolean isRecordValid(int record)
+	{
+		return isSessionValid(lastAccessedTS[record]) && !isRemoveDue(record);
+	}
+
+	private boolean isRemoveDue(int record)
+	{
+		return removeAtTS[record] != 0L && removeAtTS[record] <= currentTimeMillis();
+	}
+
+	//Record of this session if it belongs to this user.
+	private int findRecord(String userId, String sessionId)
+	{
+		int record = NONE;
+		//Anything else is not a SessionId this store could have handed out.
+		if (sessionIdFormat.matches(sessionId))
+		{
+			record = findRecord(sessionIdFormat.getHighBits(sessionId), sessionIdFormat.getLowBits(sessionId));
+			if (record != NONE && !userIds[userRefs[record]].equals(userId))
+			{
+				record = NONE;
+			}
+		}
+		return record;
+	}
+
+	private int findRecord(long highBits, long lowBits)
+	{
+		int slot = findSlot(highBits, lowBits);
+		return slot != NONE ? table[slot] - 1 : NONE;
+	}
+
+	private int findSlot(long highBits, long lowBits)
+	{
+		int found = NONE;
+		int mask = table.length - 1;
+		int slot = hash(highBits, lowBits) & mask;
+		while (found == NONE && table[slot] != 0)
+		{
+			int record = table[slot] - 1;
+			if (sessionIdHighBits[record] == highBits && sessionIdLowBits[record] == lowBits)
+			{
+				found = slot;
+			}
+			else
+			{
+				slot = (slot + 1) & mask;
+			}
+		}
+		return found;
+	}
+
+	private void insertIntoTable(int record)
+	{
+		//Kept at most half full, probe sequences stay short.
+		if ((size + 1) * 2 > table.length)
+		{
+			int[] oldTable = table;
+			table = new int[oldTable.length * 2];
+			for (int entry : oldTable)
+			{
+				if (entry != 0)
+				{
+					placeInTable(entry - 1);
+				}
+			}
+		}
+		placeInTable(record);
+	}
+
+	private void placeInTable(int record)
+	{
+		int mask = table.length - 1;
+		int slot = hash(sessionIdHighBits[record], sessionIdLowBits[record]) & mask;
+		while (table[slot] != 0)
+		{
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = record + 1;
+	}
+
+	//Backward shift deletion, no tombstones are left behind for later lookups to walk over.
+	private void removeFromTable(int slot)
+	{
+		int mask = table.length - 1;
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while (table[next] != 0)
+		{
+			int record = table[next] - 1;
+			int home = hash(sessionIdHighBits[record], sessionIdLowBits[record]) & mask;
+			if (((next - home) & mask) >= ((next - gap) & mask))
+			{
+				table[gap] = table[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		table[gap] = 0;
+	}
+
+	private void removeRecord(int record)
+	{
+		removeFromTable(findSlot(sessionIdHighBits[record], sessionIdLowBits[record]));
+
+		int userRef = userRefs[record];
+		if (firstRecord[userRef] == record)
+		{
+			firstRecord[userRef] = nextRecord[record];
+		}
+		else
+		{
+			int previous = firstRecord[userRef];
+			while (nextRecord[previous] != record)
+			{
+				previous = nextRecord[previous];
+			}
+			nextRecord[previous] = nextRecord[record];
+		}
+		if (firstRecord[userRef] == NONE)
+		{
+			releaseUserRef(userRef);
+		}
+
+		userRefs[record] = NONE;
+		nextRecord[record] = freeRecord;
+		freeRecord = record;
+		size--;
+	}
+
+	private int allocateRecord()
+	{
+		int record = freeRecord;
+		if (record != NONE)
+		{
+			freeRecord = nextRecord[record];
+		}
+		else
+		{
+			if (recordCount == userRefs.length)
+			{
+				int capacity = recordCount * 2;
+				sessionIdHighBits = Arrays.copyOf(sessionIdHighBits, capacity);
+				sessionIdLowBits = Arrays.copyOf(sessionIdLowBits, capacity);
+				createdTS = Arrays.copyOf(createdTS, capacity);
+				lastAccessedTS = Arrays.copyOf(lastAccessedTS, capacity);
+				removeAtTS = Arrays.copyOf(removeAtTS, capacity);
+				timeouts = Arrays.copyOf(timeouts, capacity);
+				authenticationStates = Arrays.copyOf(authenticationStates, capacity);
+				userRefs = Arrays.copyOf(userRefs, capacity);
+				nextRecord = Arrays.copyOf(nextRecord, capacity);
+			}
+			record = recordCount++;
+		}
+		return record;
+	}
+
+	private int getOrCreateUserRef(String userId)
+	{
+		Integer userRef = userRefMap.get(userId);
+		if (userRef == null)
+		{
+			if (freeUserRef != NONE)
+			{
+				userRef = freeUserRef;
+				freeUserRef = firstRecord[freeUserRef];
+			}
+			else
+			{
+				if (userCount == userIds.length)
+				{
+					userIds = Arrays.copyOf(userIds, userCount * 2);
+					firstRecord = Arrays.copyOf(firstRecord, userCount * 2);
+				}
+				userRef = userCount++;
+			}
+			userIds[userRef] = userId;
+			firstRecord[userRef] = NONE;
+			userRefMap.put(userId, userRef);
+		}
+		return userRef;
+	}
+
+	private void releaseUserRef(int userRef)
+	{
+		userRefMap.remove(userIds[userRef]);
+		userIds[userRef] = null;
+		firstRecord[userRef] = freeUserRef;
+		freeUserRef = userRef;
+	}
+
+	private byte getAuthenticationStateRef(String authenticationState) throws DAOException
+	{
+		int authenticationStateRef = authenticationStateNames.indexOf(authenticationState);
+		if (authenticationStateRef == NONE)
+		{
+			if (authenticationStateNames.size() > Byte.MAX_VALUE)
+			{
+				throw new DAOException("Too many distinct authenticationStates, cannot store " + authenticationState);
+			}
+			authenticationStateNames.add(authenticationState);
+			authenticationStateRef = authenticationStateNames.size() - 1;
+		}
+		return (byte)authenticationStateRef;
+	}
+
+	private static int hash(long highBits, long lowBits)
+	{
+		long hash = (highBits ^ lowBits) * 0x9E3779B97F4A7C15L;
+		return (int)(hash ^ (hash >>> 32));
+	}
+}
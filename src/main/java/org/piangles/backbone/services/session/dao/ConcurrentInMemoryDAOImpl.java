@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import org.piangles.backbone.services.session.SessionDetails;
+import org.piangles.core.dao.DAOException;
+
+/**
+ * Same as InMemoryDAOImpl without a DAO wide monitor.
+ *
+ * Reads of SessionDetails are lock free. SessionDetails are never changed in place,
+ * touch and authenticationState updates atomically replace them in sessionIdMap.
+ * The sessions of a user are only changed within a compute on userIdSessionMap which
+ * locks just the bin of that user, so register, remove and expiry are serialized per
+ * user and different users proceed in parallel.
+ *
+ * Expired and marked for remove sessions are taken out by a TimingWheel, see
+ * SessionExpiry, each within a compute for the user like any other removal.
+ */
+public final class ConcurrentInMemoryDAOImpl extends AbstractSessionManagementDAO
+{
+	private static final String POST_AUTHENTICATION_STATE = "PostAuthentication";
+	private static final long EXPIRY_TICK_IN_MILLISECONDS = 1000;
+	private static final int EXPIRY_WHEEL_SIZE = 4096;
+
+	//Only one cache will have SessionDetails the rest just have a reference to SessionId
+	private ConcurrentHashMap<String, SessionDetails> sessionIdMap = null;
+	private ConcurrentHashMap<String, Set<String>> userIdSessionMap = null;
+	private TimingWheel<SessionExpiry> expiryWheel = null;
+
+	public ConcurrentInMemoryDAOImpl(long sessionTimeout, int markSessionTimeout) throws Exception
+	{
+		this(sessionTimeout, markSessionTimeout, System::currentTimeMillis);
+		expiryWheel.start("ConcurrentInMemorySessionExpiry");
+	}
+
+	//The wheel is not started, whoever controls the clock calls advance on it.
+	ConcurrentInMemoryDAOImpl(long sessionTimeout, int markSessionTimeout, LongSupplier clock)
+	{
+		super(sessionTimeout, markSessionTimeout, clock);
+		sessionIdMap = new ConcurrentHashMap<>();
+		userIdSessionMap = new ConcurrentHashMap<>();
+		expiryWheel = new TimingWheel<>(EXPIRY_TICK_IN_MILLISECONDS, EXPIRY_WHEEL_SIZE, clock, this::expired);
+	}
+
+	@Override
+	public void storeSessionDetails(SessionDetails sessionDetails) throws DAOException
+	{
+		userIdSessionMap.compute(sessionDetails.getUserId(), (userId, sessionIds) -> {
+			if (sessionIds == null)
+			{
+				sessionIds = ConcurrentHashMap.newKeySet();
+			}
+			sessionIdMap.put(sessionDetails.getSessionId(), sessionDetails);
+			sessionIds.add(sessionDetails.getSessionId());
+			return sessionIds;
+		});
+		scheduleExpiry(sessionDetails);
+	}
+
+	@Override
+	public int storeSessionDetailsIfBelowLimit(SessionDetails sessionDetails, int maxSessionCount) throws DAOException
+	{
+		int[] existingSessionCount = new int[1];
+		userIdSessionMap.compute(sessionDetails.getUserId(), (userId, sessionIds) -> {
+			if (sessionIds == null)
+			{
+				sessionIds = ConcurrentHashMap.newKeySet();
+			}
+			removeExpired(sessionIds);
+			for (String sessionId : sessionIds)
+			{
+				SessionDetails existing = sessionIdMap.get(sessionId);
+				if (existing != null && POST_AUTHENTICATION_STATE.equals(existing.getAuthenticationState()))
+				{
+					existingSessionCount[0]++;
+				}
+			}
+
+			if (existingSessionCount[0] < maxSessionCount)
+			{
+				sessionIdMap.put(sessionDetails.getSessionId(), sessionDetails);
+				sessionIds.add(sessionDetails.getSessionId());
+			}
+			return sessionIds.isEmpty() ? null : sessionIds;
+		});
+		if (existingSessionCount[0] < maxSessionCount)
+		{
+			scheduleExpiry(sessionDetails);
+		}
+		return existingSessionCount[0];
+	}
+
+	@Override
+	public void removeSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		userIdSessionMap.computeIfPresent(userId, (key, sessionIds) -> {
+			sessionIds.remove(sessionId);
+			sessionIdMap.remove(sessionId);
+			return sessionIds.isEmpty() ? null : sessionIds;
+		});
+	}
+
+	@Override
+	public void markForRemoveSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		long markedAt = currentTimeMillis();
+		expiryWheel.schedule(SessionExpiry.markedForRemoval(userId, sessionId, markedAt), markedAt + getMarkSessionTimeout() * 1000L);
+	}
+
+	@Override
+	public void updateLastAccessed(String userId, String sessionId) throws DAOException
+	{
+		sessionIdMap.computeIfPresent(sessionId, (key, sessionDetails) -> {
+			if (sessionDetails.getUserId().equals(userId) && isSessionValid(sessionDetails.getLastAccessedTS()))
+			{
+				sessionDetails = new SessionDetails(userId, sessionId,
+													sessionDetails.getAuthenticationState(),
+													sessionDetails.getInactivityExpiryTimeInSeconds(),
+													sessionDetails.getCreatedTS(), currentTimeMillis());
+			}
+			return sessionDetails;
+		});
+	}
+
+	@Override
+	public void updateAuthenticationState(String userId, String sessionId, String authenticationState) throws DAOException
+	{
+		sessionIdMap.computeIfPresent(sessionId, (key, sessionDetails) -> {
+			if (sessionDetails.getUserId().equals(userId) && isSessionValid(sessionDetails.getLastAccessedTS()))
+			{
+				sessionDetails = new SessionDetails(userId, sessionId,
+													authenticationState,
+													sessionDetails.getInactivityExpiryTimeInSeconds(),
+													sessionDetails.getCreatedTS(), sessionDetails.getLastAccessedTS());
+			}
+			return sessionDetails;
+		});
+	}
+
+	@Override
+	protected List<String> getAllUserSessionIds(String userId) throws DAOException
+	{
+		List<String> sessionIds = null;
+		Set<String> userSessionIds = userIdSessionMap.get(userId);
+		if (userSessionIds != null)
+		{
+			sessionIds = new ArrayList<>(userSessionIds);
+		}
+		return sessionIds;
+	}
+
+	@Override
+	public SessionDetails getSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		return sessionIdMap.get(sessionId);
+	}
+
+	@Override
+	public List<SessionDetails> getAllSessionDetails(String userId) throws DAOException
+	{
+		List<SessionDetails> userSessionDetails = new ArrayList<>();
+
+		List<String> userSessionIds = getAllUserSessionIds(userId);
+		if (userSessionIds != null)
+		{
+			for (String sessionId : userSessionIds)
+			{
+				SessionDetails sessionDetails = sessionIdMap.get(sessionId);
+				if (sessionDetails != null)
+				{
+					userSessionDetails.add(sessionDetails);
+				}
+			}
+		}
+
+		return userSessionDetails;
+	}
+
+	@Override
+	protected void removeAllExpiredSessionDetails(String userId) throws DAOException
+	{
+		userIdSessionMap.computeIfPresent(userId, (key, sessionIds) -> {
+			removeExpired(sessionIds);
+			return sessionIds.isEmpty() ? null : sessionIds;
+		});
+	}
+
+	//Has to be called within a compute on userIdSessionMap for the owner of sessionIds.
+	private void removeExpired(Set<String> sessionIds)
+	{
+		Iterator<String> iterator = sessionIds.iterator();
+		while (iterator.hasNext())
+		{
+			String sessionId = iterator.next();
+			SessionDetails sessionDetails = sessionIdMap.get(sessionId);
+			if (sessionDetails == null || !isSessionValid(sessionDetails.getLastAccessedTS()))
+			{
+				sessionIdMap.remove(sessionId);
+				iterator.remove();
+			}
+		}
+	}
+
+	int getScheduledExpiryCount()
+	{
+		return expiryWheel.size();
+	}
+
+	TimingWheel<SessionExpiry> getExpiryWheel()
+	{
+		return expiryWheel;
+	}
+
+	private void scheduleExpiry(SessionDetails sessionDetails)
+	{
+		expiryWheel.schedule(SessionExpiry.inactivity(sessionDetails.getUserId(), sessionDetails.getSessionId()),
+								getExpiresAt(sessionDetails));
+	}
+
+	/**
+	 * Called by the wheel once the deadline of a SessionExpiry is reached. The deadline
+	 * of an inactivity expiry is where the session would have expired when it was
+	 * scheduled, if it has been touched since it is rescheduled to its current expiry.
+	 */
+	private long expired(SessionExpiry expiry, long now)
+	{
+		long[] nextDeadline = new long[1];
+		userIdSessionMap.computeIfPresent(expiry.getUserId(), (userId, sessionIds) -> {
+			SessionDetails sessionDetails = sessionIdMap.get(expiry.getSessionId());
+			if (sessionDetails != null && sessionDetails.getUserId().equals(userId))
+			{
+				if (expiry.isMarkedForRemoval())
+				{
+					//Touched after being marked, same as a Redis PERSIST the removal is off.
+					if (sessionDetails.getLastAccessedTS() <= expiry.getMarkedAt())
+					{
+						sessionIds.remove(expiry.getSessionId());
+						sessionIdMap.remove(expiry.getSessionId());
+					}
+				}
+				else if (isSessionValid(sessionDetails.getLastAccessedTS()))
+				{
+					nextDeadline[0] = getExpiresAt(sessionDetails);
+				}
+				else
+				{
+					sessionIds.remove(expiry.getSessionId());
+					sessionIdMap.remove(expiry.getSessionId());
+				}
+			}
+			return sessionIds.isEmpty() ? null : sessionIds;
+		});
+		return nextDeadline[0];
+	}
+
+	private long getExpiresAt(SessionDetails sessionDetails)
+	{
+		return sessionDetails.getLastAccessedTS() + getSessionTimeout() * 1000L;
+	}
+}
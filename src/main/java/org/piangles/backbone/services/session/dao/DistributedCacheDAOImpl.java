@@ -20,28 +20,55 @@
 package org.piangles.backbone.services.session.dao;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.piangles.backbone.services.session.SessionDetails;
 import org.piangles.backbone.services.session.SessionManagementService;
 import org.piangles.core.dao.DAOException;
-import org.piangles.core.resources.RedisCache;
 import org.piangles.core.resources.ResourceException;
 import org.piangles.core.resources.ResourceManager;
 import org.piangles.core.util.central.CentralConfigProvider;
 
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.params.ZAddParams;
+
 public final class DistributedCacheDAOImpl extends AbstractSessionManagementDAO
 {
-	private static final String REDIS_USER2SESSION_ID = "user:%s:session:id";
-	private static final String REDIS_USER2SESSION_DETAILS = "user:%s:session:details:%s";
-	
 	private static final String USER_ID = "UserId";
 	private static final String SESSION_ID = "SessionId";
 	private static final String AUTHENTICATION_STATE = "authenticationState";
 	private static final String CREATED_TS = "CreatedTS";
 	private static final String LAST_ACCESSED_TS = "LastAccessedTS";
+	private static final String GENERATION = "Generation";
+
+	//Same fields as above pre-encoded for the binary API used on the hot paths, see RedisKeyEncoder.
+	private static final byte[] USER_ID_FIELD = RedisKeyEncoder.encode(USER_ID);
+	private static final byte[] SESSION_ID_FIELD = RedisKeyEncoder.encode(SESSION_ID);
+	private static final byte[] AUTHENTICATION_STATE_FIELD = RedisKeyEncoder.encode(AUTHENTICATION_STATE);
+	private static final byte[] CREATED_TS_FIELD = RedisKeyEncoder.encode(CREATED_TS);
+	private static final byte[] LAST_ACCESSED_TS_FIELD = RedisKeyEncoder.encode(LAST_ACCESSED_TS);
+	private static final byte[] GENERATION_FIELD = RedisKeyEncoder.encode(GENERATION);
+
+	//Read by RedisCache from the SessionService configuration, the other nodes of a Redis Cluster are connected to with the same.
+	static final String REDIS_PASSWORD = "RedisPassword";
+	static final String REDIS_CONNECTION_TIMEOUT = "RedisConnectionTimeout";
+	static final String REDIS_SO_TIMEOUT = "RedisSoTimeout";
 	
 	/**
 	 * The reason we are using Redis Lists and Map for saving Session related information
@@ -53,23 +80,228 @@ public final class DistributedCacheDAOImpl extends AbstractSessionManagementDAO
 	 * Saving it as JSON gives the additional challenege of having to deseralize the entire JSON Object 
 	 * and specifically update LastAccessedTS and put it back into Cache.
 	 * 
+	 * The User->SessionId index can also be a Sorted Set scored by LastAccessedTS, see User2SessionIndexType.
+	 * Which keys are used is up to the RedisKeyLayout.
+	 * 
+	 * Each user also has a session generation, a counter which is 0 until the key exists. A session
+	 * stores the generation it was created in and is only valid while that is still the current one,
+	 * so removeAllSessionDetails is a single INCR. What it leaves behind is removed like an expired
+	 * session, the next time the user has those removed or stores a session below the limit.
+	 * 
+	 * A session can also be stored as a SessionRecord instead of a Hash, see RedisSessionEncoding.
+	 * 
+	 * With sliding expiry sessions and their index also expire in Redis SessionTimeout after
+	 * they were last accessed, see enableSlidingExpiry.
 	 */
-	private RedisCache redisCache = null;
+	private RedisExecutor redisCache = null;
+	private User2SessionIndexType indexType = null;
+	private RedisSessionEncoding encoding = null;
+	private RedisKeyLayout keyLayout = null;
+	private RedisKeyLayoutMigration keyLayoutMigration = null;
+	private RedisScript storeIfBelowLimitScript = null;
+	private RedisScript touchIfNewerScript = null;
+	private RedisScript markForRemovalScript = null;
+	private RedisScript getAllSessionDetailsScript = null;
+	private RedisSessionReaper reaper = null;
+	private LastAccessedWriteBehind lastAccessedWriteBehind = null;
+	private boolean slidingExpiry;
 	
 	public DistributedCacheDAOImpl(long sessionTimeout, int markSessionTimeout) throws Exception
+	{
+		this(sessionTimeout, markSessionTimeout, null, User2SessionIndexType.List);
+	}
+
+	/**
+	 * validityCache is optional, when present isValid is served from it and all
+	 * nodes invalidate it through Redis Pub/Sub.
+	 */
+	public DistributedCacheDAOImpl(long sessionTimeout, int markSessionTimeout, SessionValidityCache validityCache, User2SessionIndexType indexType) throws Exception
+	{
+		this(sessionTimeout, markSessionTimeout, validityCache, indexType, RedisKeyLayout.Standard, false);
+	}
+
+	/**
+	 * On a Redis Cluster, cluster has to be true and keyLayout HashTagged. Keys written
+	 * in the Standard layout are moved to HashTagged in the background.
+	 */
+	public DistributedCacheDAOImpl(long sessionTimeout, int markSessionTimeout, SessionValidityCache validityCache, User2SessionIndexType indexType, RedisKeyLayout keyLayout, boolean cluster) throws Exception
+	{
+		this(sessionTimeout, markSessionTimeout, validityCache, indexType, keyLayout, cluster, RedisSessionEncoding.Hash);
+	}
+
+	public DistributedCacheDAOImpl(long sessionTimeout, int markSessionTimeout, SessionValidityCache validityCache, User2SessionIndexType indexType, RedisKeyLayout keyLayout, boolean cluster, RedisSessionEncoding encoding) throws Exception
+	{
+		this(createRedisExecutor(cluster), sessionTimeout, markSessionTimeout, validityCache, indexType, keyLayout, 
+				keyLayout == RedisKeyLayout.HashTagged ? RedisKeyLayout.Standard : null, encoding);
+	}
+
+	//Runs against the given Redis instead of the one configured in CentralConfig.
+	DistributedCacheDAOImpl(RedisExecutor redisCache, long sessionTimeout, int markSessionTimeout, SessionValidityCache validityCache, User2SessionIndexType indexType) throws Exception
+	{
+		this(redisCache, sessionTimeout, markSessionTimeout, validityCache, indexType, RedisKeyLayout.Standard, null, RedisSessionEncoding.Hash);
+	}
+
+	//Keys found in previousKeyLayout are moved to keyLayout, previousKeyLayout is null if there can be none.
+	DistributedCacheDAOImpl(RedisExecutor redisCache, long sessionTimeout, int markSessionTimeout, SessionValidityCache validityCache, User2SessionIndexType indexType, RedisKeyLayout keyLayout, RedisKeyLayout previousKeyLayout, RedisSessionEncoding encoding) throws Exception
 	{
 		super(sessionTimeout, markSessionTimeout);
-		redisCache = ResourceManager.getInstance().getRedisCache(new CentralConfigProvider(SessionManagementService.NAME, SessionManagementService.NAME));
+		this.indexType = indexType;
+		this.redisCache = redisCache;
+		this.keyLayout = keyLayout;
+		this.encoding = encoding;
+
+		if (indexType == User2SessionIndexType.SortedSet)
+		{
+			storeIfBelowLimitScript = new RedisScript(DistributedCacheScripts.forEncoding(encoding, DistributedCacheScripts.SORTED_SET_STORE_IF_BELOW_LIMIT));
+			getAllSessionDetailsScript = new RedisScript(DistributedCacheScripts.forEncoding(encoding, DistributedCacheScripts.SORTED_SET_GET_ALL_SESSION_DETAILS));
+		}
+		else
+		{
+			storeIfBelowLimitScript = new RedisScript(DistributedCacheScripts.forEncoding(encoding, DistributedCacheScripts.LIST_STORE_IF_BELOW_LIMIT));
+			getAllSessionDetailsScript = new RedisScript(DistributedCacheScripts.forEncoding(encoding, DistributedCacheScripts.LIST_GET_ALL_SESSION_DETAILS));
+		}
+		touchIfNewerScript = new RedisScript(DistributedCacheScripts.forEncoding(encoding, DistributedCacheScripts.TOUCH_IF_NEWER));
+		markForRemovalScript = new RedisScript(DistributedCacheScripts.MARK_FOR_REMOVAL);
+		redisCache.execute((jedis) -> {
+			storeIfBelowLimitScript.load(jedis);
+			touchIfNewerScript.load(jedis);
+			markForRemovalScript.load(jedis);
+			getAllSessionDetailsScript.load(jedis);
+			return null;
+		});
+
+		RedisSessionInvalidationChannel invalidationChannel = new RedisSessionInvalidationChannel(redisCache);
+		setInvalidationChannel(invalidationChannel);
+		if (validityCache != null)
+		{
+			enableValidityCache(validityCache, invalidationChannel);
+		}
+
+		//One after the other, a user moved to the HashTagged layout may still have a List to be moved to a Sorted Set.
+		List<Runnable> migrations = new ArrayList<>();
+		if (previousKeyLayout != null)
+		{
+			keyLayoutMigration = new RedisKeyLayoutMigration(redisCache, previousKeyLayout, keyLayout, encoding);
+			migrations.add(keyLayoutMigration);
+		}
+		if (indexType == User2SessionIndexType.SortedSet)
+		{
+			migrations.add(new User2SessionIndexMigration(redisCache, keyLayout, encoding));
+		}
+		if (!migrations.isEmpty())
+		{
+			Thread migrationThread = new Thread(() -> migrations.forEach(Runnable::run), "DistributedCacheMigration");
+			migrationThread.setDaemon(true);
+			migrationThread.start();
+		}
+	}
+
+	private static RedisExecutor createRedisExecutor(boolean cluster) throws Exception
+	{
+		CentralConfigProvider configProvider = new CentralConfigProvider(SessionManagementService.NAME, SessionManagementService.NAME);
+		RedisExecutor redisExecutor = RedisExecutor.forRedisCache(ResourceManager.getInstance().getRedisCache(configProvider));
+		if (cluster)
+		{
+			redisExecutor = new RedisClusterExecutor(redisExecutor, createNodePoolFactory(configProvider.getProperties()));
+		}
+		return redisExecutor;
+	}
+
+	/**
+	 * Pools of the nodes other than the seed, with the password and timeouts RedisCache
+	 * connects to the seed with. Without a timeout configured it is the Jedis default.
+	 */
+	static Function<HostAndPort, JedisPool> createNodePoolFactory(Properties redisProperties)
+	{
+		String configuredPassword = redisProperties.getProperty(REDIS_PASSWORD);
+		String password = (configuredPassword == null || configuredPassword.trim().isEmpty()) ? null : configuredPassword;
+		int connectionTimeout = Integer.parseInt(redisProperties.getProperty(REDIS_CONNECTION_TIMEOUT, String.valueOf(Protocol.DEFAULT_TIMEOUT)));
+		int soTimeout = Integer.parseInt(redisProperties.getProperty(REDIS_SO_TIMEOUT, String.valueOf(connectionTimeout)));
+		JedisPoolConfig poolConfig = new JedisPoolConfig();
+
+		return (node) -> new JedisPool(poolConfig, node.getHost(), node.getPort(), connectionTimeout, soTimeout, password, Protocol.DEFAULT_DATABASE, null);
 	}
 	
+	/**
+	 * Expired sessions are reaped in the background from here on, see RedisSessionReaper.
+	 * Every node can enable it, only one sweeps at a time.
+	 */
+	public void enableReaper(long sweepIntervalInSeconds, int maxUsersPerSecond)
+	{
+		reaper = new RedisSessionReaper(redisCache, keyLayout, encoding, indexType, getSessionTimeout(), sweepIntervalInSeconds, maxUsersPerSecond, this::isMigrating);
+	}
+
+	public RedisSessionReaper getReaper()
+	{
+		return reaper;
+	}
+
+	/**
+	 * From here on updateLastAccessed only records the touch, touches are coalesced and
+	 * written in batches every flushInterval or every flushSize sessions. See LastAccessedWriteBehind.
+	 */
+	public void enableLastAccessedWriteBehind(long flushIntervalInMilliSeconds, int flushSize, int maxPending)
+	{
+		lastAccessedWriteBehind = new LastAccessedWriteBehind(flushIntervalInMilliSeconds, flushSize, maxPending, this::flushLastAccessed);
+	}
+
+	LastAccessedWriteBehind getLastAccessedWriteBehind()
+	{
+		return lastAccessedWriteBehind;
+	}
+
+	/**
+	 * From here on a store or touch of a session has Redis expire it and the index of its
+	 * user SessionTimeout later, instead of removing any expiry, and isValid only asks Redis
+	 * how long the session is left to live. Redis reclaims the memory of sessions nobody
+	 * removed by itself. The expiry of touches left to the write behind starts over when they
+	 * are written, keys are given that much longer to live. Sessions stored before do not
+	 * expire until touched.
+	 */
+	public void enableSlidingExpiry()
+	{
+		slidingExpiry = true;
+	}
+
+	boolean isSlidingExpiry()
+	{
+		return slidingExpiry;
+	}
+
 	@Override
 	public void storeSessionDetails(SessionDetails sessionDetails) throws DAOException
 	{
+		checkAuthenticationState(sessionDetails.getAuthenticationState());
 		try
 		{
-			redisCache.execute((jedis) -> {
-				jedis.lpush(createUser2SessionIdKey(sessionDetails.getUserId()), sessionDetails.getSessionId());
-				jedis.hmset(createUser2SessionDetailsKey(sessionDetails.getUserId(), sessionDetails.getSessionId()), createMap(sessionDetails));
+			migrateUser(sessionDetails.getUserId());
+			byte[] indexKey = createIndexKeyBytes(sessionDetails.getUserId());
+			redisCache.execute(indexKey, (jedis) -> {
+				//Removing all sessions of the user in between leaves this one behind too, as if it was stored before.
+				Pipeline pipeline = MeteredPipeline.pipelined(jedis);
+				Response<byte[]> generationValue = pipeline.get(createUser2SessionGenerationKeyBytes(sessionDetails.getUserId()));
+				pipeline.sync();
+				long generation = parseGeneration(generationValue.get());
+				if (indexType == User2SessionIndexType.SortedSet)
+				{
+					pipeline.zadd(indexKey, sessionDetails.getLastAccessedTS(), RedisKeyEncoder.encode(sessionDetails.getSessionId()));
+				}
+				else
+				{
+					pipeline.lpush(indexKey, RedisKeyEncoder.encode(sessionDetails.getSessionId()));
+				}
+				byte[] key = createUser2SessionDetailsKeyBytes(sessionDetails.getUserId(), sessionDetails.getSessionId());
+				writeSession(pipeline, key, sessionDetails, generation);
+				if (slidingExpiry)
+				{
+					pipeline.pexpire(key, getSessionExpiry());
+					pipeline.pexpire(indexKey, getSessionExpiry());
+				}
+				if (generation != 0)
+				{
+					pipeline.pexpire(createUser2SessionGenerationKeyBytes(sessionDetails.getUserId()), getGenerationExpiry());
+				}
+				pipeline.sync();
 				return null;
 			});
 		}
@@ -79,14 +311,50 @@ public final class DistributedCacheDAOImpl extends AbstractSessionManagementDAO
 		}
 	}
 
+	@Override
+	public int storeSessionDetailsIfBelowLimit(SessionDetails sessionDetails, int maxSessionCount) throws DAOException
+	{
+		checkAuthenticationState(sessionDetails.getAuthenticationState());
+		Long existingSessionCount;
+		try
+		{
+			String userId = sessionDetails.getUserId();
+			//The script counts what is in the current layout only.
+			migrateUser(userId);
+			existingSessionCount = redisCache.execute(createIndexKeyBytes(userId), (jedis) -> 
+				(Long)storeIfBelowLimitScript.execute(jedis, createIndexScriptKeys(userId), createStoreIfBelowLimitArgs(sessionDetails, maxSessionCount)));
+		}
+		catch (ResourceException e)
+		{
+			throw new DAOException(e);
+		}
+		return existingSessionCount.intValue();
+	}
+
 	@Override
 	public void removeSessionDetails(String userId, String sessionId) throws DAOException
 	{
+		if (lastAccessedWriteBehind != null)
+		{
+			lastAccessedWriteBehind.cancel(userId, sessionId);
+		}
 		try
 		{
-			redisCache.execute((jedis) -> {
-				jedis.lrem(createUser2SessionIdKey(userId), 1, sessionId);
-				jedis.del(createUser2SessionDetailsKey(userId, sessionId));
+			//Otherwise the migration would bring the session back.
+			migrateUser(userId);
+			byte[] indexKey = createIndexKeyBytes(userId);
+			redisCache.execute(indexKey, (jedis) -> {
+				Pipeline pipeline = MeteredPipeline.pipelined(jedis);
+				if (indexType == User2SessionIndexType.SortedSet)
+				{
+					pipeline.zrem(indexKey, RedisKeyEncoder.encode(sessionId));
+				}
+				else
+				{
+					pipeline.lrem(indexKey, 1, RedisKeyEncoder.encode(sessionId));
+				}
+				pipeline.del(createUser2SessionDetailsKeyBytes(userId, sessionId));
+				pipeline.sync();
 				return null;
 			});
 		}
@@ -94,15 +362,22 @@ public final class DistributedCacheDAOImpl extends AbstractSessionManagementDAO
 		{
 			throw new DAOException(e);
 		}
+		invalidate(userId, sessionId);
 	}
 
 	@Override
-	public void markForRemoveSessionDetails(String userId, String sessionId) throws DAOException
+	public void removeAllSessionDetails(String userId) throws DAOException
 	{
 		try
 		{
-			redisCache.execute((jedis) -> {
-				jedis.expire(createUser2SessionDetailsKey(userId, sessionId), getMarkSessionTimeout());
+			//Otherwise the sessions still in the previous layout would be moved along with the generation they are in.
+			migrateUser(userId);
+			byte[] generationKey = createUser2SessionGenerationKeyBytes(userId);
+			redisCache.execute(generationKey, (jedis) -> {
+				Pipeline pipeline = MeteredPipeline.pipelined(jedis);
+				pipeline.incr(generationKey);
+				pipeline.pexpire(generationKey, getGenerationExpiry());
+				pipeline.sync();
 				return null;
 			});
 		}
@@ -110,17 +385,55 @@ public final class DistributedCacheDAOImpl extends AbstractSessionManagementDAO
 		{
 			throw new DAOException(e);
 		}
+		invalidateAll(userId);
+	}
+
+	@Override
+	public void markForRemoveSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		if (lastAccessedWriteBehind != null)
+		{
+			lastAccessedWriteBehind.cancel(userId, sessionId);
+		}
+		try
+		{
+			migrateUser(userId);
+			redisCache.execute(createUser2SessionDetailsKeyBytes(userId, sessionId), (jedis) -> 
+				markForRemovalScript.execute(jedis, createMarkForRemovalKeys(userId, sessionId), createMarkForRemovalArgs()));
+		}
+		catch (ResourceException e)
+		{
+			throw new DAOException(e);
+		}
+		invalidate(userId, sessionId);
 	}
 	
 	@Override
 	public void updateLastAccessed(String userId, String sessionId) throws DAOException
+	{
+		if (lastAccessedWriteBehind == null || !lastAccessedWriteBehind.touch(userId, sessionId, System.currentTimeMillis()))
+		{
+			updateLastAccessedNow(userId, sessionId);
+		}
+	}
+
+	private void updateLastAccessedNow(String userId, String sessionId) throws DAOException
 	{
 		try
 		{
-			redisCache.execute((jedis) -> {
-				String key = createUser2SessionDetailsKey(userId, sessionId);
-				jedis.hset(key, LAST_ACCESSED_TS, "" + System.currentTimeMillis());
-				jedis.persist(key);//Remove Expiry in case it was set.
+			//A session not yet moved to the current layout only gets LastAccessedTS there, the move keeps it. See createSessionDetails.
+			byte[] key = createUser2SessionDetailsKeyBytes(userId, sessionId);
+			redisCache.execute(key, (jedis) -> {
+				long lastAccessedTS = System.currentTimeMillis();
+				Pipeline pipeline = MeteredPipeline.pipelined(jedis);
+				writeLastAccessedTS(pipeline, key, lastAccessedTS);
+				restartExpiry(pipeline, userId, key);
+				if (indexType == User2SessionIndexType.SortedSet)
+				{
+					//XX so a session removed in the meantime does not get back into the index.
+					pipeline.zadd(createUser2SessionIndexKeyBytes(userId), lastAccessedTS, RedisKeyEncoder.encode(sessionId), ZAddParams.zAddParams().xx());
+				}
+				pipeline.sync();
 				return null;
 			});
 		}
@@ -130,15 +443,92 @@ public final class DistributedCacheDAOImpl extends AbstractSessionManagementDAO
 		}
 	}
 
+	private void flushLastAccessed(List<LastAccessedWriteBehind.PendingTouch> touches) throws DAOException
+	{
+		//The keys of a script have to be in one slot, there is a script per slot and the scripts of a node are pipelined.
+		Map<Integer, Map<Integer, List<LastAccessedWriteBehind.PendingTouch>>> touchesByNodeAndSlot = new HashMap<>();
+		for (LastAccessedWriteBehind.PendingTouch touch : touches)
+		{
+			byte[] indexKey = createUser2SessionIndexKeyBytes(touch.getUserId());
+			touchesByNodeAndSlot.computeIfAbsent(redisCache.getNodeIndex(indexKey), (nodeIndex) -> new HashMap<>())
+								.computeIfAbsent(redisCache.getSlot(indexKey), (slot) -> new ArrayList<>()).add(touch);
+		}
+
+		try
+		{
+			for (Map<Integer, List<LastAccessedWriteBehind.PendingTouch>> touchesBySlot : touchesByNodeAndSlot.values())
+			{
+				String userId = touchesBySlot.values().iterator().next().get(0).getUserId();
+				redisCache.execute(createUser2SessionIndexKeyBytes(userId), (jedis) -> {
+					flushLastAccessed(jedis, touchesBySlot.values());
+					return null;
+				});
+			}
+		}
+		catch (ResourceException e)
+		{
+			throw new DAOException(e);
+		}
+	}
+
+	private void flushLastAccessed(Jedis jedis, Collection<List<LastAccessedWriteBehind.PendingTouch>> touchesBySlot)
+	{
+		List<List<String>> keysBySlot = new ArrayList<>(touchesBySlot.size());
+		List<List<String>> argsBySlot = new ArrayList<>(touchesBySlot.size());
+		List<Response<Object>> responses = new ArrayList<>(touchesBySlot.size());
+		Pipeline pipeline = MeteredPipeline.pipelined(jedis);
+		for (List<LastAccessedWriteBehind.PendingTouch> slotTouches : touchesBySlot)
+		{
+			List<String> keys = new ArrayList<>(slotTouches.size() * 3);
+			List<String> args = new ArrayList<>(slotTouches.size() * 2 + 3);
+			args.add(indexType == User2SessionIndexType.SortedSet ? "1" : "0");
+			args.add("" + getSessionExpiry());
+			args.add("" + getGenerationExpiry());
+			for (LastAccessedWriteBehind.PendingTouch touch : slotTouches)
+			{
+				keys.add(createUser2SessionDetailsKey(touch.getUserId(), touch.getSessionId()));
+				keys.add(createIndexKey(touch.getUserId()));
+				keys.add(createUser2SessionGenerationKey(touch.getUserId()));
+				args.add(touch.getSessionId());
+				args.add("" + touch.getLastAccessedTS());
+			}
+			keysBySlot.add(keys);
+			argsBySlot.add(args);
+			responses.add(touchIfNewerScript.execute(pipeline, keys, args));
+		}
+		pipeline.sync();
+
+		for (int i = 0; i < responses.size(); ++i)
+		{
+			try
+			{
+				responses.get(i).get();
+			}
+			catch (JedisNoScriptException e)
+			{
+				//The node never had the script or lost it, it is loaded and this slot redone. Touching twice is harmless.
+				touchIfNewerScript.execute(jedis, keysBySlot.get(i), argsBySlot.get(i));
+			}
+		}
+	}
+
 	@Override
 	public void updateAuthenticationState(String userId, String sessionId, String authenticationState) throws DAOException
 	{
+		checkAuthenticationState(authenticationState);
 		try
 		{
-			redisCache.execute((jedis) -> {
-				String key = createUser2SessionDetailsKey(userId, sessionId);
-				jedis.hset(key, AUTHENTICATION_STATE, authenticationState);
-				jedis.persist(key);//Remove Expiry in case it was set.
+			migrateUser(userId);
+			byte[] key = createUser2SessionDetailsKeyBytes(userId, sessionId);
+			redisCache.execute(key, (jedis) -> {
+				Pipeline pipeline = MeteredPipeline.pipelined(jedis);
+				writeAuthenticationState(pipeline, key, authenticationState);
+				//Remove Expiry in case it was set, with sliding expiry it is up to the last access.
+				if (!slidingExpiry)
+				{
+					pipeline.persist(key);
+				}
+				pipeline.sync();
 				return null;
 			});
 		}
@@ -146,6 +536,7 @@ public final class DistributedCacheDAOImpl extends AbstractSessionManagementDAO
 		{
 			throw new DAOException(e);
 		}
+		invalidate(userId, sessionId);
 	}
 
 	@Override
@@ -154,9 +545,11 @@ public final class DistributedCacheDAOImpl extends AbstractSessionManagementDAO
 		List<String> sessionIds;
 		try
 		{
-			sessionIds = redisCache.execute((jedis) -> {
-				 return jedis.lrange(createUser2SessionIdKey(userId), 0, 100);
-			});
+			sessionIds = readUserSessionIds(userId);
+			if (sessionIds.isEmpty() && migrateUser(userId))
+			{
+				sessionIds = readUserSessionIds(userId);
+			}
 		}
 		catch (ResourceException e)
 		{
@@ -166,17 +559,41 @@ public final class DistributedCacheDAOImpl extends AbstractSessionManagementDAO
 		return sessionIds;
 	}
 
+	private List<String> readUserSessionIds(String userId) throws ResourceException
+	{
+		byte[] sortedSetKey = createUser2SessionIndexKeyBytes(userId);
+		byte[] listKey = createUser2SessionIdKeyBytes(userId);
+		return redisCache.execute(sortedSetKey, (jedis) -> {
+			Pipeline pipeline = MeteredPipeline.pipelined(jedis);
+			Collection<byte[]> ids = null;
+			if (indexType == User2SessionIndexType.SortedSet)
+			{
+				Response<Set<byte[]>> sortedSetIds = pipeline.zrange(sortedSetKey, 0, -1);
+				pipeline.sync();
+				ids = sortedSetIds.get();
+			}
+			//A user not yet migrated to the SortedSet still has the List.
+			if (ids == null || ids.isEmpty())
+			{
+				Response<List<byte[]>> listIds = pipeline.lrange(listKey, 0, -1);
+				pipeline.sync();
+				ids = listIds.get();
+			}
+			return decode(ids);
+		});
+	}
+
 	@Override
 	public SessionDetails getSessionDetails(String userId, String sessionId) throws DAOException
 	{
 		SessionDetails sessionDetails;
 		try
 		{
-			sessionDetails = redisCache.execute((jedis) -> {
-				Map<String, String> map = jedis.hgetAll(createUser2SessionDetailsKey(userId, sessionId));
-				SessionDetails sd = createSessionDetails(map);
-				return sd;
-			});
+			sessionDetails = readSessionDetails(userId, sessionId);
+			if (sessionDetails == null && migrateUser(userId))
+			{
+				sessionDetails = readSessionDetails(userId, sessionId);
+			}
 		}
 		catch (ResourceException e)
 		{
@@ -186,21 +603,127 @@ public final class DistributedCacheDAOImpl extends AbstractSessionManagementDAO
 	}
 	
 
+	/**
+	 * With sliding expiry a session is valid for as long as Redis leaves its key to live,
+	 * less what touches in the write behind are given. PTTL and the generation of the
+	 * session are read in one exchange, not the session. Sessions which do not expire,
+	 * are about to or whose user is being moved to another key layout are read in full.
+	 */
 	@Override
-	public List<SessionDetails> getAllSessionDetails(String userId) throws DAOException
+	protected long getValidUntil(String userId, String sessionId) throws DAOException
 	{
-		List<SessionDetails> userSessionDetails = new ArrayList<>();
-		
-		List<String> userSessionIds = getAllUserSessionIds(userId);
-		
-		if(!userSessionIds.isEmpty() && userSessionIds != null)
+		long validUntil = -1L;
+		if (slidingExpiry && !isMigrating())
 		{
-			for(String sessionId : userSessionIds)
+			try
 			{
-				SessionDetails sessionDetails = getSessionDetails(userId, sessionId);
-				
-				userSessionDetails.add(sessionDetails);
+				byte[] key = createUser2SessionDetailsKeyBytes(userId, sessionId);
+				byte[] generationKey = createUser2SessionGenerationKeyBytes(userId);
+				validUntil = redisCache.execute(key, (jedis) -> {
+					Pipeline pipeline = MeteredPipeline.pipelined(jedis);
+					Response<Long> ttl = pipeline.pttl(key);
+					Response<?> session = readSessionGeneration(pipeline, key);
+					Response<byte[]> generation = pipeline.get(generationKey);
+					pipeline.sync();
+					return getValidUntil(ttl.get(), session.get(), parseGeneration(generation.get()));
+				});
 			}
+			catch (ResourceException e)
+			{
+				throw new DAOException(e);
+			}
+		}
+		if (validUntil < 0)
+		{
+			validUntil = super.getValidUntil(userId, sessionId);
+		}
+		return validUntil;
+	}
+
+	private SessionDetails readSessionDetails(String userId, String sessionId) throws ResourceException
+	{
+		byte[] key = createUser2SessionDetailsKeyBytes(userId, sessionId);
+		return redisCache.execute(key, (jedis) -> {
+			Pipeline pipeline = MeteredPipeline.pipelined(jedis);
+			Response<?> session = readSession(pipeline, key);
+			Response<byte[]> generation = pipeline.get(createUser2SessionGenerationKeyBytes(userId));
+			pipeline.sync();
+			return createSessionDetails(userId, sessionId, session.get(), parseGeneration(generation.get()));
+		});
+	}
+
+	@Override
+	protected SessionDetails[] getSessionDetailsBatch(String[] userIds, String[] sessionIds) throws DAOException
+	{
+		SessionDetails[] sessionDetails = new SessionDetails[sessionIds.length];
+		//A pipeline per node, on a single Redis there is just the one.
+		byte[][] keys = new byte[sessionIds.length][];
+		Map<Integer, List<Integer>> positionsByNode = new HashMap<>();
+		for (int i = 0; i < sessionIds.length; ++i)
+		{
+			keys[i] = createUser2SessionDetailsKeyBytes(userIds[i], sessionIds[i]);
+			positionsByNode.computeIfAbsent(redisCache.getNodeIndex(keys[i]), (nodeIndex) -> new ArrayList<>()).add(i);
+		}
+
+		try
+		{
+			for (List<Integer> positions : positionsByNode.values())
+			{
+				redisCache.execute(keys[positions.get(0)], (jedis) -> {
+					Pipeline pipeline = MeteredPipeline.pipelined(jedis);
+					List<Response<?>> responses = new ArrayList<>(positions.size());
+					List<Response<byte[]>> generations = new ArrayList<>(positions.size());
+					for (int position : positions)
+					{
+						responses.add(readSession(pipeline, keys[position]));
+						generations.add(pipeline.get(createUser2SessionGenerationKeyBytes(userIds[position])));
+					}
+					pipeline.sync();
+
+					for (int i = 0; i < positions.size(); ++i)
+					{
+						int position = positions.get(i);
+						sessionDetails[position] = createSessionDetails(userIds[position], sessionIds[position], responses.get(i).get(), parseGeneration(generations.get(i).get()));
+					}
+					return null;
+				});
+			}
+
+			for (int i = 0; i < sessionIds.length; ++i)
+			{
+				if (sessionDetails[i] == null && migrateUser(userIds[i]))
+				{
+					sessionDetails[i] = readSessionDetails(userIds[i], sessionIds[i]);
+				}
+			}
+		}
+		catch (ResourceException e)
+		{
+			throw new DAOException(e);
+		}
+		return sessionDetails;
+	}
+
+	/**
+	 * One script reads every session of the user and leaves out, and removes, what is
+	 * gone, expired or of an earlier generation. A single round trip however many
+	 * sessions the user has.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<SessionDetails> getAllSessionDetails(String userId) throws DAOException
+	{
+		List<SessionDetails> userSessionDetails = null;
+		try
+		{
+			//The script reads what is in the current layout only.
+			migrateUser(userId);
+			userSessionDetails = redisCache.execute(createIndexKeyBytes(userId), (jedis) -> 
+				createSessionDetails(userId, (List<Object>)getAllSessionDetailsScript.execute(jedis, createIndexScriptKeys(userId), createGetAllSessionDetailsArgs(userId))));
+		}
+		catch (ResourceException e)
+		{
+			throw new DAOException(e);
 		}
 
 		return userSessionDetails;
@@ -208,27 +731,55 @@ public final class DistributedCacheDAOImpl extends AbstractSessionManagementDAO
 	
 	@Override
 	protected void removeAllExpiredSessionDetails(String userId) throws DAOException
+	{
+		if (indexType == User2SessionIndexType.SortedSet)
+		{
+			removeAllExpiredSessionDetailsByScore(userId);
+		}
+		else
+		{
+			removeAllExpiredSessionDetailsFromList(userId);
+		}
+	}
+	
+	private void removeAllExpiredSessionDetailsFromList(String userId) throws DAOException
 	{
 		List<String> sessionIds = getAllUserSessionIds(userId);
 		if (sessionIds != null)
 		{
 			try
 			{
-				redisCache.execute((jedis) -> {
+				byte[] listKey = createUser2SessionIdKeyBytes(userId);
+				redisCache.execute(listKey, (jedis) -> {
+					//The sessions are read in one round trip and what is to go removed in another.
+					Pipeline pipeline = MeteredPipeline.pipelined(jedis);
+					Response<byte[]> generationValue = pipeline.get(createUser2SessionGenerationKeyBytes(userId));
+					List<Response<?>> sessions = new ArrayList<>(sessionIds.size());
 					for (String sessionId : sessionIds)
 					{
-						SessionDetails sessionDetails = createSessionDetails(jedis.hgetAll(createUser2SessionDetailsKey(userId, sessionId)));
+						sessions.add(readSession(pipeline, createUser2SessionDetailsKeyBytes(userId, sessionId)));
+					}
+					pipeline.sync();
+
+					long generation = parseGeneration(generationValue.get());
+					for (int i = 0; i < sessionIds.size(); ++i)
+					{
+						String sessionId = sessionIds.get(i);
+						Object session = sessions.get(i).get();
+						SessionDetails sessionDetails = createSessionDetails(userId, sessionId, session, generation);
 						
-						if (sessionDetails == null)
+						if (!isSession(session))
 						{
-							jedis.lrem(createUser2SessionIdKey(userId), 1, sessionId);
+							pipeline.lrem(listKey, 1, RedisKeyEncoder.encode(sessionId));
 						}
-						else if (sessionDetails != null && !isSessionValid(sessionDetails.getLastAccessedTS()))
+						//Of an earlier generation or expired.
+						else if (sessionDetails == null || !isSessionValid(sessionDetails.getLastAccessedTS()))
 						{
-							jedis.lrem(createUser2SessionIdKey(userId), 1, sessionId);
-							jedis.del(createUser2SessionDetailsKey(userId, sessionId));
+							pipeline.lrem(listKey, 1, RedisKeyEncoder.encode(sessionId));
+							pipeline.del(createUser2SessionDetailsKeyBytes(userId, sessionId));
 						}
 					}
+					pipeline.sync();
 					return null;
 				});
 			}
@@ -239,41 +790,635 @@ public final class DistributedCacheDAOImpl extends AbstractSessionManagementDAO
 		}
 	}
 	
-	private Map<String, String> createMap(SessionDetails sessionDetails)
-	{
-		Map<String, String> map = new HashMap<>();
-		map.put(USER_ID, sessionDetails.getUserId());
-		map.put(SESSION_ID, sessionDetails.getSessionId());
-		map.put(AUTHENTICATION_STATE, sessionDetails.getAuthenticationState());
-		map.put(CREATED_TS, "" + sessionDetails.getCreatedTS());
-		map.put(LAST_ACCESSED_TS, "" + sessionDetails.getLastAccessedTS());
+	private void removeAllExpiredSessionDetailsByScore(String userId) throws DAOException
+	{
+		try
+		{
+			byte[] indexKey = createUser2SessionIndexKeyBytes(userId);
+			redisCache.execute(indexKey, (jedis) -> {
+				double expiredBefore = System.currentTimeMillis() - (getSessionTimeout() * 1000);
+				Pipeline pipeline = MeteredPipeline.pipelined(jedis);
+				Response<Set<byte[]>> expiredSessionIdsValue = pipeline.zrangeByScore(indexKey, Double.NEGATIVE_INFINITY, expiredBefore);
+				pipeline.sync();
+				Set<byte[]> expiredSessionIds = expiredSessionIdsValue.get();
+				if (!expiredSessionIds.isEmpty())
+				{
+					for (byte[] sessionId : expiredSessionIds)
+					{
+						pipeline.del(encoding.createUser2SessionDetailsKeyBytes(keyLayout, userId, sessionId));
+					}
+					pipeline.zremrangeByScore(indexKey, Double.NEGATIVE_INFINITY, expiredBefore);
+					pipeline.sync();
+				}
+				return null;
+			});
+		}
+		catch (ResourceException e)
+		{
+			throw new DAOException(e);
+		}
+	}
+	
+	//Keys of the scripts which read or change all sessions of a user.
+	private List<String> createIndexScriptKeys(String userId)
+	{
+		List<String> keys = null;
+		if (indexType == User2SessionIndexType.SortedSet)
+		{
+			keys = Arrays.asList(createUser2SessionIndexKey(userId), createUser2SessionIdKey(userId), createUser2SessionGenerationKey(userId));
+		}
+		else
+		{
+			keys = Arrays.asList(createUser2SessionIdKey(userId), createUser2SessionGenerationKey(userId));
+		}
+		return keys;
+	}
+
+	private List<String> createGetAllSessionDetailsArgs(String userId)
+	{
+		List<String> args = null;
+		if (indexType == User2SessionIndexType.SortedSet)
+		{
+			args = Arrays.asList(createUser2SessionDetailsKey(userId, ""), "" + System.currentTimeMillis(), "" + (getSessionTimeout() * 1000));
+		}
+		else
+		{
+			args = Arrays.asList("" + System.currentTimeMillis(), "" + (getSessionTimeout() * 1000), createUser2SessionDetailsKey(userId, ""));
+		}
+		return args;
+	}
+
+	private List<String> createMarkForRemovalKeys(String userId, String sessionId)
+	{
+		return Arrays.asList(createUser2SessionDetailsKey(userId, sessionId));
+	}
+
+	private List<String> createMarkForRemovalArgs()
+	{
+		return Arrays.asList("" + (getMarkSessionTimeout() * 1000L));
+	}
+
+	private List<String> createStoreIfBelowLimitArgs(SessionDetails sessionDetails, int maxSessionCount)
+	{
+		String userId = sessionDetails.getUserId();
+		List<String> args = null;
+		if (indexType == User2SessionIndexType.SortedSet)
+		{
+			args = Arrays.asList(createUser2SessionDetailsKey(userId, ""),
+									"" + System.currentTimeMillis(), 
+									"" + (getSessionTimeout() * 1000), 
+									"" + maxSessionCount,
+									userId, 
+									sessionDetails.getSessionId(), 
+									sessionDetails.getAuthenticationState(),
+									"" + sessionDetails.getCreatedTS(), 
+									"" + sessionDetails.getLastAccessedTS(),
+									"" + getSessionExpiry(),
+									"" + getGenerationExpiry());
+		}
+		else
+		{
+			args = Arrays.asList("" + System.currentTimeMillis(), 
+									"" + (getSessionTimeout() * 1000), 
+									"" + maxSessionCount,
+									createUser2SessionDetailsKey(userId, ""),
+									userId, 
+									sessionDetails.getSessionId(), 
+									sessionDetails.getAuthenticationState(),
+									"" + sessionDetails.getCreatedTS(), 
+									"" + sessionDetails.getLastAccessedTS(),
+									"" + getSessionExpiry(),
+									"" + getGenerationExpiry());
+		}
+		return args;
+	}
+
+	/**
+	 * The calls of AsyncDistributedCacheDAOImpl, each one exchange queued on multiplexer.
+	 * They leave out the key layout migration, the caller goes to the blocking calls while
+	 * it runs, and the invalidation of the validity cache, which the caller does after.
+	 */
+	boolean isMigrating()
+	{
+		return keyLayoutMigration != null && keyLayoutMigration.isRunning();
+	}
+
+	RedisExecutor getRedisExecutor()
+	{
+		return redisCache;
+	}
+
+	CompletableFuture<SessionDetails> readSessionDetails(RedisCommandMultiplexer multiplexer, String userId, String sessionId)
+	{
+		byte[] key = createUser2SessionDetailsKeyBytes(userId, sessionId);
+		byte[] generationKey = createUser2SessionGenerationKeyBytes(userId);
+		return multiplexer.submit(key, (pipeline) -> {
+			Response<?> session = readSession(pipeline, key);
+			Response<byte[]> generation = pipeline.get(generationKey);
+			return () -> createSessionDetails(userId, sessionId, session.get(), parseGeneration(generation.get()));
+		});
+	}
+
+	CompletableFuture<Void> writeSessionDetails(RedisCommandMultiplexer multiplexer, SessionDetails sessionDetails)
+	{
+		return checkAuthenticationState(sessionDetails.getAuthenticationState(), () -> writeCheckedSessionDetails(multiplexer, sessionDetails));
+	}
+
+	private CompletableFuture<Void> writeCheckedSessionDetails(RedisCommandMultiplexer multiplexer, SessionDetails sessionDetails)
+	{
+		byte[] indexKey = createIndexKeyBytes(sessionDetails.getUserId());
+		byte[] key = createUser2SessionDetailsKeyBytes(sessionDetails.getUserId(), sessionDetails.getSessionId());
+		byte[] generationKey = createUser2SessionGenerationKeyBytes(sessionDetails.getUserId());
+		byte[] sessionId = RedisKeyEncoder.encode(sessionDetails.getSessionId());
+		//Two exchanges, the generation has to be read before it can be written. See storeSessionDetails.
+		CompletableFuture<Long> generation = multiplexer.submit(generationKey, (pipeline) -> {
+			Response<byte[]> value = pipeline.get(generationKey);
+			return () -> parseGeneration(value.get());
+		});
+		return generation.thenCompose((currentGeneration) -> multiplexer.submit(indexKey, (pipeline) -> {
+			if (indexType == User2SessionIndexType.SortedSet)
+			{
+				pipeline.zadd(indexKey, sessionDetails.getLastAccessedTS(), sessionId);
+			}
+			else
+			{
+				pipeline.lpush(indexKey, sessionId);
+			}
+			Response<String> stored = writeSession(pipeline, key, sessionDetails, currentGeneration);
+			if (slidingExpiry)
+			{
+				pipeline.pexpire(key, getSessionExpiry());
+				pipeline.pexpire(indexKey, getSessionExpiry());
+			}
+			if (currentGeneration != 0)
+			{
+				pipeline.pexpire(generationKey, getGenerationExpiry());
+			}
+			return () -> {
+				stored.get();
+				return null;
+			};
+		}));
+	}
+
+	//Fails with a JedisNoScriptException as cause if the node does not have the script, see RedisScript.
+	CompletableFuture<Integer> writeSessionDetailsIfBelowLimit(RedisCommandMultiplexer multiplexer, SessionDetails sessionDetails, int maxSessionCount)
+	{
+		return checkAuthenticationState(sessionDetails.getAuthenticationState(), () -> writeCheckedSessionDetailsIfBelowLimit(multiplexer, sessionDetails, maxSessionCount));
+	}
+
+	private CompletableFuture<Integer> writeCheckedSessionDetailsIfBelowLimit(RedisCommandMultiplexer multiplexer, SessionDetails sessionDetails, int maxSessionCount)
+	{
+		String userId = sessionDetails.getUserId();
+		List<String> keys = createIndexScriptKeys(userId);
+		List<String> args = createStoreIfBelowLimitArgs(sessionDetails, maxSessionCount);
+		return multiplexer.submit(createIndexKeyBytes(userId), (pipeline) -> {
+			Response<Object> existingSessionCount = storeIfBelowLimitScript.execute(pipeline, keys, args);
+			return () -> ((Long)existingSessionCount.get()).intValue();
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	CompletableFuture<List<SessionDetails>> readAllSessionDetails(RedisCommandMultiplexer multiplexer, String userId)
+	{
+		List<String> keys = createIndexScriptKeys(userId);
+		List<String> args = createGetAllSessionDetailsArgs(userId);
+		return multiplexer.submit(createIndexKeyBytes(userId), (pipeline) -> {
+			Response<Object> sessions = getAllSessionDetailsScript.execute(pipeline, keys, args);
+			return () -> createSessionDetails(userId, (List<Object>)sessions.get());
+		});
+	}
+
+	//Same as getValidUntil with sliding expiry, -1 if the session has to be read in full.
+	CompletableFuture<Long> readValidUntil(RedisCommandMultiplexer multiplexer, String userId, String sessionId)
+	{
+		byte[] key = createUser2SessionDetailsKeyBytes(userId, sessionId);
+		byte[] generationKey = createUser2SessionGenerationKeyBytes(userId);
+		return multiplexer.submit(key, (pipeline) -> {
+			Response<Long> ttl = pipeline.pttl(key);
+			Response<?> session = readSessionGeneration(pipeline, key);
+			Response<byte[]> generation = pipeline.get(generationKey);
+			return () -> getValidUntil(ttl.get(), session.get(), parseGeneration(generation.get()));
+		});
+	}
+
+	CompletableFuture<Void> deleteSessionDetails(RedisCommandMultiplexer multiplexer, String userId, String sessionId)
+	{
+		if (lastAccessedWriteBehind != null)
+		{
+			lastAccessedWriteBehind.cancel(userId, sessionId);
+		}
+		byte[] indexKey = createIndexKeyBytes(userId);
+		byte[] key = createUser2SessionDetailsKeyBytes(userId, sessionId);
+		return multiplexer.submit(indexKey, (pipeline) -> {
+			if (indexType == User2SessionIndexType.SortedSet)
+			{
+				pipeline.zrem(indexKey, RedisKeyEncoder.encode(sessionId));
+			}
+			else
+			{
+				pipeline.lrem(indexKey, 1, RedisKeyEncoder.encode(sessionId));
+			}
+			Response<Long> deleted = pipeline.del(key);
+			return () -> {
+				deleted.get();
+				return null;
+			};
+		});
+	}
+
+	//Fails with a JedisNoScriptException as cause if the node does not have the script, see RedisScript.
+	CompletableFuture<Void> expireSessionDetails(RedisCommandMultiplexer multiplexer, String userId, String sessionId)
+	{
+		if (lastAccessedWriteBehind != null)
+		{
+			lastAccessedWriteBehind.cancel(userId, sessionId);
+		}
+		List<String> keys = createMarkForRemovalKeys(userId, sessionId);
+		List<String> args = createMarkForRemovalArgs();
+		return multiplexer.submit(createUser2SessionDetailsKeyBytes(userId, sessionId), (pipeline) -> {
+			Response<Object> marked = markForRemovalScript.execute(pipeline, keys, args);
+			return () -> {
+				marked.get();
+				return null;
+			};
+		});
+	}
+
+	CompletableFuture<Void> writeAuthenticationState(RedisCommandMultiplexer multiplexer, String userId, String sessionId, String authenticationState)
+	{
+		return checkAuthenticationState(authenticationState, () -> writeCheckedAuthenticationState(multiplexer, userId, sessionId, authenticationState));
+	}
+
+	private CompletableFuture<Void> writeCheckedAuthenticationState(RedisCommandMultiplexer multiplexer, String userId, String sessionId, String authenticationState)
+	{
+		byte[] key = createUser2SessionDetailsKeyBytes(userId, sessionId);
+		return multiplexer.submit(key, (pipeline) -> {
+			Response<Long> written = writeAuthenticationState(pipeline, key, authenticationState);
+			//Remove Expiry in case it was set, with sliding expiry it is up to the last access.
+			if (!slidingExpiry)
+			{
+				pipeline.persist(key);
+			}
+			return () -> {
+				written.get();
+				return null;
+			};
+		});
+	}
+
+	//True if the touch was left to the write behind, see updateLastAccessed.
+	boolean touchBehind(String userId, String sessionId)
+	{
+		return lastAccessedWriteBehind != null && lastAccessedWriteBehind.touch(userId, sessionId, System.currentTimeMillis());
+	}
+
+	CompletableFuture<Void> writeLastAccessed(RedisCommandMultiplexer multiplexer, String userId, String sessionId)
+	{
+		byte[] key = createUser2SessionDetailsKeyBytes(userId, sessionId);
+		long lastAccessedTS = System.currentTimeMillis();
+		return multiplexer.submit(key, (pipeline) -> {
+			writeLastAccessedTS(pipeline, key, lastAccessedTS);
+			Response<Long> persisted = restartExpiry(pipeline, userId, key);
+			if (indexType == User2SessionIndexType.SortedSet)
+			{
+				//XX so a session removed in the meantime does not get back into the index.
+				pipeline.zadd(createUser2SessionIndexKeyBytes(userId), lastAccessedTS, RedisKeyEncoder.encode(sessionId), ZAddParams.zAddParams().xx());
+			}
+			return () -> {
+				persisted.get();
+				return null;
+			};
+		});
+	}
+
+	//A Hash or a SessionRecord, see readSession and writeSession.
+	private void checkAuthenticationState(String authenticationState) throws DAOException
+	{
+		if (encoding == RedisSessionEncoding.Record)
+		{
+			SessionRecord.checkAuthenticationState(authenticationState);
+		}
+	}
+
+	private <R> CompletableFuture<R> checkAuthenticationState(String authenticationState, Supplier<CompletableFuture<R>> write)
+	{
+		CompletableFuture<R> written = null;
+		try
+		{
+			checkAuthenticationState(authenticationState);
+			written = write.get();
+		}
+		catch (DAOException e)
+		{
+			written = CompletableFuture.failedFuture(e);
+		}
+		return written;
+	}
+
+	private Response<?> readSession(Pipeline pipeline, byte[] key)
+	{
+		return encoding == RedisSessionEncoding.Record ? pipeline.get(key) : pipeline.hgetAll(key);
+	}
+
+	private Response<String> writeSession(Pipeline pipeline, byte[] key, SessionDetails sessionDetails, long generation)
+	{
+		Response<String> written = null;
+		if (encoding == RedisSessionEncoding.Record)
+		{
+			written = pipeline.set(key, SessionRecord.encode(sessionDetails.getAuthenticationState(), sessionDetails.getCreatedTS(), sessionDetails.getLastAccessedTS(), generation));
+		}
+		else
+		{
+			written = pipeline.hmset(key, createMap(sessionDetails, generation));
+		}
+		return written;
+	}
+
+	//In place, a SessionRecord only has the 8 bytes of LastAccessedTS written.
+	private void writeLastAccessedTS(Pipeline pipeline, byte[] key, long lastAccessedTS)
+	{
+		if (encoding == RedisSessionEncoding.Record)
+		{
+			pipeline.setrange(key, SessionRecord.LAST_ACCESSED_TS_OFFSET, SessionRecord.encodeLong(lastAccessedTS));
+		}
+		else
+		{
+			pipeline.hset(key, LAST_ACCESSED_TS_FIELD, RedisKeyEncoder.encode(lastAccessedTS));
+		}
+	}
+
+	private Response<Long> writeAuthenticationState(Pipeline pipeline, byte[] key, String authenticationState)
+	{
+		Response<Long> written = null;
+		if (encoding == RedisSessionEncoding.Record)
+		{
+			written = pipeline.setrange(key, SessionRecord.AUTHENTICATION_STATE_OFFSET, new byte[] {SessionRecord.getAuthenticationStateCode(authenticationState)});
+			byte[] name = SessionRecord.encodeAuthenticationStateName(authenticationState);
+			if (name.length > 0)
+			{
+				pipeline.setrange(key, SessionRecord.AUTHENTICATION_STATE_NAME_OFFSET, name);
+			}
+		}
+		else
+		{
+			written = pipeline.hset(key, AUTHENTICATION_STATE_FIELD, RedisKeyEncoder.encode(authenticationState));
+		}
+		return written;
+	}
+
+	/**
+	 * Remove Expiry in case it was set, or with sliding expiry start it over. The index
+	 * and the generation live at least as long as any of the sessions of the user.
+	 */
+	private Response<Long> restartExpiry(Pipeline pipeline, String userId, byte[] key)
+	{
+		Response<Long> restarted = null;
+		if (slidingExpiry)
+		{
+			restarted = pipeline.pexpire(key, getSessionExpiry());
+			pipeline.pexpire(createIndexKeyBytes(userId), getSessionExpiry());
+		}
+		else
+		{
+			restarted = pipeline.persist(key);
+		}
+		pipeline.pexpire(createUser2SessionGenerationKeyBytes(userId), getGenerationExpiry());
+		return restarted;
+	}
+
+	//Milliseconds a session is left to live after it was last accessed, 0 if it does not expire.
+	private long getSessionExpiry()
+	{
+		return slidingExpiry ? (getSessionTimeout() * 1000) + getExpiryGrace() : 0L;
+	}
+
+	/**
+	 * Milliseconds the generation of a user is left to live after one of the sessions was
+	 * stored or touched. Once it expired every session of the user did, whichever generation
+	 * it has, so starting again from 0 does not bring any back.
+	 */
+	private long getGenerationExpiry()
+	{
+		return (getSessionTimeout() * 1000) + getExpiryGrace();
+	}
+
+	//Longer than SessionTimeout so a touch still in the write behind is written before the session expires.
+	private long getExpiryGrace()
+	{
+		return lastAccessedWriteBehind != null ? lastAccessedWriteBehind.getMaxStalenessInMilliSeconds() : 0L;
+	}
+
+	//Just enough of the session to tell that it is one and its generation.
+	private Response<?> readSessionGeneration(Pipeline pipeline, byte[] key)
+	{
+		Response<?> session = null;
+		if (encoding == RedisSessionEncoding.Record)
+		{
+			session = pipeline.getrange(key, 0, SessionRecord.AUTHENTICATION_STATE_NAME_OFFSET - 1);
+		}
+		else
+		{
+			session = pipeline.hmget(key, USER_ID_FIELD, GENERATION_FIELD);
+		}
+		return session;
+	}
+
+	/**
+	 * ttl as PTTL returns it and session as readSessionGeneration does. 0 if the session is
+	 * gone or of an earlier generation, -1 if it has to be read in full as it does not
+	 * expire or has no more than the grace left, when its LastAccessedTS may be in the write behind.
+	 */
+	@SuppressWarnings("unchecked")
+	private long getValidUntil(long ttl, Object session, long generation)
+	{
+		long validUntil = 0L;
+		boolean current = false;
+		if (encoding == RedisSessionEncoding.Record)
+		{
+			byte[] record = (byte[])session;
+			current = SessionRecord.isSession(record) && SessionRecord.getGeneration(record) == generation;
+		}
+		else
+		{
+			List<byte[]> fields = (List<byte[]>)session;
+			current = fields.get(0) != null && parseGeneration(fields.get(1)) == generation;
+		}
+
+		if (ttl == -1 || (ttl >= 0 && ttl <= getExpiryGrace()))
+		{
+			validUntil = -1L;
+		}
+		else if (ttl > 0 && current)
+		{
+			validUntil = currentTimeMillis() + ttl - getExpiryGrace();
+		}
+		return validUntil;
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean isSession(Object session)
+	{
+		boolean isSession = false;
+		if (encoding == RedisSessionEncoding.Record)
+		{
+			isSession = SessionRecord.isSession((byte[])session);
+		}
+		else
+		{
+			isSession = session != null && ((Map<byte[], byte[]>)session).get(USER_ID_FIELD) != null;
+		}
+		return isSession;
+	}
+
+	private Map<byte[], byte[]> createMap(SessionDetails sessionDetails, long generation)
+	{
+		Map<byte[], byte[]> map = new HashMap<>();
+		map.put(USER_ID_FIELD, RedisKeyEncoder.encode(sessionDetails.getUserId()));
+		map.put(SESSION_ID_FIELD, RedisKeyEncoder.encode(sessionDetails.getSessionId()));
+		map.put(AUTHENTICATION_STATE_FIELD, RedisKeyEncoder.encode(sessionDetails.getAuthenticationState()));
+		map.put(CREATED_TS_FIELD, RedisKeyEncoder.encode(sessionDetails.getCreatedTS()));
+		map.put(LAST_ACCESSED_TS_FIELD, RedisKeyEncoder.encode(sessionDetails.getLastAccessedTS()));
+		map.put(GENERATION_FIELD, RedisKeyEncoder.encode(generation));
 		
 		return map;
 	}
 	
-	private SessionDetails createSessionDetails(Map<String, String> map)
+	/**
+	 * session is what readSession got back, null if it is no session or of an earlier
+	 * generation than the current one of its user.
+	 */
+	@SuppressWarnings("unchecked")
+	private SessionDetails createSessionDetails(String userId, String sessionId, Object session, long generation)
 	{
 		SessionDetails sessionDetails = null;
-		if (map != null && !map.isEmpty())
+		if (encoding == RedisSessionEncoding.Record)
+		{
+			byte[] record = (byte[])session;
+			if (SessionRecord.isSession(record) && SessionRecord.getGeneration(record) == generation)
+			{
+				sessionDetails = createSessionDetails(userId, sessionId, SessionRecord.getAuthenticationState(record), SessionRecord.getCreatedTS(record), SessionRecord.getLastAccessedTS(record));
+			}
+		}
+		else
+		{
+			sessionDetails = createSessionDetails((Map<byte[], byte[]>)session, generation);
+		}
+		return sessionDetails;
+	}
+
+	/**
+	 * Jedis returns binary hashes as a map that looks up byte[] keys by content. A hash
+	 * without UserId only has a LastAccessedTS, written by a touch after the session was
+	 * gone or before it was moved to the current key layout. A session of an earlier
+	 * generation than the current one of its user is gone as well.
+	 */
+	private SessionDetails createSessionDetails(Map<byte[], byte[]> map, long generation)
+	{
+		SessionDetails sessionDetails = null;
+		if (map != null && map.get(USER_ID_FIELD) != null && parseGeneration(map.get(GENERATION_FIELD)) == generation)
+		{
+			sessionDetails = createSessionDetails(RedisKeyEncoder.decode(map.get(USER_ID_FIELD)), 
+													RedisKeyEncoder.decode(map.get(SESSION_ID_FIELD)), 
+													RedisKeyEncoder.decode(map.get(AUTHENTICATION_STATE_FIELD)), 
+													RedisKeyEncoder.parseLong(map.get(CREATED_TS_FIELD)), 
+													RedisKeyEncoder.parseLong(map.get(LAST_ACCESSED_TS_FIELD)));
+		}
+		return sessionDetails;
+	}
+
+	//Reply of the get all SessionDetails scripts, SessionId, authenticationState, CreatedTS and LastAccessedTS of each session.
+	@SuppressWarnings("unchecked")
+	private List<SessionDetails> createSessionDetails(String userId, List<Object> sessions)
+	{
+		List<SessionDetails> sessionDetails = new ArrayList<>(sessions.size());
+		for (Object session : sessions)
 		{
-			String userId = map.get(USER_ID);
-			String sessionId = map.get(SESSION_ID);
-			String authenticationState = map.get(AUTHENTICATION_STATE);
-			long createdTS = Long.parseLong(map.get(CREATED_TS));
-			long lastAccessedTS = Long.parseLong(map.get(LAST_ACCESSED_TS));
-			
-			sessionDetails = new SessionDetails(userId, sessionId, authenticationState, getSessionTimeout(), createdTS, lastAccessedTS);
+			List<Object> values = (List<Object>)session;
+			sessionDetails.add(createSessionDetails(userId, (String)values.get(0), (String)values.get(1), (Long)values.get(2), (Long)values.get(3)));
 		}
 		return sessionDetails;
 	}
+
+	private SessionDetails createSessionDetails(String userId, String sessionId, String authenticationState, long createdTS, long lastAccessedTS)
+	{
+		if (lastAccessedWriteBehind != null)
+		{
+			//A touch on this node not yet written out.
+			lastAccessedTS = Math.max(lastAccessedTS, lastAccessedWriteBehind.getPendingLastAccessedTS(userId, sessionId));
+		}
+		return new SessionDetails(userId, sessionId, authenticationState, getSessionTimeout(), createdTS, lastAccessedTS);
+	}
 	
+	//Sessions stored before there were generations and users whose key does not exist yet are in generation 0.
+	private static long parseGeneration(byte[] value)
+	{
+		return value != null ? RedisKeyEncoder.parseLong(value) : 0L;
+	}
+
+	private List<String> decode(Collection<byte[]> values)
+	{
+		List<String> decoded = new ArrayList<>(values.size());
+		for (byte[] value : values)
+		{
+			decoded.add(RedisKeyEncoder.decode(value));
+		}
+		return decoded;
+	}
+
+	//True if the user had keys in the previous key layout, they are in the current one now.
+	private boolean migrateUser(String userId) throws ResourceException
+	{
+		return keyLayoutMigration != null && keyLayoutMigration.isRunning() && keyLayoutMigration.migrateUser(userId) > 0;
+	}
+
+	private byte[] createIndexKeyBytes(String userId)
+	{
+		return indexType == User2SessionIndexType.SortedSet ? createUser2SessionIndexKeyBytes(userId) : createUser2SessionIdKeyBytes(userId);
+	}
+
+	private String createIndexKey(String userId)
+	{
+		return indexType == User2SessionIndexType.SortedSet ? createUser2SessionIndexKey(userId) : createUser2SessionIdKey(userId);
+	}
+
 	private String createUser2SessionIdKey(String userId)
 	{
-		return String.format(REDIS_USER2SESSION_ID, userId);
+		return keyLayout.createUser2SessionIdKey(userId);
+	}
+	
+	private String createUser2SessionIndexKey(String userId)
+	{
+		return keyLayout.createUser2SessionIndexKey(userId);
 	}
 	
 	private String createUser2SessionDetailsKey(String userId, String sessionId)
 	{
-		return String.format(REDIS_USER2SESSION_DETAILS, userId, sessionId);
+		return encoding.createUser2SessionDetailsKey(keyLayout, userId, sessionId);
+	}
+
+	private String createUser2SessionGenerationKey(String userId)
+	{
+		return keyLayout.createUser2SessionGenerationKey(userId);
+	}
+
+	private byte[] createUser2SessionIdKeyBytes(String userId)
+	{
+		return keyLayout.createUser2SessionIdKeyBytes(userId);
+	}
+
+	private byte[] createUser2SessionIndexKeyBytes(String userId)
+	{
+		return keyLayout.createUser2SessionIndexKeyBytes(userId);
+	}
+
+	private byte[] createUser2SessionDetailsKeyBytes(String userId, String sessionId)
+	{
+		return encoding.createUser2SessionDetailsKeyBytes(keyLayout, userId, sessionId);
+	}
+
+	private byte[] createUser2SessionGenerationKeyBytes(String userId)
+	{
+		return keyLayout.createUser2SessionGenerationKeyBytes(userId);
 	}
 }
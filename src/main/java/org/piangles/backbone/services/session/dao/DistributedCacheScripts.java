@@ -0,0 +1,378 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+/**
+ * Lua scripts used by DistributedCacheDAOImpl. Each one is run atomically by Redis
+ * in a single round trip, the rules they apply are the same as the ones in
+ * AbstractSessionManagementDAO.
+ *
+ * Scripts which read or write sessions do so through readSession, writeSession,
+ * readLastAccessedTS and writeLastAccessedTS, see forEncoding. A session read is a
+ * table of authenticationState, createdTS, lastAccessedTS and generation, nil if the
+ * session is gone.
+ */
+final class DistributedCacheScripts
+{
+	private static final String HASH_SESSION_FUNCTIONS = """
+			local function readSession(key)
+				local details = redis.call('HMGET', key, 'UserId', 'authenticationState', 'CreatedTS', 'LastAccessedTS', 'Generation')
+				local session = nil
+				if details[1] and details[4] then
+					session = {authenticationState = details[2], createdTS = tonumber(details[3]), lastAccessedTS = tonumber(details[4]), generation = tonumber(details[5] or '0')}
+				end
+				return session
+			end
+			local function writeSession(key, userId, sessionId, authenticationState, createdTS, lastAccessedTS, generation)
+				redis.call('HMSET', key, 'UserId', userId, 'SessionId', sessionId, 'authenticationState', authenticationState, 'CreatedTS', createdTS, 'LastAccessedTS', lastAccessedTS, 'Generation', generation)
+			end
+			local function readLastAccessedTS(key)
+				return tonumber(redis.call('HGET', key, 'LastAccessedTS'))
+			end
+			local function writeLastAccessedTS(key, lastAccessedTS)
+				redis.call('HSET', key, 'LastAccessedTS', lastAccessedTS)
+			end
+			""";
+
+	//Same layout as SessionRecord, offsets are one based in Lua.
+	private static final String RECORD_SESSION_FUNCTIONS = "local AUTHENTICATION_STATES = {'" + String.join("', '", SessionRecord.AUTHENTICATION_STATES) + "'}\n" + """
+			local function readSession(key)
+				local record = redis.call('GET', key)
+				local session = nil
+				if record and #record >= 26 and string.byte(record, 1) == 1 then
+					local authenticationState = AUTHENTICATION_STATES[string.byte(record, 2)]
+					if not authenticationState then
+						authenticationState = string.sub(record, 28, 27 + string.byte(record, 27))
+					end
+					session = {authenticationState = authenticationState, createdTS = struct.unpack('>i8', record, 3), lastAccessedTS = struct.unpack('>i8', record, 11), generation = struct.unpack('>i8', record, 19)}
+				end
+				return session
+			end
+			local function writeSession(key, userId, sessionId, authenticationState, createdTS, lastAccessedTS, generation)
+				local code = 0
+				for i, name in ipairs(AUTHENTICATION_STATES) do
+					if name == authenticationState then
+						code = i
+					end
+				end
+				local record = struct.pack('>BBi8i8i8', 1, code, createdTS, lastAccessedTS, generation)
+				if code == 0 then
+					record = record .. struct.pack('>B', #authenticationState) .. authenticationState
+				end
+				redis.call('SET', key, record)
+			end
+			local function readLastAccessedTS(key)
+				local lastAccessedTS = nil
+				local session = readSession(key)
+				if session then
+					lastAccessedTS = session.lastAccessedTS
+				end
+				return lastAccessedTS
+			end
+			local function writeLastAccessedTS(key, lastAccessedTS)
+				redis.call('SETRANGE', key, 10, struct.pack('>i8', lastAccessedTS))
+			end
+			""";
+
+	/**
+	 * KEYS[1] User->SessionId list, KEYS[2] session generation of the user
+	 * ARGV[1] now, ARGV[2] sessionTimeout in milliseconds, ARGV[3] maxSessionCount,
+	 * ARGV[4] prefix of the SessionDetails keys of this user, ARGV[5..9] the new SessionDetails,
+	 * ARGV[10] milliseconds until the new session and the index expire, 0 if they do not,
+	 * ARGV[11] milliseconds until the generation expires.
+	 * 
+	 * Same as getExistingValidSessionCount followed by storeSessionDetails. Expired sessions
+	 * and those of an earlier generation are not counted, they are left to RedisSessionReaper.
+	 * The new session gets the current generation.
+	 */
+	static final String LIST_STORE_IF_BELOW_LIMIT = """
+			local now = tonumber(ARGV[1])
+			local sessionTimeout = tonumber(ARGV[2])
+			local generation = tonumber(redis.call('GET', KEYS[2]) or '0')
+			local count = 0
+			for _, sessionId in ipairs(redis.call('LRANGE', KEYS[1], 0, -1)) do
+				local session = readSession(ARGV[4] .. sessionId)
+				if session and now - session.lastAccessedTS < sessionTimeout and session.generation == generation and session.authenticationState == 'PostAuthentication' then
+					count = count + 1
+				end
+			end
+			if count < tonumber(ARGV[3]) then
+				redis.call('LPUSH', KEYS[1], ARGV[6])
+				writeSession(ARGV[4] .. ARGV[6], ARGV[5], ARGV[6], ARGV[7], ARGV[8], ARGV[9], generation)
+				if tonumber(ARGV[10]) > 0 then
+					redis.call('PEXPIRE', ARGV[4] .. ARGV[6], ARGV[10])
+					redis.call('PEXPIRE', KEYS[1], ARGV[10])
+				end
+				if generation ~= 0 then
+					redis.call('PEXPIRE', KEYS[2], ARGV[11])
+				end
+			end
+			return count
+			""";
+
+	/**
+	 * KEYS[1] User->SessionId sorted set, KEYS[2] legacy User->SessionId list
+	 * ARGV[1] prefix of the SessionDetails keys of this user.
+	 * 
+	 * Moves the sessions of the legacy list into the sorted set scored by LastAccessedTS,
+	 * sessions whose details are already gone are dropped. Returns the count moved.
+	 */
+	private static final String MIGRATE_LIST_INDEX_BODY = """
+			local migrated = 0
+			if redis.call('EXISTS', KEYS[2]) == 1 then
+				for _, sessionId in ipairs(redis.call('LRANGE', KEYS[2], 0, -1)) do
+					local lastAccessedTS = readLastAccessedTS(ARGV[1] .. sessionId)
+					if lastAccessedTS then
+						redis.call('ZADD', KEYS[1], lastAccessedTS, sessionId)
+						migrated = migrated + 1
+					end
+				end
+				redis.call('DEL', KEYS[2])
+			end
+			""";
+
+	static final String MIGRATE_LIST_INDEX = MIGRATE_LIST_INDEX_BODY + "return migrated\n";
+
+	/**
+	 * KEYS[1] User->SessionId sorted set, KEYS[2] legacy User->SessionId list, KEYS[3] session generation of the user
+	 * ARGV[1] prefix of the SessionDetails keys of this user, ARGV[2] now, 
+	 * ARGV[3] sessionTimeout in milliseconds, ARGV[4] maxSessionCount, ARGV[5..9] the new SessionDetails,
+	 * ARGV[10] milliseconds until the new session and the index expire, 0 if they do not,
+	 * ARGV[11] milliseconds until the generation expires.
+	 * 
+	 * Same as LIST_STORE_IF_BELOW_LIMIT, however only sessions which have not expired by
+	 * score are read.
+	 */
+	static final String SORTED_SET_STORE_IF_BELOW_LIMIT = MIGRATE_LIST_INDEX_BODY + """
+			local notExpiredAfter = string.format('(%.17g', tonumber(ARGV[2]) - tonumber(ARGV[3]))
+			local generation = tonumber(redis.call('GET', KEYS[3]) or '0')
+			local count = 0
+			for _, sessionId in ipairs(redis.call('ZRANGEBYSCORE', KEYS[1], notExpiredAfter, '+inf')) do
+				local session = readSession(ARGV[1] .. sessionId)
+				if session and session.generation == generation and session.authenticationState == 'PostAuthentication' then
+					count = count + 1
+				end
+			end
+			if count < tonumber(ARGV[4]) then
+				redis.call('ZADD', KEYS[1], ARGV[9], ARGV[6])
+				writeSession(ARGV[1] .. ARGV[6], ARGV[5], ARGV[6], ARGV[7], ARGV[8], ARGV[9], generation)
+				if tonumber(ARGV[10]) > 0 then
+					redis.call('PEXPIRE', ARGV[1] .. ARGV[6], ARGV[10])
+					redis.call('PEXPIRE', KEYS[1], ARGV[10])
+				end
+				if generation ~= 0 then
+					redis.call('PEXPIRE', KEYS[3], ARGV[11])
+				end
+			end
+			return count
+			""";
+
+	/**
+	 * KEYS[1] User->SessionId list, KEYS[2] session generation of the user
+	 * ARGV[1] now, ARGV[2] sessionTimeout in milliseconds, ARGV[3] prefix of the SessionDetails keys of this user.
+	 *
+	 * Returns SessionId, authenticationState, CreatedTS and LastAccessedTS of each valid
+	 * session of the user. Index entries whose details are gone are dropped, expired
+	 * sessions and those of an earlier generation are removed.
+	 */
+	static final String LIST_GET_ALL_SESSION_DETAILS = """
+			local now = tonumber(ARGV[1])
+			local sessionTimeout = tonumber(ARGV[2])
+			local generation = tonumber(redis.call('GET', KEYS[2]) or '0')
+			local sessions = {}
+			for _, sessionId in ipairs(redis.call('LRANGE', KEYS[1], 0, -1)) do
+				local detailsKey = ARGV[3] .. sessionId
+				local session = readSession(detailsKey)
+				if not session then
+					redis.call('LREM', KEYS[1], 1, sessionId)
+				elseif now - session.lastAccessedTS >= sessionTimeout or session.generation ~= generation then
+					redis.call('LREM', KEYS[1], 1, sessionId)
+					redis.call('DEL', detailsKey)
+				else
+					sessions[#sessions + 1] = {sessionId, session.authenticationState, session.createdTS, session.lastAccessedTS}
+				end
+			end
+			return sessions
+			""";
+
+	/**
+	 * KEYS[1] User->SessionId sorted set, KEYS[2] legacy User->SessionId list, KEYS[3] session generation of the user
+	 * ARGV[1] prefix of the SessionDetails keys of this user, ARGV[2] now, ARGV[3] sessionTimeout in milliseconds.
+	 *
+	 * Same as LIST_GET_ALL_SESSION_DETAILS, expired sessions are found by score.
+	 */
+	static final String SORTED_SET_GET_ALL_SESSION_DETAILS = MIGRATE_LIST_INDEX_BODY + """
+			local expiredBefore = tonumber(ARGV[2]) - tonumber(ARGV[3])
+			for _, sessionId in ipairs(redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', expiredBefore)) do
+				redis.call('DEL', ARGV[1] .. sessionId)
+			end
+			redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', expiredBefore)
+			local generation = tonumber(redis.call('GET', KEYS[3]) or '0')
+			local sessions = {}
+			for _, sessionId in ipairs(redis.call('ZRANGE', KEYS[1], 0, -1)) do
+				local session = readSession(ARGV[1] .. sessionId)
+				if not session then
+					redis.call('ZREM', KEYS[1], sessionId)
+				elseif session.generation ~= generation then
+					redis.call('ZREM', KEYS[1], sessionId)
+					redis.call('DEL', ARGV[1] .. sessionId)
+				else
+					sessions[#sessions + 1] = {sessionId, session.authenticationState, session.createdTS, session.lastAccessedTS}
+				end
+			end
+			return sessions
+			""";
+
+	/**
+	 * KEYS[1] User->SessionId list, KEYS[2] session generation of the user
+	 * ARGV[1] now, ARGV[2] sessionTimeout in milliseconds, ARGV[3] prefix of the SessionDetails keys of this user.
+	 * 
+	 * Removes the expired sessions of the user, those of an earlier generation and index
+	 * entries whose details are gone. Returns the count of keys deleted, the list included
+	 * once it is empty.
+	 */
+	static final String LIST_REAP_USER = """
+			local now = tonumber(ARGV[1])
+			local sessionTimeout = tonumber(ARGV[2])
+			local generation = tonumber(redis.call('GET', KEYS[2]) or '0')
+			local sessionIds = redis.call('LRANGE', KEYS[1], 0, -1)
+			local reclaimed = 0
+			for _, sessionId in ipairs(sessionIds) do
+				local detailsKey = ARGV[3] .. sessionId
+				local session = readSession(detailsKey)
+				if not session or now - session.lastAccessedTS >= sessionTimeout or session.generation ~= generation then
+					redis.call('LREM', KEYS[1], 1, sessionId)
+					reclaimed = reclaimed + redis.call('DEL', detailsKey)
+				end
+			end
+			if #sessionIds > 0 and redis.call('EXISTS', KEYS[1]) == 0 then
+				reclaimed = reclaimed + 1
+			end
+			return reclaimed
+			""";
+
+	/**
+	 * KEYS[1] User->SessionId sorted set, KEYS[2] session generation of the user
+	 * ARGV[1] now, ARGV[2] sessionTimeout in milliseconds, ARGV[3] prefix of the SessionDetails keys of this user.
+	 * 
+	 * Same as LIST_REAP_USER, expired sessions are found by score.
+	 */
+	static final String SORTED_SET_REAP_USER = """
+			local expiredBefore = tonumber(ARGV[1]) - tonumber(ARGV[2])
+			local generation = tonumber(redis.call('GET', KEYS[2]) or '0')
+			local existed = redis.call('EXISTS', KEYS[1])
+			local reclaimed = 0
+			for _, sessionId in ipairs(redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', expiredBefore)) do
+				reclaimed = reclaimed + redis.call('DEL', ARGV[3] .. sessionId)
+			end
+			redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', expiredBefore)
+			for _, sessionId in ipairs(redis.call('ZRANGE', KEYS[1], 0, -1)) do
+				local session = readSession(ARGV[3] .. sessionId)
+				if not session or session.generation ~= generation then
+					redis.call('ZREM', KEYS[1], sessionId)
+					reclaimed = reclaimed + redis.call('DEL', ARGV[3] .. sessionId)
+				end
+			end
+			if existed == 1 and redis.call('EXISTS', KEYS[1]) == 0 then
+				reclaimed = reclaimed + 1
+			end
+			return reclaimed
+			""";
+
+	/**
+	 * KEYS[1] lease, ARGV[1] owner, ARGV[2] milliseconds.
+	 * 
+	 * Extends the lease by ARGV[2] if ARGV[1] still holds it. Returns 1 if it did.
+	 */
+	static final String RENEW_LEASE = """
+			local renewed = 0
+			if redis.call('GET', KEYS[1]) == ARGV[1] then
+				renewed = redis.call('PEXPIRE', KEYS[1], ARGV[2])
+			end
+			return renewed
+			""";
+
+	/**
+	 * KEYS[1] SessionDetails key, ARGV[1] milliseconds until a session marked for removal expires.
+	 * 
+	 * Marks the session unless it expires sooner already, a mark never gives a session longer
+	 * to live than its sliding expiry. Sessions which are gone are left alone. Returns 1 if
+	 * the expiry was set.
+	 */
+	static final String MARK_FOR_REMOVAL = """
+			local ttl = redis.call('PTTL', KEYS[1])
+			local marked = 0
+			if ttl == -1 or ttl > tonumber(ARGV[1]) then
+				marked = redis.call('PEXPIRE', KEYS[1], ARGV[1])
+			end
+			return marked
+			""";
+
+	/**
+	 * KEYS[3i-2] SessionDetails key, KEYS[3i-1] User->SessionId index, KEYS[3i] session generation of session i
+	 * ARGV[1] 1 if the index is a sorted set, ARGV[2] milliseconds after LastAccessedTS until
+	 * a session expires, 0 if it does not, ARGV[3] milliseconds until the generation expires,
+	 * ARGV[2i+2] sessionId, ARGV[2i+3] LastAccessedTS of session i.
+	 * 
+	 * Batch of touches from LastAccessedWriteBehind. Sessions which are gone are not
+	 * revived and a LastAccessedTS older than the stored one (written by another node)
+	 * is ignored. Returns the count of sessions updated.
+	 */
+	static final String TOUCH_IF_NEWER = """
+			local sessionExpiry = tonumber(ARGV[2])
+			local updated = 0
+			for i = 1, #KEYS / 3 do
+				local key = KEYS[3 * i - 2]
+				local indexKey = KEYS[3 * i - 1]
+				local sessionId = ARGV[2 * i + 2]
+				local lastAccessedTS = tonumber(ARGV[2 * i + 3])
+				local current = readLastAccessedTS(key)
+				if current then
+					if sessionExpiry == 0 then
+						redis.call('PERSIST', key)
+					end
+					if lastAccessedTS > current then
+						writeLastAccessedTS(key, ARGV[2 * i + 3])
+						if sessionExpiry > 0 then
+							--The index lives at least as long as any of its sessions.
+							redis.call('PEXPIREAT', key, lastAccessedTS + sessionExpiry)
+							redis.call('PEXPIRE', indexKey, sessionExpiry)
+						end
+						redis.call('PEXPIRE', KEYS[3 * i], ARGV[3])
+						if ARGV[1] == '1' then
+							redis.call('ZADD', indexKey, 'XX', ARGV[2 * i + 3], sessionId)
+						end
+						updated = updated + 1
+					end
+				end
+			end
+			return updated
+			""";
+
+	private DistributedCacheScripts()
+	{
+	}
+
+	//script with the session functions of encoding in front, RENEW_LEASE and MARK_FOR_REMOVAL do not need them.
+	static String forEncoding(RedisSessionEncoding encoding, String script)
+	{
+		return (encoding == RedisSessionEncoding.Record ? RECORD_SESSION_FUNCTIONS : HASH_SESSION_FUNCTIONS) + script;
+	}
+}
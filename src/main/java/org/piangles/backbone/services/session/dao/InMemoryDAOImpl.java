@@ -19,138 +19,639 @@
  
 package org.piangles.backbone.services.session.dao;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
 
 import org.piangles.backbone.services.session.SessionDetails;
 import org.piangles.core.dao.DAOException;
 
+/**
+ * Expired and marked for remove sessions are taken out by a TimingWheel, see
+ * SessionExpiry, so memory does not depend on the same user coming back.
+ *
+ * With enablePersistence every change is also written to a SessionJournal. The change
+ * is ordered within the lock and appended once the lock is released, so a journal
+ * that is behind never holds up the lock.
+ *
+ * removeAllSessionDetails only moves the generation of the user on, sessions stored
+ * under an earlier generation are no longer found and are taken out when they expire
+ * or when the user next has its expired sessions removed.
+ */
 public final class InMemoryDAOImpl extends AbstractSessionManagementDAO
 {
+	private static final long EXPIRY_TICK_IN_MILLISECONDS = 1000;
+	private static final int EXPIRY_WHEEL_SIZE = 4096;
+
 	//Only one cache will have SessionDetails the rest just have a reference to SessionId
 	private Map<String, SessionDetails> sessionIdMap = null;
 	private Map<String, List<String>> userIdSessionMap = null;
+	//Only users which had all their sessions removed and the sessions they stored since, anything else is generation 0.
+	private Map<String, Long> userGenerationMap = null;
+	private Map<String, Long> sessionGenerationMap = null;
+	//Only sessions with a mark for removal pending, what the journal snapshots along with them.
+	private Map<String, Long> markedAtMap = null;
+	private TimingWheel<SessionExpiry> expiryWheel = null;
+	private SessionJournal journal = null;
+	//Not a monitor, a virtual thread waiting on a monitor holds on to its carrier thread.
+	private ReentrantLock lock = null;
 
 	public InMemoryDAOImpl(long sessionTimeout, int markSessionTimeout) throws Exception
 	{
-		super(sessionTimeout, markSessionTimeout);
+		this(sessionTimeout, markSessionTimeout, System::currentTimeMillis);
+		expiryWheel.start("InMemorySessionExpiry");
+	}
+
+	//The wheel is not started, whoever controls the clock calls advance on it.
+	InMemoryDAOImpl(long sessionTimeout, int markSessionTimeout, LongSupplier clock)
+	{
+		super(sessionTimeout, markSessionTimeout, clock);
+		lock = new ReentrantLock();
 		sessionIdMap = new HashMap<>();
 		userIdSessionMap = new HashMap<String, List<String>>();
+		userGenerationMap = new HashMap<>();
+		sessionGenerationMap = new HashMap<>();
+		markedAtMap = new HashMap<>();
+		expiryWheel = new TimingWheel<>(EXPIRY_TICK_IN_MILLISECONDS, EXPIRY_WHEEL_SIZE, clock, this::expired);
 	}
 	
+	/**
+	 * Loads the sessions in journal and from then on journals every change. Called once,
+	 * before the DAO is used, returns the number of journal records replayed.
+	 */
+	public long enablePersistence(SessionJournal journal) throws DAOException
+	{
+		long replayed = 0;
+		lock.lock();
+		try
+		{
+			try
+			{
+				replayed = journal.recover(new JournalReplay());
+				journal.start(this::copySessions);
+			}
+			catch (IOException e)
+			{
+				throw new DAOException("Could not recover sessions from " + journal.getDirectory(), e);
+			}
+			this.journal = journal;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return replayed;
+	}
+
 	@Override
-	public synchronized void storeSessionDetails(SessionDetails sessionDetails) throws DAOException
+	public void storeSessionDetails(SessionDetails sessionDetails) throws DAOException
 	{
-		//Store in the userMap the sessionId
-		List<String> sessionIds = userIdSessionMap.get(sessionDetails.getUserId()); 
-		if (sessionIds == null)
+		SessionJournal.Mutation mutation = null;
+		lock.lock();
+		try
 		{
-			sessionIds = new ArrayList<String>();
-			userIdSessionMap.put(sessionDetails.getUserId(), sessionIds);
+			store(sessionDetails);
+			if (journal != null)
+			{
+				mutation = journal.stored(sessionDetails);
+			}
+		}
+		finally
+		{
+			lock.unlock();
 		}
+		journal(mutation);
+	}
 
-		//Store the session details
-		sessionIdMap.put(sessionDetails.getSessionId(), sessionDetails);
-		sessionIds.add(sessionDetails.getSessionId());
+	@Override
+	public int storeSessionDetailsIfBelowLimit(SessionDetails sessionDetails, int maxSessionCount) throws DAOException
+	{
+		int existingSessionCount;
+		lock.lock();
+		try
+		{
+			existingSessionCount = super.storeSessionDetailsIfBelowLimit(sessionDetails, maxSessionCount);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return existingSessionCount;
 	}
 
 	@Override
-	public synchronized void removeSessionDetails(String userId, String sessionId) throws DAOException
+	public void removeSessionDetails(String userId, String sessionId) throws DAOException
 	{
-		List<String> sessionIds = userIdSessionMap.get(userId);
-		if (sessionIds != null)
+		SessionJournal.Mutation mutation = null;
+		lock.lock();
+		try
 		{
-			sessionIds.remove(sessionId);
-			sessionIdMap.remove(sessionId);
+			List<String> sessionIds = userIdSessionMap.get(userId);
+			if (sessionIds != null)
+			{
+				sessionIds.remove(sessionId);
+				sessionIdMap.remove(sessionId);
+				sessionGenerationMap.remove(sessionId);
+				markedAtMap.remove(sessionId);
+				if (journal != null)
+				{
+					mutation = journal.removed(userId, sessionId);
+				}
+			}
 		}
+		finally
+		{
+			lock.unlock();
+		}
+		journal(mutation);
+	}
+	
+	@Override
+	public void removeAllSessionDetails(String userId) throws DAOException
+	{
+		SessionJournal.Mutation mutation = null;
+		lock.lock();
+		try
+		{
+			if (userIdSessionMap.containsKey(userId))
+			{
+				userGenerationMap.merge(userId, 1L, Long::sum);
+				if (journal != null)
+				{
+					mutation = journal.allRemoved(userId);
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		journal(mutation);
 	}
 	
 	@Override
 	public void markForRemoveSessionDetails(String userId, String sessionId) throws DAOException
 	{
-		//TODO Add Timer to this userId and sessionId combination and remove it.
+		SessionJournal.Mutation mutation = null;
+		lock.lock();
+		try
+		{
+			long markedAt = currentTimeMillis();
+			markForRemoval(userId, sessionId, markedAt);
+			if (journal != null)
+			{
+				mutation = journal.markedForRemoval(userId, sessionId, markedAt);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		journal(mutation);
 	}
 
 	@Override
-	public synchronized void updateLastAccessed(String userId, String sessionId) throws DAOException
+	public void updateLastAccessed(String userId, String sessionId) throws DAOException
 	{
-		SessionDetails sessionDetails = getSessionDetailsIfValidById(userId, sessionId);
-		if (sessionDetails != null)
+		SessionJournal.Mutation mutation = null;
+		lock.lock();
+		try
 		{
-			sessionDetails.touch();
+			SessionDetails sessionDetails = getSessionDetailsIfValidById(userId, sessionId);
+			if (sessionDetails != null)
+			{
+				//Replaced rather than touched so LastAccessedTS comes from the same clock as the expiry.
+				long lastAccessedTS = currentTimeMillis();
+				touch(sessionDetails, lastAccessedTS);
+				if (journal != null)
+				{
+					mutation = journal.touched(userId, sessionId, lastAccessedTS);
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
 		}
+		journal(mutation);
 	}
 
 	@Override
 	public void updateAuthenticationState(String userId, String sessionId, String authenticationState) throws DAOException
 	{
-		SessionDetails sessionDetails = getSessionDetailsIfValidById(userId, sessionId);
-		if (sessionDetails != null)
+		SessionJournal.Mutation mutation = null;
+		lock.lock();
+		try
+		{
+			SessionDetails sessionDetails = getSessionDetailsIfValidById(userId, sessionId);
+			if (sessionDetails != null)
+			{
+				changeAuthenticationState(sessionDetails, authenticationState);
+				if (journal != null)
+				{
+					mutation = journal.authenticationStateChanged(userId, sessionId, authenticationState);
+				}
+			}
+		}
+		finally
 		{
-			SessionDetails newSessionDetails = new SessionDetails(userId, sessionId, 
-																	authenticationState, 
-																	sessionDetails.getInactivityExpiryTimeInSeconds(), 
-																	sessionDetails.getCreatedTS(), sessionDetails.getLastAccessedTS());
-			sessionIdMap.put(sessionDetails.getSessionId(), newSessionDetails);
+			lock.unlock();
 		}
+		journal(mutation);
 	}
 
 	@Override
-	protected synchronized List<String> getAllUserSessionIds(String userId) throws DAOException
+	protected List<String> getAllUserSessionIds(String userId) throws DAOException
 	{
-		return userIdSessionMap.get(userId);
+		List<String> sessionIds = null;
+		lock.lock();
+		try
+		{
+			sessionIds = userIdSessionMap.get(userId);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return sessionIds;
 	}
 
 	@Override
-	public synchronized SessionDetails getSessionDetails(String userId, String sessionId) throws DAOException
+	public SessionDetails getSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		SessionDetails sessionDetails = null;
+		lock.lock();
+		try
+		{
+			sessionDetails = getIfCurrentGeneration(sessionId);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return sessionDetails;
+	}
+	
+	@Override
+	protected SessionDetails[] getSessionDetailsBatch(String[] userIds, String[] sessionIds) throws DAOException
 	{
-		return sessionIdMap.get(sessionId);
+		SessionDetails[] sessionDetails = new SessionDetails[sessionIds.length];
+		lock.lock();
+		try
+		{
+			for (int i = 0; i < sessionIds.length; ++i)
+			{
+				sessionDetails[i] = getIfCurrentGeneration(sessionIds[i]);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return sessionDetails;
 	}
 	
 	@Override
 	public List<SessionDetails> getAllSessionDetails(String userId) throws DAOException 
 	{
-		
 		List<SessionDetails> userSessionDetails = new ArrayList<>();
-		
-		List<String> userSessionIds = getAllUserSessionIds(userId);
-		
-		if(!userSessionIds.isEmpty() && userSessionIds != null)
+		lock.lock();
+		try
 		{
-			for(String sessionId : userSessionIds)
+			List<String> userSessionIds = getAllUserSessionIds(userId);
+		
+			if(userSessionIds != null && !userSessionIds.isEmpty())
 			{
-				SessionDetails sessionDetails = getSessionDetails(userId, sessionId);
-				
-				userSessionDetails.add(sessionDetails);
+				for(String sessionId : userSessionIds)
+				{
+					//Sessions of an earlier generation are still listed until the wheel reclaims them.
+					SessionDetails sessionDetails = getSessionDetails(userId, sessionId);
+					if (sessionDetails != null)
+					{
+						userSessionDetails.add(sessionDetails);
+					}
+				}
 			}
 		}
+		finally
+		{
+			lock.unlock();
+		}
 
 		return userSessionDetails;
 	}
 	
 	@Override
-	protected synchronized void removeAllExpiredSessionDetails(String userId) throws DAOException
+	protected void removeAllExpiredSessionDetails(String userId) throws DAOException
 	{
-		List<String> validSessionIds = new ArrayList<String>();
-		List<String> sessionIds = userIdSessionMap.get(userId);
-		if (sessionIds != null)
+		List<SessionJournal.Mutation> mutations = new ArrayList<>();
+		lock.lock();
+		try
 		{
-			for (String sessionId : sessionIds)
+			List<String> validSessionIds = new ArrayList<String>();
+			List<String> sessionIds = userIdSessionMap.get(userId);
+			if (sessionIds != null)
 			{
-				SessionDetails sessionDetails = sessionIdMap.get(sessionId);
+				for (String sessionId : sessionIds)
+				{
+					SessionDetails sessionDetails = sessionIdMap.get(sessionId);
 				
-				if (!isSessionValid(sessionDetails.getLastAccessedTS()))
+					if (!isSessionValid(sessionDetails.getLastAccessedTS()) || !isCurrentGeneration(sessionDetails))
+					{
+						sessionIdMap.remove(sessionId);
+						sessionGenerationMap.remove(sessionId);
+						markedAtMap.remove(sessionId);
+						if (journal != null)
+						{
+							mutations.add(journal.removed(userId, sessionId));
+						}
+					}
+					else
+					{
+						validSessionIds.add(sessionId);
+					}
+				}
+				if (validSessionIds.isEmpty())
 				{
-					sessionIdMap.remove(sessionId);
+					userIdSessionMap.remove(userId);
+					userGenerationMap.remove(userId);
 				}
 				else
 				{
-					validSessionIds.add(sessionId);
+					userIdSessionMap.put(userId, validSessionIds);
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		mutations.forEach(this::journal);
+	}
+
+	int getScheduledExpiryCount()
+	{
+		return expiryWheel.size();
+	}
+
+	TimingWheel<SessionExpiry> getExpiryWheel()
+	{
+		return expiryWheel;
+	}
+
+	/**
+	 * Called by the wheel once the deadline of a SessionExpiry is reached. The deadline
+	 * of an inactivity expiry is where the session would have expired when it was
+	 * scheduled, if it has been touched since it is rescheduled to its current expiry.
+	 */
+	private long expired(SessionExpiry expiry, long now)
+	{
+		long nextDeadline = 0L;
+		SessionJournal.Mutation mutation = null;
+		lock.lock();
+		try
+		{
+			if (expiry.isMarkedForRemoval())
+			{
+				//Done with whether or not it removes the session, unless marked again since.
+				markedAtMap.remove(expiry.getSessionId(), expiry.getMarkedAt());
+			}
+			SessionDetails sessionDetails = sessionIdMap.get(expiry.getSessionId());
+			if (sessionDetails != null && sessionDetails.getUserId().equals(expiry.getUserId()))
+			{
+				if (!isCurrentGeneration(sessionDetails))
+				{
+					mutation = removeExpired(expiry.getUserId(), expiry.getSessionId());
+				}
+				else if (expiry.isMarkedForRemoval())
+				{
+					//Touched after being marked, same as a Redis PERSIST the removal is off.
+					if (sessionDetails.getLastAccessedTS() <= expiry.getMarkedAt())
+					{
+						mutation = removeExpired(expiry.getUserId(), expiry.getSessionId());
+					}
+				}
+				else if (isSessionValid(sessionDetails.getLastAccessedTS()))
+				{
+					nextDeadline = getExpiresAt(sessionDetails);
+				}
+				else
+				{
+					mutation = removeExpired(expiry.getUserId(), expiry.getSessionId());
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		journal(mutation);
+
+		return nextDeadline;
+	}
+
+	private SessionJournal.Mutation removeExpired(String userId, String sessionId)
+	{
+		remove(userId, sessionId);
+		return journal != null ? journal.removed(userId, sessionId) : null;
+	}
+
+	//Outside the lock, the journal puts changes back in the order they were made in.
+	private void journal(SessionJournal.Mutation mutation)
+	{
+		if (mutation != null)
+		{
+			journal.append(mutation);
+		}
+	}
+
+	private void remove(String userId, String sessionId)
+	{
+		sessionIdMap.remove(sessionId);
+		sessionGenerationMap.remove(sessionId);
+		markedAtMap.remove(sessionId);
+		List<String> sessionIds = userIdSessionMap.get(userId);
+		if (sessionIds != null)
+		{
+			sessionIds.remove(sessionId);
+			if (sessionIds.isEmpty())
+			{
+				userIdSessionMap.remove(userId);
+				userGenerationMap.remove(userId);
+			}
+		}
+	}
+
+	private void store(SessionDetails sessionDetails)
+	{
+		//Store in the userMap the sessionId
+		List<String> sessionIds = userIdSessionMap.get(sessionDetails.getUserId()); 
+		if (sessionIds == null)
+		{
+			sessionIds = new ArrayList<String>();
+			userIdSessionMap.put(sessionDetails.getUserId(), sessionIds);
+		}
+
+		//Store the session details
+		sessionIdMap.put(sessionDetails.getSessionId(), sessionDetails);
+		sessionIds.add(sessionDetails.getSessionId());
+		long generation = getGeneration(sessionDetails.getUserId());
+		if (generation != 0)
+		{
+			sessionGenerationMap.put(sessionDetails.getSessionId(), generation);
+		}
+
+		expiryWheel.schedule(SessionExpiry.inactivity(sessionDetails.getUserId(), sessionDetails.getSessionId()),
+								getExpiresAt(sessionDetails));
+	}
+
+	private void touch(SessionDetails sessionDetails, long lastAccessedTS)
+	{
+		SessionDetails newSessionDetails = new SessionDetails(sessionDetails.getUserId(), sessionDetails.getSessionId(),
+																sessionDetails.getAuthenticationState(),
+																sessionDetails.getInactivityExpiryTimeInSeconds(),
+																sessionDetails.getCreatedTS(), lastAccessedTS);
+		sessionIdMap.put(sessionDetails.getSessionId(), newSessionDetails);
+	}
+
+	private void changeAuthenticationState(SessionDetails sessionDetails, String authenticationState)
+	{
+		SessionDetails newSessionDetails = new SessionDetails(sessionDetails.getUserId(), sessionDetails.getSessionId(), 
+																authenticationState, 
+																sessionDetails.getInactivityExpiryTimeInSeconds(), 
+																sessionDetails.getCreatedTS(), sessionDetails.getLastAccessedTS());
+		sessionIdMap.put(sessionDetails.getSessionId(), newSessionDetails);
+	}
+
+	private void markForRemoval(String userId, String sessionId, long markedAt)
+	{
+		markedAtMap.put(sessionId, markedAt);
+		expiryWheel.schedule(SessionExpiry.markedForRemoval(userId, sessionId, markedAt), markedAt + getMarkSessionTimeout() * 1000L);
+	}
+
+	//What the journal snapshots, taken under the lock and written out without it.
+	private Collection<SessionJournal.SnapshotSession> copySessions()
+	{
+		Collection<SessionJournal.SnapshotSession> sessions = null;
+		lock.lock();
+		try
+		{
+			sessions = new ArrayList<>(sessionIdMap.size());
+			for (SessionDetails sessionDetails : sessionIdMap.values())
+			{
+				if (isCurrentGeneration(sessionDetails))
+				{
+					Long markedAt = markedAtMap.get(sessionDetails.getSessionId());
+					sessions.add(new SessionJournal.SnapshotSession(sessionDetails, markedAt != null ? markedAt : 0L));
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+
+		return sessions;
+	}
+
+	private long getExpiresAt(SessionDetails sessionDetails)
+	{
+		return sessionDetails.getLastAccessedTS() + getSessionTimeout() * 1000L;
+	}
+
+	private SessionDetails getIfCurrentGeneration(String sessionId)
+	{
+		SessionDetails sessionDetails = sessionIdMap.get(sessionId);
+		if (sessionDetails != null && !isCurrentGeneration(sessionDetails))
+		{
+			sessionDetails = null;
+		}
+		return sessionDetails;
+	}
+
+	//False for a session stored before all the sessions of its user were last removed.
+	private boolean isCurrentGeneration(SessionDetails sessionDetails)
+	{
+		Long sessionGeneration = sessionGenerationMap.get(sessionDetails.getSessionId());
+		return (sessionGeneration != null ? sessionGeneration : 0L) == getGeneration(sessionDetails.getUserId());
+	}
+
+	private long getGeneration(String userId)
+	{
+		Long generation = userGenerationMap.get(userId);
+		return generation != null ? generation : 0L;
+	}
+
+	/**
+	 * Applies what the journal replays without journaling it again. A session stored
+	 * twice, once in the snapshot and again in a segment after it, is only listed once.
+	 */
+	private final class JournalReplay implements SessionMutationListener
+	{
+		@Override
+		public void stored(SessionDetails sessionDetails)
+		{
+			if (sessionIdMap.containsKey(sessionDetails.getSessionId()))
+			{
+				remove(sessionDetails.getUserId(), sessionDetails.getSessionId());
+			}
+			store(sessionDetails);
+		}
+
+		@Override
+		public void removed(String userId, String sessionId)
+		{
+			remove(userId, sessionId);
+		}
+
+		@Override
+		public void touched(String userId, String sessionId, long lastAccessedTS)
+		{
+			SessionDetails sessionDetails = sessionIdMap.get(sessionId);
+			if (sessionDetails != null)
+			{
+				touch(sessionDetails, lastAccessedTS);
+			}
+		}
+
+		@Override
+		public void authenticationStateChanged(String userId, String sessionId, String authenticationState)
+		{
+			SessionDetails sessionDetails = sessionIdMap.get(sessionId);
+			if (sessionDetails != null)
+			{
+				changeAuthenticationState(sessionDetails, authenticationState);
+			}
+		}
+
+		@Override
+		public void markedForRemoval(String userId, String sessionId, long markedAt)
+		{
+			markForRemoval(userId, sessionId, markedAt);
+		}
+
+		//Taken out for good, there is no generation to recover them into.
+		@Override
+		public void allRemoved(String userId)
+		{
+			List<String> sessionIds = userIdSessionMap.get(userId);
+			if (sessionIds != null)
+			{
+				for (String sessionId : new ArrayList<>(sessionIds))
+				{
+					remove(userId, sessionId);
 				}
 			}
-			userIdSessionMap.put(userId, validSessionIds);
 		}
 	}
 }
@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.BitSet;
+import java.util.List;
+
+import org.piangles.backbone.services.session.SessionDetails;
+import org.piangles.backbone.services.session.metrics.OperationMetrics;
+import org.piangles.backbone.services.session.metrics.SessionMetrics;
+import org.piangles.core.dao.DAOException;
+
+/**
+ * Records latency and errors of every call into the SessionManagementDAO it wraps.
+ * Each call is an operation in progress for its duration so the Redis commands the
+ * DAO issues are counted against it, see OperationMetrics.
+ */
+public final class InstrumentedSessionManagementDAO implements SessionManagementDAO
+{
+	private static final String OPERATION_PREFIX = "SessionManagementDAO.";
+
+	private SessionManagementDAO sessionManagementDAO = null;
+
+	private OperationMetrics storeSessionDetailsMetrics = null;
+	private OperationMetrics getSessionDetailsMetrics = null;
+	private OperationMetrics getAllSessionDetailsMetrics = null;
+	private OperationMetrics removeSessionDetailsMetrics = null;
+	private OperationMetrics removeAllSessionDetailsMetrics = null;
+	private OperationMetrics markForRemoveSessionDetailsMetrics = null;
+	private OperationMetrics isValidMetrics = null;
+	private OperationMetrics isValidBatchMetrics = null;
+	private OperationMetrics updateLastAccessedMetrics = null;
+	private OperationMetrics updateAuthenticationStateMetrics = null;
+	private OperationMetrics getExistingValidSessionCountMetrics = null;
+	private OperationMetrics storeSessionDetailsIfBelowLimitMetrics = null;
+
+	public InstrumentedSessionManagementDAO(SessionManagementDAO sessionManagementDAO, SessionMetrics metrics)
+	{
+		this.sessionManagementDAO = sessionManagementDAO;
+		storeSessionDetailsMetrics = metrics.getOperation(OPERATION_PREFIX + "storeSessionDetails");
+		getSessionDetailsMetrics = metrics.getOperation(OPERATION_PREFIX + "getSessionDetails");
+		getAllSessionDetailsMetrics = metrics.getOperation(OPERATION_PREFIX + "getAllSessionDetails");
+		removeSessionDetailsMetrics = metrics.getOperation(OPERATION_PREFIX + "removeSessionDetails");
+		removeAllSessionDetailsMetrics = metrics.getOperation(OPERATION_PREFIX + "removeAllSessionDetails");
+		markForRemoveSessionDetailsMetrics = metrics.getOperation(OPERATION_PREFIX + "markForRemoveSessionDetails");
+		isValidMetrics = metrics.getOperation(OPERATION_PREFIX + "isValid");
+		isValidBatchMetrics = metrics.getOperation(OPERATION_PREFIX + "isValidBatch");
+		updateLastAccessedMetrics = metrics.getOperation(OPERATION_PREFIX + "updateLastAccessed");
+		updateAuthenticationStateMetrics = metrics.getOperation(OPERATION_PREFIX + "updateAuthenticationState");
+		getExistingValidSessionCountMetrics = metrics.getOperation(OPERATION_PREFIX + "getExistingValidSessionCount");
+		storeSessionDetailsIfBelowLimitMetrics = metrics.getOperation(OPERATION_PREFIX + "storeSessionDetailsIfBelowLimit");
+	}
+
+	public SessionManagementDAO getSessionManagementDAO()
+	{
+		return sessionManagementDAO;
+	}
+
+	@Override
+	public void storeSessionDetails(SessionDetails sessionDetails) throws DAOException
+	{
+		long start = storeSessionDetailsMetrics.begin();
+		boolean failed = true;
+		try
+		{
+			sessionManagementDAO.storeSessionDetails(sessionDetails);
+			failed = false;
+		}
+		finally
+		{
+			storeSessionDetailsMetrics.end(start, failed);
+		}
+	}
+
+	@Override
+	public SessionDetails getSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		SessionDetails sessionDetails = null;
+		long start = getSessionDetailsMetrics.begin();
+		boolean failed = true;
+		try
+		{
+			sessionDetails = sessionManagementDAO.getSessionDetails(userId, sessionId);
+			failed = false;
+		}
+		finally
+		{
+			getSessionDetailsMetrics.end(start, failed);
+		}
+		return sessionDetails;
+	}
+
+	@Override
+	public List<SessionDetails> getAllSessionDetails(String userId) throws DAOException
+	{
+		List<SessionDetails> sessionDetailsList = null;
+		long start = getAllSessionDetailsMetrics.begin();
+		boolean failed = true;
+		try
+		{
+			sessionDetailsList = sessionManagementDAO.getAllSessionDetails(userId);
+			failed = false;
+		}
+		finally
+		{
+			getAllSessionDetailsMetrics.end(start, failed);
+		}
+		return sessionDetailsList;
+	}
+
+	@Override
+	public void removeSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		long start = removeSessionDetailsMetrics.begin();
+		boolean failed = true;
+		try
+		{
+			sessionManagementDAO.removeSessionDetails(userId, sessionId);
+			failed = false;
+		}
+		finally
+		{
+			removeSessionDetailsMetrics.end(start, failed);
+		}
+	}
+
+	@Override
+	public void removeAllSessionDetails(String userId) throws DAOException
+	{
+		long start = removeAllSessionDetailsMetrics.begin();
+		boolean failed = true;
+		try
+		{
+			sessionManagementDAO.removeAllSessionDetails(userId);
+			failed = false;
+		}
+		finally
+		{
+			removeAllSessionDetailsMetrics.end(start, failed);
+		}
+	}
+
+	@Override
+	public void markForRemoveSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		long start = markForRemoveSessionDetailsMetrics.begin();
+		boolean failed = true;
+		try
+		{
+			sessionManagementDAO.markForRemoveSessionDetails(userId, sessionId);
+			failed = false;
+		}
+		finally
+		{
+			markForRemoveSessionDetailsMetrics.end(start, failed);
+		}
+	}
+
+	@Override
+	public boolean isValid(String userId, String sessionId) throws DAOException
+	{
+		boolean valid = false;
+		long start = isValidMetrics.begin();
+		boolean failed = true;
+		try
+		{
+			valid = sessionManagementDAO.isValid(userId, sessionId);
+			failed = false;
+		}
+		finally
+		{
+			isValidMetrics.end(start, failed);
+		}
+		return valid;
+	}
+
+	@Override
+	public BitSet isValidBatch(String[] userIds, String[] sessionIds) throws DAOException
+	{
+		BitSet valid = null;
+		long start = isValidBatchMetrics.begin();
+		boolean failed = true;
+		try
+		{
+			valid = sessionManagementDAO.isValidBatch(userIds, sessionIds);
+			failed = false;
+		}
+		finally
+		{
+			isValidBatchMetrics.end(start, failed);
+		}
+		return valid;
+	}
+
+	@Override
+	public void updateLastAccessed(String userId, String sessionId) throws DAOException
+	{
+		long start = updateLastAccessedMetrics.begin();
+		boolean failed = true;
+		try
+		{
+			sessionManagementDAO.updateLastAccessed(userId, sessionId);
+			failed = false;
+		}
+		finally
+		{
+			updateLastAccessedMetrics.end(start, failed);
+		}
+	}
+
+	@Override
+	public void updateAuthenticationState(String userId, String sessionId, String authenticationState) throws DAOException
+	{
+		long start = updateAuthenticationStateMetrics.begin();
+		boolean failed = true;
+		try
+		{
+			sessionManagementDAO.updateAuthenticationState(userId, sessionId, authenticationState);
+			failed = false;
+		}
+		finally
+		{
+			updateAuthenticationStateMetrics.end(start, failed);
+		}
+	}
+
+	@Override
+	public int getExistingValidSessionCount(String userId) throws DAOException
+	{
+		int count = 0;
+		long start = getExistingValidSessionCountMetrics.begin();
+		boolean failed = true;
+		try
+		{
+			count = sessionManagementDAO.getExistingValidSessionCount(userId);
+			failed = false;
+		}
+		finally
+		{
+			getExistingValidSessionCountMetrics.end(start, failed);
+		}
+		return count;
+	}
+
+	@Override
+	public int storeSessionDetailsIfBelowLimit(SessionDetails sessionDetails, int maxSessionCount) throws DAOException
+	{
+		int count = 0;
+		long start = storeSessionDetailsIfBelowLimitMetrics.begin();
+		boolean failed = true;
+		try
+		{
+			count = sessionManagementDAO.storeSessionDetailsIfBelowLimit(sessionDetails, maxSessionCount);
+			failed = false;
+		}
+		finally
+		{
+			storeSessionDetailsIfBelowLimitMetrics.end(start, failed);
+		}
+		return count;
+	}
+
+	//Called once at startup, not an operation.
+	@Override
+	public void subscribeInvalidations(SessionInvalidationListener listener)
+	{
+		sessionManagementDAO.subscribeInvalidations(listener);
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.piangles.backbone.services.Locator;
+import org.piangles.backbone.services.logging.LoggingService;
+import org.piangles.core.dao.DAOException;
+
+/**
+ * Coalesces LastAccessedTS touches per session in memory, only the latest one is kept,
+ * and writes them out in batches from a background thread every flushInterval or as
+ * soon as flushSize sessions are pending, whichever comes first. Store writes then grow
+ * with the number of sessions active in a flush window and not with the request rate.
+ *
+ * A touch normally reaches the store within flushInterval plus the time taken by one flush.
+ * If a flush fails its touches go with the next one, after MAX_FLUSH_ATTEMPTS flushes
+ * in all they are dropped. Maximum staleness of LastAccessedTS in the store is therefore
+ * MAX_FLUSH_ATTEMPTS times flushInterval plus the time taken by those flushes, a dropped
+ * touch leaves the one before it. At most maxPending sessions are held, beyond that touch
+ * returns false and the caller has to write through. Whatever is pending is flushed on shutdown.
+ */
+public final class LastAccessedWriteBehind
+{
+	static final int MAX_FLUSH_ATTEMPTS = 3;
+	private static final char KEY_SEPARATOR = ':';
+
+	public interface Flusher
+	{
+		public void flush(List<PendingTouch> touches) throws DAOException;
+	}
+
+	public static final class PendingTouch
+	{
+		private String userId;
+		private String sessionId;
+		private long lastAccessedTS;
+		private int failedFlushCount;
+
+		private PendingTouch(String userId, String sessionId, long lastAccessedTS, int failedFlushCount)
+		{
+			this.userId = userId;
+			this.sessionId = sessionId;
+			this.lastAccessedTS = lastAccessedTS;
+			this.failedFlushCount = failedFlushCount;
+		}
+
+		public String getUserId()
+		{
+			return userId;
+		}
+
+		public String getSessionId()
+		{
+			return sessionId;
+		}
+
+		public long getLastAccessedTS()
+		{
+			return lastAccessedTS;
+		}
+	}
+
+	private LoggingService logger = Locator.getInstance().getLoggingService();
+
+	private long flushIntervalInMilliSeconds;
+	private int flushSize;
+	private int maxPending;
+	private Flusher flusher = null;
+
+	private Map<String, PendingTouch> pendingTouches = null;
+	//The batch being flushed, a touch cancelled meanwhile is gone from here and not put back if the flush fails.
+	private Map<String, PendingTouch> flushingTouches = null;
+	private AtomicLong droppedCount = null;
+	private ScheduledExecutorService flushExecutor = null;
+	private AtomicBoolean flushRequested = null;
+
+	public LastAccessedWriteBehind(long flushIntervalInMilliSeconds, int flushSize, int maxPending, Flusher flusher)
+	{
+		this.flushIntervalInMilliSeconds = flushIntervalInMilliSeconds;
+		this.flushSize = flushSize;
+		this.maxPending = maxPending;
+		this.flusher = flusher;
+
+		pendingTouches = new ConcurrentHashMap<>();
+		flushingTouches = new ConcurrentHashMap<>();
+		droppedCount = new AtomicLong();
+		flushRequested = new AtomicBoolean();
+		flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "LastAccessedWriteBehind");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flushExecutor.scheduleWithFixedDelay(this::flush, flushIntervalInMilliSeconds, flushIntervalInMilliSeconds, TimeUnit.MILLISECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "LastAccessedWriteBehindShutdown"));
+	}
+
+	/**
+	 * Returns false if too many sessions are already pending, the touch has not been
+	 * recorded and the caller has to write it itself.
+	 */
+	public boolean touch(String userId, String sessionId, long lastAccessedTS)
+	{
+		boolean recorded = false;
+		String key = createKey(userId, sessionId);
+		if (pendingTouches.size() < maxPending || pendingTouches.containsKey(key))
+		{
+			pendingTouches.merge(key, new PendingTouch(userId, sessionId, lastAccessedTS, 0),
+					(existing, latest) -> existing.lastAccessedTS >= latest.lastAccessedTS ? existing : latest);
+			recorded = true;
+
+			if (pendingTouches.size() >= flushSize && flushRequested.compareAndSet(false, true))
+			{
+				try
+				{
+					flushExecutor.execute(this::flush);
+				}
+				catch (RejectedExecutionException e)
+				{
+					//Shutting down, the final flush will pick it up.
+				}
+			}
+		}
+		return recorded;
+	}
+
+	//Returns the pending LastAccessedTS of this session if there is one else 0.
+	public long getPendingLastAccessedTS(String userId, String sessionId)
+	{
+		PendingTouch pendingTouch = pendingTouches.get(createKey(userId, sessionId));
+		return pendingTouch != null ? pendingTouch.lastAccessedTS : 0L;
+	}
+
+	//Has to be called when a session is removed or marked for removal, a later flush must not revive it.
+	public void cancel(String userId, String sessionId)
+	{
+		String key = createKey(userId, sessionId);
+		flushingTouches.remove(key);
+		pendingTouches.remove(key);
+	}
+
+	public int getPendingCount()
+	{
+		return pendingTouches.size();
+	}
+
+	//Leaves out the time the flushes take, see the class comment.
+	public long getMaxStalenessInMilliSeconds()
+	{
+		return MAX_FLUSH_ATTEMPTS * flushIntervalInMilliSeconds;
+	}
+
+	//Touches given up on after MAX_FLUSH_ATTEMPTS failed flushes.
+	public long getDroppedCount()
+	{
+		return droppedCount.get();
+	}
+
+	public void shutdown()
+	{
+		flushExecutor.shutdown();
+		try
+		{
+			flushExecutor.awaitTermination(flushIntervalInMilliSeconds, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	private synchronized void flush()
+	{
+		flushRequested.set(false);
+		//Only what is pending now, touches coming in meanwhile wait for the next flush.
+		int remaining = pendingTouches.size();
+		while (remaining > 0 && !pendingTouches.isEmpty())
+		{
+			List<PendingTouch> batch = new ArrayList<>(Math.min(flushSize, pendingTouches.size()));
+			Iterator<Map.Entry<String, PendingTouch>> entries = pendingTouches.entrySet().iterator();
+			while (batch.size() < flushSize && entries.hasNext())
+			{
+				Map.Entry<String, PendingTouch> entry = entries.next();
+				if (pendingTouches.remove(entry.getKey(), entry.getValue()))
+				{
+					flushingTouches.put(entry.getKey(), entry.getValue());
+					batch.add(entry.getValue());
+				}
+			}
+
+			remaining = remaining - flushSize;
+			try
+			{
+				flusher.flush(batch);
+				flushingTouches.clear();
+			}
+			catch (Exception e)
+			{
+				logger.error("Unable to flush LastAccessedTS of " + batch.size() + " sessions, will be retried. Reason: " + e.getMessage(), e);
+				for (PendingTouch pendingTouch : batch)
+				{
+					flushingTouches.computeIfPresent(createKey(pendingTouch.userId, pendingTouch.sessionId), this::retry);
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Puts the touch back for the next flush unless a newer touch came in or it has been
+	 * tried MAX_FLUSH_ATTEMPTS times. Run under the lock of its entry in flushingTouches,
+	 * so cancel either comes before and it is not put back or after and removes it again.
+	 */
+	private PendingTouch retry(String key, PendingTouch pendingTouch)
+	{
+		int failedFlushCount = pendingTouch.failedFlushCount + 1;
+		if (failedFlushCount < MAX_FLUSH_ATTEMPTS)
+		{
+			pendingTouches.putIfAbsent(key, new PendingTouch(pendingTouch.userId, pendingTouch.sessionId, pendingTouch.lastAccessedTS, failedFlushCount));
+		}
+		else
+		{
+			droppedCount.incrementAndGet();
+			logger.warn("Dropped LastAccessedTS of SessionId:" + pendingTouch.sessionId + " after " + failedFlushCount + " failed flushes.");
+		}
+		return null;
+	}
+
+	private String createKey(String userId, String sessionId)
+	{
+		return userId + KEY_SEPARATOR + sessionId;
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.List;
+
+import org.piangles.backbone.services.session.metrics.OperationMetrics;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * A Pipeline which counts what it sends against the operation in progress, see
+ * OperationMetrics. Every sync with something queued is a round trip and each command
+ * queued since the last sync a command. DistributedCacheDAOImpl sends the commands of its
+ * operations through one, only RedisScript, which counts its own, calls Jedis directly.
+ */
+final class MeteredPipeline extends Pipeline
+{
+	private MeteredPipeline()
+	{
+	}
+
+	static MeteredPipeline pipelined(Jedis jedis)
+	{
+		MeteredPipeline pipeline = new MeteredPipeline();
+		pipeline.setClient(jedis.getClient());
+		return pipeline;
+	}
+
+	//Commands queued since the last sync.
+	int getQueuedCommandCount()
+	{
+		return getPipelinedResponseLength();
+	}
+
+	@Override
+	public void sync()
+	{
+		int commandCount = getPipelinedResponseLength();
+		super.sync();
+		recordRoundTrip(commandCount);
+	}
+
+	@Override
+	public List<Object> syncAndReturnAll()
+	{
+		int commandCount = getPipelinedResponseLength();
+		List<Object> responses = super.syncAndReturnAll();
+		recordRoundTrip(commandCount);
+		return responses;
+	}
+
+	private static void recordRoundTrip(int commandCount)
+	{
+		if (commandCount > 0)
+		{
+			OperationMetrics.recordRedis(commandCount, 1);
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.piangles.core.resources.ResourceException;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+/**
+ * RedisExecutor for a Redis Cluster. Which node serves which slot is read with CLUSTER
+ * SLOTS through the seed, the RedisCache of the node SessionService is configured with,
+ * and commands on a key go straight to a pool of the node serving its slot.
+ *
+ * When a slot has moved the command is redirected and the slots are read again, a
+ * resharding in progress (ASK) is followed without reading them again. A command
+ * which uses keys of more than one slot, like a pipeline grouped by node, is retried
+ * as a whole on the node redirected to and fails if its keys are no longer together.
+ * Commands without a key go to the seed.
+ */
+final class RedisClusterExecutor implements RedisExecutor
+{
+	private static final int SLOT_COUNT = 16384;
+	private static final int MAX_REDIRECTIONS = 5;
+
+	private static final class Topology
+	{
+		private JedisPool[] slotPools = new JedisPool[SLOT_COUNT];
+		private int[] slotNodeIndexes = new int[SLOT_COUNT];
+		private List<JedisPool> nodePools = new ArrayList<>();
+	}
+
+	private RedisExecutor seed = null;
+	private Function<HostAndPort, JedisPool> poolFactory = null;
+	private Map<HostAndPort, JedisPool> pools = null;
+	private volatile Topology topology = null;
+	//CLUSTER SLOTS is a round trip, a virtual thread must not wait for it holding a monitor.
+	private ReentrantLock refreshLock = null;
+
+	RedisClusterExecutor(RedisExecutor seed, Function<HostAndPort, JedisPool> poolFactory) throws ResourceException
+	{
+		this.seed = seed;
+		this.poolFactory = poolFactory;
+		pools = new ConcurrentHashMap<>();
+		refreshLock = new ReentrantLock();
+		refresh();
+	}
+
+	@Override
+	public <R> R execute(Function<Jedis, R> command) throws ResourceException
+	{
+		return seed.execute(command);
+	}
+
+	@Override
+	public <R> R execute(byte[] key, Function<Jedis, R> command) throws ResourceException
+	{
+		R result = null;
+		int slot = getSlot(key);
+		JedisPool pool = topology.slotPools[slot];
+		boolean asking = false;
+		boolean done = false;
+		for (int redirections = 0; !done; ++redirections)
+		{
+			if (pool == null)
+			{
+				throw new ResourceException("No node of the Redis Cluster serves slot " + slot + ".");
+			}
+			try (Jedis jedis = pool.getResource())
+			{
+				if (asking)
+				{
+					jedis.asking();
+				}
+				result = command.apply(jedis);
+				done = true;
+			}
+			catch (JedisRedirectionException e)
+			{
+				if (redirections >= MAX_REDIRECTIONS)
+				{
+					throw new ResourceException("Gave up on slot " + slot + " after " + redirections + " redirections. Reason: " + e.getMessage());
+				}
+				asking = e instanceof JedisAskDataException;
+				if (!asking)
+				{
+					refresh();
+				}
+				pool = getPool(e.getTargetNode());
+			}
+			catch (JedisConnectionException e)
+			{
+				//The node may have failed over, the next command goes wherever the slot is now.
+				refresh();
+				throw new ResourceException("Redis Cluster node serving slot " + slot + " is not reachable. Reason: " + e.getMessage());
+			}
+			catch (JedisException e)
+			{
+				throw new ResourceException("Redis Cluster command on slot " + slot + " failed. Reason: " + e.getMessage());
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public int getNodeCount()
+	{
+		return topology.nodePools.size();
+	}
+
+	//Node indexes are only stable until the next refresh, a walk over the nodes may see the topology change.
+	@Override
+	public <R> R executeOnNode(int nodeIndex, Function<Jedis, R> command) throws ResourceException
+	{
+		R result = null;
+		List<JedisPool> nodePools = topology.nodePools;
+		if (nodeIndex >= nodePools.size())
+		{
+			throw new ResourceException("Redis Cluster has " + nodePools.size() + " nodes now, there is no node " + nodeIndex + ".");
+		}
+		try (Jedis jedis = nodePools.get(nodeIndex).getResource())
+		{
+			result = command.apply(jedis);
+		}
+		catch (JedisException e)
+		{
+			throw new ResourceException("Redis Cluster command on node " + nodeIndex + " failed. Reason: " + e.getMessage());
+		}
+		return result;
+	}
+
+	@Override
+	public int getNodeIndex(byte[] key)
+	{
+		return topology.slotNodeIndexes[getSlot(key)];
+	}
+
+	@Override
+	public int getSlot(byte[] key)
+	{
+		return JedisClusterCRC16.getSlot(key);
+	}
+
+	/**
+	 * Each entry of CLUSTER SLOTS is the first and last slot of a range followed by the
+	 * master serving it as host, port and id, then its replicas which are not used.
+	 */
+	@SuppressWarnings("unchecked")
+	void refresh() throws ResourceException
+	{
+		refreshLock.lock();
+		try
+		{
+			List<Object> slotRanges = seed.execute((jedis) -> {
+				return jedis.clusterSlots();
+			});
+
+			Topology refreshed = new Topology();
+			Map<JedisPool, Integer> nodeIndexes = new HashMap<>();
+			for (Object slotRange : slotRanges)
+			{
+				List<Object> range = (List<Object>)slotRange;
+				List<Object> master = (List<Object>)range.get(2);
+				JedisPool pool = getPool(new HostAndPort(RedisKeyEncoder.decode((byte[])master.get(0)), ((Long)master.get(1)).intValue()));
+				int nodeIndex = nodeIndexes.computeIfAbsent(pool, (newPool) -> {
+					refreshed.nodePools.add(newPool);
+					return refreshed.nodePools.size() - 1;
+				});
+				for (int slot = ((Long)range.get(0)).intValue(); slot <= ((Long)range.get(1)).intValue(); ++slot)
+				{
+					refreshed.slotPools[slot] = pool;
+					refreshed.slotNodeIndexes[slot] = nodeIndex;
+				}
+			}
+			topology = refreshed;
+		}
+		finally
+		{
+			refreshLock.unlock();
+		}
+	}
+
+	//Pools are kept for as long as this executor, a node which has left is rarely gone for good.
+	private JedisPool getPool(HostAndPort node)
+	{
+		return pools.computeIfAbsent(node, poolFactory);
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.piangles.backbone.services.session.metrics.OperationMetrics;
+import org.piangles.core.dao.DAOException;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+
+/**
+ * Redis commands of any number of callers over connectionCount connections. A caller
+ * only queues its command and gets a CompletableFuture, each connection thread takes
+ * what has been queued, up to MAX_BATCH_SIZE commands, sends it as one pipeline and
+ * completes the futures after the sync. No caller holds a connection or a thread for a
+ * round trip, and a round trip is shared by everything queued while the last was out.
+ *
+ * On a Redis Cluster the commands taken are split by the node of their key, a pipeline
+ * per node. Futures complete on a connection thread, see AsyncSessionManagementDAO, and
+ * fail with a DAOException whose cause is what Jedis threw. The commands of a caller and
+ * the round trip it waited for are counted against the operation it had in progress.
+ */
+final class RedisCommandMultiplexer implements AutoCloseable
+{
+	private static final int MAX_BATCH_SIZE = 256;
+	private static final long IDLE_POLL_IN_MILLISECONDS = 100;
+
+	interface PipelinedCommand<R>
+	{
+		//Queues the commands on pipeline, the Supplier reads the result once it has been synced.
+		public Supplier<R> queue(Pipeline pipeline);
+	}
+
+	private static final class QueuedCommand<R>
+	{
+		private byte[] key;
+		private PipelinedCommand<R> command;
+		private OperationMetrics operation;
+		private int commandCount;
+		private CompletableFuture<R> future;
+		private Supplier<R> result;
+		private R value;
+		private DAOException failure;
+
+		private QueuedCommand(byte[] key, PipelinedCommand<R> command)
+		{
+			this.key = key;
+			this.command = command;
+			operation = OperationMetrics.getInProgress();
+			future = new CompletableFuture<>();
+		}
+
+		private void queue(MeteredPipeline pipeline)
+		{
+			int queuedCommandCount = pipeline.getQueuedCommandCount();
+			result = command.queue(pipeline);
+			commandCount = pipeline.getQueuedCommandCount() - queuedCommandCount;
+			value = null;
+			failure = null;
+		}
+
+		/**
+		 * A command that failed, NOSCRIPT for instance, does not fail the others of its
+		 * pipeline. A redirection does, RedisClusterExecutor sends them all again.
+		 */
+		private void read()
+		{
+			try
+			{
+				value = result.get();
+			}
+			catch (JedisRedirectionException e)
+			{
+				throw e;
+			}
+			catch (RuntimeException e)
+			{
+				failure = new DAOException(e);
+			}
+		}
+
+		private void complete()
+		{
+			OperationMetrics.recordRedis(operation, commandCount, 1);
+			if (failure != null)
+			{
+				future.completeExceptionally(failure);
+			}
+			else
+			{
+				future.complete(value);
+			}
+		}
+	}
+
+	private RedisExecutor redisCache = null;
+	private BlockingQueue<QueuedCommand<?>> queue = null;
+	private List<Thread> connectionThreads = null;
+	private volatile boolean running;
+
+	RedisCommandMultiplexer(RedisExecutor redisCache, int connectionCount)
+	{
+		this.redisCache = redisCache;
+		queue = new LinkedBlockingQueue<>();
+		connectionThreads = new ArrayList<>(connectionCount);
+		running = true;
+		for (int i = 0; i < connectionCount; ++i)
+		{
+			Thread connectionThread = new Thread(this::send, "RedisCommandMultiplexer-" + i);
+			connectionThread.setDaemon(true);
+			connectionThread.start();
+			connectionThreads.add(connectionThread);
+		}
+	}
+
+	//key decides the node, every other key used by command has to be on it as well.
+	<R> CompletableFuture<R> submit(byte[] key, PipelinedCommand<R> command)
+	{
+		QueuedCommand<R> queuedCommand = new QueuedCommand<>(key, command);
+		queue.add(queuedCommand);
+		//Closed meanwhile, the connection threads may have stopped before taking it.
+		if (!running && queue.remove(queuedCommand))
+		{
+			queuedCommand.future.completeExceptionally(new DAOException("RedisCommandMultiplexer has been closed."));
+		}
+		return queuedCommand.future;
+	}
+
+	int getConnectionCount()
+	{
+		return connectionThreads.size();
+	}
+
+	/**
+	 * Sends what is still queued and stops the connection threads.
+	 */
+	@Override
+	public void close()
+	{
+		running = false;
+		for (Thread connectionThread : connectionThreads)
+		{
+			try
+			{
+				connectionThread.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void send()
+	{
+		List<QueuedCommand<?>> batch = new ArrayList<>(MAX_BATCH_SIZE);
+		while (running || !queue.isEmpty())
+		{
+			try
+			{
+				QueuedCommand<?> first = queue.poll(IDLE_POLL_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+				if (first != null)
+				{
+					batch.add(first);
+					queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+					send(batch);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				//Only close stops a connection thread, what is queued still has to be sent.
+			}
+			finally
+			{
+				batch.clear();
+			}
+		}
+	}
+
+	private void send(List<QueuedCommand<?>> batch)
+	{
+		List<List<QueuedCommand<?>>> batchByNode = new ArrayList<>();
+		if (redisCache.getNodeCount() == 1)
+		{
+			batchByNode.add(batch);
+		}
+		else
+		{
+			Map<Integer, List<QueuedCommand<?>>> commandsByNode = new HashMap<>();
+			for (QueuedCommand<?> queuedCommand : batch)
+			{
+				commandsByNode.computeIfAbsent(redisCache.getNodeIndex(queuedCommand.key), (nodeIndex) -> new ArrayList<>()).add(queuedCommand);
+			}
+			batchByNode.addAll(commandsByNode.values());
+		}
+
+		for (List<QueuedCommand<?>> commands : batchByNode)
+		{
+			try
+			{
+				redisCache.execute(commands.get(0).key, (jedis) -> {
+					MeteredPipeline pipeline = MeteredPipeline.pipelined(jedis);
+					for (QueuedCommand<?> queuedCommand : commands)
+					{
+						queuedCommand.queue(pipeline);
+					}
+					pipeline.sync();
+					for (QueuedCommand<?> queuedCommand : commands)
+					{
+						queuedCommand.read();
+					}
+					return null;
+				});
+				for (QueuedCommand<?> queuedCommand : commands)
+				{
+					queuedCommand.complete();
+				}
+			}
+			catch (Exception e)
+			{
+				//Connection lost or the node could not be reached, none of these have a result.
+				for (QueuedCommand<?> queuedCommand : commands)
+				{
+					queuedCommand.future.completeExceptionally(new DAOException(e));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.function.Function;
+
+import org.piangles.core.resources.RedisCache;
+import org.piangles.core.resources.ResourceException;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * What the Redis backed classes need from RedisCache: run a command on a pooled Jedis.
+ * In production it is forRedisCache or, on a Redis Cluster, a RedisClusterExecutor in
+ * front of it. The indirection is also there so benchmarks and tests can hand in a Jedis
+ * of their own without going through ResourceManager.
+ *
+ * Commands on keys go through execute with the key, on a single Redis that is the same
+ * as execute without one. Keys are on the same node when their node index is the same
+ * and can be in one script when their slot is the same, on a single Redis that is all
+ * of them.
+ */
+interface RedisExecutor
+{
+	//On any node, for commands which are not on a key like PUBLISH or SCRIPT LOAD.
+	public <R> R execute(Function<Jedis, R> command) throws ResourceException;
+
+	//On the node which has key, every other key used by command has to be on it as well.
+	default <R> R execute(byte[] key, Function<Jedis, R> command) throws ResourceException
+	{
+		return execute(command);
+	}
+
+	//For walking the whole keyspace node by node, a single Redis is node 0.
+	default int getNodeCount()
+	{
+		return 1;
+	}
+
+	default <R> R executeOnNode(int nodeIndex, Function<Jedis, R> command) throws ResourceException
+	{
+		return execute(command);
+	}
+
+	default int getNodeIndex(byte[] key)
+	{
+		return 0;
+	}
+
+	default int getSlot(byte[] key)
+	{
+		return 0;
+	}
+
+	static RedisExecutor forRedisCache(RedisCache redisCache)
+	{
+		return new RedisExecutor()
+		{
+			@Override
+			public <R> R execute(Function<Jedis, R> command) throws ResourceException
+			{
+				return redisCache.execute(command::apply);
+			}
+		};
+	}
+}
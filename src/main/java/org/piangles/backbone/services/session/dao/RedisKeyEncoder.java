@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds Redis keys and values as UTF-8 bytes for the binary Jedis API, in a buffer
+ * reused per thread. The only allocation is the exact sized byte[] handed to Jedis,
+ * which has to be a copy as pipelined commands hold on to it until sync. Compared to
+ * String.format there is no format parsing, no intermediate Strings and no second
+ * encoding pass inside Jedis.
+ *
+ * One key at a time per thread: start, append the parts, toBytes.
+ */
+final class RedisKeyEncoder
+{
+	private static final int INITIAL_BUFFER_SIZE = 128;
+	private static final int MAX_LONG_DIGITS = 20;
+	private static final ThreadLocal<RedisKeyEncoder> ENCODERS = ThreadLocal.withInitial(RedisKeyEncoder::new);
+
+	private byte[] buffer = null;
+	private int length;
+
+	private RedisKeyEncoder()
+	{
+		buffer = new byte[INITIAL_BUFFER_SIZE];
+	}
+
+	//A virtual thread does not live long enough for its own buffer to be reused.
+	static RedisKeyEncoder start()
+	{
+		RedisKeyEncoder encoder = Thread.currentThread().isVirtual() ? new RedisKeyEncoder() : ENCODERS.get();
+		encoder.length = 0;
+		return encoder;
+	}
+
+	static byte[] encode(String value)
+	{
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	static byte[] encode(long value)
+	{
+		return start().append(value).toBytes();
+	}
+
+	static String decode(byte[] value)
+	{
+		return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+	}
+
+	//Same as Long.parseLong on the decoded String, without the String.
+	static long parseLong(byte[] value)
+	{
+		if (value == null || value.length == 0)
+		{
+			throw new NumberFormatException("Empty value cannot be parsed as long.");
+		}
+		boolean negative = value[0] == '-';
+		long result = 0;
+		for (int i = negative ? 1 : 0; i < value.length; ++i)
+		{
+			int digit = value[i] - '0';
+			if (digit < 0 || digit > 9)
+			{
+				throw new NumberFormatException("Value " + decode(value) + " cannot be parsed as long.");
+			}
+			result = result * 10 - digit;
+		}
+		return negative ? result : -result;
+	}
+
+	RedisKeyEncoder append(byte[] bytes)
+	{
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length = length + bytes.length;
+		return this;
+	}
+
+	RedisKeyEncoder append(String value)
+	{
+		int valueLength = value.length();
+		ensureCapacity(valueLength);
+		boolean ascii = true;
+		int i = 0;
+		for (; ascii && i < valueLength; ++i)
+		{
+			char c = value.charAt(i);
+			if (c < 0x80)
+			{
+				buffer[length + i] = (byte)c;
+			}
+			else
+			{
+				ascii = false;
+			}
+		}
+
+		if (ascii)
+		{
+			length = length + valueLength;
+		}
+		else
+		{
+			//Rare, userIds are normally ASCII. Whatever was copied is overwritten.
+			append(encode(value));
+		}
+		return this;
+	}
+
+	RedisKeyEncoder append(long value)
+	{
+		ensureCapacity(MAX_LONG_DIGITS);
+		//Digits of the negated value, Long.MIN_VALUE has no positive counterpart.
+		long remaining = value < 0 ? value : -value;
+		int start = length;
+		if (value < 0)
+		{
+			buffer[length++] = '-';
+			start = length;
+		}
+		do
+		{
+			buffer[length++] = (byte)('0' - (remaining % 10));
+			remaining = remaining / 10;
+		}
+		while (remaining != 0);
+
+		for (int left = start, right = length - 1; left < right; ++left, --right)
+		{
+			byte swap = buffer[left];
+			buffer[left] = buffer[right];
+			buffer[right] = swap;
+		}
+		return this;
+	}
+
+	byte[] toBytes()
+	{
+		return Arrays.copyOf(buffer, length);
+	}
+
+	private void ensureCapacity(int additional)
+	{
+		if (length + additional > buffer.length)
+		{
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+/**
+ * Layout of the Redis keys of DistributedCacheDAOImpl. HashTagged has the userId in a
+ * hash tag, user:{userId}:session:..., so on a Redis Cluster all the keys of a user are
+ * in one slot and can be used together in a script or a pipeline. On a single Redis
+ * either works, Standard is the layout keys had before there was a choice.
+ */
+public enum RedisKeyLayout
+{
+	Standard("user:%s:session:id", "user:%s:session:index", "user:%s:session:details:%s", "user:%s:session:generation", "user:%s:session:record:%s"),
+	HashTagged("user:{%s}:session:id", "user:{%s}:session:index", "user:{%s}:session:details:%s", "user:{%s}:session:generation", "user:{%s}:session:record:%s");
+
+	private static final String PLACEHOLDER = "%s";
+
+	private String user2SessionIdFormat = null;
+	private String user2SessionIndexFormat = null;
+	private String user2SessionDetailsFormat = null;
+	private String user2SessionGenerationFormat = null;
+	private String user2SessionRecordFormat = null;
+
+	//Same keys as above pre-encoded for the binary API used on the hot paths, see RedisKeyEncoder.
+	private byte[] userKeyPrefix = null;
+	private byte[] user2SessionIdKeySuffix = null;
+	private byte[] user2SessionIndexKeySuffix = null;
+	private byte[] user2SessionDetailsKeyInfix = null;
+	private byte[] user2SessionGenerationKeySuffix = null;
+	private byte[] user2SessionRecordKeyInfix = null;
+
+	private RedisKeyLayout(String user2SessionIdFormat, String user2SessionIndexFormat, String user2SessionDetailsFormat, String user2SessionGenerationFormat, String user2SessionRecordFormat)
+	{
+		this.user2SessionIdFormat = user2SessionIdFormat;
+		this.user2SessionIndexFormat = user2SessionIndexFormat;
+		this.user2SessionDetailsFormat = user2SessionDetailsFormat;
+		this.user2SessionGenerationFormat = user2SessionGenerationFormat;
+		this.user2SessionRecordFormat = user2SessionRecordFormat;
+
+		userKeyPrefix = RedisKeyEncoder.encode(prefixOf(user2SessionIdFormat));
+		user2SessionIdKeySuffix = RedisKeyEncoder.encode(suffixOf(user2SessionIdFormat));
+		user2SessionIndexKeySuffix = RedisKeyEncoder.encode(suffixOf(user2SessionIndexFormat));
+		user2SessionDetailsKeyInfix = RedisKeyEncoder.encode(suffixOf(user2SessionDetailsFormat.substring(0, user2SessionDetailsFormat.lastIndexOf(PLACEHOLDER))));
+		user2SessionGenerationKeySuffix = RedisKeyEncoder.encode(suffixOf(user2SessionGenerationFormat));
+		user2SessionRecordKeyInfix = RedisKeyEncoder.encode(suffixOf(user2SessionRecordFormat.substring(0, user2SessionRecordFormat.lastIndexOf(PLACEHOLDER))));
+	}
+
+	String getUser2SessionIdFormat()
+	{
+		return user2SessionIdFormat;
+	}
+
+	String getUser2SessionIndexFormat()
+	{
+		return user2SessionIndexFormat;
+	}
+
+	String getUser2SessionDetailsFormat()
+	{
+		return user2SessionDetailsFormat;
+	}
+
+	//String keys are only used for Lua script arguments, the rest goes through the byte[] variants.
+	String createUser2SessionIdKey(String userId)
+	{
+		return String.format(user2SessionIdFormat, userId);
+	}
+
+	String createUser2SessionIndexKey(String userId)
+	{
+		return String.format(user2SessionIndexFormat, userId);
+	}
+
+	String createUser2SessionDetailsKey(String userId, String sessionId)
+	{
+		return String.format(user2SessionDetailsFormat, userId, sessionId);
+	}
+
+	String createUser2SessionGenerationKey(String userId)
+	{
+		return String.format(user2SessionGenerationFormat, userId);
+	}
+
+	String createUser2SessionRecordKey(String userId, String sessionId)
+	{
+		return String.format(user2SessionRecordFormat, userId, sessionId);
+	}
+
+	byte[] createUser2SessionIdKeyBytes(String userId)
+	{
+		return RedisKeyEncoder.start().append(userKeyPrefix).append(userId).append(user2SessionIdKeySuffix).toBytes();
+	}
+
+	byte[] createUser2SessionIndexKeyBytes(String userId)
+	{
+		return RedisKeyEncoder.start().append(userKeyPrefix).append(userId).append(user2SessionIndexKeySuffix).toBytes();
+	}
+
+	byte[] createUser2SessionDetailsKeyBytes(String userId, String sessionId)
+	{
+		return RedisKeyEncoder.start().append(userKeyPrefix).append(userId).append(user2SessionDetailsKeyInfix).append(sessionId).toBytes();
+	}
+
+	byte[] createUser2SessionDetailsKeyBytes(String userId, byte[] sessionId)
+	{
+		return RedisKeyEncoder.start().append(userKeyPrefix).append(userId).append(user2SessionDetailsKeyInfix).append(sessionId).toBytes();
+	}
+
+	byte[] createUser2SessionGenerationKeyBytes(String userId)
+	{
+		return RedisKeyEncoder.start().append(userKeyPrefix).append(userId).append(user2SessionGenerationKeySuffix).toBytes();
+	}
+
+	byte[] createUser2SessionRecordKeyBytes(String userId, String sessionId)
+	{
+		return RedisKeyEncoder.start().append(userKeyPrefix).append(userId).append(user2SessionRecordKeyInfix).append(sessionId).toBytes();
+	}
+
+	byte[] createUser2SessionRecordKeyBytes(String userId, byte[] sessionId)
+	{
+		return RedisKeyEncoder.start().append(userKeyPrefix).append(userId).append(user2SessionRecordKeyInfix).append(sessionId).toBytes();
+	}
+
+	/**
+	 * The userId of a User->SessionId list or sorted set key in this layout, null if key
+	 * is not one. A HashTagged key also looks like a Standard one, with the braces as
+	 * part of the userId, callers which care check HashTagged first.
+	 */
+	String getUserIdOfIndexKey(String key)
+	{
+		String userId = getUserIdOf(key, user2SessionIdFormat);
+		if (userId == null)
+		{
+			userId = getUserIdOf(key, user2SessionIndexFormat);
+		}
+		return userId;
+	}
+
+	private static String getUserIdOf(String key, String format)
+	{
+		String userId = null;
+		String prefix = prefixOf(format);
+		String suffix = suffixOf(format);
+		if (key.length() > prefix.length() + suffix.length() && key.startsWith(prefix) && key.endsWith(suffix))
+		{
+			userId = key.substring(prefix.length(), key.length() - suffix.length());
+		}
+		return userId;
+	}
+
+	private static String prefixOf(String format)
+	{
+		return format.substring(0, format.indexOf(PLACEHOLDER));
+	}
+
+	private static String suffixOf(String format)
+	{
+		return format.substring(format.indexOf(PLACEHOLDER) + PLACEHOLDER.length());
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.piangles.backbone.services.Locator;
+import org.piangles.backbone.services.logging.LoggingService;
+import org.piangles.core.resources.ResourceException;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.params.ZAddParams;
+
+/**
+ * Walks the keyspace of every node with SCAN and moves the keys of each user from one
+ * RedisKeyLayout to another, Standard to HashTagged ahead of or on a Redis Cluster. The
+ * old and new keys of a user are generally in different slots, so they are copied
+ * rather than renamed. Fields, members and expiry already in the new layout are kept,
+ * as this or another node may have written them since it switched layout, and the old
+ * keys are deleted once copied.
+ *
+ * Until the walk is done DistributedCacheDAOImpl migrates a user itself when it does not
+ * find what it looks for. Running it on more than one node at the same time is harmless.
+ */
+final class RedisKeyLayoutMigration implements Runnable
+{
+	private static final int SCAN_BATCH_SIZE = 500;
+
+	private RedisExecutor redisCache = null;
+	private RedisKeyLayout fromLayout = null;
+	private RedisKeyLayout toLayout = null;
+	private RedisSessionEncoding encoding = null;
+	private volatile boolean running = true;
+
+	RedisKeyLayoutMigration(RedisExecutor redisCache, RedisKeyLayout fromLayout, RedisKeyLayout toLayout, RedisSessionEncoding encoding)
+	{
+		this.redisCache = redisCache;
+		this.fromLayout = fromLayout;
+		this.toLayout = toLayout;
+		this.encoding = encoding;
+	}
+
+	@Override
+	public void run()
+	{
+		//Looked up here and not when created, the DAO is also created where there is no Locator.
+		LoggingService logger = Locator.getInstance().getLoggingService();
+
+		long usersMigrated = 0;
+		long sessionsMigrated = 0;
+		try
+		{
+			String[] indexKeyPatterns = {String.format(fromLayout.getUser2SessionIdFormat(), "*"), String.format(fromLayout.getUser2SessionIndexFormat(), "*")};
+			for (int nodeIndex = 0; nodeIndex < redisCache.getNodeCount(); ++nodeIndex)
+			{
+				for (String indexKeyPattern : indexKeyPatterns)
+				{
+					ScanParams scanParams = new ScanParams().match(indexKeyPattern).count(SCAN_BATCH_SIZE);
+					String cursor = ScanParams.SCAN_POINTER_START;
+					do
+					{
+						final String currentCursor = cursor;
+						ScanResult<String> scanResult = redisCache.executeOnNode(nodeIndex, (jedis) -> {
+							return jedis.scan(currentCursor, scanParams);
+						});
+
+						for (String indexKey : scanResult.getResult())
+						{
+							//Keys already in the new layout match the pattern of the old one as well.
+							String userId = toLayout.getUserIdOfIndexKey(indexKey) == null ? fromLayout.getUserIdOfIndexKey(indexKey) : null;
+							if (userId != null)
+							{
+								sessionsMigrated = sessionsMigrated + migrateUser(userId);
+								usersMigrated++;
+							}
+						}
+						cursor = scanResult.getCursor();
+					}
+					while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+				}
+			}
+			running = false;
+			logger.info("Migrated Redis keys from " + fromLayout + " to " + toLayout + " layout for " + usersMigrated + " users and " + sessionsMigrated + " sessions.");
+		}
+		catch (Exception e)
+		{
+			//Stays running, the DAO keeps migrating users it finds in the old layout until the next start.
+			logger.error("Unable to complete migration of Redis keys from " + fromLayout + " to " + toLayout + " layout after " + usersMigrated + " users. Reason: " + e.getMessage(), e);
+		}
+	}
+
+	boolean isRunning()
+	{
+		return running;
+	}
+
+	//Returns the count of sessions moved, nothing is done if the user has no keys in the old layout.
+	long migrateUser(String userId) throws ResourceException
+	{
+		byte[] fromListKey = fromLayout.createUser2SessionIdKeyBytes(userId);
+		byte[] fromSortedSetKey = fromLayout.createUser2SessionIndexKeyBytes(userId);
+		List<byte[]> listSessionIds = redisCache.execute(fromListKey, (jedis) -> {
+			return jedis.lrange(fromListKey, 0, -1);
+		});
+		Set<Tuple> sortedSetSessionIds = redisCache.execute(fromSortedSetKey, (jedis) -> {
+			return jedis.zrangeWithScores(fromSortedSetKey, 0, -1);
+		});
+
+		Set<String> sessionIds = new LinkedHashSet<>();
+		for (byte[] sessionId : listSessionIds)
+		{
+			sessionIds.add(RedisKeyEncoder.decode(sessionId));
+		}
+		for (Tuple sessionId : sortedSetSessionIds)
+		{
+			sessionIds.add(RedisKeyEncoder.decode(sessionId.getBinaryElement()));
+		}
+		if (!sessionIds.isEmpty())
+		{
+			copyGeneration(userId);
+		}
+		for (String sessionId : sessionIds)
+		{
+			if (encoding == RedisSessionEncoding.Record)
+			{
+				copyRecord(userId, sessionId);
+			}
+			else
+			{
+				copyDetails(userId, sessionId);
+			}
+		}
+
+		if (!listSessionIds.isEmpty())
+		{
+			byte[] toListKey = toLayout.createUser2SessionIdKeyBytes(userId);
+			redisCache.execute(toListKey, (jedis) -> {
+				Set<String> existing = new LinkedHashSet<>();
+				for (byte[] sessionId : jedis.lrange(toListKey, 0, -1))
+				{
+					existing.add(RedisKeyEncoder.decode(sessionId));
+				}
+				//Newest first like LPUSH, anything already there was pushed after the switch and is newer.
+				List<byte[]> missing = new ArrayList<>();
+				for (byte[] sessionId : listSessionIds)
+				{
+					if (!existing.contains(RedisKeyEncoder.decode(sessionId)))
+					{
+						missing.add(sessionId);
+					}
+				}
+				if (!missing.isEmpty())
+				{
+					jedis.rpush(toListKey, missing.toArray(new byte[missing.size()][]));
+				}
+				return null;
+			});
+			redisCache.execute(fromListKey, (jedis) -> {
+				return jedis.del(fromListKey);
+			});
+		}
+
+		if (!sortedSetSessionIds.isEmpty())
+		{
+			byte[] toSortedSetKey = toLayout.createUser2SessionIndexKeyBytes(userId);
+			Map<byte[], Double> scores = new HashMap<>();
+			for (Tuple sessionId : sortedSetSessionIds)
+			{
+				scores.put(sessionId.getBinaryElement(), sessionId.getScore());
+			}
+			redisCache.execute(toSortedSetKey, (jedis) -> {
+				return jedis.zadd(toSortedSetKey, scores, ZAddParams.zAddParams().nx());
+			});
+			redisCache.execute(fromSortedSetKey, (jedis) -> {
+				return jedis.del(fromSortedSetKey);
+			});
+		}
+
+		return sessionIds.size();
+	}
+
+	/**
+	 * Kept if the user already has one in the new layout, which can only be from another
+	 * node as the DAO migrates a user before it moves the generation on. Without sessions
+	 * the generation does not matter and is left where it is.
+	 */
+	private void copyGeneration(String userId) throws ResourceException
+	{
+		byte[] fromKey = fromLayout.createUser2SessionGenerationKeyBytes(userId);
+		byte[] toKey = toLayout.createUser2SessionGenerationKeyBytes(userId);
+
+		Object[] generationAndTTL = redisCache.execute(fromKey, (jedis) -> {
+			Pipeline pipeline = jedis.pipelined();
+			Response<byte[]> generation = pipeline.get(fromKey);
+			Response<Long> ttl = pipeline.pttl(fromKey);
+			pipeline.sync();
+			return new Object[] {generation.get(), ttl.get()};
+		});
+		byte[] generation = (byte[])generationAndTTL[0];
+		long ttl = (Long)generationAndTTL[1];
+
+		if (generation != null)
+		{
+			//It expires along with the sessions of the user, see DistributedCacheDAOImpl.getGenerationExpiry.
+			SetParams params = ttl > 0 ? SetParams.setParams().nx().px(ttl) : SetParams.setParams().nx();
+			redisCache.execute(toKey, (jedis) -> {
+				return jedis.set(toKey, generation, params);
+			});
+			redisCache.execute(fromKey, (jedis) -> {
+				return jedis.del(fromKey);
+			});
+		}
+	}
+
+	private void copyDetails(String userId, String sessionId) throws ResourceException
+	{
+		byte[] fromKey = fromLayout.createUser2SessionDetailsKeyBytes(userId, sessionId);
+		byte[] toKey = toLayout.createUser2SessionDetailsKeyBytes(userId, sessionId);
+
+		Object[] detailsAndTTL = redisCache.execute(fromKey, (jedis) -> {
+			Pipeline pipeline = jedis.pipelined();
+			Response<Map<byte[], byte[]>> details = pipeline.hgetAll(fromKey);
+			Response<Long> ttl = pipeline.pttl(fromKey);
+			pipeline.sync();
+			return new Object[] {details.get(), ttl.get()};
+		});
+		@SuppressWarnings("unchecked")
+		Map<byte[], byte[]> details = (Map<byte[], byte[]>)detailsAndTTL[0];
+		long ttl = (Long)detailsAndTTL[1];
+
+		if (!details.isEmpty())
+		{
+			redisCache.execute(toKey, (jedis) -> {
+				Pipeline pipeline = jedis.pipelined();
+				Response<Boolean> existed = pipeline.exists(toKey);
+				for (Map.Entry<byte[], byte[]> field : details.entrySet())
+				{
+					pipeline.hsetnx(toKey, field.getKey(), field.getValue());
+				}
+				pipeline.sync();
+				//Marked for unregister, unless it has been touched in the new layout which would have cleared it.
+				if (!existed.get() && ttl > 0)
+				{
+					jedis.pexpire(toKey, ttl);
+				}
+				return null;
+			});
+		}
+		redisCache.execute(fromKey, (jedis) -> {
+			return jedis.del(fromKey);
+		});
+	}
+
+	/**
+	 * Same as copyDetails for a SessionRecord. A record already in the new layout is kept,
+	 * one a touch left there before the session was copied only gives it its LastAccessedTS.
+	 */
+	private void copyRecord(String userId, String sessionId) throws ResourceException
+	{
+		byte[] fromKey = fromLayout.createUser2SessionRecordKeyBytes(userId, sessionId);
+		byte[] toKey = toLayout.createUser2SessionRecordKeyBytes(userId, sessionId);
+
+		Object[] recordAndTTL = redisCache.execute(fromKey, (jedis) -> {
+			Pipeline pipeline = jedis.pipelined();
+			Response<byte[]> record = pipeline.get(fromKey);
+			Response<Long> ttl = pipeline.pttl(fromKey);
+			pipeline.sync();
+			return new Object[] {record.get(), ttl.get()};
+		});
+		byte[] record = (byte[])recordAndTTL[0];
+		long ttl = (Long)recordAndTTL[1];
+
+		if (SessionRecord.isSession(record))
+		{
+			redisCache.execute(toKey, (jedis) -> {
+				byte[] existing = jedis.get(toKey);
+				if (!SessionRecord.isSession(existing))
+				{
+					jedis.set(toKey, SessionRecord.withLastAccessedTS(record, existing));
+					//Marked for unregister, unless it has been touched in the new layout which would have cleared it.
+					if (existing == null && ttl > 0)
+					{
+						jedis.pexpire(toKey, ttl);
+					}
+				}
+				return null;
+			});
+		}
+		redisCache.execute(fromKey, (jedis) -> {
+			return jedis.del(fromKey);
+		});
+	}
+}
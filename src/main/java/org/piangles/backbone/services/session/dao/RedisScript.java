@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.List;
+
+import org.piangles.backbone.services.session.metrics.OperationMetrics;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * A Lua script which is loaded once into Redis and from then on invoked by its SHA1
+ * through EVALSHA, so only the arguments travel over the wire. If Redis has lost the
+ * script (restart, SCRIPT FLUSH, failover) it is loaded again and the call retried.
+ */
+final class RedisScript
+{
+	private String source = null;
+	private volatile String sha = null;
+
+	RedisScript(String source)
+	{
+		this.source = source;
+	}
+
+	void load(Jedis jedis)
+	{
+		OperationMetrics.recordRedis(1, 1);
+		sha = jedis.scriptLoad(source);
+	}
+
+	Object execute(Jedis jedis, List<String> keys, List<String> args)
+	{
+		Object result = null;
+		if (sha == null)
+		{
+			load(jedis);
+		}
+
+		try
+		{
+			OperationMetrics.recordRedis(1, 1);
+			result = jedis.evalsha(sha, keys, args);
+		}
+		catch (JedisNoScriptException e)
+		{
+			load(jedis);
+			OperationMetrics.recordRedis(1, 1);
+			result = jedis.evalsha(sha, keys, args);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Queues the script on pipeline, it has to have been loaded once. If the node does not
+	 * have it the Response throws JedisNoScriptException, callers redo it with execute.
+	 */
+	Response<Object> execute(Pipeline pipeline, List<String> keys, List<String> args)
+	{
+		return pipeline.evalsha(sha, keys, args);
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+/**
+ * How DistributedCacheDAOImpl stores a session.
+ * 
+ * Hash : user:%s:session:details:%s is a Redis Hash of UserId, SessionId, authenticationState,
+ * CreatedTS, LastAccessedTS and Generation, each as a String.
+ * 
+ * Record : user:%s:session:record:%s is a Redis String holding a SessionRecord, a fixed
+ * layout of binary timestamps and a numbered authenticationState. Less memory per session,
+ * nothing to parse on a read and LastAccessedTS is written in place with SETRANGE.
+ * Sessions are not moved between the two, a switch leaves those of the other one behind.
+ */
+public enum RedisSessionEncoding
+{
+	Hash, Record;
+
+	String createUser2SessionDetailsKey(RedisKeyLayout keyLayout, String userId, String sessionId)
+	{
+		return this == Record ? keyLayout.createUser2SessionRecordKey(userId, sessionId) : keyLayout.createUser2SessionDetailsKey(userId, sessionId);
+	}
+
+	byte[] createUser2SessionDetailsKeyBytes(RedisKeyLayout keyLayout, String userId, String sessionId)
+	{
+		return this == Record ? keyLayout.createUser2SessionRecordKeyBytes(userId, sessionId) : keyLayout.createUser2SessionDetailsKeyBytes(userId, sessionId);
+	}
+
+	byte[] createUser2SessionDetailsKeyBytes(RedisKeyLayout keyLayout, String userId, byte[] sessionId)
+	{
+		return this == Record ? keyLayout.createUser2SessionRecordKeyBytes(userId, sessionId) : keyLayout.createUser2SessionDetailsKeyBytes(userId, sessionId);
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.piangles.backbone.services.Locator;
+import org.piangles.backbone.services.logging.LoggingService;
+import org.piangles.core.dao.DAOException;
+import org.piangles.core.resources.RedisCache;
+import org.piangles.core.resources.ResourceException;
+
+import redis.clients.jedis.JedisPubSub;
+
+/**
+ * Redis Pub/Sub backed SessionInvalidationChannel. A Pub/Sub channel is used instead
+ * of keyspace notifications as it does not need notify-keyspace-events to be configured
+ * on the server and the message carries both the userId and the sessionId.
+ *
+ * The subscription holds on to one pooled connection for as long as the node is up.
+ * Whenever the subscription is (re)established listeners are asked to resynchronize,
+ * as messages published while it was down are lost.
+ */
+public final class RedisSessionInvalidationChannel implements SessionInvalidationChannel
+{
+	private static final String DEFAULT_CHANNEL_NAME = "session:invalidation";
+	private static final char MESSAGE_SEPARATOR = ':';
+	private static final long RECONNECT_DELAY_IN_MILLISECONDS = 1000L;
+
+	private LoggingService logger = null;
+
+	private RedisExecutor redisCache = null;
+	private String channelName = null;
+	private List<SessionInvalidationListener> listeners = null;
+	private Thread subscriberThread = null;
+
+	public RedisSessionInvalidationChannel(RedisCache redisCache)
+	{
+		this(redisCache, DEFAULT_CHANNEL_NAME);
+	}
+
+	public RedisSessionInvalidationChannel(RedisCache redisCache, String channelName)
+	{
+		this(RedisExecutor.forRedisCache(redisCache), channelName);
+	}
+
+	RedisSessionInvalidationChannel(RedisExecutor redisCache)
+	{
+		this(redisCache, DEFAULT_CHANNEL_NAME);
+	}
+
+	RedisSessionInvalidationChannel(RedisExecutor redisCache, String channelName)
+	{
+		this.redisCache = redisCache;
+		this.channelName = channelName;
+		this.listeners = new CopyOnWriteArrayList<>();
+	}
+
+	@Override
+	public void publish(String userId, String sessionId) throws DAOException
+	{
+		try
+		{
+			redisCache.execute((jedis) -> {
+				return jedis.publish(channelName, userId + MESSAGE_SEPARATOR + sessionId);
+			});
+		}
+		catch (ResourceException e)
+		{
+			throw new DAOException(e);
+		}
+	}
+
+	//An empty sessionId stands for all the sessions of the user.
+	@Override
+	public void publishAll(String userId) throws DAOException
+	{
+		publish(userId, "");
+	}
+
+	@Override
+	public synchronized void subscribe(SessionInvalidationListener listener)
+	{
+		listeners.add(listener);
+		if (subscriberThread == null)
+		{
+			//Looked up here and not when created, the channel is also created where there is no Locator.
+			logger = Locator.getInstance().getLoggingService();
+			subscriberThread = new Thread(this::listen, "SessionInvalidationSubscriber");
+			subscriberThread.setDaemon(true);
+			subscriberThread.start();
+		}
+	}
+
+	private void listen()
+	{
+		while (true)
+		{
+			try
+			{
+				redisCache.execute((jedis) -> {
+					jedis.subscribe(new InvalidationPubSub(), channelName);
+					return null;
+				});
+			}
+			catch (Exception e)
+			{
+				logger.error("Subscription to " + channelName + " was lost. Reason: " + e.getMessage(), e);
+			}
+
+			try
+			{
+				Thread.sleep(RECONNECT_DELAY_IN_MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	private final class InvalidationPubSub extends JedisPubSub
+	{
+		@Override
+		public void onSubscribe(String channel, int subscribedChannels)
+		{
+			logger.info("Subscribed to " + channel + " for session invalidations.");
+			for (SessionInvalidationListener listener : listeners)
+			{
+				listener.resynchronize();
+			}
+		}
+
+		@Override
+		public void onMessage(String channel, String message)
+		{
+			//SessionIds never contain the separator, UserIds might.
+			int index = message.lastIndexOf(MESSAGE_SEPARATOR);
+			if (index > 0)
+			{
+				String userId = message.substring(0, index);
+				String sessionId = message.substring(index + 1);
+				for (SessionInvalidationListener listener : listeners)
+				{
+					if (sessionId.isEmpty())
+					{
+						listener.invalidatedAll(userId);
+					}
+					else
+					{
+						listener.invalidated(userId, sessionId);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.piangles.backbone.services.Locator;
+import org.piangles.backbone.services.logging.LoggingService;
+import org.piangles.core.resources.ResourceException;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.params.SetParams;
+
+/**
+ * Removes what expired sessions leave behind in Redis, also of users who never log in
+ * again, so register does not have to. Every sweepInterval it walks the User->SessionId
+ * indexes of every node with SCAN and reaps the users of each batch, a script per user,
+ * in one pipeline. At most maxUsersPerSecond users are reaped per second.
+ *
+ * Only the node which holds the lease sweeps. The lease is renewed after each batch, a
+ * node which stops half way loses it after LEASE_DURATION, and it is kept for
+ * sweepInterval once a sweep is done so the other nodes do not sweep again right after.
+ * Nothing is swept while keys are moved to another RedisKeyLayout.
+ */
+public final class RedisSessionReaper
+{
+	static final String LEASE_KEY = "session:reaper:lease";
+	private static final long LEASE_DURATION_IN_MILLISECONDS = 30000;
+	private static final int SCAN_BATCH_SIZE = 500;
+	private static final String OK = "OK";
+
+	private RedisExecutor redisCache = null;
+	private RedisKeyLayout keyLayout = null;
+	private RedisSessionEncoding encoding = null;
+	private User2SessionIndexType indexType = null;
+	private long sessionTimeoutInMilliSeconds;
+	private long sweepIntervalInMilliSeconds;
+	private int maxUsersPerSecond;
+	private BooleanSupplier migrating = null;
+
+	private String owner = null;
+	private RedisScript reapScript = null;
+	private RedisScript renewLeaseScript = null;
+	private ScheduledExecutorService sweepExecutor = null;
+
+	private volatile long sweepCount;
+	private volatile long reclaimedKeyCount;
+	private volatile long lastSweepReclaimedKeysPerSecond;
+
+	RedisSessionReaper(RedisExecutor redisCache, RedisKeyLayout keyLayout, RedisSessionEncoding encoding, User2SessionIndexType indexType, long sessionTimeout, long sweepIntervalInSeconds, int maxUsersPerSecond, BooleanSupplier migrating)
+	{
+		this.redisCache = redisCache;
+		this.keyLayout = keyLayout;
+		this.encoding = encoding;
+		this.indexType = indexType;
+		this.sessionTimeoutInMilliSeconds = sessionTimeout * 1000;
+		this.sweepIntervalInMilliSeconds = sweepIntervalInSeconds * 1000;
+		this.maxUsersPerSecond = maxUsersPerSecond;
+		this.migrating = migrating;
+
+		owner = UUID.randomUUID().toString();
+		reapScript = new RedisScript(DistributedCacheScripts.forEncoding(encoding, indexType == User2SessionIndexType.SortedSet ? DistributedCacheScripts.SORTED_SET_REAP_USER : DistributedCacheScripts.LIST_REAP_USER));
+		renewLeaseScript = new RedisScript(DistributedCacheScripts.RENEW_LEASE);
+		sweepExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "RedisSessionReaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweepExecutor.scheduleWithFixedDelay(this::sweep, sweepIntervalInMilliSeconds, sweepIntervalInMilliSeconds, TimeUnit.MILLISECONDS);
+	}
+
+	public long getSweepCount()
+	{
+		return sweepCount;
+	}
+
+	public long getReclaimedKeyCount()
+	{
+		return reclaimedKeyCount;
+	}
+
+	//Keys reclaimed per second of the last sweep this node did.
+	public long getLastSweepReclaimedKeysPerSecond()
+	{
+		return lastSweepReclaimedKeysPerSecond;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "RedisSessionReaper [sweeps=" + sweepCount + ", reclaimedKeys=" + reclaimedKeyCount + ", lastSweepReclaimedKeysPerSecond=" + lastSweepReclaimedKeysPerSecond + "]";
+	}
+
+	//Every sweepInterval on the sweep executor, the tests call it directly.
+	void sweep()
+	{
+		//Looked up here and not when created, the DAO is also created where there is no Locator.
+		LoggingService logger = Locator.getInstance().getLoggingService();
+
+		long start = System.currentTimeMillis();
+		long usersReaped = 0;
+		long keysReclaimed = 0;
+		try
+		{
+			if (!migrating.getAsBoolean() && acquireLease())
+			{
+				String indexFormat = indexType == User2SessionIndexType.SortedSet ? keyLayout.getUser2SessionIndexFormat() : keyLayout.getUser2SessionIdFormat();
+				ScanParams scanParams = new ScanParams().match(String.format(indexFormat, "*")).count(SCAN_BATCH_SIZE);
+				boolean leased = true;
+				for (int nodeIndex = 0; leased && nodeIndex < redisCache.getNodeCount(); ++nodeIndex)
+				{
+					final int currentNodeIndex = nodeIndex;
+					redisCache.executeOnNode(currentNodeIndex, (jedis) -> {
+						reapScript.load(jedis);
+						return null;
+					});
+
+					String cursor = ScanParams.SCAN_POINTER_START;
+					do
+					{
+						long batchStart = System.nanoTime();
+						final String currentCursor = cursor;
+						ScanResult<String> scanResult = redisCache.executeOnNode(currentNodeIndex, (jedis) -> {
+							return jedis.scan(currentCursor, scanParams);
+						});
+
+						List<String> userIds = new ArrayList<>(scanResult.getResult().size());
+						for (String indexKey : scanResult.getResult())
+						{
+							String userId = keyLayout.getUserIdOfIndexKey(indexKey);
+							if (userId != null)
+							{
+								userIds.add(userId);
+							}
+						}
+						if (!userIds.isEmpty())
+						{
+							keysReclaimed = keysReclaimed + reap(currentNodeIndex, userIds);
+							usersReaped = usersReaped + userIds.size();
+						}
+						cursor = scanResult.getCursor();
+
+						leased = renewLease(LEASE_DURATION_IN_MILLISECONDS);
+						pace(batchStart, userIds.size());
+					}
+					while (leased && !ScanParams.SCAN_POINTER_START.equals(cursor));
+				}
+
+				if (leased)
+				{
+					renewLease(sweepIntervalInMilliSeconds);
+				}
+				else
+				{
+					logger.warn("RedisSessionReaper lost its lease after " + usersReaped + " users, another node carries on.");
+				}
+				record(start, keysReclaimed);
+				logger.info("RedisSessionReaper reaped " + usersReaped + " users and reclaimed " + keysReclaimed + " keys in " + (System.currentTimeMillis() - start) + "ms.");
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e)
+		{
+			//The lease runs out, the next sweep of this or another node starts over.
+			record(start, keysReclaimed);
+			logger.error("Unable to complete sweep of RedisSessionReaper after " + usersReaped + " users. Reason: " + e.getMessage(), e);
+		}
+	}
+
+	//All users are on nodeIndex, each one's keys are in a single slot.
+	private long reap(int nodeIndex, List<String> userIds) throws ResourceException
+	{
+		String now = "" + System.currentTimeMillis();
+		return redisCache.executeOnNode(nodeIndex, (jedis) -> {
+			Pipeline pipeline = MeteredPipeline.pipelined(jedis);
+			List<Response<Object>> responses = new ArrayList<>(userIds.size());
+			for (String userId : userIds)
+			{
+				List<String> keys = Arrays.asList(createIndexKey(userId), keyLayout.createUser2SessionGenerationKey(userId));
+				responses.add(reapScript.execute(pipeline, keys, Arrays.asList(now, "" + sessionTimeoutInMilliSeconds, encoding.createUser2SessionDetailsKey(keyLayout, userId, ""))));
+			}
+			pipeline.sync();
+
+			long reclaimed = 0;
+			for (Response<Object> response : responses)
+			{
+				reclaimed = reclaimed + (Long)response.get();
+			}
+			return reclaimed;
+		});
+	}
+
+	private boolean acquireLease() throws ResourceException
+	{
+		String acquired = redisCache.execute(RedisKeyEncoder.encode(LEASE_KEY), (jedis) -> {
+			return jedis.set(LEASE_KEY, owner, SetParams.setParams().nx().px(LEASE_DURATION_IN_MILLISECONDS));
+		});
+		return OK.equals(acquired);
+	}
+
+	private boolean renewLease(long milliSeconds) throws ResourceException
+	{
+		Long renewed = redisCache.execute(RedisKeyEncoder.encode(LEASE_KEY), (jedis) -> {
+			return (Long)renewLeaseScript.execute(jedis, Arrays.asList(LEASE_KEY), Arrays.asList(owner, "" + milliSeconds));
+		});
+		return renewed == 1L;
+	}
+
+	//Spreads the users of a batch over the time maxUsersPerSecond allows for them.
+	private void pace(long batchStart, int userCount) throws InterruptedException
+	{
+		long remaining = (userCount * 1000000000L / maxUsersPerSecond) - (System.nanoTime() - batchStart);
+		if (remaining > 0)
+		{
+			TimeUnit.NANOSECONDS.sleep(remaining);
+		}
+	}
+
+	private void record(long start, long keysReclaimed)
+	{
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		lastSweepReclaimedKeysPerSecond = keysReclaimed * 1000 / elapsed;
+		reclaimedKeyCount = reclaimedKeyCount + keysReclaimed;
+		sweepCount++;
+	}
+
+	private String createIndexKey(String userId)
+	{
+		return indexType == User2SessionIndexType.SortedSet ? keyLayout.createUser2SessionIndexKey(userId) : keyLayout.createUser2SessionIdKey(userId);
+	}
+}
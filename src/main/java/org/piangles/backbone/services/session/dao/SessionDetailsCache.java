@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import org.piangles.backbone.services.session.SessionDetails;
+
+/**
+ * Node local copy of recently used SessionDetails, the L1 of TwoTierDAOImpl. Same rules
+ * as SessionValidityCache: every entry expires at the earlier of the configured TTL and
+ * the end of the session as of its LastAccessedTS, and the caller takes a stamp before
+ * reading the L2 so that what it read is only cached if no invalidation came in meanwhile.
+ */
+public final class SessionDetailsCache extends AbstractSessionCache<SessionDetails>
+{
+	public SessionDetailsCache(int maxSize, long ttlInMilliSeconds)
+	{
+		super(maxSize, ttlInMilliSeconds);
+	}
+
+	//Null if not cached or no longer fresh.
+	public SessionDetails get(String userId, String sessionId)
+	{
+		return lookup(userId, sessionId);
+	}
+
+	public void put(SessionDetails sessionDetails, long sessionExpiresAt, long stamp)
+	{
+		cache(sessionDetails.getUserId(), sessionDetails.getSessionId(), sessionDetails, sessionExpiresAt, stamp);
+	}
+
+	/**
+	 * Written through on this node, the cached copy if any gets the new LastAccessedTS.
+	 * Sessions not cached are left alone, they are read on first use.
+	 */
+	public void touched(String userId, String sessionId, long lastAccessedTS, long sessionExpiresAt, long stamp)
+	{
+		replace(userId, sessionId, (sessionDetails) -> new SessionDetails(userId, sessionId,
+																			sessionDetails.getAuthenticationState(),
+																			sessionDetails.getInactivityExpiryTimeInSeconds(),
+																			sessionDetails.getCreatedTS(), lastAccessedTS), sessionExpiresAt, stamp);
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+/**
+ * What the in memory DAOs schedule on their TimingWheel. Either the inactivity expiry
+ * of a session, which moves along as the session is touched, or a one off removal
+ * after markForRemoveSessionDetails, which a touch after markedAt cancels just like
+ * a touch persists a Redis key that had an expiry set.
+ */
+final class SessionExpiry
+{
+	private String userId;
+	private String sessionId;
+	private long markedAt;
+
+	static SessionExpiry inactivity(String userId, String sessionId)
+	{
+		return new SessionExpiry(userId, sessionId, 0L);
+	}
+
+	static SessionExpiry markedForRemoval(String userId, String sessionId, long markedAt)
+	{
+		return new SessionExpiry(userId, sessionId, markedAt);
+	}
+
+	private SessionExpiry(String userId, String sessionId, long markedAt)
+	{
+		this.userId = userId;
+		this.sessionId = sessionId;
+		this.markedAt = markedAt;
+	}
+
+	String getUserId()
+	{
+		return userId;
+	}
+
+	String getSessionId()
+	{
+		return sessionId;
+	}
+
+	boolean isMarkedForRemoval()
+	{
+		return markedAt > 0;
+	}
+
+	long getMarkedAt()
+	{
+		return markedAt;
+	}
+}
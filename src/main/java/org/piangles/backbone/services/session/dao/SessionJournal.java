@@ -0,0 +1,812 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import org.piangles.backbone.services.session.SessionDetails;
+
+/**
+ * Append only log of the changes made to an in memory DAO, so a restart does not start
+ * with no sessions. Request threads only queue a change, a single writer thread appends
+ * what is queued to a memory mapped segment file and forces it to disk every
+ * commitInterval milliseconds, a group commit. A killed process loses nothing the writer
+ * has put in the mapping, a machine crash at most the last commitInterval.
+ *
+ * A change is given its sequence by the DAO under its lock and queued once the lock is
+ * released, the writer puts changes back in sequence before writing them. The queue is
+ * never waited on, see append.
+ *
+ * After compactAfterSegments full segments the sessions are written to a snapshot, a
+ * session marked for removal followed by its mark, and
+ * the segments before it deleted. recover maps the latest snapshot and replays the
+ * segments written since, each up to the first record that is incomplete or fails its
+ * checksum. Records carry absolute values, replaying a change the snapshot already has
+ * does no harm.
+ *
+ * A record is an int length, the CRC32 of the payload and the payload, a type byte and
+ * the fields of that type. Files are segment-N.log and snapshot-N.dat, the snapshot
+ * holding the state from before segment N.
+ */
+public final class SessionJournal implements AutoCloseable
+{
+	private static final byte STORED = 1;
+	private static final byte REMOVED = 2;
+	private static final byte TOUCHED = 3;
+	private static final byte AUTHENTICATION_STATE_CHANGED = 4;
+	private static final byte MARKED_FOR_REMOVAL = 5;
+	private static final byte ALL_REMOVED = 6;
+
+	private static final int HEADER_SIZE = 8;
+	private static final int QUEUE_CAPACITY = 65536;
+	private static final int MAX_BATCH_SIZE = 4096;
+	private static final int SNAPSHOT_BUFFER_SIZE = 1 << 20;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".dat";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	//Made by the DAO under its lock and appended once it has released it.
+	static final class Mutation
+	{
+		private long sequence;
+		private byte type;
+		private SessionDetails sessionDetails;
+		private String userId;
+		private String sessionId;
+		private String authenticationState;
+		private long timestamp;
+	}
+
+	//A session as it goes into a snapshot, markedAt is 0 unless it is marked for removal.
+	static final class SnapshotSession
+	{
+		private SessionDetails sessionDetails;
+		private long markedAt;
+
+		SnapshotSession(SessionDetails sessionDetails, long markedAt)
+		{
+			this.sessionDetails = sessionDetails;
+			this.markedAt = markedAt;
+		}
+	}
+
+	/**
+	 * Encodes one payload at a time into a buffer reused by the thread that owns it.
+	 */
+	private static final class RecordEncoder
+	{
+		private ByteBuffer payload = ByteBuffer.allocate(256);
+		private CRC32 crc = new CRC32();
+
+		private void encode(Mutation mutation)
+		{
+			payload.clear();
+			ensureCapacity(1);
+			payload.put(mutation.type);
+			if (mutation.type == STORED)
+			{
+				SessionDetails sessionDetails = mutation.sessionDetails;
+				putString(sessionDetails.getUserId());
+				putString(sessionDetails.getSessionId());
+				putString(sessionDetails.getAuthenticationState());
+				ensureCapacity(24);
+				payload.putLong(sessionDetails.getInactivityExpiryTimeInSeconds());
+				payload.putLong(sessionDetails.getCreatedTS());
+				payload.putLong(sessionDetails.getLastAccessedTS());
+			}
+			else
+			{
+				putString(mutation.userId);
+				putString(mutation.sessionId);
+				if (mutation.type == AUTHENTICATION_STATE_CHANGED)
+				{
+					putString(mutation.authenticationState);
+				}
+				else if (mutation.type != REMOVED && mutation.type != ALL_REMOVED)
+				{
+					ensureCapacity(8);
+					payload.putLong(mutation.timestamp);
+				}
+			}
+			payload.flip();
+			crc.reset();
+			crc.update(payload.array(), 0, payload.limit());
+		}
+
+		private int size()
+		{
+			return HEADER_SIZE + payload.limit();
+		}
+
+		private void writeTo(ByteBuffer target)
+		{
+			target.putInt(payload.limit());
+			target.putInt((int)crc.getValue());
+			target.put(payload.array(), 0, payload.limit());
+		}
+
+		//A null authenticationState, or the sessionId of ALL_REMOVED, is written as length -1.
+		private void putString(String value)
+		{
+			byte[] bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+			ensureCapacity(4 + (bytes != null ? bytes.length : 0));
+			payload.putInt(bytes != null ? bytes.length : -1);
+			if (bytes != null)
+			{
+				payload.put(bytes);
+			}
+		}
+
+		private void ensureCapacity(int additional)
+		{
+			if (payload.remaining() < additional)
+			{
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(payload.capacity() * 2, payload.position() + additional));
+				payload.flip();
+				larger.put(payload);
+				payload = larger;
+			}
+		}
+	}
+
+	private Path directory = null;
+	private int segmentSize;
+	private long commitInterval;
+	private int compactAfterSegments;
+
+	private BlockingQueue<Mutation> queue = null;
+	private AtomicLong nextSequence = null;
+	private AtomicLong appendedCount = null;
+	private long writtenCount;
+	private AtomicLong droppedCount = null;
+	private volatile boolean running;
+	private AtomicBoolean failed = null;
+	private Thread writer = null;
+	private Thread shutdownHook = null;
+	private RecordEncoder encoder = null;
+
+	private long segmentSequence;
+	private FileChannel segmentChannel = null;
+	private MappedByteBuffer segment = null;
+	private boolean dirty;
+	private int segmentsSinceSnapshot;
+
+	private Supplier<Collection<SnapshotSession>> snapshotSource = null;
+	private Object compactionLock = null;
+	private AtomicBoolean compactionPending = null;
+	private Thread compaction = null;
+
+	/**
+	 * segmentSize in bytes is also the largest a single record can be. commitInterval is in
+	 * milliseconds.
+	 */
+	public SessionJournal(Path directory, int segmentSize, long commitInterval, int compactAfterSegments) throws IOException
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.commitInterval = commitInterval;
+		this.compactAfterSegments = Math.max(compactAfterSegments, 1);
+
+		Files.createDirectories(directory);
+		queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		nextSequence = new AtomicLong();
+		appendedCount = new AtomicLong();
+		failed = new AtomicBoolean();
+		droppedCount = new AtomicLong();
+		encoder = new RecordEncoder();
+		compactionLock = new Object();
+		compactionPending = new AtomicBoolean();
+	}
+
+	/**
+	 * Replays the latest snapshot and every segment after it into target. Called once
+	 * before start, returns the number of records replayed.
+	 */
+	public long recover(SessionMutationListener target) throws IOException
+	{
+		TreeMap<Long, Path> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		TreeMap<Long, Path> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+
+		long replayed = 0;
+		long firstSegment = 0;
+		if (!snapshots.isEmpty())
+		{
+			firstSegment = snapshots.lastKey();
+			replayed = replay(snapshots.lastEntry().getValue(), target);
+		}
+		for (Path segmentPath : segments.tailMap(firstSegment).values())
+		{
+			replayed = replayed + replay(segmentPath, target);
+		}
+
+		//Never appended to, the last segment may end in a torn record.
+		segmentSequence = Math.max(firstSegment, segments.isEmpty() ? 0 : segments.lastKey() + 1);
+		return replayed;
+	}
+
+	/**
+	 * Opens a new segment and starts the writer. snapshotSource is called from the
+	 * compaction thread and has to return a copy of the sessions.
+	 */
+	synchronized void start(Supplier<Collection<SnapshotSession>> snapshotSource) throws IOException
+	{
+		this.snapshotSource = snapshotSource;
+		openSegment();
+		running = true;
+		writer = new Thread(this::write, "SessionJournalWriter");
+		writer.setDaemon(true);
+		writer.start();
+		shutdownHook = new Thread(this::close, "SessionJournalClose");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	//Called by the DAO under its lock, which gives the change its place in the journal.
+	Mutation stored(SessionDetails sessionDetails)
+	{
+		Mutation mutation = mutation(STORED, null, null, null, 0L);
+		mutation.sessionDetails = sessionDetails;
+		return mutation;
+	}
+
+	Mutation removed(String userId, String sessionId)
+	{
+		return mutation(REMOVED, userId, sessionId, null, 0L);
+	}
+
+	Mutation touched(String userId, String sessionId, long lastAccessedTS)
+	{
+		return mutation(TOUCHED, userId, sessionId, null, lastAccessedTS);
+	}
+
+	Mutation authenticationStateChanged(String userId, String sessionId, String authenticationState)
+	{
+		return mutation(AUTHENTICATION_STATE_CHANGED, userId, sessionId, authenticationState, 0L);
+	}
+
+	Mutation markedForRemoval(String userId, String sessionId, long markedAt)
+	{
+		return mutation(MARKED_FOR_REMOVAL, userId, sessionId, null, markedAt);
+	}
+
+	Mutation allRemoved(String userId)
+	{
+		return mutation(ALL_REMOVED, userId, null, null, 0L);
+	}
+
+	/**
+	 * Queues mutation without waiting, called by the DAO once it has released its lock.
+	 * When the writer is QUEUE_CAPACITY changes behind the journal fails, as it does when
+	 * it cannot write, since recovering from a journal missing a change would bring back
+	 * the wrong sessions. From then on, and once closed, changes are dropped and counted.
+	 */
+	void append(Mutation mutation)
+	{
+		if (failed.get() || !running)
+		{
+			droppedCount.incrementAndGet();
+		}
+		else if (queue.offer(mutation))
+		{
+			appendedCount.incrementAndGet();
+		}
+		else
+		{
+			droppedCount.incrementAndGet();
+			fail("is " + QUEUE_CAPACITY + " changes behind");
+		}
+	}
+
+	/**
+	 * Waits until everything appended so far is written and forced to disk.
+	 */
+	public void flush() throws IOException, InterruptedException
+	{
+		long target = appendedCount.get();
+		synchronized (this)
+		{
+			while (writtenCount < target && !failed.get() && writer != null)
+			{
+				wait(commitInterval);
+			}
+			if (failed.get())
+			{
+				throw new IOException("SessionJournal in " + directory + " has failed, changes are no longer written.");
+			}
+			force();
+		}
+	}
+
+	/**
+	 * Starts a new segment and snapshots the sessions into it on the calling thread.
+	 */
+	public void compact() throws IOException
+	{
+		long snapshotSequence;
+		synchronized (this)
+		{
+			rollSegment();
+			snapshotSequence = segmentSequence;
+		}
+		compact(snapshotSequence);
+	}
+
+	//Changes not written because the journal had failed or was closed.
+	public long getDroppedCount()
+	{
+		return droppedCount.get();
+	}
+
+	public Path getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Writes what is still queued, stops the writer and waits for a compaction in progress.
+	 */
+	@Override
+	public void close()
+	{
+		Thread writerToStop = null;
+		Thread hookToRemove = null;
+		synchronized (this)
+		{
+			writerToStop = writer;
+			hookToRemove = shutdownHook;
+			shutdownHook = null;
+			running = false;
+		}
+		//Otherwise the hook keeps the journal, and through snapshotSource the DAO, until the JVM exits.
+		if (hookToRemove != null && hookToRemove != Thread.currentThread())
+		{
+			try
+			{
+				Runtime.getRuntime().removeShutdownHook(hookToRemove);
+			}
+			catch (IllegalStateException e)
+			{
+				//Already shutting down, the hook is running or about to.
+			}
+		}
+		try
+		{
+			//Not interrupted, an interrupt during FileChannel IO closes the channel.
+			if (writerToStop != null)
+			{
+				writerToStop.join();
+			}
+			Thread compactionToWait = null;
+			synchronized (this)
+			{
+				compactionToWait = compaction;
+			}
+			if (compactionToWait != null)
+			{
+				compactionToWait.join();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Mutation mutation(byte type, String userId, String sessionId, String authenticationState, long timestamp)
+	{
+		Mutation mutation = new Mutation();
+		mutation.sequence = nextSequence.getAndIncrement();
+		mutation.type = type;
+		mutation.userId = userId;
+		mutation.sessionId = sessionId;
+		mutation.authenticationState = authenticationState;
+		mutation.timestamp = timestamp;
+		return mutation;
+	}
+
+	private void write()
+	{
+		List<Mutation> batch = new ArrayList<>(MAX_BATCH_SIZE);
+		//Changes queued ahead of one that was made before them.
+		PriorityQueue<Mutation> pending = new PriorityQueue<>(Comparator.comparingLong((Mutation mutation) -> mutation.sequence));
+		long sequenceToWrite = 0;
+		long lastForcedAt = System.currentTimeMillis();
+		while (!failed.get() && (running || !queue.isEmpty()))
+		{
+			try
+			{
+				Mutation first = queue.poll(commitInterval, TimeUnit.MILLISECONDS);
+				if (first != null)
+				{
+					pending.add(first);
+					queue.drainTo(pending, MAX_BATCH_SIZE - 1);
+					while (!pending.isEmpty() && pending.peek().sequence == sequenceToWrite)
+					{
+						batch.add(pending.poll());
+						sequenceToWrite = sequenceToWrite + 1;
+					}
+					writeBatch(batch);
+					batch.clear();
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastForcedAt >= commitInterval)
+				{
+					synchronized (this)
+					{
+						force();
+					}
+					lastForcedAt = now;
+				}
+			}
+			catch (InterruptedException e)
+			{
+				//Only close stops the writer, what is queued still has to be written.
+			}
+			catch (IOException | RuntimeException e)
+			{
+				fail("could not write: " + e.getMessage());
+			}
+		}
+
+		//Closed while a change was still on its way from the DAO, the ones after it are written anyway.
+		if (!failed.get() && !pending.isEmpty())
+		{
+			while (!pending.isEmpty())
+			{
+				batch.add(pending.poll());
+			}
+			try
+			{
+				writeBatch(batch);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				fail("could not write on close: " + e.getMessage());
+			}
+		}
+		if (failed.get())
+		{
+			droppedCount.addAndGet(queue.size() + pending.size());
+			queue.clear();
+		}
+
+		synchronized (this)
+		{
+			try
+			{
+				force();
+			}
+			catch (RuntimeException e)
+			{
+				System.err.println("SessionJournal in " + directory + " could not force on close: " + e.getMessage());
+			}
+			try
+			{
+				segmentChannel.close();
+			}
+			catch (IOException e)
+			{
+				System.err.println("SessionJournal in " + directory + " could not close " + SEGMENT_PREFIX + segmentSequence + SEGMENT_SUFFIX + ": " + e.getMessage());
+			}
+			writer = null;
+			notifyAll();
+		}
+	}
+
+	//Only the first reason is reported, flush finds out within commitInterval.
+	private void fail(String reason)
+	{
+		if (failed.compareAndSet(false, true))
+		{
+			System.err.println("SessionJournal in " + directory + " " + reason + ", changes are no longer written.");
+		}
+	}
+
+	private synchronized void writeBatch(List<Mutation> batch) throws IOException
+	{
+		for (Mutation mutation : batch)
+		{
+			encoder.encode(mutation);
+			if (encoder.size() > segmentSize)
+			{
+				throw new IOException("Record of " + encoder.size() + " bytes is larger than the segment size " + segmentSize + ".");
+			}
+			if (encoder.size() > segment.remaining())
+			{
+				rollSegment();
+			}
+			encoder.writeTo(segment);
+		}
+		if (!batch.isEmpty())
+		{
+			writtenCount = writtenCount + batch.size();
+			dirty = true;
+			notifyAll();
+		}
+	}
+
+	private void force()
+	{
+		if (dirty)
+		{
+			segment.force();
+			dirty = false;
+		}
+	}
+
+	//Caller holds the lock of the journal.
+	private void rollSegment() throws IOException
+	{
+		force();
+		segmentChannel.close();
+		segmentSequence = segmentSequence + 1;
+		openSegment();
+
+		segmentsSinceSnapshot = segmentsSinceSnapshot + 1;
+		if (segmentsSinceSnapshot >= compactAfterSegments && compactionPending.compareAndSet(false, true))
+		{
+			long snapshotSequence = segmentSequence;
+			compaction = new Thread(() -> compactInBackground(snapshotSequence), "SessionJournalCompaction");
+			compaction.setDaemon(true);
+			compaction.start();
+		}
+	}
+
+	private void openSegment() throws IOException
+	{
+		Path segmentPath = directory.resolve(SEGMENT_PREFIX + segmentSequence + SEGMENT_SUFFIX);
+		segmentChannel = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+	}
+
+	private void compactInBackground(long snapshotSequence)
+	{
+		try
+		{
+			compact(snapshotSequence);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			System.err.println("SessionJournal in " + directory + " could not compact, segments are kept: " + e.getMessage());
+		}
+		finally
+		{
+			compactionPending.set(false);
+		}
+	}
+
+	/**
+	 * Every change before segment snapshotSequence was made before the sessions are
+	 * copied, so the snapshot has it. Changes after are in the segments replayed on top.
+	 */
+	private void compact(long snapshotSequence) throws IOException
+	{
+		synchronized (compactionLock)
+		{
+			Collection<SnapshotSession> sessions = snapshotSource.get();
+			Path snapshotPath = directory.resolve(SNAPSHOT_PREFIX + snapshotSequence + SNAPSHOT_SUFFIX);
+			Path temporaryPath = directory.resolve(SNAPSHOT_PREFIX + snapshotSequence + SNAPSHOT_SUFFIX + TEMPORARY_SUFFIX);
+
+			RecordEncoder snapshotEncoder = new RecordEncoder();
+			Mutation stored = new Mutation();
+			stored.type = STORED;
+			Mutation marked = new Mutation();
+			marked.type = MARKED_FOR_REMOVAL;
+			ByteBuffer buffer = ByteBuffer.allocateDirect(SNAPSHOT_BUFFER_SIZE);
+			try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+			{
+				for (SnapshotSession session : sessions)
+				{
+					stored.sessionDetails = session.sessionDetails;
+					buffer = writeRecord(channel, buffer, snapshotEncoder, stored);
+					if (session.markedAt != 0)
+					{
+						marked.userId = session.sessionDetails.getUserId();
+						marked.sessionId = session.sessionDetails.getSessionId();
+						marked.timestamp = session.markedAt;
+						buffer = writeRecord(channel, buffer, snapshotEncoder, marked);
+					}
+				}
+				writeFully(channel, buffer);
+				channel.force(true);
+			}
+			Files.move(temporaryPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+			synchronized (this)
+			{
+				segmentsSinceSnapshot = (int)Math.max(segmentSequence - snapshotSequence, 0);
+			}
+			for (Path path : list(SEGMENT_PREFIX, SEGMENT_SUFFIX).headMap(snapshotSequence).values())
+			{
+				Files.deleteIfExists(path);
+			}
+			for (Path path : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(snapshotSequence).values())
+			{
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+
+	//Returns the buffer to carry on with, a larger one for a record which does not fit.
+	private static ByteBuffer writeRecord(FileChannel channel, ByteBuffer buffer, RecordEncoder encoder, Mutation mutation) throws IOException
+	{
+		ByteBuffer target = buffer;
+		encoder.encode(mutation);
+		if (encoder.size() > target.remaining())
+		{
+			writeFully(channel, target);
+		}
+		if (encoder.size() > target.capacity())
+		{
+			target = ByteBuffer.allocate(encoder.size());
+		}
+		encoder.writeTo(target);
+		return target;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	//Files of the given kind by sequence, a leftover snapshot .tmp is not one of them.
+	private TreeMap<Long, Path> list(String prefix, String suffix) throws IOException
+	{
+		TreeMap<Long, Path> files = new TreeMap<>();
+		try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, prefix + "*" + suffix))
+		{
+			for (Path path : paths)
+			{
+				String name = path.getFileName().toString();
+				String sequence = name.substring(prefix.length(), name.length() - suffix.length());
+				try
+				{
+					files.put(Long.parseLong(sequence), path);
+				}
+				catch (NumberFormatException e)
+				{
+					System.err.println("SessionJournal ignoring " + path + " which is not named " + prefix + "N" + suffix + ".");
+				}
+			}
+		}
+		return files;
+	}
+
+	private static long replay(Path path, SessionMutationListener target) throws IOException
+	{
+		long replayed = 0;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			CRC32 crc = new CRC32();
+			boolean valid = true;
+			while (valid && records.remaining() >= HEADER_SIZE)
+			{
+				int length = records.getInt();
+				int checksum = records.getInt();
+				valid = length > 0 && length <= records.remaining();
+				if (valid)
+				{
+					ByteBuffer payload = records.slice().limit(length);
+					crc.reset();
+					crc.update(payload.duplicate());
+					valid = (int)crc.getValue() == checksum && apply(payload, target);
+					records.position(records.position() + length);
+				}
+				if (valid)
+				{
+					replayed = replayed + 1;
+				}
+			}
+		}
+		return replayed;
+	}
+
+	//false for a record that cannot be decoded, which like a failed checksum ends the replay.
+	private static boolean apply(ByteBuffer payload, SessionMutationListener target)
+	{
+		boolean applied = true;
+		try
+		{
+			applied = decode(payload, target);
+		}
+		catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e)
+		{
+			applied = false;
+		}
+		return applied;
+	}
+
+	private static boolean decode(ByteBuffer payload, SessionMutationListener target)
+	{
+		boolean applied = true;
+		byte type = payload.get();
+		String userId = getString(payload);
+		String sessionId = getString(payload);
+		switch (type)
+		{
+		case STORED:
+			String authenticationState = getString(payload);
+			target.stored(new SessionDetails(userId, sessionId, authenticationState, payload.getLong(), payload.getLong(), payload.getLong()));
+			break;
+		case REMOVED:
+			target.removed(userId, sessionId);
+			break;
+		case TOUCHED:
+			target.touched(userId, sessionId, payload.getLong());
+			break;
+		case AUTHENTICATION_STATE_CHANGED:
+			target.authenticationStateChanged(userId, sessionId, getString(payload));
+			break;
+		case MARKED_FOR_REMOVAL:
+			target.markedForRemoval(userId, sessionId, payload.getLong());
+			break;
+		case ALL_REMOVED:
+			target.allRemoved(userId);
+			break;
+		default:
+			applied = false;
+		}
+		return applied;
+	}
+
+	private static String getString(ByteBuffer payload)
+	{
+		String value = null;
+		int length = payload.getInt();
+		if (length >= 0)
+		{
+			byte[] bytes = new byte[length];
+			payload.get(bytes);
+			value = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return value;
+	}
+}
@@ -19,6 +19,7 @@
  
 package org.piangles.backbone.services.session.dao;
 
+import java.util.BitSet;
 import java.util.List;
 
 import org.piangles.backbone.services.session.SessionDetails;
@@ -37,13 +38,41 @@ public interface SessionManagementDAO
 	
 	public void markForRemoveSessionDetails(String userId, String sessionId) throws DAOException;
 	
+	/**
+	 * Removes every session of this user as one step, sessions stored after it are
+	 * not affected. Implementations which keep a generation per user only move it on,
+	 * the sessions of earlier generations are no longer valid and are reclaimed later.
+	 */
+	public void removeAllSessionDetails(String userId) throws DAOException;
+	
 	//Returns true if session exists else false and if it exists will update the lastAccessedTS
 	public boolean isValid(String userId, String sessionId) throws DAOException;
 	
+	/**
+	 * Same as isValid for each userIds[i] and sessionIds[i] pair, bit i of the
+	 * result is set if that pair is valid. Implementations resolve all the pairs
+	 * in a single exchange with their store.
+	 */
+	public BitSet isValidBatch(String[] userIds, String[] sessionIds) throws DAOException;
+	
 	//Touch lastAccessed if session is valid
 	public void updateLastAccessed(String userId, String sessionId) throws DAOException;
 	
 	public void updateAuthenticationState(String userId, String sessionId, String authenticationState) throws DAOException;
 	
 	public int getExistingValidSessionCount(String userId) throws DAOException;
+	
+	/**
+	 * Removes expired sessions of this user, counts the remaining valid PostAuthentication
+	 * sessions and stores sessionDetails only if that count is below maxSessionCount, all
+	 * as one atomic step. Returns the count of existing valid sessions, if it is not below
+	 * maxSessionCount the session has not been stored.
+	 */
+	public int storeSessionDetailsIfBelowLimit(SessionDetails sessionDetails, int maxSessionCount) throws DAOException;
+	
+	/**
+	 * Has listener told whenever any node removes or changes a session. DAOs without
+	 * other nodes to hear from, like the in memory ones, never call it.
+	 */
+	public void subscribeInvalidations(SessionInvalidationListener listener);
 }
@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import org.piangles.backbone.services.session.SessionDetails;
+
+/**
+ * The changes an in memory DAO makes to its sessions, as SessionJournal replays them
+ * on recovery.
+ */
+public interface SessionMutationListener
+{
+	public void stored(SessionDetails sessionDetails);
+
+	public void removed(String userId, String sessionId);
+
+	public void touched(String userId, String sessionId, long lastAccessedTS);
+
+	public void authenticationStateChanged(String userId, String sessionId, String authenticationState);
+
+	public void markedForRemoval(String userId, String sessionId, long markedAt);
+
+	public void allRemoved(String userId);
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.nio.charset.StandardCharsets;
+
+import org.piangles.core.dao.DAOException;
+
+/**
+ * A session as a fixed layout byte record, the value of a string key when the
+ * DistributedCacheDAOImpl uses RedisSessionEncoding.Record. UserId and SessionId are in
+ * the key and not repeated, timestamps and generation are big endian longs and the
+ * authenticationState is one of AUTHENTICATION_STATES by number.
+ *
+ *  0 format, 1 if this is a session at all
+ *  1 authenticationState, 0 if it is none of AUTHENTICATION_STATES
+ *  2 CreatedTS
+ * 10 LastAccessedTS, written in place with SETRANGE on a touch
+ * 18 Generation
+ * 26 length and UTF-8 name of the authenticationState if it is none of AUTHENTICATION_STATES
+ *
+ * The scripts in DistributedCacheScripts read and write the same layout.
+ */
+final class SessionRecord
+{
+	static final String[] AUTHENTICATION_STATES = {"PreAuthentication", "PostAuthentication"};
+	static final int AUTHENTICATION_STATE_OFFSET = 1;
+	static final int LAST_ACCESSED_TS_OFFSET = 10;
+	static final int AUTHENTICATION_STATE_NAME_OFFSET = 26;
+
+	private static final byte FORMAT = 1;
+	private static final int FORMAT_OFFSET = 0;
+	private static final int CREATED_TS_OFFSET = 2;
+	private static final int GENERATION_OFFSET = 18;
+	private static final int MAX_AUTHENTICATION_STATE_NAME_LENGTH = 255;
+
+	private SessionRecord()
+	{
+	}
+
+	//The authenticationState has to pass checkAuthenticationState first.
+	static byte[] encode(String authenticationState, long createdTS, long lastAccessedTS, long generation)
+	{
+		byte[] name = encodeAuthenticationStateName(authenticationState);
+		byte[] record = new byte[AUTHENTICATION_STATE_NAME_OFFSET + name.length];
+		record[FORMAT_OFFSET] = FORMAT;
+		record[AUTHENTICATION_STATE_OFFSET] = getAuthenticationStateCode(authenticationState);
+		putLong(record, CREATED_TS_OFFSET, createdTS);
+		putLong(record, LAST_ACCESSED_TS_OFFSET, lastAccessedTS);
+		putLong(record, GENERATION_OFFSET, generation);
+		System.arraycopy(name, 0, record, AUTHENTICATION_STATE_NAME_OFFSET, name.length);
+		return record;
+	}
+
+	//A record left by a touch after the session was gone has no format, it is not a session.
+	static boolean isSession(byte[] record)
+	{
+		return record != null && record.length >= AUTHENTICATION_STATE_NAME_OFFSET && record[FORMAT_OFFSET] == FORMAT;
+	}
+
+	static String getAuthenticationState(byte[] record)
+	{
+		String authenticationState = null;
+		int code = record[AUTHENTICATION_STATE_OFFSET];
+		if (code > 0 && code <= AUTHENTICATION_STATES.length)
+		{
+			authenticationState = AUTHENTICATION_STATES[code - 1];
+		}
+		else
+		{
+			int length = record[AUTHENTICATION_STATE_NAME_OFFSET] & 0xFF;
+			authenticationState = new String(record, AUTHENTICATION_STATE_NAME_OFFSET + 1, length, StandardCharsets.UTF_8);
+		}
+		return authenticationState;
+	}
+
+	static long getCreatedTS(byte[] record)
+	{
+		return getLong(record, CREATED_TS_OFFSET);
+	}
+
+	static long getLastAccessedTS(byte[] record)
+	{
+		return getLong(record, LAST_ACCESSED_TS_OFFSET);
+	}
+
+	static long getGeneration(byte[] record)
+	{
+		return getLong(record, GENERATION_OFFSET);
+	}
+
+	static byte getAuthenticationStateCode(String authenticationState)
+	{
+		byte code = 0;
+		for (int i = 0; i < AUTHENTICATION_STATES.length; ++i)
+		{
+			if (AUTHENTICATION_STATES[i].equals(authenticationState))
+			{
+				code = (byte)(i + 1);
+			}
+		}
+		return code;
+	}
+
+	//A name which is none of AUTHENTICATION_STATES has to fit its length byte.
+	static void checkAuthenticationState(String authenticationState) throws DAOException
+	{
+		if (getAuthenticationStateCode(authenticationState) == 0 && authenticationState.getBytes(StandardCharsets.UTF_8).length > MAX_AUTHENTICATION_STATE_NAME_LENGTH)
+		{
+			throw new DAOException("AuthenticationState is longer than " + MAX_AUTHENTICATION_STATE_NAME_LENGTH + " bytes, cannot store " + authenticationState);
+		}
+	}
+
+	//Length and name, empty for one of AUTHENTICATION_STATES which only needs its code.
+	static byte[] encodeAuthenticationStateName(String authenticationState)
+	{
+		byte[] encoded = new byte[0];
+		if (getAuthenticationStateCode(authenticationState) == 0)
+		{
+			byte[] name = authenticationState.getBytes(StandardCharsets.UTF_8);
+			encoded = new byte[name.length + 1];
+			encoded[0] = (byte)name.length;
+			System.arraycopy(name, 0, encoded, 1, name.length);
+		}
+		return encoded;
+	}
+
+	/**
+	 * record with the LastAccessedTS of touched, a string a touch left behind where the
+	 * session was not yet. If touched has none record is returned as it is.
+	 */
+	static byte[] withLastAccessedTS(byte[] record, byte[] touched)
+	{
+		byte[] merged = record;
+		if (touched != null && touched.length >= LAST_ACCESSED_TS_OFFSET + Long.BYTES)
+		{
+			merged = record.clone();
+			System.arraycopy(touched, LAST_ACCESSED_TS_OFFSET, merged, LAST_ACCESSED_TS_OFFSET, Long.BYTES);
+		}
+		return merged;
+	}
+
+	static byte[] encodeLong(long value)
+	{
+		byte[] encoded = new byte[Long.BYTES];
+		putLong(encoded, 0, value);
+		return encoded;
+	}
+
+	private static void putLong(byte[] record, int offset, long value)
+	{
+		for (int i = Long.BYTES - 1; i >= 0; --i)
+		{
+			record[offset + i] = (byte)value;
+			value = value >>> 8;
+		}
+	}
+
+	private static long getLong(byte[] record, int offset)
+	{
+		long value = 0;
+		for (int i = 0; i < Long.BYTES; ++i)
+		{
+			value = (value << 8) | (record[offset + i] & 0xFF);
+		}
+		return value;
+	}
+}
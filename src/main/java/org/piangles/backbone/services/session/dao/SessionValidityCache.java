@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+/**
+ * Node local cache of sessions which were recently found to be valid. Only
+ * positive results are cached and every entry expires at the earlier of the
+ * configured TTL and the remaining lifetime of the session, so a stale entry
+ * can at most extend a removed session by TTL milliseconds if an invalidation
+ * is lost.
+ *
+ * A lookup against the DAO races with invalidations arriving from other nodes,
+ * hence the caller takes a stamp before going to the DAO and the entry is
+ * only cached if no invalidation happened in between.
+ */
+public final class SessionValidityCache extends AbstractSessionCache<Boolean>
+{
+	public SessionValidityCache(int maxSize, long ttlInMilliSeconds)
+	{
+		super(maxSize, ttlInMilliSeconds);
+	}
+
+	public boolean isValid(String userId, String sessionId)
+	{
+		return lookup(userId, sessionId) != null;
+	}
+
+	public void put(String userId, String sessionId, long sessionExpiresAt, long stamp)
+	{
+		cache(userId, sessionId, Boolean.TRUE, sessionExpiresAt, stamp);
+	}
+}
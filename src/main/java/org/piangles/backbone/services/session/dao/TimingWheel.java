@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Hashed timing wheel. Every tick the wheel moves one slot and only the items in
+ * that slot are looked at, an item whose deadline is further away than one rotation
+ * simply waits in its slot for the next round. No full scans of what is scheduled.
+ *
+ * When an item is due the handler is called and decides what happens next: it can
+ * return a new deadline, for instance because the session has been touched since it
+ * was scheduled, and the item moves to the slot of that deadline. This makes touches
+ * free, they are only looked at once the previous deadline is reached.
+ */
+public final class TimingWheel<T>
+{
+	public interface ExpiryHandler<T>
+	{
+		//Returns the next deadline of this item, or 0 if it is done and has to be dropped.
+		public long expired(T item, long now);
+	}
+
+	private static final class Entry<T>
+	{
+		private T item;
+		private long deadline;
+
+		private Entry(T item, long deadline)
+		{
+			this.item = item;
+			this.deadline = deadline;
+		}
+	}
+
+	private long tickInMilliSeconds;
+	private Queue<Entry<T>>[] slots = null;
+	private LongSupplier clock = null;
+	private ExpiryHandler<T> handler = null;
+
+	private volatile long currentTick;
+	private ScheduledExecutorService ticker = null;
+
+	public TimingWheel(long tickInMilliSeconds, int wheelSize, LongSupplier clock, ExpiryHandler<T> handler)
+	{
+		this.tickInMilliSeconds = tickInMilliSeconds;
+		this.clock = clock;
+		this.handler = handler;
+
+		slots = createSlots(wheelSize);
+		for (int i = 0; i < wheelSize; ++i)
+		{
+			slots[i] = new ConcurrentLinkedQueue<>();
+		}
+		currentTick = clock.getAsLong() / tickInMilliSeconds;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Queue<Entry<T>>[] createSlots(int wheelSize)
+	{
+		return (Queue<Entry<T>>[])new Queue<?>[wheelSize];
+	}
+
+	public void schedule(T item, long deadline)
+	{
+		add(new Entry<>(item, deadline));
+	}
+
+	/**
+	 * Handles all the slots up to now on the clock. Called by the ticker once started,
+	 * can also be called directly when the clock is controlled by the caller.
+	 */
+	public synchronized int advance()
+	{
+		int expiredCount = 0;
+		long now = clock.getAsLong();
+		long nowTick = now / tickInMilliSeconds;
+		//After one full rotation every slot has been looked at, due items in all of them are handled.
+		long lastTick = Math.min(nowTick, currentTick + slots.length - 1);
+		for (; currentTick <= lastTick; ++currentTick)
+		{
+			Queue<Entry<T>> slot = slots[(int)(currentTick % slots.length)];
+			//Only what is in the slot now, items put back for a later round are not seen twice.
+			for (int count = slot.size(); count > 0; --count)
+			{
+				Entry<T> entry = slot.poll();
+				if (entry == null)
+				{
+					break;
+				}
+				else if (entry.deadline > now)
+				{
+					//A later round, or later within this tick in which case it goes to the next slot.
+					add(entry);
+				}
+				else
+				{
+					expiredCount++;
+					long nextDeadline = handler.expired(entry.item, now);
+					if (nextDeadline > 0)
+					{
+						entry.deadline = nextDeadline;
+						add(entry);
+					}
+				}
+			}
+		}
+		currentTick = Math.max(currentTick, nowTick);
+		return expiredCount;
+	}
+
+	public synchronized void start(String name)
+	{
+		if (ticker == null)
+		{
+			ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			});
+			ticker.scheduleAtFixedRate(this::advance, tickInMilliSeconds, tickInMilliSeconds, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void add(Entry<T> entry)
+	{
+		//Never the slot being handled, anything due within this tick goes into the next one.
+		long tick = Math.max(entry.deadline / tickInMilliSeconds, currentTick + 1);
+		slots[(int)(tick % slots.length)].add(entry);
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for (Queue<Entry<T>> slot : slots)
+		{
+			size = size + slot.size();
+		}
+		return size;
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.piangles.backbone.services.session.SessionDetails;
+import org.piangles.core.dao.DAOException;
+
+/**
+ * Node local L1 in front of a shared L2, normally the DistributedCache. Reads are served
+ * from the L1, a SessionDetailsCache, and read through to the L2 on a miss. Every write
+ * goes through to the L2 before the L1 is updated or dropped, and the L1 of the other
+ * nodes is invalidated through the invalidation channel of the L2.
+ *
+ * Only lookups of single sessions are cached, everything that looks at all the sessions
+ * of a user or has to be atomic across nodes, like the session limit, is left to the L2.
+ */
+public final class TwoTierDAOImpl implements SessionManagementDAO
+{
+	private SessionManagementDAO l2DAO = null;
+	private SessionDetailsCache l1Cache = null;
+	private long sessionTimeout;
+
+	public TwoTierDAOImpl(SessionManagementDAO l2DAO, SessionDetailsCache l1Cache, long sessionTimeout)
+	{
+		this.l2DAO = l2DAO;
+		this.l1Cache = l1Cache;
+		this.sessionTimeout = sessionTimeout;
+
+		l2DAO.subscribeInvalidations(l1Cache);
+	}
+
+	@Override
+	public void storeSessionDetails(SessionDetails sessionDetails) throws DAOException
+	{
+		long stamp = l1Cache.stamp();
+		l2DAO.storeSessionDetails(sessionDetails);
+		l1Cache.put(sessionDetails, getSessionExpiresAt(sessionDetails.getLastAccessedTS()), stamp);
+	}
+
+	@Override
+	public SessionDetails getSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		SessionDetails sessionDetails = l1Cache.get(userId, sessionId);
+		if (sessionDetails == null)
+		{
+			long stamp = l1Cache.stamp();
+			sessionDetails = l2DAO.getSessionDetails(userId, sessionId);
+			if (sessionDetails != null)
+			{
+				l1Cache.put(sessionDetails, getSessionExpiresAt(sessionDetails.getLastAccessedTS()), stamp);
+			}
+		}
+		return sessionDetails;
+	}
+
+	@Override
+	public List<SessionDetails> getAllSessionDetails(String userId) throws DAOException
+	{
+		return l2DAO.getAllSessionDetails(userId);
+	}
+
+	@Override
+	public void removeSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		l2DAO.removeSessionDetails(userId, sessionId);
+		l1Cache.invalidated(userId, sessionId);
+	}
+
+	@Override
+	public void removeAllSessionDetails(String userId) throws DAOException
+	{
+		l2DAO.removeAllSessionDetails(userId);
+		l1Cache.invalidatedAll(userId);
+	}
+
+	@Override
+	public void markForRemoveSessionDetails(String userId, String sessionId) throws DAOException
+	{
+		l2DAO.markForRemoveSessionDetails(userId, sessionId);
+		l1Cache.invalidated(userId, sessionId);
+	}
+
+	@Override
+	public boolean isValid(String userId, String sessionId) throws DAOException
+	{
+		return isSessionDetailsValid(userId, getSessionDetails(userId, sessionId));
+	}
+
+	//Misses are checked in one batch with the L2, they are not cached as the L2 does not hand back their SessionDetails.
+	@Override
+	public BitSet isValidBatch(String[] userIds, String[] sessionIds) throws DAOException
+	{
+		BitSet valid = new BitSet(userIds.length);
+
+		List<Integer> lookupIndexes = new ArrayList<>(userIds.length);
+		for (int i = 0; i < userIds.length; ++i)
+		{
+			if (isSessionDetailsValid(userIds[i], l1Cache.get(userIds[i], sessionIds[i])))
+			{
+				valid.set(i);
+			}
+			else
+			{
+				lookupIndexes.add(i);
+			}
+		}
+
+		if (!lookupIndexes.isEmpty())
+		{
+			String[] lookupUserIds = new String[lookupIndexes.size()];
+			String[] lookupSessionIds = new String[lookupIndexes.size()];
+			for (int i = 0; i < lookupIndexes.size(); ++i)
+			{
+				lookupUserIds[i] = userIds[lookupIndexes.get(i)];
+				lookupSessionIds[i] = sessionIds[lookupIndexes.get(i)];
+			}
+
+			BitSet lookupValid = l2DAO.isValidBatch(lookupUserIds, lookupSessionIds);
+			for (int i = lookupValid.nextSetBit(0); i >= 0; i = lookupValid.nextSetBit(i + 1))
+			{
+				valid.set(lookupIndexes.get(i));
+			}
+		}
+
+		return valid;
+	}
+
+	@Override
+	public void updateLastAccessed(String userId, String sessionId) throws DAOException
+	{
+		long stamp = l1Cache.stamp();
+		long lastAccessedTS = System.currentTimeMillis();
+		l2DAO.updateLastAccessed(userId, sessionId);
+		l1Cache.touched(userId, sessionId, lastAccessedTS, getSessionExpiresAt(lastAccessedTS), stamp);
+	}
+
+	@Override
+	public void updateAuthenticationState(String userId, String sessionId, String authenticationState) throws DAOException
+	{
+		l2DAO.updateAuthenticationState(userId, sessionId, authenticationState);
+		l1Cache.invalidated(userId, sessionId);
+	}
+
+	@Override
+	public int getExistingValidSessionCount(String userId) throws DAOException
+	{
+		return l2DAO.getExistingValidSessionCount(userId);
+	}
+
+	@Override
+	public int storeSessionDetailsIfBelowLimit(SessionDetails sessionDetails, int maxSessionCount) throws DAOException
+	{
+		long stamp = l1Cache.stamp();
+		int existingSessionCount = l2DAO.storeSessionDetailsIfBelowLimit(sessionDetails, maxSessionCount);
+		if (existingSessionCount < maxSessionCount)
+		{
+			l1Cache.put(sessionDetails, getSessionExpiresAt(sessionDetails.getLastAccessedTS()), stamp);
+		}
+		return existingSessionCount;
+	}
+
+	@Override
+	public void subscribeInvalidations(SessionInvalidationListener listener)
+	{
+		l2DAO.subscribeInvalidations(listener);
+	}
+
+	public SessionManagementDAO getL2DAO()
+	{
+		return l2DAO;
+	}
+
+	public SessionDetailsCache getL1Cache()
+	{
+		return l1Cache;
+	}
+
+	//Same rule as AbstractSessionManagementDAO.
+	private boolean isSessionDetailsValid(String userId, SessionDetails sessionDetails)
+	{
+		return sessionDetails != null && sessionDetails.getUserId().equals(userId) && System.currentTimeMillis() < getSessionExpiresAt(sessionDetails.getLastAccessedTS());
+	}
+
+	private long getSessionExpiresAt(long lastAccessedTS)
+	{
+		return lastAccessedTS + (sessionTimeout * 1000);
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.util.Arrays;
+
+import org.piangles.backbone.services.Locator;
+import org.piangles.backbone.services.logging.LoggingService;
+
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+/**
+ * Walks the keyspace of every node with SCAN and moves every List based User->SessionId index
+ * into its Sorted Set counterpart. Each user is moved by a script so it is atomic
+ * with respect to register, which itself migrates the user if it gets there first.
+ * Running it on more than one node at the same time is harmless.
+ */
+final class User2SessionIndexMigration implements Runnable
+{
+	private static final int SCAN_BATCH_SIZE = 500;
+
+	private LoggingService logger = Locator.getInstance().getLoggingService();
+
+	private RedisExecutor redisCache = null;
+	private RedisKeyLayout keyLayout = null;
+	private RedisSessionEncoding encoding = null;
+
+	User2SessionIndexMigration(RedisExecutor redisCache, RedisKeyLayout keyLayout, RedisSessionEncoding encoding)
+	{
+		this.redisCache = redisCache;
+		this.keyLayout = keyLayout;
+		this.encoding = encoding;
+	}
+
+	@Override
+	public void run()
+	{
+		RedisScript migrateScript = new RedisScript(DistributedCacheScripts.forEncoding(encoding, DistributedCacheScripts.MIGRATE_LIST_INDEX));
+		ScanParams scanParams = new ScanParams().match(String.format(keyLayout.getUser2SessionIdFormat(), "*")).count(SCAN_BATCH_SIZE);
+
+		long usersMigrated = 0;
+		long sessionsMigrated = 0;
+		try
+		{
+			for (int nodeIndex = 0; nodeIndex < redisCache.getNodeCount(); ++nodeIndex)
+			{
+				String cursor = ScanParams.SCAN_POINTER_START;
+				do
+				{
+					final String currentCursor = cursor;
+					ScanResult<String> scanResult = redisCache.executeOnNode(nodeIndex, (jedis) -> {
+						return jedis.scan(currentCursor, scanParams);
+					});
+
+					for (String listKey : scanResult.getResult())
+					{
+						String userId = keyLayout.getUserIdOfIndexKey(listKey);
+						if (userId != null)
+						{
+							Long migrated = redisCache.execute(keyLayout.createUser2SessionIndexKeyBytes(userId), (jedis) -> {
+								return (Long)migrateScript.execute(jedis, 
+										Arrays.asList(keyLayout.createUser2SessionIndexKey(userId), listKey), 
+										Arrays.asList(encoding.createUser2SessionDetailsKey(keyLayout, userId, "")));
+							});
+							usersMigrated++;
+							sessionsMigrated = sessionsMigrated + migrated;
+						}
+					}
+					cursor = scanResult.getCursor();
+				}
+				while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+			}
+
+			logger.info("Migrated User->SessionId index to SortedSet for " + usersMigrated + " users and " + sessionsMigrated + " sessions.");
+		}
+		catch (Exception e)
+		{
+			logger.error("Unable to complete migration of User->SessionId index to SortedSet after " + usersMigrated + " users. Reason: " + e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+/**
+ * How DistributedCacheDAOImpl indexes the sessions of a user.
+ * 
+ * List : user:%s:session:id is a Redis List of SessionIds, finding expired sessions
+ * needs every SessionDetails to be read and removal is O(N).
+ * 
+ * SortedSet : user:%s:session:index is a Redis Sorted Set of SessionIds scored by
+ * LastAccessedTS, expired sessions are a range of scores and removal is O(log N).
+ * Existing List based indexes are migrated on startup and on the next register of the user.
+ */
+public enum User2SessionIndexType
+{
+	List, SortedSet;
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.id;
+
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 128 random bits per SessionId from a DRBG (NIST SP 800-90A) instance per thread.
+ * 
+ * UUID.randomUUID goes through one SecureRandom shared by the whole JVM, under a login
+ * storm every register queues on it. Here each thread has its own generator, seeded
+ * independently from the platform entropy source once when the thread first generates
+ * a SessionId, so there is nothing shared after that and nothing to block on.
+ *
+ * Virtual threads, one per request, would each seed a generator of their own for a
+ * single SessionId. They take one from a shared pool instead and put it back after.
+ */
+public final class DRBGSessionIdGenerator implements SessionIdGenerator
+{
+	private static final String ALGORITHM = "DRBG";
+	private static final int SECURITY_STRENGTH = 256;
+	private static final int SESSION_ID_BYTES = 16;
+	//Each nextBytes has a fixed cost on top of the bytes, it is paid once per 32 SessionIds.
+	private static final int BUFFERED_SESSION_IDS = 32;
+
+	private static final class ThreadGenerator
+	{
+		private SecureRandom random = null;
+		private byte[] bytes = null;
+		private int position;
+
+		private ThreadGenerator()
+		{
+			try
+			{
+				random = SecureRandom.getInstance(ALGORITHM, DrbgParameters.instantiation(SECURITY_STRENGTH, DrbgParameters.Capability.RESEED_ONLY, null));
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				//DRBG is part of every JDK since 9.
+				throw new IllegalStateException(e);
+			}
+			bytes = new byte[SESSION_ID_BYTES * BUFFERED_SESSION_IDS];
+			position = bytes.length;
+		}
+	}
+
+	private SessionIdFormat format = null;
+	private ThreadLocal<ThreadGenerator> threadGenerators = null;
+	private Queue<ThreadGenerator> sharedGenerators = null;
+
+	public DRBGSessionIdGenerator(SessionIdFormat format)
+	{
+		this.format = format;
+		threadGenerators = ThreadLocal.withInitial(ThreadGenerator::new);
+		sharedGenerators = new ConcurrentLinkedQueue<>();
+	}
+
+	@Override
+	public String generate()
+	{
+		String sessionId = null;
+		if (Thread.currentThread().isVirtual())
+		{
+			ThreadGenerator generator = sharedGenerators.poll();
+			if (generator == null)
+			{
+				generator = new ThreadGenerator();
+			}
+			sessionId = generate(generator);
+			sharedGenerators.offer(generator);
+		}
+		else
+		{
+			sessionId = generate(threadGenerators.get());
+		}
+		return sessionId;
+	}
+
+	private String generate(ThreadGenerator generator)
+	{
+		if (generator.position == generator.bytes.length)
+		{
+			generator.random.nextBytes(generator.bytes);
+			generator.position = 0;
+		}
+		int offset = generator.position;
+		generator.position = generator.position + SESSION_ID_BYTES;
+		return format.format(toLong(generator.bytes, offset), toLong(generator.bytes, offset + 8));
+	}
+
+	private static long toLong(byte[] bytes, int offset)
+	{
+		long value = 0;
+		for (int i = offset; i < offset + 8; ++i)
+		{
+			value = (value << 8) | (bytes[i] & 0xFF);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.id;
+
+/**
+ * Text form of a 128 bit SessionId.
+ * 
+ * UUID is the 36 char 8-4-4-4-12 lowercase hex layout SessionIds always had, all 128 bits
+ * are used so it is not an RFC 4122 version 4 UUID but parses as one. Base64Url is the
+ * same 128 bits in 22 URL safe chars without padding, which shortens every Redis key
+ * and in memory entry that carries a SessionId.
+ *
+ * Both can be turned back into the two longs, see CompactInMemoryDAOImpl.
+ */
+public enum SessionIdFormat
+{
+	UUID(36)
+	{
+		@Override
+		public String format(long highBits, long lowBits)
+		{
+			char[] chars = new char[getLength()];
+			int position = 0;
+			for (int i = 0; i < 32; ++i)
+			{
+				if (i == 8 || i == 12 || i == 16 || i == 20)
+				{
+					chars[position++] = '-';
+				}
+				long bits = i < 16 ? highBits : lowBits;
+				chars[position++] = HEX_DIGITS[(int)((bits >>> (60 - (i % 16) * 4)) & 0xF)];
+			}
+			return new String(chars);
+		}
+
+		@Override
+		public boolean matches(String sessionId)
+		{
+			boolean matches = sessionId != null && sessionId.length() == getLength();
+			for (int i = 0; matches && i < getLength(); ++i)
+			{
+				char c = sessionId.charAt(i);
+				if (i == 8 || i == 13 || i == 18 || i == 23)
+				{
+					matches = c == '-';
+				}
+				else
+				{
+					matches = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+				}
+			}
+			return matches;
+		}
+
+		@Override
+		public long getHighBits(String sessionId)
+		{
+			return parseHex(sessionId, 0, 8) << 32 | parseHex(sessionId, 9, 13) << 16 | parseHex(sessionId, 14, 18);
+		}
+
+		@Override
+		public long getLowBits(String sessionId)
+		{
+			return parseHex(sessionId, 19, 23) << 48 | parseHex(sessionId, 24, 36);
+		}
+	},
+	Base64Url(22)
+	{
+		@Override
+		public String format(long highBits, long lowBits)
+		{
+			char[] chars = new char[getLength()];
+			for (int i = 0; i < getLength(); ++i)
+			{
+				chars[i] = BASE64_URL_DIGITS[getSixBits(highBits, lowBits, i * 6)];
+			}
+			return new String(chars);
+		}
+
+		@Override
+		public boolean matches(String sessionId)
+		{
+			boolean matches = sessionId != null && sessionId.length() == getLength();
+			for (int i = 0; matches && i < getLength(); ++i)
+			{
+				int value = getBase64UrlValue(sessionId.charAt(i));
+				//The last char only carries 2 bits, the rest of it has to be 0.
+				matches = value >= 0 && (i < getLength() - 1 || (value & 0xF) == 0);
+			}
+			return matches;
+		}
+
+		@Override
+		public long getHighBits(String sessionId)
+		{
+			return decodeBase64Url(sessionId, true);
+		}
+
+		@Override
+		public long getLowBits(String sessionId)
+		{
+			return decodeBase64Url(sessionId, false);
+		}
+	};
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final char[] BASE64_URL_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+	private int length;
+
+	private SessionIdFormat(int length)
+	{
+		this.length = length;
+	}
+
+	public final int getLength()
+	{
+		return length;
+	}
+
+	public abstract String format(long highBits, long lowBits);
+
+	public abstract boolean matches(String sessionId);
+
+	//Only defined for a sessionId that matches.
+	public abstract long getHighBits(String sessionId);
+
+	//Only defined for a sessionId that matches.
+	public abstract long getLowBits(String sessionId);
+
+	private static long parseHex(String sessionId, int start, int end)
+	{
+		long value = 0;
+		for (int i = start; i < end; ++i)
+		{
+			value = (value << 4) | Character.digit(sessionId.charAt(i), 16);
+		}
+		return value;
+	}
+
+	//The 6 bits starting at offset, counted from the top of highBits, with 0s past the 128th bit.
+	private static int getSixBits(long highBits, long lowBits, int offset)
+	{
+		int value;
+		if (offset + 6 <= 64)
+		{
+			value = (int)((highBits >>> (58 - offset)) & 0x3F);
+		}
+		else if (offset < 64)
+		{
+			int bitsFromHigh = 64 - offset;
+			value = (int)(((highBits << (6 - bitsFromHigh)) | (lowBits >>> (58 + bitsFromHigh))) & 0x3F);
+		}
+		else if (offset + 6 <= 128)
+		{
+			value = (int)((lowBits >>> (122 - offset)) & 0x3F);
+		}
+		else
+		{
+			value = (int)((lowBits << (offset - 122)) & 0x3F);
+		}
+		return value;
+	}
+
+	private static int getBase64UrlValue(char c)
+	{
+		int value = -1;
+		if (c >= 'A' && c <= 'Z')
+		{
+			value = c - 'A';
+		}
+		else if (c >= 'a' && c <= 'z')
+		{
+			value = c - 'a' + 26;
+		}
+		else if (c >= '0' && c <= '9')
+		{
+			value = c - '0' + 52;
+		}
+		else if (c == '-')
+		{
+			value = 62;
+		}
+		else if (c == '_')
+		{
+			value = 63;
+		}
+		return value;
+	}
+
+	private static long decodeBase64Url(String sessionId, boolean highBits)
+	{
+		long high = 0;
+		long low = 0;
+		int last = sessionId.length() - 1;
+		for (int i = 0; i < last; ++i)
+		{
+			high = (high << 6) | (low >>> 58);
+			low = (low << 6) | getBase64UrlValue(sessionId.charAt(i));
+		}
+		//21 chars made 126 bits, the top 2 bits of the last char make up the 128.
+		high = (high << 2) | (low >>> 62);
+		low = (low << 2) | (getBase64UrlValue(sessionId.charAt(last)) >>> 4);
+		return highBits ? high : low;
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.id;
+
+import java.util.UUID;
+
+/**
+ * What register always did, UUID.randomUUID from the JVM wide SecureRandom. Kept
+ * for comparison and for deployments that rely on RFC 4122 version 4 SessionIds.
+ */
+public final class UUIDSessionIdGenerator implements SessionIdGenerator
+{
+	private SessionIdFormat format = null;
+
+	public UUIDSessionIdGenerator(SessionIdFormat format)
+	{
+		this.format = format;
+	}
+
+	@Override
+	public String generate()
+	{
+		String sessionId = null;
+		UUID uuid = UUID.randomUUID();
+		if (format == SessionIdFormat.UUID)
+		{
+			sessionId = uuid.toString();
+		}
+		else
+		{
+			sessionId = format.format(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+		}
+		return sessionId;
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.log;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.piangles.backbone.services.logging.LoggingService;
+
+/**
+ * Request threads only copy the template and its arguments into a preallocated slot
+ * of a ring buffer, a single background thread formats them and calls the
+ * LoggingService. Nothing is allocated and nothing blocks on the calling thread.
+ *
+ * info events are sampled, one in sampleRate is kept, and dropped if the ring is full.
+ * Errors are never sampled and if the ring is full written on the calling thread.
+ *
+ * A slot is claimed by moving nextSequence forward, which is only allowed while the
+ * slot has already been consumed, and published by writing its sequence last. The
+ * consumer takes slots strictly in sequence and waits for each to be published.
+ */
+public final class AsyncSessionLogger implements SessionLogger
+{
+	private static final long IDLE_WAIT_IN_NANOSECONDS = TimeUnit.MICROSECONDS.toNanos(200);
+	private static final long SHUTDOWN_DRAIN_TIMEOUT_IN_MILLISECONDS = 1000;
+
+	private static final class Event
+	{
+		private volatile long sequence = -1;
+		private String template;
+		private int argCount;
+		private Object arg1;
+		private Object arg2;
+		private Object arg3;
+		private boolean error;
+		private Throwable throwable;
+	}
+
+	private LoggingService logger = null;
+	private int sampleRate;
+	private Event[] ring = null;
+	private int mask;
+	private AtomicLong nextSequence = null;
+	private volatile long consumedSequence;
+	private LongAdder droppedCount = null;
+
+	/**
+	 * bufferSize is rounded up to a power of two. sampleRate 1 keeps every info event,
+	 * N one in N on average.
+	 */
+	public AsyncSessionLogger(LoggingService logger, int bufferSize, int sampleRate)
+	{
+		this.logger = logger;
+		this.sampleRate = Math.max(sampleRate, 1);
+
+		int capacity = Integer.highestOneBit(Math.max(bufferSize, 2) - 1) << 1;
+		ring = new Event[capacity];
+		for (int i = 0; i < capacity; ++i)
+		{
+			ring[i] = new Event();
+		}
+		mask = capacity - 1;
+		nextSequence = new AtomicLong();
+		droppedCount = new LongAdder();
+
+		Thread consumer = new Thread(this::consume, "AsyncSessionLogger");
+		consumer.setDaemon(true);
+		consumer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "AsyncSessionLoggerDrain"));
+	}
+
+	@Override
+	public void info(String template, Object arg1)
+	{
+		if (isSampled() && !publish(template, 1, arg1, null, null, false, null))
+		{
+			droppedCount.increment();
+		}
+	}
+
+	@Override
+	public void info(String template, Object arg1, Object arg2)
+	{
+		if (isSampled() && !publish(template, 2, arg1, arg2, null, false, null))
+		{
+			droppedCount.increment();
+		}
+	}
+
+	@Override
+	public void info(String template, Object arg1, Object arg2, Object arg3)
+	{
+		if (isSampled() && !publish(template, 3, arg1, arg2, arg3, false, null))
+		{
+			droppedCount.increment();
+		}
+	}
+
+	@Override
+	public void error(String message, Throwable t)
+	{
+		if (!publish(message, 0, null, null, null, true, t))
+		{
+			logger.error(message, t);
+		}
+	}
+
+	//info events not written because the ring was full, sampled out events are not counted.
+	public long getDroppedCount()
+	{
+		return droppedCount.sum();
+	}
+
+	private boolean isSampled()
+	{
+		return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+	}
+
+	private boolean publish(String template, int argCount, Object arg1, Object arg2, Object arg3, boolean error, Throwable throwable)
+	{
+		boolean claimed = false;
+		boolean full = false;
+		long sequence = 0;
+		while (!claimed && !full)
+		{
+			sequence = nextSequence.get();
+			full = sequence - consumedSequence >= ring.length;
+			claimed = !full && nextSequence.compareAndSet(sequence, sequence + 1);
+		}
+
+		if (claimed)
+		{
+			Event event = ring[(int)(sequence & mask)];
+			event.template = template;
+			event.argCount = argCount;
+			event.arg1 = arg1;
+			event.arg2 = arg2;
+			event.arg3 = arg3;
+			event.error = error;
+			event.throwable = throwable;
+			event.sequence = sequence;
+		}
+		return claimed;
+	}
+
+	private void consume()
+	{
+		while (true)
+		{
+			if (!consumeNext())
+			{
+				LockSupport.parkNanos(IDLE_WAIT_IN_NANOSECONDS);
+			}
+		}
+	}
+
+	//Only ever called from one thread at a time.
+	private synchronized boolean consumeNext()
+	{
+		boolean consumed = false;
+		long sequence = consumedSequence;
+		Event event = ring[(int)(sequence & mask)];
+		if (event.sequence == sequence)
+		{
+			String template = event.template;
+			int argCount = event.argCount;
+			Object arg1 = event.arg1;
+			Object arg2 = event.arg2;
+			Object arg3 = event.arg3;
+			boolean error = event.error;
+			Throwable throwable = event.throwable;
+			//Not holding on to arguments until the slot comes round again.
+			event.arg1 = null;
+			event.arg2 = null;
+			event.arg3 = null;
+			event.throwable = null;
+			consumedSequence = sequence + 1;
+			consumed = true;
+
+			try
+			{
+				if (error)
+				{
+					logger.error(template, throwable);
+				}
+				else
+				{
+					logger.info(LogMessages.format(template, argCount, arg1, arg2, arg3));
+				}
+			}
+			catch (RuntimeException e)
+			{
+				//Logging must not stop the consumer.
+				System.err.println("AsyncSessionLogger could not log: " + e.getMessage());
+			}
+		}
+		return consumed;
+	}
+
+	//Gives the consumer a last chance at what is left in the ring when the JVM exits.
+	private void drain()
+	{
+		long deadline = System.currentTimeMillis() + SHUTDOWN_DRAIN_TIMEOUT_IN_MILLISECONDS;
+		while (consumedSequence < nextSequence.get() && System.currentTimeMillis() < deadline)
+		{
+			if (!consumeNext())
+			{
+				LockSupport.parkNanos(IDLE_WAIT_IN_NANOSECONDS);
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.log;
+
+final class LogMessages
+{
+	private static final String PLACEHOLDER = "{}";
+
+	private LogMessages()
+	{
+	}
+
+	//Each {} in order is replaced by the next of the first argCount arguments, any {} beyond are left as they are.
+	static String format(String template, int argCount, Object arg1, Object arg2, Object arg3)
+	{
+		StringBuilder sb = new StringBuilder(template.length() + 64);
+		int from = 0;
+		int at = template.indexOf(PLACEHOLDER);
+		for (int i = 0; i < argCount && at >= 0; ++i)
+		{
+			sb.append(template, from, at).append(i == 0 ? arg1 : i == 1 ? arg2 : arg3);
+			from = at + PLACEHOLDER.length();
+			at = template.indexOf(PLACEHOLDER, from);
+		}
+		sb.append(template, from, template.length());
+		return sb.toString();
+	}
+}
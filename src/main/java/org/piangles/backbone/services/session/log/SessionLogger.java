@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.log;
+
+/**
+ * Logging of the SessionManagementService request paths. Messages are a template with
+ * a {} for each argument and are only formatted once they are actually written, which
+ * depending on the implementation is on another thread or not at all.
+ *
+ * info is for routine events and may be sampled, error is always written.
+ */
+public interface SessionLogger
+{
+	public void info(String template, Object arg1);
+
+	public void info(String template, Object arg1, Object arg2);
+
+	public void info(String template, Object arg1, Object arg2, Object arg3);
+
+	public void error(String message, Throwable t);
+}
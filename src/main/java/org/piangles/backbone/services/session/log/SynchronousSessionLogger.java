@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.log;
+
+import org.piangles.backbone.services.logging.LoggingService;
+
+/**
+ * Every event formatted and handed to the LoggingService on the calling thread, as
+ * SessionManagementServiceImpl has always logged.
+ */
+public final class SynchronousSessionLogger implements SessionLogger
+{
+	private LoggingService logger = null;
+
+	public SynchronousSessionLogger(LoggingService logger)
+	{
+		this.logger = logger;
+	}
+
+	@Override
+	public void info(String template, Object arg1)
+	{
+		logger.info(LogMessages.format(template, 1, arg1, null, null));
+	}
+
+	@Override
+	public void info(String template, Object arg1, Object arg2)
+	{
+		logger.info(LogMessages.format(template, 2, arg1, arg2, null));
+	}
+
+	@Override
+	public void info(String template, Object arg1, Object arg2, Object arg3)
+	{
+		logger.info(LogMessages.format(template, 3, arg1, arg2, arg3));
+	}
+
+	@Override
+	public void error(String message, Throwable t)
+	{
+		logger.error(message, t);
+	}
+}
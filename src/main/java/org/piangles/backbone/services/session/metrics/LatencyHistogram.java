@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies in nanoseconds counted in log-linear buckets, the layout HdrHistogram uses:
+ * every power of two is split into SUB_BUCKET_COUNT linear buckets, so any percentile
+ * is within about 3% of the recorded value whatever its magnitude. Recording is one
+ * increment of an array slot, no allocation and no locks. Counts are since creation.
+ */
+public final class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	//2^40 ns is about 18 minutes, anything longer is counted as that.
+	private static final int MAX_MAGNITUDE = 39;
+	private static final long MAX_TRACKABLE_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+	private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+	private AtomicLongArray counts = null;
+	private LongAdder totalCount = null;
+	private LongAdder totalValue = null;
+	private AtomicLong maxValue = null;
+
+	public LatencyHistogram()
+	{
+		counts = new AtomicLongArray(BUCKET_COUNT);
+		totalCount = new LongAdder();
+		totalValue = new LongAdder();
+		maxValue = new AtomicLong();
+	}
+
+	public void record(long valueInNanos)
+	{
+		long value = Math.min(Math.max(valueInNanos, 0), MAX_TRACKABLE_VALUE);
+		counts.incrementAndGet(bucketIndex(value));
+		totalCount.increment();
+		totalValue.add(value);
+		long max = maxValue.get();
+		while (value > max && !maxValue.compareAndSet(max, value))
+		{
+			max = maxValue.get();
+		}
+	}
+
+	public long getTotalCount()
+	{
+		return totalCount.sum();
+	}
+
+	public long getMean()
+	{
+		long count = totalCount.sum();
+		return count == 0 ? 0 : totalValue.sum() / count;
+	}
+
+	public long getMax()
+	{
+		return maxValue.get();
+	}
+
+	/**
+	 * Values at each of the percentiles, 0 to 100, in one pass over a copy of the counts.
+	 * A value is the highest one counted in its bucket, never below what was recorded.
+	 */
+	public long[] getValuesAtPercentiles(double... percentiles)
+	{
+		long[] snapshot = new long[BUCKET_COUNT];
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; ++i)
+		{
+			snapshot[i] = counts.get(i);
+			count = count + snapshot[i];
+		}
+
+		long[] values = new long[percentiles.length];
+		for (int p = 0; p < percentiles.length; ++p)
+		{
+			long countAtPercentile = Math.max(1, (long)Math.ceil(percentiles[p] / 100.0 * count));
+			long seen = 0;
+			int index = 0;
+			while (index < BUCKET_COUNT - 1 && seen + snapshot[index] < countAtPercentile)
+			{
+				seen = seen + snapshot[index];
+				index++;
+			}
+			values[p] = count == 0 ? 0 : Math.min(highestValueInBucket(index), getMax());
+		}
+		return values;
+	}
+
+	static int bucketIndex(long value)
+	{
+		int index = 0;
+		if (value < SUB_BUCKET_COUNT)
+		{
+			index = (int)value;
+		}
+		else
+		{
+			int magnitude = 63 - Long.numberOfLeadingZeros(value);
+			int shift = magnitude - SUB_BUCKET_BITS;
+			int subBucket = (int)(value >>> shift) - SUB_BUCKET_COUNT;
+			index = SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+		}
+		return index;
+	}
+
+	static long highestValueInBucket(int index)
+	{
+		long value = 0;
+		if (index < SUB_BUCKET_COUNT)
+		{
+			value = index;
+		}
+		else
+		{
+			int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+			int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+			value = ((long)(SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, errors and Redis traffic of one operation, a SessionManagementService method
+ * or a SessionManagementDAO call.
+ *
+ * Redis commands are reported through recordRedis where they are sent, by the pipeline
+ * and script wrappers of the DAO, and counted against the operation in progress on that
+ * thread, the one between begin and end. That way the HGETALLs of an expiry sweep show
+ * up under the DAO call which triggered it. Commands sent on another thread on behalf of
+ * an operation are counted against the one getInProgress returned when they were handed
+ * over. Anything issued outside of an operation, background flushes for instance, is
+ * not counted.
+ */
+public final class OperationMetrics
+{
+	private static final ThreadLocal<OperationMetrics> OPERATION_IN_PROGRESS = new ThreadLocal<>();
+	private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+	private String name = null;
+	private LatencyHistogram latency = null;
+	private LongAdder errorCount = null;
+	private LongAdder redisCommandCount = null;
+	private LongAdder redisRoundTripCount = null;
+
+	OperationMetrics(String name)
+	{
+		this.name = name;
+		latency = new LatencyHistogram();
+		errorCount = new LongAdder();
+		redisCommandCount = new LongAdder();
+		redisRoundTripCount = new LongAdder();
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	//Returns the start to be handed to end. Operations do not nest, begin replaces whatever was in progress.
+	public long begin()
+	{
+		OPERATION_IN_PROGRESS.set(this);
+		return System.nanoTime();
+	}
+
+	public void end(long start, boolean failed)
+	{
+		OPERATION_IN_PROGRESS.set(null);
+		record(start, failed);
+	}
+
+	//Same as end without tracking Redis traffic, for the service methods.
+	public void record(long start, boolean failed)
+	{
+		latency.record(System.nanoTime() - start);
+		if (failed)
+		{
+			errorCount.increment();
+		}
+	}
+
+	//The operation in progress on this thread, null if there is none.
+	public static OperationMetrics getInProgress()
+	{
+		return OPERATION_IN_PROGRESS.get();
+	}
+
+	public static void recordRedis(int commands, int roundTrips)
+	{
+		recordRedis(OPERATION_IN_PROGRESS.get(), commands, roundTrips);
+	}
+
+	public static void recordRedis(OperationMetrics operation, int commands, int roundTrips)
+	{
+		if (operation != null)
+		{
+			operation.redisCommandCount.add(commands);
+			operation.redisRoundTripCount.add(roundTrips);
+		}
+	}
+
+	public Snapshot snapshot()
+	{
+		return new Snapshot(this);
+	}
+
+	public static final class Snapshot
+	{
+		private String name = null;
+		private long count;
+		private long errorCount;
+		private long mean;
+		private long[] percentiles = null;
+		private long max;
+		private long redisCommandCount;
+		private long redisRoundTripCount;
+
+		private Snapshot(OperationMetrics operation)
+		{
+			name = operation.name;
+			count = operation.latency.getTotalCount();
+			errorCount = operation.errorCount.sum();
+			mean = operation.latency.getMean();
+			percentiles = operation.latency.getValuesAtPercentiles(PERCENTILES);
+			max = operation.latency.getMax();
+			redisCommandCount = operation.redisCommandCount.sum();
+			redisRoundTripCount = operation.redisRoundTripCount.sum();
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public long getCount()
+		{
+			return count;
+		}
+
+		public long getErrorCount()
+		{
+			return errorCount;
+		}
+
+		//All latencies in nanoseconds.
+		public long getMean()
+		{
+			return mean;
+		}
+
+		public long getP50()
+		{
+			return percentiles[0];
+		}
+
+		public long getP90()
+		{
+			return percentiles[1];
+		}
+
+		public long getP99()
+		{
+			return percentiles[2];
+		}
+
+		public long getP999()
+		{
+			return percentiles[3];
+		}
+
+		public long getMax()
+		{
+			return max;
+		}
+
+		public long getRedisCommandCount()
+		{
+			return redisCommandCount;
+		}
+
+		public long getRedisRoundTripCount()
+		{
+			return redisRoundTripCount;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name + " [count=" + count + ", errors=" + errorCount
+					+ ", meanUs=" + toMicros(mean) + ", p50Us=" + toMicros(getP50()) + ", p90Us=" + toMicros(getP90())
+					+ ", p99Us=" + toMicros(getP99()) + ", p999Us=" + toMicros(getP999()) + ", maxUs=" + toMicros(max)
+					+ ", redisCommands=" + redisCommandCount + ", redisRoundTrips=" + redisRoundTripCount + "]";
+		}
+
+		private static long toMicros(long nanos)
+		{
+			return nanos / 1000;
+		}
+	}
+}
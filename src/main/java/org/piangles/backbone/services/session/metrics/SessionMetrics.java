@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * All the OperationMetrics of one SessionManagementService, by operation name. Callers
+ * look an operation up once and keep it, the hot path never goes through the map.
+ */
+public final class SessionMetrics
+{
+	private ConcurrentHashMap<String, OperationMetrics> operations = null;
+	private LongAdder preApprovedValidationCount = null;
+	private LongAdder daoValidationCount = null;
+	private LongAdder tokenValidationCount = null;
+
+	public SessionMetrics()
+	{
+		operations = new ConcurrentHashMap<>();
+		preApprovedValidationCount = new LongAdder();
+		daoValidationCount = new LongAdder();
+		tokenValidationCount = new LongAdder();
+	}
+
+	public OperationMetrics getOperation(String name)
+	{
+		return operations.computeIfAbsent(name, OperationMetrics::new);
+	}
+
+	//isValid answered from the PreApprovedSessionIds without going to the DAO.
+	public void preApprovedValidation()
+	{
+		preApprovedValidationCount.increment();
+	}
+
+	public void daoValidation()
+	{
+		daoValidationCount.increment();
+	}
+
+	//isValid answered from the signature of a SessionToken without going to the DAO.
+	public void tokenValidation()
+	{
+		tokenValidationCount.increment();
+	}
+
+	public Snapshot snapshot()
+	{
+		List<OperationMetrics.Snapshot> operationSnapshots = new ArrayList<>(operations.size());
+		for (OperationMetrics operation : operations.values())
+		{
+			operationSnapshots.add(operation.snapshot());
+		}
+		operationSnapshots.sort(Comparator.comparing(OperationMetrics.Snapshot::getName));
+		return new Snapshot(operationSnapshots, preApprovedValidationCount.sum(), daoValidationCount.sum(), tokenValidationCount.sum());
+	}
+
+	public static final class Snapshot
+	{
+		private List<OperationMetrics.Snapshot> operations = null;
+		private long preApprovedValidationCount;
+		private long daoValidationCount;
+		private long tokenValidationCount;
+
+		private Snapshot(List<OperationMetrics.Snapshot> operations, long preApprovedValidationCount, long daoValidationCount, long tokenValidationCount)
+		{
+			this.operations = Collections.unmodifiableList(operations);
+			this.preApprovedValidationCount = preApprovedValidationCount;
+			this.daoValidationCount = daoValidationCount;
+			this.tokenValidationCount = tokenValidationCount;
+		}
+
+		public List<OperationMetrics.Snapshot> getOperations()
+		{
+			return operations;
+		}
+
+		public long getPreApprovedValidationCount()
+		{
+			return preApprovedValidationCount;
+		}
+
+		public long getDAOValidationCount()
+		{
+			return daoValidationCount;
+		}
+
+		public long getTokenValidationCount()
+		{
+			return tokenValidationCount;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder();
+			sb.append("SessionMetrics [preApprovedValidations=").append(preApprovedValidationCount).append(", daoValidations=").append(daoValidationCount).append(", tokenValidations=").append(tokenValidationCount).append("]");
+			for (OperationMetrics.Snapshot operation : operations)
+			{
+				sb.append(System.lineSeparator()).append('\t').append(operation);
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.token;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.LongSupplier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.piangles.backbone.services.session.dao.SessionInvalidationListener;
+import org.piangles.backbone.services.session.dao.TimingWheel;
+
+/**
+ * Signed SessionIds which can be checked without going to the DAO. A token is the
+ * generated SessionId, the time it was issued and an HMAC-SHA256 of both along with
+ * the userId:
+ * 
+ * 	<SessionId>.<IssuedAt in base 36>.<first 16 bytes of the HMAC in Base64Url>
+ * 
+ * For validityInMilliSeconds after it is issued a token with a good signature is valid
+ * unless it has been revoked, after that only the DAO can tell. The whole token is the
+ * SessionId as far as the DAO and callers are concerned.
+ * 
+ * Revocations only have to be kept until the token they are for is past its validity,
+ * they are dropped by a TimingWheel after that. Revocations can be lost while the
+ * invalidation channel is down, so once it resynchronizes no token issued before then
+ * is trusted, they all go to the DAO until they are past their validity.
+ */
+public final class SessionTokens implements SessionInvalidationListener
+{
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final int SIGNATURE_LENGTH = 16;
+	private static final char SEPARATOR = '.';
+	private static final long NOT_A_TOKEN = Long.MIN_VALUE;
+	private static final long REVOCATION_TICK_IN_MILLISECONDS = 1000;
+	private static final int REVOCATION_WHEEL_SIZE = 512;
+
+	private SecretKeySpec key = null;
+	private long validityInMilliSeconds;
+	private LongSupplier clock = null;
+	private ThreadLocal<Mac> macs = null;
+	//Virtual threads are many and short lived, they share Macs instead of creating one each.
+	private Queue<Mac> sharedMacs = null;
+
+	private ConcurrentHashMap<String, Long> revokedUntilMap = null;
+	private TimingWheel<String> revocationExpiry = null;
+	//UserId to the time all its tokens were revoked, tokens issued up to then are not trusted.
+	private ConcurrentHashMap<String, Long> userRevokedAtMap = null;
+	private TimingWheel<String> userRevocationExpiry = null;
+	private volatile long notTrustedUntil = NOT_A_TOKEN;
+
+	public SessionTokens(byte[] key, long validityInMilliSeconds) throws Exception
+	{
+		this(key, validityInMilliSeconds, System::currentTimeMillis);
+		revocationExpiry.start("SessionTokenRevocationExpiry");
+		userRevocationExpiry.start("SessionTokenUserRevocationExpiry");
+	}
+
+	//The wheel is not started, whoever controls the clock calls advance on it.
+	SessionTokens(byte[] key, long validityInMilliSeconds, LongSupplier clock) throws Exception
+	{
+		this.key = new SecretKeySpec(key, MAC_ALGORITHM);
+		this.validityInMilliSeconds = validityInMilliSeconds;
+		this.clock = clock;
+
+		//Fails here and not on the first login if the key cannot be used.
+		createMac();
+		macs = ThreadLocal.withInitial(this::createMac);
+		sharedMacs = new ConcurrentLinkedQueue<>();
+
+		revokedUntilMap = new ConcurrentHashMap<>();
+		revocationExpiry = new TimingWheel<>(REVOCATION_TICK_IN_MILLISECONDS, REVOCATION_WHEEL_SIZE, clock, (sessionId, now) -> {
+			revokedUntilMap.remove(sessionId);
+			return 0;
+		});
+		userRevokedAtMap = new ConcurrentHashMap<>();
+		userRevocationExpiry = new TimingWheel<>(REVOCATION_TICK_IN_MILLISECONDS, REVOCATION_WHEEL_SIZE, clock, (userId, now) -> {
+			//Revoked again since it was scheduled, kept until the tokens before that are past their validity.
+			Long revokedAt = userRevokedAtMap.computeIfPresent(userId, (k, v) -> now < v + validityInMilliSeconds ? v : null);
+			return revokedAt != null ? revokedAt + validityInMilliSeconds : 0;
+		});
+	}
+
+	public String issue(String userId, String sessionId)
+	{
+		String payload = sessionId + SEPARATOR + Long.toString(clock.getAsLong(), Character.MAX_RADIX);
+		return payload + SEPARATOR + sign(userId, payload);
+	}
+
+	/**
+	 * True if sessionId is a token issued to userId with this key, within its validity
+	 * and not revoked. False does not mean the session is not valid, just that the DAO
+	 * has to be asked.
+	 */
+	public boolean isValid(String userId, String sessionId)
+	{
+		boolean valid = false;
+
+		long issuedAt = getIssuedAt(sessionId);
+		long now = clock.getAsLong();
+		if (issuedAt != NOT_A_TOKEN && issuedAt > notTrustedUntil && now < issuedAt + validityInMilliSeconds
+			&& !revokedUntilMap.containsKey(sessionId) && issuedAt > userRevokedAtMap.getOrDefault(userId, NOT_A_TOKEN))
+		{
+			int signatureIndex = sessionId.lastIndexOf(SEPARATOR);
+			byte[] expected = sign(userId, sessionId.substring(0, signatureIndex)).getBytes(StandardCharsets.US_ASCII);
+			byte[] actual = sessionId.substring(signatureIndex + 1).getBytes(StandardCharsets.US_ASCII);
+			valid = MessageDigest.isEqual(expected, actual);
+		}
+
+		return valid;
+	}
+
+	//Revokes the token, SessionIds which are not tokens or are past their validity are ignored.
+	@Override
+	public void invalidated(String userId, String sessionId)
+	{
+		long issuedAt = getIssuedAt(sessionId);
+		if (issuedAt != NOT_A_TOKEN)
+		{
+			long revokedUntil = issuedAt + validityInMilliSeconds;
+			if (clock.getAsLong() < revokedUntil && revokedUntilMap.put(sessionId, revokedUntil) == null)
+			{
+				revocationExpiry.schedule(sessionId, revokedUntil);
+			}
+		}
+	}
+
+	//Revokes every token of userId issued so far.
+	@Override
+	public void invalidatedAll(String userId)
+	{
+		long now = clock.getAsLong();
+		if (userRevokedAtMap.put(userId, now) == null)
+		{
+			userRevocationExpiry.schedule(userId, now + validityInMilliSeconds);
+		}
+	}
+
+	@Override
+	public void resynchronize()
+	{
+		notTrustedUntil = clock.getAsLong();
+	}
+
+	public int getRevokedCount()
+	{
+		return revokedUntilMap.size();
+	}
+
+	public int getRevokedUserCount()
+	{
+		return userRevokedAtMap.size();
+	}
+
+	TimingWheel<String> getRevocationExpiry()
+	{
+		return revocationExpiry;
+	}
+
+	TimingWheel<String> getUserRevocationExpiry()
+	{
+		return userRevocationExpiry;
+	}
+
+	private long getIssuedAt(String sessionId)
+	{
+		long issuedAt = NOT_A_TOKEN;
+		int signatureIndex = sessionId.lastIndexOf(SEPARATOR);
+		int issuedAtIndex = signatureIndex > 0 ? sessionId.lastIndexOf(SEPARATOR, signatureIndex - 1) : -1;
+		if (issuedAtIndex > 0)
+		{
+			try
+			{
+				issuedAt = Long.parseLong(sessionId.substring(issuedAtIndex + 1, signatureIndex), Character.MAX_RADIX);
+			}
+			catch (NumberFormatException e)
+			{
+				//Some other SessionId with dots in it.
+				issuedAt = NOT_A_TOKEN;
+			}
+		}
+		return issuedAt;
+	}
+
+	private String sign(String userId, String payload)
+	{
+		String signature = null;
+		if (Thread.currentThread().isVirtual())
+		{
+			Mac mac = sharedMacs.poll();
+			if (mac == null)
+			{
+				mac = createMac();
+			}
+			signature = sign(mac, userId, payload);
+			sharedMacs.offer(mac);
+		}
+		else
+		{
+			signature = sign(macs.get(), userId, payload);
+		}
+		return signature;
+	}
+
+	private static String sign(Mac mac, String userId, String payload)
+	{
+		byte[] userIdBytes = userId.getBytes(StandardCharsets.UTF_8);
+		//Length first so no other userId and payload pair signs the same bytes.
+		mac.update(ByteBuffer.allocate(Integer.BYTES).putInt(userIdBytes.length).array());
+		mac.update(userIdBytes);
+		byte[] signature = mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(signature, SIGNATURE_LENGTH));
+	}
+
+	private Mac createMac()
+	{
+		Mac mac = null;
+		try
+		{
+			mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(key);
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException("Unable to create " + MAC_ALGORITHM + " for SessionTokens.", e);
+		}
+		return mac;
+	}
+}
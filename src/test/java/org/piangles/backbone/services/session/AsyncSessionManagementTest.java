@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import org.piangles.backbone.services.logging.LoggingService;
+import org.piangles.backbone.services.session.dao.AsyncSessionManagementDAOAdapter;
+import org.piangles.backbone.services.session.dao.InMemoryDAOImpl;
+import org.piangles.backbone.services.session.dao.SessionManagementDAO;
+import org.piangles.backbone.services.session.metrics.OperationMetrics;
+import org.piangles.backbone.services.session.metrics.SessionMetrics;
+import org.piangles.core.dao.DAOException;
+
+public class AsyncSessionManagementTest
+{
+	private static final long SESSION_TIMEOUT = 60;
+	private static final int MAX_SESSION_COUNT = 3;
+
+	@Test
+	public void testRegisterAsyncThenIsValidAsync() throws Exception
+	{
+		SessionManagementServiceImpl service = createService(null);
+		SessionDetails sessionDetails = service.registerAsync("user1").toCompletableFuture().join();
+
+		assertEquals("user1", sessionDetails.getUserId());
+		assertTrue(service.isValidAsync("user1", sessionDetails.getSessionId()).toCompletableFuture().join());
+		assertTrue(service.isValid("user1", sessionDetails.getSessionId()));
+		assertFalse(service.isValidAsync("user1", "unknown").toCompletableFuture().join());
+		assertEquals(2, getOperation(service, "isValidAsync").getCount());
+	}
+
+	@Test
+	public void testRegisterAsyncFailsPastTheLimit() throws Exception
+	{
+		SessionManagementServiceImpl service = createService(null);
+		for (int i = 0; i < MAX_SESSION_COUNT; ++i)
+		{
+			service.registerAsync("user1").toCompletableFuture().join();
+		}
+
+		assertSessionManagementException(service.registerAsync("user1").toCompletableFuture());
+		assertEquals(1, getOperation(service, "registerAsync").getErrorCount());
+	}
+
+	@Test
+	public void testDAOFailureFailsTheStage() throws Exception
+	{
+		SessionManagementDAO failingDAO = (SessionManagementDAO)Proxy.newProxyInstance(SessionManagementDAO.class.getClassLoader(), new Class<?>[] {SessionManagementDAO.class}, (proxy, method, args) -> {
+			if (method.getReturnType() != void.class)
+			{
+				throw new DAOException("Store is down.");
+			}
+			return null;
+		});
+		SessionManagementServiceImpl service = createService(failingDAO);
+
+		assertSessionManagementException(service.registerAsync("user1").toCompletableFuture());
+		assertSessionManagementException(service.isValidAsync("user1", "session1").toCompletableFuture());
+	}
+
+	//Counted like isValid, so batches do not skew the share of validations the DAO answers.
+	@Test
+	public void testIsValidBatchCountsValidations() throws Exception
+	{
+		Map<String, String> predeterminedSessionIdMap = new HashMap<>();
+		predeterminedSessionIdMap.put("gateway", "preApproved");
+		SessionManagementServiceImpl service = createService(null, predeterminedSessionIdMap);
+		SessionDetails sessionDetails = service.register("user1");
+
+		BitSet valid = service.isValidBatch(new String[] {"gateway", "user1", "user1", ""}, new String[] {"preApproved", sessionDetails.getSessionId(), "unknown", "session1"});
+
+		assertEquals("{0, 1}", valid.toString());
+		SessionMetrics.Snapshot snapshot = service.getMetricsSnapshot();
+		assertEquals(1, snapshot.getPreApprovedValidationCount());
+		assertEquals(2, snapshot.getDAOValidationCount());
+		assertEquals(1, getOperation(service, "isValidBatch").getCount());
+	}
+
+	@Test
+	public void testConcurrentStoresStayWithinTheLimit() throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try
+		{
+			AsyncSessionManagementDAOAdapter dao = new AsyncSessionManagementDAOAdapter(new InMemoryDAOImpl(SESSION_TIMEOUT, 5), executor);
+			List<CompletableFuture<Integer>> stores = new ArrayList<>();
+			for (int i = 0; i < 50; ++i)
+			{
+				stores.add(dao.storeSessionDetailsIfBelowLimit(new SessionDetails("user1", "session" + i, "PostAuthentication", SESSION_TIMEOUT), MAX_SESSION_COUNT).toCompletableFuture());
+			}
+
+			int stored = 0;
+			for (CompletableFuture<Integer> store : stores)
+			{
+				stored += store.join() < MAX_SESSION_COUNT ? 1 : 0;
+			}
+			assertEquals(MAX_SESSION_COUNT, stored);
+			assertEquals(MAX_SESSION_COUNT, dao.getAllSessionDetails("user1").toCompletableFuture().join().size());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	private static OperationMetrics.Snapshot getOperation(SessionManagementServiceImpl service, String name)
+	{
+		OperationMetrics.Snapshot operation = null;
+		for (OperationMetrics.Snapshot snapshot : service.getMetricsSnapshot().getOperations())
+		{
+			if (snapshot.getName().equals("SessionManagementService." + name))
+			{
+				operation = snapshot;
+			}
+		}
+		return operation;
+	}
+
+	private static void assertSessionManagementException(CompletableFuture<?> stage)
+	{
+		try
+		{
+			stage.join();
+			fail("Stage completed normally.");
+		}
+		catch (CompletionException e)
+		{
+			assertTrue(e.getCause().toString(), e.getCause() instanceof SessionManagementException);
+		}
+	}
+
+	private static SessionManagementServiceImpl createService(SessionManagementDAO dao) throws Exception
+	{
+		return createService(dao, new HashMap<>());
+	}
+
+	private static SessionManagementServiceImpl createService(SessionManagementDAO dao, Map<String, String> predeterminedSessionIdMap) throws Exception
+	{
+		Properties sessionMgmtProperties = new Properties();
+		sessionMgmtProperties.setProperty("SessionTimeout", "" + SESSION_TIMEOUT);
+		sessionMgmtProperties.setProperty("MarkSessionTimeout", "5");
+		sessionMgmtProperties.setProperty("AllowMultipleSessions", "true");
+		sessionMgmtProperties.setProperty("MaxSessionCount", "" + MAX_SESSION_COUNT);
+		sessionMgmtProperties.setProperty("DAOType", "InMemory");
+		LoggingService logger = (LoggingService)Proxy.newProxyInstance(LoggingService.class.getClassLoader(), new Class<?>[] {LoggingService.class}, (proxy, method, args) -> {
+			return null;
+		});
+		return new SessionManagementServiceImpl(sessionMgmtProperties, predeterminedSessionIdMap, logger, dao);
+	}
+}
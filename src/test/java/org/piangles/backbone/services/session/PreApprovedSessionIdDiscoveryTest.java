@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+import org.piangles.backbone.services.logging.LoggingService;
+
+public class PreApprovedSessionIdDiscoveryTest
+{
+	private static final long LOOKUP_IN_MILLISECONDS = 200;
+
+	@Test
+	public void testLookupsRunConcurrently() throws Exception
+	{
+		List<String> serviceNames = Arrays.asList("S1", "S2", "S3", "S4", "S5", "S6", "S7", "S8");
+		long start = System.currentTimeMillis();
+		Map<String, String> predeterminedSessionIdMap = new PreApprovedSessionIdDiscovery(this::slowDiscover, serviceNames.size(), 5000, createLoggingService()).discover(serviceNames);
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertEquals(serviceNames.size(), predeterminedSessionIdMap.size());
+		for (String serviceName : serviceNames)
+		{
+			assertEquals(serviceName + "-PreApproved", predeterminedSessionIdMap.get(serviceName));
+		}
+		assertTrue("Took " + elapsed + "ms", elapsed < LOOKUP_IN_MILLISECONDS * serviceNames.size() / 2);
+	}
+
+	@Test
+	public void testManagedServicesFromProperties() throws Exception
+	{
+		Properties sessionMgmtProperties = new Properties();
+		//Count 0 is optional, discovery stops at the first gap after it.
+		sessionMgmtProperties.setProperty("ManagedService1", "S1");
+		sessionMgmtProperties.setProperty("ManagedService2", "S2");
+		sessionMgmtProperties.setProperty("ManagedService4", "S4");
+		sessionMgmtProperties.setProperty("DiscoveryParallelism", "2");
+
+		Map<String, String> predeterminedSessionIdMap = SessionManagementServiceImpl.discoverPreApprovedSessionIds(sessionMgmtProperties, this::slowDiscover, createLoggingService());
+		assertEquals(2, predeterminedSessionIdMap.size());
+		assertEquals("S2-PreApproved", predeterminedSessionIdMap.get("S2"));
+		assertFalse(predeterminedSessionIdMap.containsKey("S4"));
+	}
+
+	@Test
+	public void testResultIsImmutable() throws Exception
+	{
+		Map<String, String> predeterminedSessionIdMap = new PreApprovedSessionIdDiscovery(serviceName -> {
+			Properties discoveryProperties = new Properties();
+			if (!"NotPreApproved".equals(serviceName))
+			{
+				discoveryProperties.setProperty("PreApprovedSessionId", serviceName + "-PreApproved");
+			}
+			return discoveryProperties;
+		}, 2, 5000, createLoggingService()).discover(Arrays.asList("S1", "NotPreApproved"));
+
+		assertEquals(1, predeterminedSessionIdMap.size());
+		try
+		{
+			predeterminedSessionIdMap.put("S2", "S2-PreApproved");
+			fail("Map can be changed.");
+		}
+		catch (UnsupportedOperationException expt)
+		{
+			//Expected
+		}
+	}
+
+	@Test
+	public void testSlowLookupFailsDiscovery() throws Exception
+	{
+		try
+		{
+			new PreApprovedSessionIdDiscovery(this::slowDiscover, 2, LOOKUP_IN_MILLISECONDS / 4, createLoggingService()).discover(Arrays.asList("S1", "S2"));
+			fail("Discovery did not time out.");
+		}
+		catch (Exception expt)
+		{
+			assertTrue(expt.getMessage(), expt.getMessage().contains("S1"));
+		}
+	}
+
+	@Test
+	public void testFailedLookupFailsDiscovery() throws Exception
+	{
+		try
+		{
+			new PreApprovedSessionIdDiscovery(serviceName -> {
+				if ("S2".equals(serviceName))
+				{
+					throw new IllegalStateException("S2 is not registered.");
+				}
+				return slowDiscover(serviceName);
+			}, 2, 5000, createLoggingService()).discover(Arrays.asList("S1", "S2"));
+			fail("Discovery did not fail.");
+		}
+		catch (Exception expt)
+		{
+			assertTrue(expt.getMessage(), expt.getMessage().contains("S2"));
+			assertTrue(expt.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	private Properties slowDiscover(String serviceName) throws Exception
+	{
+		Thread.sleep(LOOKUP_IN_MILLISECONDS);
+		Properties discoveryProperties = new Properties();
+		discoveryProperties.setProperty("PreApprovedSessionId", serviceName + "-PreApproved");
+		return discoveryProperties;
+	}
+
+	private LoggingService createLoggingService()
+	{
+		return (LoggingService)Proxy.newProxyInstance(LoggingService.class.getClassLoader(), new Class<?>[] {LoggingService.class}, (proxy, method, args) -> {
+			return null;
+		});
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.piangles.backbone.services.logging.LoggingService;
+import org.piangles.backbone.services.session.dao.DistributedCacheDAOImpl;
+import org.piangles.backbone.services.session.dao.RedisFixture;
+import org.piangles.backbone.services.session.dao.SessionDetailsCache;
+import org.piangles.backbone.services.session.dao.SessionInvalidationListener;
+import org.piangles.backbone.services.session.dao.TwoTierDAOImpl;
+
+/**
+ * Two SessionService instances with the TwoTier DAO, each with a DistributedCacheDAOImpl
+ * of its own as the L2 against the same Redis, see RedisFixture. Invalidations go
+ * through Redis Pub/Sub, a test waits until the other node has them.
+ */
+public class TwoTierSessionManagementTest
+{
+	private static final long SESSION_TIMEOUT = 60;
+	private static final int MARK_SESSION_TIMEOUT = 5;
+	private static final int L1_CACHE_MAX_SIZE = 10;
+	private static final long INVALIDATION_TIMEOUT_IN_MILLISECONDS = 5000L;
+
+	private RedisFixture redis;
+	private DistributedCacheDAOImpl l2DAOA;
+	private DistributedCacheDAOImpl l2DAOB;
+	private TwoTierDAOImpl daoA;
+	private TwoTierDAOImpl daoB;
+	private InvalidationLatch invalidationsA;
+	private InvalidationLatch invalidationsB;
+	private SessionManagementServiceImpl serviceA;
+	private SessionManagementServiceImpl serviceB;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		redis = RedisFixture.getShared();
+		redis.flushAll();
+		l2DAOA = createSubscribedDAO();
+		l2DAOB = createSubscribedDAO();
+		daoA = new TwoTierDAOImpl(l2DAOA, new SessionDetailsCache(L1_CACHE_MAX_SIZE, 60000L), SESSION_TIMEOUT);
+		daoB = new TwoTierDAOImpl(l2DAOB, new SessionDetailsCache(L1_CACHE_MAX_SIZE, 60000L), SESSION_TIMEOUT);
+		//After the L1, so by the time a latch hears of an invalidation the L1 has it.
+		invalidationsA = new InvalidationLatch();
+		invalidationsB = new InvalidationLatch();
+		l2DAOA.subscribeInvalidations(invalidationsA);
+		l2DAOB.subscribeInvalidations(invalidationsB);
+		serviceA = createService(daoA);
+		serviceB = createService(daoB);
+	}
+
+	@Test
+	public void testOtherNodeReadsThroughThenServesFromL1() throws Exception
+	{
+		String sessionId = serviceA.register("user1").getSessionId();
+
+		assertTrue(serviceA.isValid("user1", sessionId));
+		assertEquals(1, daoA.getL1Cache().getHitCount());
+		assertEquals(0, daoA.getL1Cache().getMissCount());
+
+		assertTrue(serviceB.isValid("user1", sessionId));
+		assertTrue(serviceB.isValid("user1", sessionId));
+		assertEquals(1, daoB.getL1Cache().getMissCount());
+		assertEquals(1, daoB.getL1Cache().getHitCount());
+	}
+
+	@Test
+	public void testUnregisterOnOneNodeIsSeenOnTheOther() throws Exception
+	{
+		String sessionId = serviceA.register("user1").getSessionId();
+		assertTrue(serviceA.isValid("user1", sessionId));
+		assertTrue(serviceB.isValid("user1", sessionId));
+
+		invalidationsA.expect(1);
+		serviceB.unregister("user1", sessionId);
+		invalidationsA.await();
+
+		assertEquals(0, daoA.getL1Cache().size());
+		assertFalse(serviceA.isValid("user1", sessionId));
+		assertFalse(serviceB.isValid("user1", sessionId));
+	}
+
+	@Test
+	public void testInvalidateAllSessionsOnOneNodeIsSeenOnTheOther() throws Exception
+	{
+		String sessionId1 = serviceA.register("user1").getSessionId();
+		String sessionId2 = serviceA.register("user1").getSessionId();
+		String otherSessionId = serviceA.register("user2").getSessionId();
+		assertTrue(serviceB.isValid("user1", sessionId1));
+		assertTrue(serviceB.isValid("user1", sessionId2));
+		assertTrue(serviceB.isValid("user2", otherSessionId));
+
+		invalidationsB.expect(1);
+		serviceA.invalidateAllSessions("user1");
+		invalidationsB.await();
+
+		assertEquals(1, daoB.getL1Cache().size());
+		assertFalse(serviceA.isValid("user1", sessionId1));
+		assertFalse(serviceB.isValid("user1", sessionId1));
+		assertFalse(serviceB.isValid("user1", sessionId2));
+		assertTrue(serviceB.isValid("user2", otherSessionId));
+	}
+
+	@Test
+	public void testChangesOnOneNodeAreSeenOnTheOther() throws Exception
+	{
+		String sessionId1 = serviceA.register("user1").getSessionId();
+		String sessionId2 = serviceA.register("user1").getSessionId();
+		assertEquals("PostAuthentication", serviceB.getSessionDetails("user1", sessionId1).getAuthenticationState());
+		assertTrue(serviceB.isValid("user1", sessionId2));
+
+		invalidationsB.expect(2);
+		serviceA.updateAuthenticationState("user1", sessionId1, "PreAuthentication");
+		serviceA.markForUnregister("user1", sessionId2);
+		invalidationsB.await();
+
+		assertEquals(0, daoB.getL1Cache().size());
+		assertEquals("PreAuthentication", serviceB.getSessionDetails("user1", sessionId1).getAuthenticationState());
+	}
+
+	@Test
+	public void testTouchIsWrittenThroughAndKeptInL1() throws Exception
+	{
+		long almostExpiredTS = System.currentTimeMillis() - (SESSION_TIMEOUT * 1000) + 1000;
+		daoA.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT, almostExpiredTS, almostExpiredTS));
+		assertTrue(serviceA.isValid("user1", "session1"));
+
+		serviceA.makeLastAccessedCurrent("user1", "session1");
+
+		assertEquals(1, daoA.getL1Cache().size());
+		assertTrue(daoA.getL1Cache().get("user1", "session1").getLastAccessedTS() > almostExpiredTS);
+		assertTrue(l2DAOB.getSessionDetails("user1", "session1").getLastAccessedTS() > almostExpiredTS);
+		assertTrue(serviceB.getSessionDetails("user1", "session1").getLastAccessedTS() > almostExpiredTS);
+	}
+
+	@Test
+	public void testL1IsBounded() throws Exception
+	{
+		List<String> sessionIds = new ArrayList<>();
+		for (int i = 0; i < L1_CACHE_MAX_SIZE * 5; ++i)
+		{
+			sessionIds.add(serviceA.register("user" + i).getSessionId());
+		}
+
+		assertTrue(daoA.getL1Cache().size() <= L1_CACHE_MAX_SIZE);
+		for (int i = 0; i < sessionIds.size(); ++i)
+		{
+			assertTrue(serviceA.isValid("user" + i, sessionIds.get(i)));
+		}
+	}
+
+	@Test
+	public void testResubscribeClearsL1() throws Exception
+	{
+		String sessionId = serviceA.register("user1").getSessionId();
+		assertTrue(serviceB.isValid("user1", sessionId));
+
+		invalidationsA.expect(1);
+		invalidationsB.expect(1);
+		redis.disconnectSubscribers();
+		invalidationsA.await();
+		invalidationsB.await();
+
+		assertEquals(0, daoA.getL1Cache().size());
+		assertEquals(0, daoB.getL1Cache().size());
+	}
+
+	//Waits until the DAO is subscribed, invalidations published before then would be lost.
+	private DistributedCacheDAOImpl createSubscribedDAO() throws Exception
+	{
+		DistributedCacheDAOImpl dao = redis.createDistributedCacheDAO(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT);
+		InvalidationLatch subscribed = new InvalidationLatch();
+		subscribed.expect(1);
+		dao.subscribeInvalidations(subscribed);
+		subscribed.await();
+		return dao;
+	}
+
+	private static SessionManagementServiceImpl createService(TwoTierDAOImpl dao) throws Exception
+	{
+		Properties sessionMgmtProperties = new Properties();
+		sessionMgmtProperties.setProperty("SessionTimeout", "" + SESSION_TIMEOUT);
+		sessionMgmtProperties.setProperty("MarkSessionTimeout", "" + MARK_SESSION_TIMEOUT);
+		sessionMgmtProperties.setProperty("AllowMultipleSessions", "true");
+		sessionMgmtProperties.setProperty("MaxSessionCount", "10");
+		sessionMgmtProperties.setProperty("DAOType", "TwoTier");
+		LoggingService logger = (LoggingService)Proxy.newProxyInstance(LoggingService.class.getClassLoader(), new Class<?>[] {LoggingService.class}, (proxy, method, args) -> {
+			return null;
+		});
+		return new SessionManagementServiceImpl(sessionMgmtProperties, new HashMap<>(), logger, dao);
+	}
+
+	//Counts down on every invalidation and resubscription it hears of, expect sets how many to wait for.
+	private static final class InvalidationLatch implements SessionInvalidationListener
+	{
+		private volatile CountDownLatch latch = new CountDownLatch(0);
+
+		public void expect(int count)
+		{
+			latch = new CountDownLatch(count);
+		}
+
+		public void await() throws InterruptedException
+		{
+			assertTrue("Invalidation not received", latch.await(INVALIDATION_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS));
+		}
+
+		@Override
+		public void invalidated(String userId, String sessionId)
+		{
+			latch.countDown();
+		}
+
+		@Override
+		public void invalidatedAll(String userId)
+		{
+			latch.countDown();
+		}
+
+		@Override
+		public void resynchronize()
+		{
+			latch.countDown();
+		}
+	}
+}
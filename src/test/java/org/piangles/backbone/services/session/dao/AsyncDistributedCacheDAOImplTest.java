@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.piangles.backbone.services.session.SessionDetails;
+
+/**
+ * AsyncDistributedCacheDAOImpl against a real Redis, see RedisFixture, for each index type.
+ */
+public class AsyncDistributedCacheDAOImplTest
+{
+	private static final long SESSION_TIMEOUT = 60;
+	private static final int MARK_SESSION_TIMEOUT = 5;
+	private static final int CONNECTION_COUNT = 2;
+	private static final long TIMEOUT_IN_SECONDS = 5;
+
+	private interface Check
+	{
+		public void run(AsyncDistributedCacheDAOImpl dao) throws Exception;
+	}
+
+	private RedisFixture redis;
+	private RedisExecutor redisExecutor;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		redis = RedisFixture.getShared();
+		redisExecutor = redis.createExecutor();
+	}
+
+	@Test
+	public void testStoreReadUpdateAndRemove() throws Exception
+	{
+		forEachIndexType((dao) -> {
+			long now = System.currentTimeMillis();
+			await(dao.storeSessionDetails(new SessionDetails("user1", "session1", "PreAuthentication", SESSION_TIMEOUT, now, now)));
+			assertTrue(await(dao.isValid("user1", "session1")));
+
+			await(dao.updateAuthenticationState("user1", "session1", "PostAuthentication"));
+			assertEquals("PostAuthentication", await(dao.getSessionDetails("user1", "session1")).getAuthenticationState());
+			assertEquals(1, await(dao.getAllSessionDetails("user1")).size());
+
+			await(dao.removeSessionDetails("user1", "session1"));
+			assertNull(await(dao.getSessionDetails("user1", "session1")));
+			assertFalse(await(dao.isValid("user1", "session1")));
+		});
+	}
+
+	@Test
+	public void testMarkForRemoveNeverLengthensExpiry() throws Exception
+	{
+		forEachIndexType((dao) -> {
+			await(dao.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT)));
+			await(dao.storeSessionDetails(new SessionDetails("user1", "session2", "PostAuthentication", SESSION_TIMEOUT)));
+			redisExecutor.execute((jedis) -> jedis.pexpire(getSessionKey("user1", "session2"), 1000L));
+
+			await(dao.markForRemoveSessionDetails("user1", "session1"));
+			await(dao.markForRemoveSessionDetails("user1", "session2"));
+			long ttl = redisExecutor.execute((jedis) -> jedis.pttl(getSessionKey("user1", "session1")));
+			assertTrue("Marked, TTL " + ttl, ttl > 1000 && ttl <= MARK_SESSION_TIMEOUT * 1000);
+			ttl = redisExecutor.execute((jedis) -> jedis.pttl(getSessionKey("user1", "session2")));
+			assertTrue("Not lengthened, TTL " + ttl, ttl > 0 && ttl <= 1000);
+		});
+	}
+
+	//Redis lost its scripts, the calls which run one go through the blocking DAO which loads them again.
+	@Test
+	public void testScriptsLoadedAgainAfterNoScript() throws Exception
+	{
+		forEachIndexType((dao) -> {
+			await(dao.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT)));
+
+			redis.flushScripts();
+			List<SessionDetails> sessionDetails = await(dao.getAllSessionDetails("user1"));
+			assertEquals(1, sessionDetails.size());
+			assertEquals("session1", sessionDetails.get(0).getSessionId());
+
+			redis.flushScripts();
+			assertEquals(Integer.valueOf(1), await(dao.storeSessionDetailsIfBelowLimit(new SessionDetails("user1", "session2", "PostAuthentication", SESSION_TIMEOUT), 3)));
+			assertTrue(await(dao.isValid("user1", "session2")));
+
+			redis.flushScripts();
+			await(dao.markForRemoveSessionDetails("user1", "session2"));
+			long ttl = redisExecutor.execute((jedis) -> jedis.pttl(getSessionKey("user1", "session2")));
+			assertTrue("Marked, TTL " + ttl, ttl > 0 && ttl <= MARK_SESSION_TIMEOUT * 1000);
+
+			//Loaded again, so the multiplexed call no longer falls back.
+			assertEquals(2, await(dao.getAllSessionDetails("user1")).size());
+		});
+	}
+
+	private void forEachIndexType(Check check) throws Exception
+	{
+		for (User2SessionIndexType indexType : User2SessionIndexType.values())
+		{
+			redis.flushAll();
+			DistributedCacheDAOImpl distributedCacheDAO = new DistributedCacheDAOImpl(redis.createExecutor(), SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, null, indexType);
+			try (AsyncDistributedCacheDAOImpl dao = new AsyncDistributedCacheDAOImpl(distributedCacheDAO, CONNECTION_COUNT))
+			{
+				check.run(dao);
+			}
+			catch (AssertionError e)
+			{
+				throw new AssertionError(indexType + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	private static String getSessionKey(String userId, String sessionId)
+	{
+		return RedisSessionEncoding.Hash.createUser2SessionDetailsKey(RedisKeyLayout.Standard, userId, sessionId);
+	}
+
+	private static <T> T await(CompletionStage<T> stage) throws Exception
+	{
+		return stage.toCompletableFuture().get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+	}
+}
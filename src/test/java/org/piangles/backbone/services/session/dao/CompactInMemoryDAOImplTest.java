@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.piangles.backbone.services.session.SessionDetails;
+import org.piangles.backbone.services.session.id.DRBGSessionIdGenerator;
+import org.piangles.backbone.services.session.id.SessionIdFormat;
+import org.piangles.core.dao.DAOException;
+
+public class CompactInMemoryDAOImplTest
+{
+	private static final long SESSION_TIMEOUT = 60;
+	private static final int MARK_SESSION_TIMEOUT = 5;
+
+	private AtomicLong clock;
+	private CompactInMemoryDAOImpl dao;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		clock = new AtomicLong(1_000_000L);
+		dao = new CompactInMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, clock::get);
+	}
+
+	@Test
+	public void testSessionDetailsRoundTrip() throws Exception
+	{
+		String sessionId = UUID.randomUUID().toString();
+		dao.storeSessionDetails(createSessionDetails("user1", sessionId));
+		dao.updateAuthenticationState("user1", sessionId, "PostAuthentication");
+		clock.addAndGet(1000);
+		dao.updateLastAccessed("user1", sessionId);
+
+		SessionDetails sessionDetails = dao.getSessionDetails("user1", sessionId);
+		assertEquals("user1", sessionDetails.getUserId());
+		assertEquals(sessionId, sessionDetails.getSessionId());
+		assertEquals("PostAuthentication", sessionDetails.getAuthenticationState());
+		assertEquals(SESSION_TIMEOUT, sessionDetails.getInactivityExpiryTimeInSeconds());
+		assertEquals(1_000_000L, sessionDetails.getCreatedTS());
+		assertEquals(1_001_000L, sessionDetails.getLastAccessedTS());
+
+		assertTrue(dao.isValid("user1", sessionId));
+		assertFalse(dao.isValid("user2", sessionId));
+		assertFalse(dao.isValid("user1", "not-a-uuid"));
+	}
+
+	@Test
+	public void testManyStoresAndRemovesKeepLookupsIntact() throws Exception
+	{
+		List<String> sessionIds = new ArrayList<>();
+		for (int i = 0; i < 10000; ++i)
+		{
+			String sessionId = UUID.randomUUID().toString();
+			sessionIds.add(sessionId);
+			dao.storeSessionDetails(createSessionDetails("user" + (i % 100), sessionId));
+		}
+		for (int i = 0; i < sessionIds.size(); i = i + 2)
+		{
+			dao.removeSessionDetails("user" + (i % 100), sessionIds.get(i));
+		}
+
+		assertEquals(5000, dao.size());
+		for (int i = 0; i < sessionIds.size(); ++i)
+		{
+			assertEquals(i % 2 == 1, dao.isValid("user" + (i % 100), sessionIds.get(i)));
+		}
+		assertEquals(100, dao.getAllSessionDetails("user1").size());
+		assertEquals(0, dao.getAllSessionDetails("user0").size());
+	}
+
+	@Test
+	public void testSweepRemovesExpiredAndMarkedSessions() throws Exception
+	{
+		String marked = UUID.randomUUID().toString();
+		String touched = UUID.randomUUID().toString();
+		dao.storeSessionDetails(createSessionDetails("user1", marked));
+		dao.storeSessionDetails(createSessionDetails("user1", touched));
+		dao.markForRemoveSessionDetails("user1", marked);
+		dao.markForRemoveSessionDetails("user1", touched);
+		clock.addAndGet(1000);
+		dao.updateLastAccessed("user1", touched);
+
+		clock.addAndGet(MARK_SESSION_TIMEOUT * 1000);
+		assertEquals(1, dao.sweep());
+		assertNull(dao.getSessionDetails("user1", marked));
+		assertTrue(dao.isValid("user1", touched));
+
+		clock.addAndGet(SESSION_TIMEOUT * 1000);
+		assertEquals(1, dao.sweep());
+		assertEquals(0, dao.size());
+		assertNull(dao.getAllUserSessionIds("user1"));
+	}
+
+	@Test
+	public void testRegisterLimit() throws Exception
+	{
+		dao.storeSessionDetails(createSessionDetails("user1", UUID.randomUUID().toString()));
+		dao.storeSessionDetails(createSessionDetails("user1", UUID.randomUUID().toString()));
+
+		assertEquals(2, dao.storeSessionDetailsIfBelowLimit(createSessionDetails("user1", UUID.randomUUID().toString()), 2));
+		assertEquals(2, dao.getAllSessionDetails("user1").size());
+
+		clock.addAndGet(SESSION_TIMEOUT * 1000);
+		assertEquals(0, dao.storeSessionDetailsIfBelowLimit(createSessionDetails("user1", UUID.randomUUID().toString()), 2));
+		assertEquals(1, dao.getAllSessionDetails("user1").size());
+	}
+
+	@Test
+	public void testBase64UrlSessionIds() throws Exception
+	{
+		dao = new CompactInMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, SessionIdFormat.Base64Url, clock::get);
+		String sessionId = new DRBGSessionIdGenerator(SessionIdFormat.Base64Url).generate();
+		dao.storeSessionDetails(createSessionDetails("user1", sessionId));
+
+		assertTrue(dao.isValid("user1", sessionId));
+		assertEquals(sessionId, dao.getAllSessionDetails("user1").get(0).getSessionId());
+		assertFalse(dao.isValid("user1", UUID.randomUUID().toString()));
+	}
+
+	@Test(expected = DAOException.class)
+	public void testSessionIdHasToBeUUID() throws Exception
+	{
+		dao.storeSessionDetails(createSessionDetails("user1", "session1"));
+	}
+
+	private SessionDetails createSessionDetails(String userId, String sessionId)
+	{
+		return new SessionDetails(userId, sessionId, "PostAuthentication", SESSION_TIMEOUT, clock.get(), clock.get());
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.piangles.backbone.services.session.SessionDetails;
+
+public class ConcurrentInMemoryDAOImplTest
+{
+	private static final long SESSION_TIMEOUT = 60;
+	private static final int THREADS = 16;
+
+	@Test
+	public void testConcurrentRegisterDoesNotExceedLimit() throws Exception
+	{
+		ConcurrentInMemoryDAOImpl dao = new ConcurrentInMemoryDAOImpl(SESSION_TIMEOUT, 5);
+		AtomicInteger stored = new AtomicInteger();
+
+		runConcurrently(() -> {
+			for (int i = 0; i < 100; ++i)
+			{
+				SessionDetails sessionDetails = new SessionDetails("user1", UUID.randomUUID().toString(), "PostAuthentication", SESSION_TIMEOUT);
+				if (dao.storeSessionDetailsIfBelowLimit(sessionDetails, 10) < 10)
+				{
+					stored.incrementAndGet();
+				}
+			}
+			return null;
+		});
+
+		assertEquals(10, stored.get());
+		assertEquals(10, dao.getExistingValidSessionCount("user1"));
+		assertEquals(10, dao.getAllSessionDetails("user1").size());
+	}
+
+	@Test
+	public void testConcurrentTouchAndRemove() throws Exception
+	{
+		ConcurrentInMemoryDAOImpl dao = new ConcurrentInMemoryDAOImpl(SESSION_TIMEOUT, 5);
+		for (int i = 0; i < THREADS; ++i)
+		{
+			dao.storeSessionDetails(new SessionDetails("user" + i, "session" + i, "PostAuthentication", SESSION_TIMEOUT));
+		}
+
+		runConcurrently(() -> {
+			for (int i = 0; i < 1000; ++i)
+			{
+				int user = i % THREADS;
+				dao.updateLastAccessed("user" + user, "session" + user);
+				dao.updateAuthenticationState("user" + user, "session" + user, "PostAuthentication");
+				assertTrue(dao.isValid("user" + user, "session" + user));
+			}
+			return null;
+		});
+
+		dao.removeSessionDetails("user0", "session0");
+		assertFalse(dao.isValid("user0", "session0"));
+		assertTrue(dao.getAllSessionDetails("user0").isEmpty());
+	}
+
+	@Test
+	public void testExpiredSessionsAreRemoved() throws Exception
+	{
+		ConcurrentInMemoryDAOImpl dao = new ConcurrentInMemoryDAOImpl(SESSION_TIMEOUT, 5);
+		long expiredTS = System.currentTimeMillis() - (SESSION_TIMEOUT * 1000) - 1;
+		dao.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT, expiredTS, expiredTS));
+		dao.storeSessionDetails(new SessionDetails("user1", "session2", "PostAuthentication", SESSION_TIMEOUT));
+
+		assertEquals(1, dao.getExistingValidSessionCount("user1"));
+		assertEquals(null, dao.getSessionDetails("user1", "session1"));
+	}
+
+	private void runConcurrently(Callable<Void> task) throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int i = 0; i < THREADS; ++i)
+		{
+			futures.add(executor.submit(() -> {
+				start.await();
+				return task.call();
+			}));
+		}
+		start.countDown();
+		for (Future<Void> future : futures)
+		{
+			future.get();
+		}
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+	}
+}
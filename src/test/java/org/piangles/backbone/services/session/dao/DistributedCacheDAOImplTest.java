@@ -0,0 +1,458 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.piangles.backbone.services.session.SessionDetails;
+import org.piangles.backbone.services.session.metrics.OperationMetrics;
+import org.piangles.backbone.services.session.metrics.SessionMetrics;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * DistributedCacheDAOImpl against a real Redis, see RedisFixture, so its scripts are
+ * run by Redis itself. Every test goes through each index type and session encoding.
+ */
+public class DistributedCacheDAOImplTest
+{
+	private static final long SESSION_TIMEOUT = 60;
+	private static final int MARK_SESSION_TIMEOUT = 5;
+	private static final String PRE_AUTHENTICATION = "PreAuthentication";
+	private static final String POST_AUTHENTICATION = "PostAuthentication";
+
+	private interface Check
+	{
+		public void run(DistributedCacheDAOImpl dao) throws Exception;
+	}
+
+	private RedisFixture redis;
+	private RedisExecutor redisExecutor;
+	private User2SessionIndexType indexType;
+	private RedisSessionEncoding encoding;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		redis = RedisFixture.getShared();
+		redisExecutor = redis.createExecutor();
+	}
+
+	@Test
+	public void testStoreReadUpdateAndRemove() throws Exception
+	{
+		forEachConfiguration((dao) -> {
+			long now = System.currentTimeMillis();
+			dao.storeSessionDetails(new SessionDetails("user1", "session1", PRE_AUTHENTICATION, SESSION_TIMEOUT, now - 1000, now - 500));
+
+			SessionDetails sessionDetails = dao.getSessionDetails("user1", "session1");
+			assertEquals("user1", sessionDetails.getUserId());
+			assertEquals("session1", sessionDetails.getSessionId());
+			assertEquals(PRE_AUTHENTICATION, sessionDetails.getAuthenticationState());
+			assertEquals(now - 1000, sessionDetails.getCreatedTS());
+			assertEquals(now - 500, sessionDetails.getLastAccessedTS());
+			assertTrue(dao.isValid("user1", "session1"));
+
+			dao.updateAuthenticationState("user1", "session1", POST_AUTHENTICATION);
+			dao.updateLastAccessed("user1", "session1");
+			sessionDetails = dao.getSessionDetails("user1", "session1");
+			assertEquals(POST_AUTHENTICATION, sessionDetails.getAuthenticationState());
+			assertTrue(sessionDetails.getLastAccessedTS() >= now);
+			assertEquals(1, dao.getExistingValidSessionCount("user1"));
+
+			dao.removeSessionDetails("user1", "session1");
+			assertNull(dao.getSessionDetails("user1", "session1"));
+			assertFalse(dao.isValid("user1", "session1"));
+			assertEquals(0, dao.getExistingValidSessionCount("user1"));
+		});
+	}
+
+	//Only PostAuthentication sessions which have not expired count against the limit.
+	@Test
+	public void testStoreIfBelowLimit() throws Exception
+	{
+		forEachConfiguration((dao) -> {
+			long now = System.currentTimeMillis();
+			dao.storeSessionDetails(new SessionDetails("user1", "expired", POST_AUTHENTICATION, SESSION_TIMEOUT, now - 120000, now - 120000));
+			dao.storeSessionDetails(new SessionDetails("user1", "preAuthentication", PRE_AUTHENTICATION, SESSION_TIMEOUT));
+
+			assertEquals(0, dao.storeSessionDetailsIfBelowLimit(new SessionDetails("user1", "session1", POST_AUTHENTICATION, SESSION_TIMEOUT), 2));
+			assertEquals(1, dao.storeSessionDetailsIfBelowLimit(new SessionDetails("user1", "session2", POST_AUTHENTICATION, SESSION_TIMEOUT), 2));
+			assertEquals(2, dao.storeSessionDetailsIfBelowLimit(new SessionDetails("user1", "session3", POST_AUTHENTICATION, SESSION_TIMEOUT), 2));
+
+			assertNotNull(dao.getSessionDetails("user1", "session1"));
+			assertNotNull(dao.getSessionDetails("user1", "session2"));
+			assertNull("Over the limit", dao.getSessionDetails("user1", "session3"));
+			assertEquals(2, dao.getExistingValidSessionCount("user1"));
+		});
+	}
+
+	@Test
+	public void testGetAllSessionDetailsDropsWhatIsGone() throws Exception
+	{
+		forEachConfiguration((dao) -> {
+			long now = System.currentTimeMillis();
+			dao.storeSessionDetails(new SessionDetails("user1", "session1", "Custom", SESSION_TIMEOUT, now - 2000, now - 1000));
+			dao.storeSessionDetails(new SessionDetails("user1", "expired", POST_AUTHENTICATION, SESSION_TIMEOUT, now - 120000, now - 120000));
+			dao.storeSessionDetails(new SessionDetails("user1", "removed", POST_AUTHENTICATION, SESSION_TIMEOUT));
+			redisExecutor.execute((jedis) -> jedis.del(getSessionKey("user1", "removed")));
+
+			List<SessionDetails> sessionDetails = dao.getAllSessionDetails("user1");
+			assertEquals(1, sessionDetails.size());
+			assertEquals("session1", sessionDetails.get(0).getSessionId());
+			assertEquals("Custom", sessionDetails.get(0).getAuthenticationState());
+			assertEquals(now - 2000, sessionDetails.get(0).getCreatedTS());
+			assertEquals(now - 1000, sessionDetails.get(0).getLastAccessedTS());
+			assertFalse("Expired session is removed", redisExecutor.execute((jedis) -> jedis.exists(getSessionKey("user1", "expired"))));
+			assertEquals("Index has only session1 left", 1, getIndexSize("user1"));
+		});
+	}
+
+	@Test
+	public void testRemoveAllSessionDetailsMovesGenerationOn() throws Exception
+	{
+		forEachConfiguration((dao) -> {
+			dao.storeSessionDetails(new SessionDetails("user1", "session1", POST_AUTHENTICATION, SESSION_TIMEOUT));
+			assertEquals(1, dao.storeSessionDetailsIfBelowLimit(new SessionDetails("user1", "session2", POST_AUTHENTICATION, SESSION_TIMEOUT), 5));
+			dao.storeSessionDetails(new SessionDetails("user2", "session3", POST_AUTHENTICATION, SESSION_TIMEOUT));
+
+			dao.removeAllSessionDetails("user1");
+
+			assertFalse(dao.isValid("user1", "session1"));
+			assertFalse(dao.isValid("user1", "session2"));
+			assertNull(dao.getSessionDetails("user1", "session1"));
+			assertTrue(dao.getAllSessionDetails("user1").isEmpty());
+			assertTrue(dao.isValid("user2", "session3"));
+
+			assertEquals(0, dao.storeSessionDetailsIfBelowLimit(new SessionDetails("user1", "session4", POST_AUTHENTICATION, SESSION_TIMEOUT), 1));
+			dao.storeSessionDetails(new SessionDetails("user1", "session5", POST_AUTHENTICATION, SESSION_TIMEOUT));
+			assertTrue(dao.isValid("user1", "session4"));
+			assertTrue(dao.isValid("user1", "session5"));
+			assertEquals(2, dao.getAllSessionDetails("user1").size());
+		});
+	}
+
+	//Every session of the user has expired by the time the generation does, whichever generation it has.
+	@Test
+	public void testGenerationExpiresWithSessions() throws Exception
+	{
+		forEachConfiguration((dao) -> {
+			dao.storeSessionDetails(new SessionDetails("user1", "session1", POST_AUTHENTICATION, SESSION_TIMEOUT));
+			dao.removeAllSessionDetails("user1");
+			long ttl = getGenerationTTL("user1");
+			assertTrue("TTL " + ttl, ttl > 1000 && ttl <= SESSION_TIMEOUT * 1000);
+
+			shortenGenerationTTL("user1");
+			dao.storeSessionDetails(new SessionDetails("user1", "session2", POST_AUTHENTICATION, SESSION_TIMEOUT));
+			assertTrue("Store restarts it", getGenerationTTL("user1") > 1000);
+
+			shortenGenerationTTL("user1");
+			assertEquals(1, dao.storeSessionDetailsIfBelowLimit(new SessionDetails("user1", "session3", POST_AUTHENTICATION, SESSION_TIMEOUT), 5));
+			assertTrue("Store if below limit restarts it", getGenerationTTL("user1") > 1000);
+
+			shortenGenerationTTL("user1");
+			Thread.sleep(2);
+			dao.updateLastAccessed("user1", "session2");
+			assertTrue("Touch restarts it", getGenerationTTL("user1") > 1000);
+
+			shortenGenerationTTL("user1");
+			dao.enableLastAccessedWriteBehind(60000L, 1000, 1000);
+			Thread.sleep(2);
+			dao.updateLastAccessed("user1", "session3");
+			dao.getLastAccessedWriteBehind().shutdown();
+			assertTrue("Written behind touch restarts it", getGenerationTTL("user1") > 1000);
+		});
+	}
+
+	//A touch older than what is stored and one of a session removed meanwhile change nothing.
+	@Test
+	public void testWriteBehindTouchesOnlyIfNewer() throws Exception
+	{
+		forEachConfiguration((dao) -> {
+			long now = System.currentTimeMillis();
+			dao.storeSessionDetails(new SessionDetails("user1", "session1", POST_AUTHENTICATION, SESSION_TIMEOUT, now - 10000, now - 10000));
+			dao.storeSessionDetails(new SessionDetails("user1", "future", POST_AUTHENTICATION, SESSION_TIMEOUT, now, now + 60000));
+			dao.storeSessionDetails(new SessionDetails("user1", "removed", POST_AUTHENTICATION, SESSION_TIMEOUT));
+			dao.enableLastAccessedWriteBehind(60000L, 1000, 1000);
+
+			dao.updateLastAccessed("user1", "session1");
+			dao.updateLastAccessed("user1", "future");
+			dao.updateLastAccessed("user1", "removed");
+			redisExecutor.execute((jedis) -> jedis.del(getSessionKey("user1", "removed")));
+			assertTrue("Pending touch is read back", dao.getSessionDetails("user1", "session1").getLastAccessedTS() >= now);
+			dao.getLastAccessedWriteBehind().shutdown();
+
+			DistributedCacheDAOImpl reader = createDAO();
+			assertTrue(reader.getSessionDetails("user1", "session1").getLastAccessedTS() >= now);
+			assertEquals(now + 60000, reader.getSessionDetails("user1", "future").getLastAccessedTS());
+			assertNull(reader.getSessionDetails("user1", "removed"));
+			assertEquals(2, reader.getAllSessionDetails("user1").size());
+		});
+	}
+
+	//Same as Redis restarted or failed over, the scripts are loaded again.
+	@Test
+	public void testScriptsLoadedAgainOnceRedisLostThem() throws Exception
+	{
+		forEachConfiguration((dao) -> {
+			dao.storeSessionDetails(new SessionDetails("user1", "session1", POST_AUTHENTICATION, SESSION_TIMEOUT));
+			dao.enableLastAccessedWriteBehind(60000L, 1000, 1000);
+			redis.flushScripts();
+
+			assertEquals(1, dao.storeSessionDetailsIfBelowLimit(new SessionDetails("user1", "session2", POST_AUTHENTICATION, SESSION_TIMEOUT), 5));
+			redis.flushScripts();
+			assertEquals(2, dao.getAllSessionDetails("user1").size());
+			long before = dao.getSessionDetails("user1", "session1").getLastAccessedTS();
+			Thread.sleep(2);
+			dao.updateLastAccessed("user1", "session1");
+			redis.flushScripts();
+			dao.getLastAccessedWriteBehind().shutdown();
+			assertTrue(createDAO().getSessionDetails("user1", "session1").getLastAccessedTS() > before);
+		});
+	}
+
+	@Test
+	public void testMarkForRemoveExpiresSession() throws Exception
+	{
+		forEachConfiguration((dao) -> {
+			dao.storeSessionDetails(new SessionDetails("user1", "session1", POST_AUTHENTICATION, SESSION_TIMEOUT));
+			dao.storeSessionDetails(new SessionDetails("user1", "session2", POST_AUTHENTICATION, SESSION_TIMEOUT));
+
+			dao.markForRemoveSessionDetails("user1", "session1");
+			dao.markForRemoveSessionDetails("user1", "session2");
+			long ttl = redisExecutor.execute((jedis) -> jedis.pttl(getSessionKey("user1", "session1")));
+			assertTrue("TTL " + ttl, ttl > 0 && ttl <= MARK_SESSION_TIMEOUT * 1000);
+
+			//Signing in again keeps the session.
+			dao.updateAuthenticationState("user1", "session2", POST_AUTHENTICATION);
+			assertEquals(-1L, (long)redisExecutor.execute((jedis) -> jedis.pttl(getSessionKey("user1", "session2"))));
+		});
+	}
+
+	//A session which expires sooner, by its sliding expiry, is not given longer by the mark.
+	@Test
+	public void testMarkForRemoveNeverLengthensExpiry() throws Exception
+	{
+		forEachConfiguration((dao) -> {
+			dao.enableSlidingExpiry();
+			dao.storeSessionDetails(new SessionDetails("user1", "session1", POST_AUTHENTICATION, SESSION_TIMEOUT));
+			dao.storeSessionDetails(new SessionDetails("user1", "session2", POST_AUTHENTICATION, SESSION_TIMEOUT));
+			redisExecutor.execute((jedis) -> jedis.pexpire(getSessionKey("user1", "session2"), 1000L));
+
+			dao.markForRemoveSessionDetails("user1", "session1");
+			dao.markForRemoveSessionDetails("user1", "session2");
+			dao.markForRemoveSessionDetails("user1", "gone");
+			long ttl = redisExecutor.execute((jedis) -> jedis.pttl(getSessionKey("user1", "session1")));
+			assertTrue("Shortened, TTL " + ttl, ttl > 1000 && ttl <= MARK_SESSION_TIMEOUT * 1000);
+			ttl = redisExecutor.execute((jedis) -> jedis.pttl(getSessionKey("user1", "session2")));
+			assertTrue("Not lengthened, TTL " + ttl, ttl > 0 && ttl <= 1000);
+			assertFalse(redisExecutor.execute((jedis) -> jedis.exists(getSessionKey("user1", "gone"))));
+		});
+	}
+
+	@Test
+	public void testRedisTrafficCountedAgainstOperation() throws Exception
+	{
+		forEachConfiguration((dao) -> {
+			SessionMetrics metrics = new SessionMetrics();
+			OperationMetrics operation = metrics.getOperation("operation");
+			//GET of the generation, then the index and the session in one round trip.
+			long start = operation.begin();
+			dao.storeSessionDetails(new SessionDetails("user1", "session1", POST_AUTHENTICATION, SESSION_TIMEOUT));
+			operation.end(start, false);
+			assertRedisTraffic(metrics, 3, 2);
+
+			start = operation.begin();
+			dao.removeSessionDetails("user1", "session1");
+			operation.end(start, false);
+			assertRedisTraffic(metrics, 5, 3);
+
+			//EVALSHA, which fails as Redis lost the script, SCRIPT LOAD and EVALSHA again.
+			redis.flushScripts();
+			start = operation.begin();
+			dao.getAllSessionDetails("user1");
+			operation.end(start, false);
+			assertRedisTraffic(metrics, 8, 6);
+		});
+	}
+
+	@Test
+	public void testUsersMovedToNewKeyLayout() throws Exception
+	{
+		for (RedisSessionEncoding encoding : RedisSessionEncoding.values())
+		{
+			redis.flushAll();
+			DistributedCacheDAOImpl standard = new DistributedCacheDAOImpl(redisExecutor, SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, null, User2SessionIndexType.List, RedisKeyLayout.Standard, null, encoding);
+			for (int i = 0; i < 10; ++i)
+			{
+				standard.storeSessionDetails(new SessionDetails("user" + i, "session" + i, POST_AUTHENTICATION, SESSION_TIMEOUT));
+			}
+			standard.removeAllSessionDetails("user9");
+			standard.markForRemoveSessionDetails("user8", "session8");
+
+			RedisKeyLayoutMigration migration = new RedisKeyLayoutMigration(redisExecutor, RedisKeyLayout.Standard, RedisKeyLayout.HashTagged, encoding);
+			assertEquals("Moved ahead of the walk", 1, migration.migrateUser("user0"));
+			migration.run();
+			assertFalse(migration.isRunning());
+
+			DistributedCacheDAOImpl hashTagged = new DistributedCacheDAOImpl(redisExecutor, SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, null, User2SessionIndexType.List, RedisKeyLayout.HashTagged, null, encoding);
+			for (int i = 0; i < 8; ++i)
+			{
+				assertTrue(encoding + " session" + i, hashTagged.isValid("user" + i, "session" + i));
+			}
+			assertFalse("Earlier generation stays gone", hashTagged.isValid("user9", "session9"));
+			long generationTTL = redisExecutor.execute((jedis) -> jedis.pttl(RedisKeyLayout.HashTagged.createUser2SessionGenerationKey("user9")));
+			assertTrue("Generation expiry kept, TTL " + generationTTL, generationTTL > 0 && generationTTL <= SESSION_TIMEOUT * 1000);
+			long ttl = redisExecutor.execute((jedis) -> jedis.pttl(encoding.createUser2SessionDetailsKey(RedisKeyLayout.HashTagged, "user8", "session8")));
+			assertTrue("Mark kept, TTL " + ttl, ttl > 0 && ttl <= MARK_SESSION_TIMEOUT * 1000);
+			assertEquals(0L, (long)redisExecutor.execute((jedis) -> jedis.exists(RedisKeyLayout.Standard.createUser2SessionIdKey("user1"), encoding.createUser2SessionDetailsKey(RedisKeyLayout.Standard, "user1", "session1"))));
+		}
+	}
+
+	@Test
+	public void testListIndexMovedToSortedSet() throws Exception
+	{
+		for (RedisSessionEncoding encoding : RedisSessionEncoding.values())
+		{
+			redis.flushAll();
+			DistributedCacheDAOImpl list = new DistributedCacheDAOImpl(redisExecutor, SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, null, User2SessionIndexType.List, RedisKeyLayout.Standard, null, encoding);
+			long now = System.currentTimeMillis();
+			list.storeSessionDetails(new SessionDetails("user1", "session1", POST_AUTHENTICATION, SESSION_TIMEOUT, now, now - 1000));
+			list.storeSessionDetails(new SessionDetails("user1", "session2", POST_AUTHENTICATION, SESSION_TIMEOUT, now, now - 2000));
+			list.storeSessionDetails(new SessionDetails("user2", "session3", POST_AUTHENTICATION, SESSION_TIMEOUT));
+
+			new User2SessionIndexMigration(redisExecutor, RedisKeyLayout.Standard, encoding).run();
+
+			Map<String, Double> scores = new HashMap<>();
+			redisExecutor.execute((jedis) -> jedis.zrangeWithScores(RedisKeyLayout.Standard.createUser2SessionIndexKey("user1"), 0, -1))
+							.forEach((tuple) -> scores.put(tuple.getElement(), tuple.getScore()));
+			assertEquals(now - 1000, scores.get("session1").longValue());
+			assertEquals(now - 2000, scores.get("session2").longValue());
+			assertFalse(redisExecutor.execute((jedis) -> jedis.exists(RedisKeyLayout.Standard.createUser2SessionIdKey("user1"))));
+
+			DistributedCacheDAOImpl sortedSet = new DistributedCacheDAOImpl(redisExecutor, SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, null, User2SessionIndexType.SortedSet, RedisKeyLayout.Standard, null, encoding);
+			assertEquals(2, sortedSet.getAllSessionDetails("user1").size());
+			assertEquals(1, sortedSet.getExistingValidSessionCount("user2"));
+		}
+	}
+
+	@Test
+	public void testNodePoolsUseConfiguredPasswordAndTimeouts() throws Exception
+	{
+		try (RedisFixture node = RedisFixture.startCluster(1))
+		{
+			try (Jedis jedis = node.createJedisPool(1).getResource())
+			{
+				jedis.configSet("requirepass", "secret");
+			}
+			HostAndPort hostAndPort = new HostAndPort(node.getHost(), node.getPort());
+
+			Properties redisProperties = new Properties();
+			redisProperties.setProperty(DistributedCacheDAOImpl.REDIS_PASSWORD, "secret");
+			redisProperties.setProperty(DistributedCacheDAOImpl.REDIS_CONNECTION_TIMEOUT, "1500");
+			try (JedisPool pool = DistributedCacheDAOImpl.createNodePoolFactory(redisProperties).apply(hostAndPort); Jedis jedis = pool.getResource())
+			{
+				assertEquals("PONG", jedis.ping());
+				assertEquals(1500, jedis.getClient().getConnectionTimeout());
+				assertEquals(1500, jedis.getClient().getSoTimeout());
+			}
+
+			try (JedisPool pool = DistributedCacheDAOImpl.createNodePoolFactory(new Properties()).apply(hostAndPort); Jedis jedis = pool.getResource())
+			{
+				jedis.ping();
+				fail("Connected without the password");
+			}
+			catch (JedisDataException expected)
+			{
+				assertTrue(expected.getMessage().startsWith("NOAUTH"));
+			}
+		}
+	}
+
+	private static void assertRedisTraffic(SessionMetrics metrics, long commandCount, long roundTripCount)
+	{
+		OperationMetrics.Snapshot snapshot = metrics.snapshot().getOperations().get(0);
+		assertEquals("Commands", commandCount, snapshot.getRedisCommandCount());
+		assertEquals("Round trips", roundTripCount, snapshot.getRedisRoundTripCount());
+	}
+
+	private void forEachConfiguration(Check check) throws Exception
+	{
+		for (User2SessionIndexType indexType : User2SessionIndexType.values())
+		{
+			for (RedisSessionEncoding encoding : RedisSessionEncoding.values())
+			{
+				this.indexType = indexType;
+				this.encoding = encoding;
+				redis.flushAll();
+				try
+				{
+					check.run(createDAO());
+				}
+				catch (AssertionError e)
+				{
+					throw new AssertionError(indexType + " index, " + encoding + " encoding: " + e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	//Another node on the same Redis, with nothing pending of its own.
+	private DistributedCacheDAOImpl createDAO() throws Exception
+	{
+		return new DistributedCacheDAOImpl(redisExecutor, SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, null, indexType, RedisKeyLayout.Standard, null, encoding);
+	}
+
+	private String getSessionKey(String userId, String sessionId)
+	{
+		return encoding.createUser2SessionDetailsKey(RedisKeyLayout.Standard, userId, sessionId);
+	}
+
+	private long getGenerationTTL(String userId) throws Exception
+	{
+		return redisExecutor.execute((jedis) -> jedis.pttl(RedisKeyLayout.Standard.createUser2SessionGenerationKey(userId)));
+	}
+
+	private void shortenGenerationTTL(String userId) throws Exception
+	{
+		redisExecutor.execute((jedis) -> jedis.pexpire(RedisKeyLayout.Standard.createUser2SessionGenerationKey(userId), 1000L));
+	}
+
+	private long getIndexSize(String userId) throws Exception
+	{
+		return redisExecutor.execute((jedis) -> indexType == User2SessionIndexType.SortedSet ? 
+				jedis.zcard(RedisKeyLayout.Standard.createUser2SessionIndexKey(userId)) : jedis.llen(RedisKeyLayout.Standard.createUser2SessionIdKey(userId)));
+	}
+}
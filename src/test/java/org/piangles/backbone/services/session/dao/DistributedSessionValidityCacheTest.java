@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.piangles.backbone.services.session.SessionDetails;
+
+/**
+ * Two DistributedCacheDAOImpl nodes, each with a SessionValidityCache of its own, against
+ * the same Redis, see RedisFixture. A change on node A reaches the cache of node B through
+ * RedisSessionInvalidationChannel, a test waits until node B has it.
+ */
+public class DistributedSessionValidityCacheTest
+{
+	private static final long SESSION_TIMEOUT = 60;
+	private static final int MARK_SESSION_TIMEOUT = 5;
+	private static final long INVALIDATION_TIMEOUT_IN_MILLISECONDS = 5000L;
+	private static final String CHANNEL_NAME = "session:invalidation";
+
+	private RedisFixture redis;
+	private DistributedCacheDAOImpl nodeA;
+	private DistributedCacheDAOImpl nodeB;
+	private InvalidationLatch invalidationsB;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		redis = RedisFixture.getShared();
+		redis.flushAll();
+		nodeA = createSubscribedDAO();
+		nodeB = createSubscribedDAO();
+		//After the validity cache, so by the time the latch hears of an invalidation the cache has it.
+		invalidationsB = new InvalidationLatch();
+		nodeB.subscribeInvalidations(invalidationsB);
+	}
+
+	@Test
+	public void testRemoveOnOtherNodeEvicts() throws Exception
+	{
+		nodeA.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT));
+		assertCachedOnNodeB("user1", "session1");
+
+		invalidationsB.expect(1);
+		nodeA.removeSessionDetails("user1", "session1");
+		invalidationsB.await();
+
+		assertEquals(0, nodeB.getValidityCache().size());
+		assertFalse(nodeB.isValid("user1", "session1"));
+	}
+
+	@Test
+	public void testMarkForRemoveOnOtherNodeEvicts() throws Exception
+	{
+		nodeA.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT));
+		assertCachedOnNodeB("user1", "session1");
+
+		invalidationsB.expect(1);
+		nodeA.markForRemoveSessionDetails("user1", "session1");
+		invalidationsB.await();
+
+		assertEquals(0, nodeB.getValidityCache().size());
+	}
+
+	@Test
+	public void testAuthenticationStateOnOtherNodeEvicts() throws Exception
+	{
+		nodeA.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT));
+		assertCachedOnNodeB("user1", "session1");
+
+		invalidationsB.expect(1);
+		nodeA.updateAuthenticationState("user1", "session1", "PreAuthentication");
+		invalidationsB.await();
+
+		assertEquals(0, nodeB.getValidityCache().size());
+		assertEquals("PreAuthentication", nodeB.getSessionDetails("user1", "session1").getAuthenticationState());
+	}
+
+	//Only the sessions of that user are evicted.
+	@Test
+	public void testInvalidateAllOnOtherNodeEvictsSessionsOfUser() throws Exception
+	{
+		nodeA.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT));
+		nodeA.storeSessionDetails(new SessionDetails("user1", "session2", "PostAuthentication", SESSION_TIMEOUT));
+		nodeA.storeSessionDetails(new SessionDetails("user2", "session3", "PostAuthentication", SESSION_TIMEOUT));
+		assertCachedOnNodeB("user1", "session1");
+		assertCachedOnNodeB("user1", "session2");
+		assertCachedOnNodeB("user2", "session3");
+
+		invalidationsB.expect(1);
+		nodeA.removeAllSessionDetails("user1");
+		invalidationsB.await();
+
+		assertEquals(1, nodeB.getValidityCache().size());
+		assertFalse(nodeB.isValid("user1", "session1"));
+		assertFalse(nodeB.isValid("user1", "session2"));
+		assertTrue(nodeB.isValid("user2", "session3"));
+	}
+
+	//Read once from Redis, then served from the cache of node B.
+	private void assertCachedOnNodeB(String userId, String sessionId) throws Exception
+	{
+		long hitCount = nodeB.getValidityCache().getHitCount();
+		assertTrue(nodeB.isValid(userId, sessionId));
+		assertTrue(nodeB.isValid(userId, sessionId));
+		assertEquals(hitCount + 1, nodeB.getValidityCache().getHitCount());
+	}
+
+	/**
+	 * Waits until Redis counts one more subscriber, invalidations published before then would
+	 * be lost. The validity cache subscribes first, a listener added after could miss it.
+	 */
+	private DistributedCacheDAOImpl createSubscribedDAO() throws Exception
+	{
+		RedisExecutor redisExecutor = redis.createExecutor();
+		long subscriberCount = getSubscriberCount(redisExecutor);
+		DistributedCacheDAOImpl dao = new DistributedCacheDAOImpl(redisExecutor, SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, new SessionValidityCache(100, 60000L), User2SessionIndexType.SortedSet);
+		long deadline = System.currentTimeMillis() + INVALIDATION_TIMEOUT_IN_MILLISECONDS;
+		while (getSubscriberCount(redisExecutor) <= subscriberCount && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		assertTrue("Not subscribed", getSubscriberCount(redisExecutor) > subscriberCount);
+		return dao;
+	}
+
+	private static long getSubscriberCount(RedisExecutor redisExecutor) throws Exception
+	{
+		return Long.parseLong(redisExecutor.execute((jedis) -> jedis.pubsubNumSub(CHANNEL_NAME).get(CHANNEL_NAME)));
+	}
+
+	//Counts down on every invalidation and resubscription it hears of, expect sets how many to wait for.
+	private static final class InvalidationLatch implements SessionInvalidationListener
+	{
+		private volatile CountDownLatch latch = new CountDownLatch(0);
+
+		public void expect(int count)
+		{
+			latch = new CountDownLatch(count);
+		}
+
+		public void await() throws InterruptedException
+		{
+			assertTrue("Invalidation not received", latch.await(INVALIDATION_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS));
+		}
+
+		@Override
+		public void invalidated(String userId, String sessionId)
+		{
+			latch.countDown();
+		}
+
+		@Override
+		public void invalidatedAll(String userId)
+		{
+			latch.countDown();
+		}
+
+		@Override
+		public void resynchronize()
+		{
+			latch.countDown();
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.piangles.backbone.services.session.SessionDetails;
+
+public class InMemoryDAOImplTest
+{
+	private static final long SESSION_TIMEOUT = 60;
+
+	@Test
+	public void testIsValidBatch() throws Exception
+	{
+		InMemoryDAOImpl dao = new InMemoryDAOImpl(SESSION_TIMEOUT, 5);
+		long expiredTS = System.currentTimeMillis() - (SESSION_TIMEOUT * 1000) - 1;
+		dao.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT));
+		dao.storeSessionDetails(new SessionDetails("user2", "session2", "PostAuthentication", SESSION_TIMEOUT, expiredTS, expiredTS));
+
+		BitSet valid = dao.isValidBatch(new String[] {"user1", "user2", "user2", "user3"}, 
+										new String[] {"session1", "session2", "session1", "session3"});
+
+		assertTrue(valid.get(0));
+		assertFalse("Expired session", valid.get(1));
+		assertFalse("Session of another user", valid.get(2));
+		assertFalse("Unknown session", valid.get(3));
+		assertEquals(1, valid.cardinality());
+	}
+
+	@Test
+	public void testRemoveAllSessionDetailsLeavesLaterSessions() throws Exception
+	{
+		AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+		InMemoryDAOImpl dao = new InMemoryDAOImpl(SESSION_TIMEOUT, 5, clock::get);
+		dao.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT, clock.get(), clock.get()));
+		dao.storeSessionDetails(new SessionDetails("user1", "session2", "PostAuthentication", SESSION_TIMEOUT, clock.get(), clock.get()));
+		dao.storeSessionDetails(new SessionDetails("user2", "session3", "PostAuthentication", SESSION_TIMEOUT, clock.get(), clock.get()));
+
+		dao.removeAllSessionDetails("user1");
+		dao.storeSessionDetails(new SessionDetails("user1", "session4", "PostAuthentication", SESSION_TIMEOUT, clock.get(), clock.get()));
+
+		assertFalse(dao.isValid("user1", "session1"));
+		assertFalse(dao.isValid("user1", "session2"));
+		assertTrue(dao.isValid("user1", "session4"));
+		assertTrue(dao.isValid("user2", "session3"));
+		assertEquals(1, dao.getExistingValidSessionCount("user1"));
+		assertEquals(1, dao.getAllSessionDetails("user1").size());
+		assertEquals("session4", dao.getAllSessionDetails("user1").get(0).getSessionId());
+
+		//What was left behind is taken out once the wheel gets to it.
+		dao.removeAllSessionDetails("user1");
+		assertFalse(dao.isValid("user1", "session4"));
+		clock.addAndGet(SESSION_TIMEOUT * 1000 + 2000);
+		dao.getExpiryWheel().advance();
+		assertEquals(0, dao.getAllSessionDetails("user1").size());
+		assertNull(dao.getAllUserSessionIds("user1"));
+	}
+
+	//More virtual threads than carriers contending on the lock, the limit still holds.
+	@Test
+	public void testStoreIfBelowLimitOnVirtualThreads() throws Exception
+	{
+		InMemoryDAOImpl dao = new InMemoryDAOImpl(SESSION_TIMEOUT, 5);
+		AtomicInteger storedCount = new AtomicInteger();
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+		{
+			for (int i = 0; i < 10000; ++i)
+			{
+				String userId = "user" + (i % 100);
+				String sessionId = "session" + i;
+				executor.execute(() -> {
+					try
+					{
+						if (dao.storeSessionDetailsIfBelowLimit(new SessionDetails(userId, sessionId, "PostAuthentication", SESSION_TIMEOUT), 3) < 3)
+						{
+							storedCount.incrementAndGet();
+						}
+					}
+					catch (Exception e)
+					{
+						throw new IllegalStateException(e);
+					}
+				});
+			}
+		}
+
+		assertEquals(300, storedCount.get());
+		for (int i = 0; i < 100; ++i)
+		{
+			assertEquals(3, dao.getAllSessionDetails("user" + i).size());
+		}
+	}
+}
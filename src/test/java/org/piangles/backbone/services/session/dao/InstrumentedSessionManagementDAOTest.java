@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.piangles.backbone.services.session.SessionDetails;
+import org.piangles.backbone.services.session.metrics.OperationMetrics;
+import org.piangles.backbone.services.session.metrics.SessionMetrics;
+import org.piangles.core.dao.DAOException;
+
+public class InstrumentedSessionManagementDAOTest
+{
+	private static final long SESSION_TIMEOUT = 60;
+
+	@Test
+	public void testCallsAndErrorsAreRecorded() throws Exception
+	{
+		SessionMetrics metrics = new SessionMetrics();
+		SessionManagementDAO dao = new InstrumentedSessionManagementDAO(new CompactInMemoryDAOImpl(SESSION_TIMEOUT, 5), metrics);
+
+		String sessionId = "0f8fad5b-d9cb-469f-a165-70867728950e";
+		dao.storeSessionDetails(new SessionDetails("user1", sessionId, "PostAuthentication", SESSION_TIMEOUT));
+		assertTrue(dao.isValid("user1", sessionId));
+		assertTrue(dao.isValid("user1", sessionId));
+		try
+		{
+			dao.storeSessionDetails(new SessionDetails("user1", "not a uuid", "PostAuthentication", SESSION_TIMEOUT));
+			fail("SessionId not in the format of the DAO");
+		}
+		catch (DAOException e)
+		{
+			//Expected, still counted.
+		}
+
+		Map<String, OperationMetrics.Snapshot> snapshots = new HashMap<>();
+		for (OperationMetrics.Snapshot snapshot : metrics.snapshot().getOperations())
+		{
+			snapshots.put(snapshot.getName(), snapshot);
+		}
+		assertEquals(2, snapshots.get("SessionManagementDAO.isValid").getCount());
+		assertEquals(0, snapshots.get("SessionManagementDAO.isValid").getErrorCount());
+		assertEquals(2, snapshots.get("SessionManagementDAO.storeSessionDetails").getCount());
+		assertEquals(1, snapshots.get("SessionManagementDAO.storeSessionDetails").getErrorCount());
+		assertEquals(0, snapshots.get("SessionManagementDAO.getAllSessionDetails").getCount());
+	}
+}
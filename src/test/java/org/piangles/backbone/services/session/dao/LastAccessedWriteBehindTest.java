@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.piangles.core.dao.DAOException;
+
+public class LastAccessedWriteBehindTest
+{
+	private static final long FLUSH_TIMEOUT_IN_MILLISECONDS = 5000L;
+
+	private List<List<LastAccessedWriteBehind.PendingTouch>> flushes = new CopyOnWriteArrayList<>();
+	private Semaphore flushed = new Semaphore(0);
+
+	@Test
+	public void testTouchesAreCoalescedPerSession() throws Exception
+	{
+		LastAccessedWriteBehind writeBehind = new LastAccessedWriteBehind(60000L, 100, 1000, flushes::add);
+		for (int i = 1; i <= 50; ++i)
+		{
+			writeBehind.touch("user1", "session1", i);
+			writeBehind.touch("user2", "session2", i);
+		}
+		assertEquals(50, writeBehind.getPendingLastAccessedTS("user1", "session1"));
+
+		writeBehind.shutdown();
+
+		assertEquals(1, flushes.size());
+		assertEquals(2, flushes.get(0).size());
+		for (LastAccessedWriteBehind.PendingTouch touch : flushes.get(0))
+		{
+			assertEquals(50, touch.getLastAccessedTS());
+		}
+	}
+
+	@Test
+	public void testFlushOnSize() throws Exception
+	{
+		LastAccessedWriteBehind writeBehind = new LastAccessedWriteBehind(60000L, 10, 1000, this::recordFlush);
+		for (int i = 0; i < 10; ++i)
+		{
+			writeBehind.touch("user" + i, "session" + i, 1);
+		}
+
+		awaitFlush();
+		assertEquals("Flushed as soon as flushSize is reached", 1, flushes.size());
+		assertEquals(10, flushes.get(0).size());
+		assertEquals(0, writeBehind.getPendingCount());
+
+		writeBehind.shutdown();
+	}
+
+	@Test
+	public void testFlushOnInterval() throws Exception
+	{
+		LastAccessedWriteBehind writeBehind = new LastAccessedWriteBehind(50L, 10, 1000, this::recordFlush);
+		writeBehind.touch("user1", "session1", 2);
+
+		awaitFlush();
+		assertEquals("Flushed within flushInterval", 1, flushes.size());
+		assertEquals(0, writeBehind.getPendingCount());
+
+		writeBehind.shutdown();
+	}
+
+	@Test
+	public void testPendingIsBoundedAndCancelled() throws Exception
+	{
+		LastAccessedWriteBehind writeBehind = new LastAccessedWriteBehind(60000L, 100, 2, flushes::add);
+		assertTrue(writeBehind.touch("user1", "session1", 1));
+		assertTrue(writeBehind.touch("user2", "session2", 1));
+		assertFalse("Caller has to write through", writeBehind.touch("user3", "session3", 1));
+		assertTrue("Already pending sessions are still coalesced", writeBehind.touch("user1", "session1", 2));
+
+		writeBehind.cancel("user1", "session1");
+		writeBehind.shutdown();
+
+		assertEquals(1, flushes.size());
+		assertEquals("session2", flushes.get(0).get(0).getSessionId());
+	}
+
+	//Removed or marked while its touch was being flushed, the failed flush must not bring the touch back.
+	@Test
+	public void testCancelledWhileFlushingIsNotRetried() throws Exception
+	{
+		List<LastAccessedWriteBehind> writeBehinds = new CopyOnWriteArrayList<>();
+		AtomicInteger attempts = new AtomicInteger();
+		LastAccessedWriteBehind writeBehind = new LastAccessedWriteBehind(50L, 10, 1000, (touches) -> {
+			if (attempts.getAndIncrement() == 0)
+			{
+				writeBehinds.get(0).cancel("user1", "session1");
+				throw new DAOException("Store is down.");
+			}
+			recordFlush(touches);
+		});
+		writeBehinds.add(writeBehind);
+		writeBehind.touch("user1", "session1", 1);
+		writeBehind.touch("user2", "session2", 1);
+
+		awaitFlush();
+		assertEquals(1, flushes.get(0).size());
+		assertEquals("session2", flushes.get(0).get(0).getSessionId());
+
+		writeBehind.shutdown();
+	}
+
+	@Test
+	public void testTouchDroppedAfterMaxFlushAttempts() throws Exception
+	{
+		LastAccessedWriteBehind writeBehind = new LastAccessedWriteBehind(20L, 10, 1000, (touches) -> {
+			recordFlush(touches);
+			throw new DAOException("Store is down.");
+		});
+		assertEquals(LastAccessedWriteBehind.MAX_FLUSH_ATTEMPTS * 20L, writeBehind.getMaxStalenessInMilliSeconds());
+		writeBehind.touch("user1", "session1", 1);
+
+		for (int i = 0; i < LastAccessedWriteBehind.MAX_FLUSH_ATTEMPTS; ++i)
+		{
+			awaitFlush();
+		}
+		assertFalse("Not tried again", flushed.tryAcquire(200L, TimeUnit.MILLISECONDS));
+		assertEquals(0, writeBehind.getPendingCount());
+		assertEquals(1, writeBehind.getDroppedCount());
+
+		writeBehind.shutdown();
+	}
+
+	private void recordFlush(List<LastAccessedWriteBehind.PendingTouch> touches)
+	{
+		flushes.add(touches);
+		flushed.release();
+	}
+
+	//Only as long as a flush on the background thread can take, not a guess at when it runs.
+	private void awaitFlush() throws InterruptedException
+	{
+		assertTrue("Not flushed", flushed.tryAcquire(FLUSH_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS));
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.piangles.core.dao.DAOException;
+import org.piangles.core.resources.ResourceException;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * RedisCommandMultiplexer against a real Redis and a Redis Cluster of CLUSTER_NODE_COUNT
+ * nodes, see RedisFixture. To have commands go out in one batch the only connection
+ * thread is held in the command of holdConnection until they are queued.
+ */
+public class RedisCommandMultiplexerTest
+{
+	private static final int CLUSTER_NODE_COUNT = 3;
+	private static final int COMMAND_COUNT = 30;
+	private static final long TIMEOUT_IN_SECONDS = 5;
+	private static final String UNKNOWN_SHA = "0123456789012345678901234567890123456789";
+
+	private static RedisFixture cluster;
+
+	private CountDownLatch held;
+	private CountDownLatch release;
+
+	//Remembers the node of every execute with a key, one for each pipeline sent.
+	private static final class CountingExecutor implements RedisExecutor
+	{
+		private RedisExecutor redisExecutor;
+		private List<Integer> nodeIndexes = new CopyOnWriteArrayList<>();
+
+		private CountingExecutor(RedisExecutor redisExecutor)
+		{
+			this.redisExecutor = redisExecutor;
+		}
+
+		@Override
+		public <R> R execute(Function<Jedis, R> command) throws ResourceException
+		{
+			return redisExecutor.execute(command);
+		}
+
+		@Override
+		public <R> R execute(byte[] key, Function<Jedis, R> command) throws ResourceException
+		{
+			nodeIndexes.add(redisExecutor.getNodeIndex(key));
+			return redisExecutor.execute(key, command);
+		}
+
+		@Override
+		public int getNodeCount()
+		{
+			return redisExecutor.getNodeCount();
+		}
+
+		@Override
+		public int getNodeIndex(byte[] key)
+		{
+			return redisExecutor.getNodeIndex(key);
+		}
+	}
+
+	@BeforeClass
+	public static void startCluster() throws Exception
+	{
+		cluster = RedisFixture.startCluster(CLUSTER_NODE_COUNT);
+	}
+
+	@AfterClass
+	public static void stopCluster()
+	{
+		cluster.close();
+	}
+
+	@Test
+	public void testOnePipelinePerNode() throws Exception
+	{
+		CountingExecutor executor = new CountingExecutor(cluster.createExecutor());
+		try (RedisCommandMultiplexer multiplexer = new RedisCommandMultiplexer(executor, 1))
+		{
+			CompletableFuture<String> holding = holdConnection(multiplexer, key("held"));
+			List<CompletableFuture<String>> values = new ArrayList<>();
+			Set<Integer> nodeIndexes = new HashSet<>();
+			for (int i = 0; i < COMMAND_COUNT; ++i)
+			{
+				byte[] key = key("user" + i);
+				String value = "value" + i;
+				nodeIndexes.add(executor.getNodeIndex(key));
+				values.add(multiplexer.submit(key, (pipeline) -> {
+					pipeline.set(key, RedisKeyEncoder.encode(value));
+					Response<byte[]> read = pipeline.get(key);
+					return () -> RedisKeyEncoder.decode(read.get());
+				}));
+			}
+			release.countDown();
+			holding.get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+
+			for (int i = 0; i < COMMAND_COUNT; ++i)
+			{
+				assertEquals("value" + i, values.get(i).get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+			}
+			assertEquals("Nodes the keys are on", CLUSTER_NODE_COUNT, nodeIndexes.size());
+			List<Integer> batchNodeIndexes = executor.nodeIndexes.subList(1, executor.nodeIndexes.size());
+			assertEquals("Pipelines after the held one " + batchNodeIndexes, nodeIndexes.size(), batchNodeIndexes.size());
+			assertEquals(nodeIndexes, new HashSet<>(batchNodeIndexes));
+		}
+	}
+
+	//The command which fails completes its own future only, the rest of the pipeline is unaffected.
+	@Test
+	public void testNoScriptFailsOnlyItsCommand() throws Exception
+	{
+		try (RedisCommandMultiplexer multiplexer = new RedisCommandMultiplexer(RedisFixture.getShared().createExecutor(), 1))
+		{
+			byte[] key = key("noScript");
+			CompletableFuture<String> holding = holdConnection(multiplexer, key);
+			CompletableFuture<Object> evalsha = multiplexer.submit(key, (pipeline) -> {
+				Response<Object> result = pipeline.evalsha(UNKNOWN_SHA, 1, RedisKeyEncoder.decode(key));
+				return result::get;
+			});
+			CompletableFuture<String> set = multiplexer.submit(key, (pipeline) -> {
+				Response<String> result = pipeline.set(key, RedisKeyEncoder.encode("value"));
+				return result::get;
+			});
+			release.countDown();
+			holding.get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+
+			assertEquals("OK", set.get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+			Throwable failure = failureOf(evalsha);
+			assertTrue(failure.toString(), failure instanceof DAOException);
+			assertTrue(String.valueOf(failure.getCause()), failure.getCause() instanceof JedisNoScriptException);
+		}
+	}
+
+	@Test
+	public void testUnreachableRedisFailsEveryFuture() throws Exception
+	{
+		try (JedisPool unreachable = new JedisPool(new JedisPoolConfig(), RedisFixture.getShared().getHost(), findUnusedPort());
+			 RedisCommandMultiplexer multiplexer = new RedisCommandMultiplexer(RedisFixture.forJedisPool(unreachable), 2))
+		{
+			List<CompletableFuture<String>> results = new ArrayList<>();
+			for (int i = 0; i < COMMAND_COUNT; ++i)
+			{
+				byte[] key = key("user" + i);
+				results.add(multiplexer.submit(key, (pipeline) -> {
+					Response<String> result = pipeline.set(key, key);
+					return result::get;
+				}));
+			}
+			for (CompletableFuture<String> result : results)
+			{
+				Throwable failure = failureOf(result);
+				assertTrue(failure.toString(), failure instanceof DAOException);
+			}
+		}
+	}
+
+	//close waits for what was queued before it, submit afterwards fails.
+	@Test
+	public void testCloseSendsWhatIsQueued() throws Exception
+	{
+		RedisCommandMultiplexer multiplexer = new RedisCommandMultiplexer(RedisFixture.getShared().createExecutor(), 1);
+		CompletableFuture<String> holding = holdConnection(multiplexer, key("held"));
+		List<CompletableFuture<String>> results = new ArrayList<>();
+		for (int i = 0; i < COMMAND_COUNT; ++i)
+		{
+			byte[] key = key("drained" + i);
+			results.add(multiplexer.submit(key, (pipeline) -> {
+				Response<String> result = pipeline.set(key, key);
+				return result::get;
+			}));
+		}
+		Thread closing = new Thread(multiplexer::close, "RedisCommandMultiplexerTestClose");
+		closing.start();
+		closing.join(200);
+		assertTrue("close returned while a command was held", closing.isAlive());
+
+		release.countDown();
+		closing.join(TimeUnit.SECONDS.toMillis(TIMEOUT_IN_SECONDS));
+		assertTrue(holding.isDone());
+		for (CompletableFuture<String> result : results)
+		{
+			assertTrue(result.isDone());
+			assertEquals("OK", result.get());
+		}
+
+		byte[] key = key("afterClose");
+		Throwable failure = failureOf(multiplexer.submit(key, (pipeline) -> {
+			Response<String> result = pipeline.set(key, key);
+			return result::get;
+		}));
+		assertTrue(failure.toString(), failure instanceof DAOException);
+	}
+
+	//Returns once the connection thread is in the command, it carries on after release.
+	private CompletableFuture<String> holdConnection(RedisCommandMultiplexer multiplexer, byte[] key) throws InterruptedException
+	{
+		held = new CountDownLatch(1);
+		release = new CountDownLatch(1);
+		CompletableFuture<String> holding = multiplexer.submit(key, (pipeline) -> {
+			held.countDown();
+			try
+			{
+				release.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			Response<String> result = pipeline.set(key, key);
+			return result::get;
+		});
+		assertTrue("Connection thread never took the command", held.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+		return holding;
+	}
+
+	private static Throwable failureOf(CompletableFuture<?> future) throws Exception
+	{
+		Throwable failure = null;
+		try
+		{
+			future.get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+			fail("Completed without a failure");
+		}
+		catch (ExecutionException e)
+		{
+			failure = e.getCause();
+		}
+		return failure;
+	}
+
+	//Hash tagged like the keys of the HashTagged layout.
+	private static byte[] key(String userId)
+	{
+		return RedisKeyEncoder.encode("RedisCommandMultiplexerTest:{" + userId + "}");
+	}
+
+	private static int findUnusedPort() throws IOException
+	{
+		try (ServerSocket socket = new ServerSocket(0))
+		{
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.params.ClientKillParams;
+import redis.embedded.RedisServer;
+
+/**
+ * A real redis-server for the tests and benchmarks of the Redis backed classes, the
+ * binary embedded-redis ships with started on a free loopback port. Nothing is saved
+ * to disk.
+ * 
+ * getShared is one standalone Redis for a whole test run, tests flushAll it before use.
+ * startCluster starts the nodes of a Redis Cluster of their own with the slots split
+ * evenly over them, it has to be closed.
+ */
+public final class RedisFixture implements AutoCloseable
+{
+	private static final String HOST = "127.0.0.1";
+	private static final int SLOT_COUNT = 16384;
+	//A node of a Redis Cluster also listens on its port + 10000 for the other nodes.
+	private static final int CLUSTER_BUS_PORT_OFFSET = 10000;
+	private static final int MAX_CONNECTIONS = 64;
+	private static final long CLUSTER_READY_TIMEOUT_IN_MILLISECONDS = 10000L;
+
+	private static RedisFixture shared = null;
+
+	private List<RedisServer> servers = null;
+	private List<Integer> ports = null;
+	private List<JedisPool> pools = null;
+	private Path directory = null;
+	private boolean cluster;
+
+	private RedisFixture(int nodeCount, boolean cluster) throws IOException
+	{
+		servers = new ArrayList<>(nodeCount);
+		ports = new ArrayList<>(nodeCount);
+		pools = new ArrayList<>();
+		this.cluster = cluster;
+		directory = Files.createTempDirectory("RedisFixture");
+		try
+		{
+			for (int i = 0; i < nodeCount; ++i)
+			{
+				int port = findFreePort(cluster);
+				RedisServer server = RedisServer.newRedisServer()
+											.bind(HOST)
+											.port(port)
+											.setting("save \"\"")
+											.setting("appendonly no")
+											.setting("dir " + directory)
+											.settingIf(cluster, "cluster-enabled yes")
+											.settingIf(cluster, "cluster-config-file nodes-" + port + ".conf")
+											.build();
+				server.start();
+				servers.add(server);
+				ports.add(port);
+			}
+			if (cluster)
+			{
+				createCluster();
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+	//Stopped when the JVM exits.
+	public static synchronized RedisFixture getShared() throws IOException
+	{
+		if (shared == null)
+		{
+			RedisFixture started = new RedisFixture(1, false);
+			Runtime.getRuntime().addShutdownHook(new Thread(started::close, "RedisFixture"));
+			shared = started;
+		}
+		return shared;
+	}
+
+	public static RedisFixture startCluster(int nodeCount) throws IOException
+	{
+		return new RedisFixture(nodeCount, true);
+	}
+
+	public String getHost()
+	{
+		return HOST;
+	}
+
+	//Of the first node, the seed of a Redis Cluster.
+	public int getPort()
+	{
+		return ports.get(0);
+	}
+
+	public int getNodeCount()
+	{
+		return ports.size();
+	}
+
+	//A pool of the first node, closed along with this fixture.
+	public JedisPool createJedisPool(int maxConnections)
+	{
+		return createJedisPool(new HostAndPort(HOST, getPort()), maxConnections);
+	}
+
+	/**
+	 * Runs commands the way RedisCache does, on a connection borrowed from a pool. On a
+	 * Redis Cluster a RedisClusterExecutor seeded with the first node.
+	 */
+	RedisExecutor createExecutor() throws Exception
+	{
+		RedisExecutor redisExecutor = forJedisPool(createJedisPool(MAX_CONNECTIONS));
+		if (cluster)
+		{
+			redisExecutor = new RedisClusterExecutor(redisExecutor, (node) -> createJedisPool(node, MAX_CONNECTIONS));
+		}
+		return redisExecutor;
+	}
+
+	//For tests outside this package, a DistributedCacheDAOImpl against this Redis.
+	public DistributedCacheDAOImpl createDistributedCacheDAO(long sessionTimeout, int markSessionTimeout) throws Exception
+	{
+		return new DistributedCacheDAOImpl(createExecutor(), sessionTimeout, markSessionTimeout, null, User2SessionIndexType.SortedSet);
+	}
+
+	static RedisExecutor forJedisPool(JedisPool jedisPool)
+	{
+		return new RedisExecutor()
+		{
+			@Override
+			public <R> R execute(Function<Jedis, R> command)
+			{
+				R result = null;
+				try (Jedis jedis = jedisPool.getResource())
+				{
+					result = command.apply(jedis);
+				}
+				return result;
+			}
+		};
+	}
+
+	//Empties every node, the scripts stay loaded.
+	public void flushAll()
+	{
+		for (int port : ports)
+		{
+			try (Jedis jedis = new Jedis(HOST, port))
+			{
+				jedis.flushAll();
+			}
+		}
+	}
+
+	//Same as Redis losing its scripts on a restart or failover.
+	public void flushScripts()
+	{
+		for (int port : ports)
+		{
+			try (Jedis jedis = new Jedis(HOST, port))
+			{
+				jedis.scriptFlush();
+			}
+		}
+	}
+
+	//Drops every Pub/Sub subscription as a lost connection would, subscribers have to reconnect.
+	public void disconnectSubscribers()
+	{
+		for (int port : ports)
+		{
+			try (Jedis jedis = new Jedis(HOST, port))
+			{
+				jedis.clientKill(ClientKillParams.clientKillParams().type(ClientKillParams.Type.PUBSUB));
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		for (JedisPool pool : pools)
+		{
+			pool.close();
+		}
+		pools.clear();
+		for (RedisServer server : servers)
+		{
+			try
+			{
+				server.stop();
+			}
+			catch (IOException e)
+			{
+				System.err.println("Could not stop redis-server. Reason: " + e.getMessage());
+			}
+		}
+		servers.clear();
+	}
+
+	private synchronized JedisPool createJedisPool(HostAndPort node, int maxConnections)
+	{
+		JedisPoolConfig poolConfig = new JedisPoolConfig();
+		poolConfig.setMaxTotal(maxConnections);
+		poolConfig.setMaxIdle(maxConnections);
+		JedisPool pool = new JedisPool(poolConfig, node.getHost(), node.getPort());
+		pools.add(pool);
+		return pool;
+	}
+
+	//Each node gets its share of the slots and meets the first, then the cluster is waited for to agree.
+	private void createCluster() throws IOException
+	{
+		for (int i = 0; i < ports.size(); ++i)
+		{
+			int firstSlot = i * SLOT_COUNT / ports.size();
+			int lastSlot = (i + 1) * SLOT_COUNT / ports.size() - 1;
+			int[] slots = new int[lastSlot - firstSlot + 1];
+			for (int slot = firstSlot; slot <= lastSlot; ++slot)
+			{
+				slots[slot - firstSlot] = slot;
+			}
+			try (Jedis jedis = new Jedis(HOST, ports.get(i)))
+			{
+				jedis.clusterAddSlots(slots);
+				if (i > 0)
+				{
+					jedis.clusterMeet(HOST, getPort());
+				}
+			}
+		}
+
+		long giveUpAt = System.currentTimeMillis() + CLUSTER_READY_TIMEOUT_IN_MILLISECONDS;
+		boolean ready = false;
+		while (!ready)
+		{
+			ready = true;
+			for (int port : ports)
+			{
+				try (Jedis jedis = new Jedis(HOST, port))
+				{
+					ready = ready && jedis.clusterInfo().contains("cluster_state:ok") && jedis.clusterSlots().size() == ports.size();
+				}
+			}
+			if (!ready)
+			{
+				if (System.currentTimeMillis() > giveUpAt)
+				{
+					throw new IOException("Redis Cluster of " + ports.size() + " nodes did not get ready.");
+				}
+				sleep(50);
+			}
+		}
+	}
+
+	private static int findFreePort(boolean cluster) throws IOException
+	{
+		int port = 0;
+		while (port == 0)
+		{
+			try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName(HOST)))
+			{
+				port = serverSocket.getLocalPort();
+			}
+			if (cluster && (port + CLUSTER_BUS_PORT_OFFSET > 65535 || !isFree(port + CLUSTER_BUS_PORT_OFFSET)))
+			{
+				port = 0;
+			}
+		}
+		return port;
+	}
+
+	private static boolean isFree(int port)
+	{
+		boolean free = false;
+		try
+		{
+			new ServerSocket(port, 1, InetAddress.getByName(HOST)).close();
+			free = true;
+		}
+		catch (IOException e)
+		{
+			//In use.
+		}
+		return free;
+	}
+
+	private static void sleep(long milliSeconds)
+	{
+		try
+		{
+			Thread.sleep(milliSeconds);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
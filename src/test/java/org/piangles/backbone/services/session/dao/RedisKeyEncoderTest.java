@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class RedisKeyEncoderTest
+{
+	@Test
+	public void testKeySameAsStringFormat() throws Exception
+	{
+		String sessionId = UUID.randomUUID().toString();
+		for (String userId : new String[] {"user1", "\u00fcser-\u00e9", "\u7528\u6237"})
+		{
+			byte[] expected = String.format("user:%s:session:details:%s", userId, sessionId).getBytes(StandardCharsets.UTF_8);
+			byte[] actual = RedisKeyEncoder.start().append(RedisKeyEncoder.encode("user:")).append(userId)
+												.append(RedisKeyEncoder.encode(":session:details:")).append(sessionId).toBytes();
+			assertArrayEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testLongRoundTrip() throws Exception
+	{
+		for (long value : new long[] {0L, 7L, -7L, 1_700_000_000_000L, Long.MAX_VALUE, Long.MIN_VALUE})
+		{
+			byte[] encoded = RedisKeyEncoder.encode(value);
+			assertArrayEquals(Long.toString(value).getBytes(StandardCharsets.US_ASCII), encoded);
+			assertEquals(value, RedisKeyEncoder.parseLong(encoded));
+		}
+	}
+
+	@Test
+	public void testBufferGrows() throws Exception
+	{
+		StringBuilder userId = new StringBuilder();
+		for (int i = 0; i < 100; ++i)
+		{
+			userId.append("user");
+		}
+		byte[] key = RedisKeyEncoder.start().append(userId.toString()).append(userId.toString()).toBytes();
+		assertEquals(800, key.length);
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void testParseLongRejectsGarbage() throws Exception
+	{
+		RedisKeyEncoder.parseLong("12a4".getBytes(StandardCharsets.US_ASCII));
+	}
+}
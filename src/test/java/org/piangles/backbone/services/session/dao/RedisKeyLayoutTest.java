@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+public class RedisKeyLayoutTest
+{
+	@Test
+	public void testKeysSameAsFormat() throws Exception
+	{
+		String sessionId = UUID.randomUUID().toString();
+		for (RedisKeyLayout keyLayout : RedisKeyLayout.values())
+		{
+			for (String userId : new String[] {"user1", "\u00fcser-\u00e9"})
+			{
+				assertArrayEquals(keyLayout.createUser2SessionIdKey(userId).getBytes(StandardCharsets.UTF_8), keyLayout.createUser2SessionIdKeyBytes(userId));
+				assertArrayEquals(keyLayout.createUser2SessionIndexKey(userId).getBytes(StandardCharsets.UTF_8), keyLayout.createUser2SessionIndexKeyBytes(userId));
+				assertArrayEquals(keyLayout.createUser2SessionDetailsKey(userId, sessionId).getBytes(StandardCharsets.UTF_8), keyLayout.createUser2SessionDetailsKeyBytes(userId, sessionId));
+				assertArrayEquals(keyLayout.createUser2SessionDetailsKey(userId, sessionId).getBytes(StandardCharsets.UTF_8), 
+									keyLayout.createUser2SessionDetailsKeyBytes(userId, sessionId.getBytes(StandardCharsets.UTF_8)));
+				assertArrayEquals(keyLayout.createUser2SessionGenerationKey(userId).getBytes(StandardCharsets.UTF_8), keyLayout.createUser2SessionGenerationKeyBytes(userId));
+				assertArrayEquals(keyLayout.createUser2SessionRecordKey(userId, sessionId).getBytes(StandardCharsets.UTF_8), keyLayout.createUser2SessionRecordKeyBytes(userId, sessionId));
+				assertArrayEquals(keyLayout.createUser2SessionRecordKey(userId, sessionId).getBytes(StandardCharsets.UTF_8), 
+									keyLayout.createUser2SessionRecordKeyBytes(userId, sessionId.getBytes(StandardCharsets.UTF_8)));
+			}
+		}
+		assertEquals("user:user1:session:id", RedisKeyLayout.Standard.createUser2SessionIdKey("user1"));
+	}
+
+	@Test
+	public void testHashTaggedKeysOfUserInOneSlot() throws Exception
+	{
+		for (int i = 0; i < 100; ++i)
+		{
+			String userId = "user" + i;
+			int slot = JedisClusterCRC16.getSlot(RedisKeyLayout.HashTagged.createUser2SessionIdKeyBytes(userId));
+			assertEquals(slot, JedisClusterCRC16.getSlot(RedisKeyLayout.HashTagged.createUser2SessionIndexKeyBytes(userId)));
+			assertEquals(slot, JedisClusterCRC16.getSlot(RedisKeyLayout.HashTagged.createUser2SessionDetailsKeyBytes(userId, UUID.randomUUID().toString())));
+			assertEquals(slot, JedisClusterCRC16.getSlot(RedisKeyLayout.HashTagged.createUser2SessionGenerationKeyBytes(userId)));
+			assertEquals(slot, JedisClusterCRC16.getSlot(RedisKeyLayout.HashTagged.createUser2SessionRecordKeyBytes(userId, UUID.randomUUID().toString())));
+		}
+		//Without the hash tag they are spread over the slots.
+		assertNotEquals(JedisClusterCRC16.getSlot(RedisKeyLayout.Standard.createUser2SessionIdKey("user1")), 
+						JedisClusterCRC16.getSlot(RedisKeyLayout.Standard.createUser2SessionIndexKey("user1")));
+	}
+
+	@Test
+	public void testUserIdOfIndexKey() throws Exception
+	{
+		for (RedisKeyLayout keyLayout : RedisKeyLayout.values())
+		{
+			assertEquals("user:1", keyLayout.getUserIdOfIndexKey(keyLayout.createUser2SessionIdKey("user:1")));
+			assertEquals("user:1", keyLayout.getUserIdOfIndexKey(keyLayout.createUser2SessionIndexKey("user:1")));
+			assertNull(keyLayout.getUserIdOfIndexKey(keyLayout.createUser2SessionDetailsKey("user1", "session1")));
+			assertNull(keyLayout.getUserIdOfIndexKey(keyLayout.createUser2SessionGenerationKey("user1")));
+			assertNull(keyLayout.getUserIdOfIndexKey(keyLayout.createUser2SessionRecordKey("user1", "session1")));
+		}
+		assertNull(RedisKeyLayout.HashTagged.getUserIdOfIndexKey(RedisKeyLayout.Standard.createUser2SessionIdKey("user1")));
+		//A HashTagged key is also a Standard one, see RedisKeyLayoutMigration.
+		assertEquals("{user1}", RedisKeyLayout.Standard.getUserIdOfIndexKey(RedisKeyLayout.HashTagged.createUser2SessionIdKey("user1")));
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.piangles.backbone.services.session.SessionDetails;
+
+import redis.clients.jedis.params.SetParams;
+
+/**
+ * RedisSessionReaper against a real Redis, see RedisFixture. Sweeps are run by the test,
+ * the sweep interval is long enough that the reapers never sweep on their own.
+ */
+public class RedisSessionReaperTest
+{
+	private static final long SESSION_TIMEOUT = 60;
+	private static final long SWEEP_INTERVAL = 3600;
+	private static final int MAX_USERS_PER_SECOND = 100000;
+	private static final String POST_AUTHENTICATION = "PostAuthentication";
+
+	private RedisFixture redis;
+	private RedisExecutor redisExecutor;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		redis = RedisFixture.getShared();
+		redisExecutor = redis.createExecutor();
+		redis.flushAll();
+	}
+
+	//Both try at the same time, the one which gets the lease keeps it for the sweep interval.
+	@Test
+	public void testOnlyOneReaperSweeps() throws Exception
+	{
+		List<RedisSessionReaper> reapers = Arrays.asList(createReaper(User2SessionIndexType.SortedSet, RedisSessionEncoding.Record), createReaper(User2SessionIndexType.SortedSet, RedisSessionEncoding.Record));
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(reapers.size());
+		try
+		{
+			Future<?> first = executor.submit(() -> {
+				start.await();
+				reapers.get(0).sweep();
+				return null;
+			});
+			Future<?> second = executor.submit(() -> {
+				start.await();
+				reapers.get(1).sweep();
+				return null;
+			});
+			start.countDown();
+			first.get();
+			second.get();
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		assertEquals(1, reapers.get(0).getSweepCount() + reapers.get(1).getSweepCount());
+
+		reapers.get(0).sweep();
+		reapers.get(1).sweep();
+		assertEquals("Lease kept after the sweep", 1, reapers.get(0).getSweepCount() + reapers.get(1).getSweepCount());
+		long ttl = redisExecutor.execute((jedis) -> jedis.pttl(RedisSessionReaper.LEASE_KEY));
+		assertTrue("TTL " + ttl, ttl > 30000 && ttl <= SWEEP_INTERVAL * 1000);
+	}
+
+	//A node which stopped half way through its sweep holds the lease until it runs out.
+	@Test
+	public void testLeaseTakenOverOnceExpired() throws Exception
+	{
+		RedisSessionReaper reaper = createReaper(User2SessionIndexType.SortedSet, RedisSessionEncoding.Record);
+		redisExecutor.execute((jedis) -> jedis.set(RedisSessionReaper.LEASE_KEY, "stopped", SetParams.setParams().px(500)));
+
+		reaper.sweep();
+		assertEquals(0, reaper.getSweepCount());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (redisExecutor.execute((jedis) -> jedis.exists(RedisSessionReaper.LEASE_KEY)) && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(50);
+		}
+		reaper.sweep();
+		assertEquals(1, reaper.getSweepCount());
+		assertFalse("stopped".equals(redisExecutor.execute((jedis) -> jedis.get(RedisSessionReaper.LEASE_KEY))));
+	}
+
+	@Test
+	public void testSweepRemovesOnlyExpiredEntries() throws Exception
+	{
+		for (User2SessionIndexType indexType : User2SessionIndexType.values())
+		{
+			for (RedisSessionEncoding encoding : RedisSessionEncoding.values())
+			{
+				String configuration = indexType + " index, " + encoding + " encoding: ";
+				redis.flushAll();
+				long now = System.currentTimeMillis();
+				long expired = now - (SESSION_TIMEOUT * 1000) - 1000;
+				DistributedCacheDAOImpl dao = new DistributedCacheDAOImpl(redisExecutor, SESSION_TIMEOUT, 5, null, indexType, RedisKeyLayout.Standard, null, encoding);
+				dao.storeSessionDetails(new SessionDetails("user1", "valid", POST_AUTHENTICATION, SESSION_TIMEOUT, now, now));
+				dao.storeSessionDetails(new SessionDetails("user1", "expired", POST_AUTHENTICATION, SESSION_TIMEOUT, expired, expired));
+				dao.storeSessionDetails(new SessionDetails("user1", "gone", POST_AUTHENTICATION, SESSION_TIMEOUT, now, now));
+				redisExecutor.execute((jedis) -> jedis.del(encoding.createUser2SessionDetailsKey(RedisKeyLayout.Standard, "user1", "gone")));
+				dao.storeSessionDetails(new SessionDetails("user2", "earlier", POST_AUTHENTICATION, SESSION_TIMEOUT, now, now));
+				dao.removeAllSessionDetails("user2");
+				dao.storeSessionDetails(new SessionDetails("user2", "current", POST_AUTHENTICATION, SESSION_TIMEOUT, now, now));
+				dao.storeSessionDetails(new SessionDetails("user3", "expired", POST_AUTHENTICATION, SESSION_TIMEOUT, expired, expired));
+
+				RedisSessionReaper reaper = createReaper(indexType, encoding);
+				reaper.sweep();
+
+				assertEquals(configuration + "sweeps", 1, reaper.getSweepCount());
+				assertEquals(configuration + "user1", Arrays.asList("valid"), getIndexedSessionIds(indexType, "user1"));
+				assertEquals(configuration + "user2", Arrays.asList("current"), getIndexedSessionIds(indexType, "user2"));
+				assertFalse(configuration + "user3", redisExecutor.execute((jedis) -> jedis.exists(createIndexKey(indexType, "user3"))));
+				assertTrue(configuration + "valid", dao.isValid("user1", "valid"));
+				assertTrue(configuration + "current", dao.isValid("user2", "current"));
+				assertEquals(configuration + "details left", 0L, (long)redisExecutor.execute((jedis) -> jedis.exists(
+						encoding.createUser2SessionDetailsKey(RedisKeyLayout.Standard, "user1", "expired"),
+						encoding.createUser2SessionDetailsKey(RedisKeyLayout.Standard, "user2", "earlier"),
+						encoding.createUser2SessionDetailsKey(RedisKeyLayout.Standard, "user3", "expired"))));
+				//Three sessions and the index of user3.
+				assertEquals(configuration + "reclaimed", 4, reaper.getReclaimedKeyCount());
+				redisExecutor.execute((jedis) -> jedis.del(RedisSessionReaper.LEASE_KEY));
+			}
+		}
+	}
+
+	private RedisSessionReaper createReaper(User2SessionIndexType indexType, RedisSessionEncoding encoding)
+	{
+		return new RedisSessionReaper(redisExecutor, RedisKeyLayout.Standard, encoding, indexType, SESSION_TIMEOUT, SWEEP_INTERVAL, MAX_USERS_PER_SECOND, () -> false);
+	}
+
+	private List<String> getIndexedSessionIds(User2SessionIndexType indexType, String userId) throws Exception
+	{
+		return redisExecutor.execute((jedis) -> indexType == User2SessionIndexType.SortedSet ? 
+				List.copyOf(jedis.zrange(createIndexKey(indexType, userId), 0, -1)) : jedis.lrange(createIndexKey(indexType, userId), 0, -1));
+	}
+
+	private static String createIndexKey(User2SessionIndexType indexType, String userId)
+	{
+		return indexType == User2SessionIndexType.SortedSet ? RedisKeyLayout.Standard.createUser2SessionIndexKey(userId) : RedisKeyLayout.Standard.createUser2SessionIdKey(userId);
+	}
+}
@@ -0,0 +1,407 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.piangles.backbone.services.session.SessionDetails;
+
+public class SessionJournalTest
+{
+	private static final long SESSION_TIMEOUT = 3600;
+	private static final int MARK_SESSION_TIMEOUT = 5;
+	private static final int SEGMENT_SIZE = 64 * 1024;
+	private static final long COMMIT_INTERVAL = 5;
+	private static final long MAX_APPENDED = 1 << 20;
+
+	private Path directory;
+	private List<SessionJournal> journals;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		directory = Files.createTempDirectory("SessionJournalTest");
+		journals = new ArrayList<>();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		for (SessionJournal journal : journals)
+		{
+			journal.close();
+		}
+		try (Stream<Path> paths = Files.walk(directory))
+		{
+			for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+			{
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+
+	@Test
+	public void testRecoverEveryKindOfChange() throws Exception
+	{
+		InMemoryDAOImpl dao = open(4);
+		dao.storeSessionDetails(new SessionDetails("user1", "session1", "PreAuthentication", SESSION_TIMEOUT));
+		dao.storeSessionDetails(new SessionDetails("user1", "session2", "PreAuthentication", SESSION_TIMEOUT));
+		dao.storeSessionDetails(new SessionDetails("user2", "session3", "PreAuthentication", SESSION_TIMEOUT));
+		dao.updateAuthenticationState("user1", "session1", "PostAuthentication");
+		dao.updateLastAccessed("user2", "session3");
+		dao.removeSessionDetails("user1", "session2");
+		SessionDetails touched = dao.getSessionDetails("user2", "session3");
+		closeAll();
+
+		InMemoryDAOImpl recovered = open(4);
+		assertEquals("PostAuthentication", recovered.getSessionDetails("user1", "session1").getAuthenticationState());
+		assertNull(recovered.getSessionDetails("user1", "session2"));
+		assertEquals(touched.getLastAccessedTS(), recovered.getSessionDetails("user2", "session3").getLastAccessedTS());
+		assertEquals(touched.getCreatedTS(), recovered.getSessionDetails("user2", "session3").getCreatedTS());
+		assertEquals(1, recovered.getAllSessionDetails("user1").size());
+		assertTrue(recovered.isValid("user2", "session3"));
+	}
+
+	//Sessions of earlier generations are gone after recovery, compacted or not.
+	@Test
+	public void testRecoverAfterRemoveAll() throws Exception
+	{
+		InMemoryDAOImpl dao = open(4);
+		dao.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT));
+		dao.storeSessionDetails(new SessionDetails("user1", "session2", "PostAuthentication", SESSION_TIMEOUT));
+		dao.storeSessionDetails(new SessionDetails("user2", "session3", "PostAuthentication", SESSION_TIMEOUT));
+		dao.removeAllSessionDetails("user1");
+		dao.storeSessionDetails(new SessionDetails("user1", "session4", "PostAuthentication", SESSION_TIMEOUT));
+		closeAll();
+
+		InMemoryDAOImpl recovered = open(4);
+		assertNull(recovered.getSessionDetails("user1", "session1"));
+		assertNull(recovered.getSessionDetails("user1", "session2"));
+		assertTrue(recovered.isValid("user1", "session4"));
+		assertTrue(recovered.isValid("user2", "session3"));
+		recovered.removeAllSessionDetails("user1");
+		journals.get(0).flush();
+		journals.get(0).compact();
+		closeAll();
+
+		InMemoryDAOImpl compacted = open(4);
+		assertNull(compacted.getSessionDetails("user1", "session4"));
+		assertNull(compacted.getAllUserSessionIds("user1"));
+		assertTrue(compacted.isValid("user2", "session3"));
+	}
+
+	@Test
+	public void testCompactionLeavesSnapshotAndLaterSegments() throws Exception
+	{
+		InMemoryDAOImpl dao = open(2);
+		for (int i = 0; i < 5000; ++i)
+		{
+			dao.storeSessionDetails(new SessionDetails("user" + i, "session" + i, "PostAuthentication", SESSION_TIMEOUT));
+		}
+		for (int i = 0; i < 5000; i += 2)
+		{
+			dao.removeSessionDetails("user" + i, "session" + i);
+		}
+		journals.get(0).flush();
+		journals.get(0).compact();
+		dao.storeSessionDetails(new SessionDetails("user5000", "session5000", "PostAuthentication", SESSION_TIMEOUT));
+		closeAll();
+
+		List<String> snapshots = list("snapshot-");
+		assertEquals(1, snapshots.size());
+		long snapshotSequence = sequence(snapshots.get(0));
+		for (String segment : list("segment-"))
+		{
+			assertTrue(segment + " before " + snapshots.get(0), sequence(segment) >= snapshotSequence);
+		}
+
+		InMemoryDAOImpl recovered = open(2);
+		for (int i = 0; i <= 5000; ++i)
+		{
+			SessionDetails sessionDetails = recovered.getSessionDetails("user" + i, "session" + i);
+			if (i % 2 == 0 && i < 5000)
+			{
+				assertNull("session" + i, sessionDetails);
+			}
+			else
+			{
+				assertNotNull("session" + i, sessionDetails);
+			}
+		}
+		assertEquals(1, recovered.getAllSessionDetails("user1").size());
+	}
+
+	//The mark is only in the snapshot, the segment it was written to is deleted by compaction.
+	@Test
+	public void testMarkForRemovalSurvivesCompaction() throws Exception
+	{
+		AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+		InMemoryDAOImpl dao = open(4, clock::get);
+		dao.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT, clock.get(), clock.get()));
+		dao.storeSessionDetails(new SessionDetails("user1", "session2", "PostAuthentication", SESSION_TIMEOUT, clock.get(), clock.get()));
+		dao.markForRemoveSessionDetails("user1", "session1");
+		journals.get(0).flush();
+		journals.get(0).compact();
+		closeAll();
+		assertEquals(1, list("snapshot-").size());
+
+		InMemoryDAOImpl recovered = open(4, clock::get);
+		assertNotNull(recovered.getSessionDetails("user1", "session1"));
+		clock.addAndGet(MARK_SESSION_TIMEOUT * 1000 + 2000);
+		recovered.getExpiryWheel().advance();
+		assertNull(recovered.getSessionDetails("user1", "session1"));
+		assertNotNull(recovered.getSessionDetails("user1", "session2"));
+	}
+
+	@Test
+	public void testReplayStopsAtCorruptRecord() throws Exception
+	{
+		InMemoryDAOImpl dao = open(4);
+		for (int i = 0; i < 10; ++i)
+		{
+			dao.storeSessionDetails(new SessionDetails("user" + i, "session" + i, "PostAuthentication", SESSION_TIMEOUT));
+		}
+		closeAll();
+
+		//Flips the last byte of the last record, as if the process died while writing it.
+		try (FileChannel channel = FileChannel.open(directory.resolve(list("segment-").get(0)), StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			int lastByte = 0;
+			int length = segment.getInt(0);
+			while (length > 0)
+			{
+				lastByte = segment.position() + 8 + length - 1;
+				segment.position(lastByte + 1);
+				length = segment.getInt(segment.position());
+			}
+			segment.put(lastByte, (byte)(segment.get(lastByte) ^ 0xFF));
+			segment.force();
+		}
+
+		InMemoryDAOImpl recovered = open(4);
+		for (int i = 0; i < 9; ++i)
+		{
+			assertNotNull("session" + i, recovered.getSessionDetails("user" + i, "session" + i));
+		}
+		assertNull(recovered.getSessionDetails("user9", "session9"));
+
+		//Recovery leaves the damaged segment alone and carries on in a new one.
+		recovered.storeSessionDetails(new SessionDetails("user9", "session9", "PostAuthentication", SESSION_TIMEOUT));
+		closeAll();
+		assertNotNull(open(4).getSessionDetails("user9", "session9"));
+	}
+
+	/**
+	 * Writer is killed while it keeps storing sessions. Everything it reported as flushed
+	 * is recovered, and what is recovered is a prefix of what it stored, nothing in between
+	 * is missing or damaged.
+	 */
+	@Test
+	public void testRecoverAfterProcessIsKilledMidWrite() throws Exception
+	{
+		String java = ProcessHandle.current().info().command().orElse("java");
+		ProcessBuilder processBuilder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Writer.class.getName(), directory.toString());
+		processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		Process process = processBuilder.start();
+
+		int flushed = 0;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream())))
+		{
+			String line = reader.readLine();
+			while (line != null && flushed < 20000)
+			{
+				flushed = Integer.parseInt(line);
+				line = flushed < 20000 ? reader.readLine() : null;
+			}
+			process.destroyForcibly();
+			process.waitFor();
+		}
+		assertTrue("Writer stopped before being killed", flushed >= 20000);
+
+		InMemoryDAOImpl recovered = open(Writer.COMPACT_AFTER_SEGMENTS);
+		int prefix = 0;
+		while (recovered.getSessionDetails("user" + prefix, "session" + prefix) != null)
+		{
+			SessionDetails sessionDetails = recovered.getSessionDetails("user" + prefix, "session" + prefix);
+			assertEquals("user" + prefix, sessionDetails.getUserId());
+			assertEquals("PostAuthentication", sessionDetails.getAuthenticationState());
+			++prefix;
+		}
+		assertTrue(prefix + " recovered of " + flushed + " flushed", prefix >= flushed);
+		for (int i = prefix; i < prefix + Writer.FLUSH_EVERY; ++i)
+		{
+			assertNull("session" + i + " after a missing one", recovered.getSessionDetails("user" + i, "session" + i));
+		}
+	}
+
+	//Changes are queued after the lock of the DAO is released, so not always in the order they were made.
+	@Test
+	public void testQueuedOutOfOrderIsWrittenInOrder() throws Exception
+	{
+		SessionJournal journal = start();
+		SessionJournal.Mutation stored = journal.stored(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT));
+		SessionJournal.Mutation removed = journal.removed("user1", "session1");
+		SessionJournal.Mutation storedAgain = journal.stored(new SessionDetails("user1", "session2", "PostAuthentication", SESSION_TIMEOUT));
+		journal.append(storedAgain);
+		journal.append(removed);
+		journal.append(stored);
+		closeAll();
+
+		InMemoryDAOImpl recovered = open(4);
+		assertNull(recovered.getSessionDetails("user1", "session1"));
+		assertTrue(recovered.isValid("user1", "session2"));
+	}
+
+	//Holding the journal keeps the writer from writing, append has to return regardless.
+	@Test
+	public void testOverflowFailsTheJournalInsteadOfBlocking() throws Exception
+	{
+		SessionJournal journal = start();
+		long appended = 0;
+		synchronized (journal)
+		{
+			while (journal.getDroppedCount() == 0 && appended < MAX_APPENDED)
+			{
+				journal.append(journal.touched("user1", "session1", appended));
+				++appended;
+			}
+		}
+		assertTrue("Nothing dropped after " + appended + " changes", journal.getDroppedCount() > 0);
+
+		journal.append(journal.removed("user1", "session1"));
+		try
+		{
+			journal.flush();
+			fail("flush of a journal that dropped a change");
+		}
+		catch (IOException expected)
+		{
+		}
+		assertTrue(journal.getDroppedCount() >= 2);
+	}
+
+	@Test
+	public void testAppendAfterCloseIsDropped() throws Exception
+	{
+		SessionJournal journal = start();
+		journal.close();
+		journal.append(journal.removed("user1", "session1"));
+		assertEquals(1, journal.getDroppedCount());
+	}
+
+	public static class Writer
+	{
+		private static final int FLUSH_EVERY = 1000;
+		private static final int COMPACT_AFTER_SEGMENTS = 3;
+
+		public static void main(String[] args) throws Exception
+		{
+			SessionJournal journal = new SessionJournal(new File(args[0]).toPath(), SEGMENT_SIZE, COMMIT_INTERVAL, COMPACT_AFTER_SEGMENTS);
+			InMemoryDAOImpl dao = new InMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT);
+			dao.enablePersistence(journal);
+			for (int i = 0; i < Integer.MAX_VALUE; ++i)
+			{
+				dao.storeSessionDetails(new SessionDetails("user" + i, "session" + i, "PostAuthentication", SESSION_TIMEOUT));
+				if ((i + 1) % FLUSH_EVERY == 0)
+				{
+					journal.flush();
+					System.out.println(i + 1);
+					System.out.flush();
+				}
+			}
+		}
+	}
+
+	private InMemoryDAOImpl open(int compactAfterSegments) throws Exception
+	{
+		SessionJournal journal = new SessionJournal(directory, SEGMENT_SIZE, COMMIT_INTERVAL, compactAfterSegments);
+		journals.add(journal);
+		InMemoryDAOImpl dao = new InMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT);
+		dao.enablePersistence(journal);
+		return dao;
+	}
+
+	//Expiry only happens when the test advances the wheel.
+	private InMemoryDAOImpl open(int compactAfterSegments, LongSupplier clock) throws Exception
+	{
+		SessionJournal journal = new SessionJournal(directory, SEGMENT_SIZE, COMMIT_INTERVAL, compactAfterSegments);
+		journals.add(journal);
+		InMemoryDAOImpl dao = new InMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, clock);
+		dao.enablePersistence(journal);
+		return dao;
+	}
+
+	private SessionJournal start() throws Exception
+	{
+		SessionJournal journal = new SessionJournal(directory, SEGMENT_SIZE, COMMIT_INTERVAL, 4);
+		journals.add(journal);
+		journal.start(Collections::emptyList);
+		return journal;
+	}
+
+	private void closeAll() throws Exception
+	{
+		for (SessionJournal journal : journals)
+		{
+			journal.flush();
+			journal.close();
+		}
+		journals.clear();
+	}
+
+	private List<String> list(String prefix) throws IOException
+	{
+		try (Stream<Path> paths = Files.list(directory))
+		{
+			return paths.map(path -> path.getFileName().toString()).filter(name -> name.startsWith(prefix)).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private static long sequence(String name)
+	{
+		return Long.parseLong(name.substring(name.indexOf('-') + 1, name.indexOf('.')));
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.piangles.core.dao.DAOException;
+
+public class SessionRecordTest
+{
+	@Test
+	public void testRoundTrip() throws Exception
+	{
+		byte[] record = SessionRecord.encode("PostAuthentication", 1700000000123L, 1700000456789L, 7);
+		assertEquals(26, record.length);
+		assertTrue(SessionRecord.isSession(record));
+		assertEquals("PostAuthentication", SessionRecord.getAuthenticationState(record));
+		assertEquals(1700000000123L, SessionRecord.getCreatedTS(record));
+		assertEquals(1700000456789L, SessionRecord.getLastAccessedTS(record));
+		assertEquals(7, SessionRecord.getGeneration(record));
+	}
+
+	@Test
+	public void testAuthenticationStateOutsideOfTheKnownOnes() throws Exception
+	{
+		byte[] record = SessionRecord.encode("MFAPending", 1L, 2L, 0);
+		assertEquals(26 + 1 + "MFAPending".length(), record.length);
+		assertEquals("MFAPending", SessionRecord.getAuthenticationState(record));
+		assertEquals(2L, SessionRecord.getLastAccessedTS(record));
+	}
+
+	@Test(expected = DAOException.class)
+	public void testAuthenticationStateTooLong() throws Exception
+	{
+		SessionRecord.checkAuthenticationState("x".repeat(256));
+	}
+
+	//What SETRANGE does to the stored record on a touch and on an update of the authenticationState.
+	@Test
+	public void testWrittenInPlace() throws Exception
+	{
+		byte[] record = SessionRecord.encode("PreAuthentication", 1L, 2L, 3);
+		byte[] lastAccessedTS = SessionRecord.encodeLong(1700000999999L);
+		System.arraycopy(lastAccessedTS, 0, record, SessionRecord.LAST_ACCESSED_TS_OFFSET, lastAccessedTS.length);
+		record[SessionRecord.AUTHENTICATION_STATE_OFFSET] = SessionRecord.getAuthenticationStateCode("PostAuthentication");
+
+		assertArrayEquals(SessionRecord.encode("PostAuthentication", 1L, 1700000999999L, 3), record);
+	}
+
+	//A touch on a record which is gone leaves zeros and LastAccessedTS behind, which is no session.
+	@Test
+	public void testTouchOfMissingRecord() throws Exception
+	{
+		byte[] touched = new byte[SessionRecord.LAST_ACCESSED_TS_OFFSET + Long.BYTES];
+		System.arraycopy(SessionRecord.encodeLong(99L), 0, touched, SessionRecord.LAST_ACCESSED_TS_OFFSET, Long.BYTES);
+		assertFalse(SessionRecord.isSession(touched));
+		assertFalse(SessionRecord.isSession(null));
+
+		byte[] record = SessionRecord.encode("PostAuthentication", 1L, 2L, 0);
+		assertEquals(99L, SessionRecord.getLastAccessedTS(SessionRecord.withLastAccessedTS(record, touched)));
+		assertEquals(2L, SessionRecord.getLastAccessedTS(SessionRecord.withLastAccessedTS(record, null)));
+	}
+}
@@ -0,0 +1,314 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.piangles.backbone.services.session.SessionDetails;
+import org.piangles.core.dao.DAOException;
+
+/**
+ * Two DAO nodes share one store and one invalidation channel, standing in for
+ * two SessionService instances pointed at the same Redis. DistributedSessionValidityCacheTest
+ * does the same with DistributedCacheDAOImpl against a real one.
+ */
+public class SessionValidityCacheTest
+{
+	private static final long SESSION_TIMEOUT = 60;
+
+	private Map<String, SessionDetails> store;
+	private LocalInvalidationChannel channel;
+	private SharedStoreDAO nodeA;
+	private SharedStoreDAO nodeB;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		store = new ConcurrentHashMap<>();
+		channel = new LocalInvalidationChannel();
+		nodeA = new SharedStoreDAO(store, new SessionValidityCache(100, 60000L), channel);
+		nodeB = new SharedStoreDAO(store, new SessionValidityCache(100, 60000L), channel);
+	}
+
+	@Test
+	public void testRepeatedValidationIsServedLocally() throws Exception
+	{
+		nodeA.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT));
+
+		assertTrue(nodeA.isValid("user1", "session1"));
+		assertTrue(nodeA.isValid("user1", "session1"));
+		assertTrue(nodeA.isValid("user1", "session1"));
+
+		assertEquals(1, nodeA.getSessionDetailsCount);
+		assertEquals(2, nodeA.getValidityCache().getHitCount());
+		assertEquals(1, nodeA.getValidityCache().getMissCount());
+	}
+
+	@Test
+	public void testRemoveOnOtherNodeInvalidates() throws Exception
+	{
+		nodeA.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT));
+		assertTrue(nodeA.isValid("user1", "session1"));
+		assertTrue(nodeB.isValid("user1", "session1"));
+
+		nodeB.removeSessionDetails("user1", "session1");
+
+		assertFalse(nodeA.isValid("user1", "session1"));
+		assertFalse(nodeB.isValid("user1", "session1"));
+	}
+
+	@Test
+	public void testMarkForRemoveAndAuthenticationStateOnOtherNodeInvalidate() throws Exception
+	{
+		nodeA.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT));
+		nodeA.storeSessionDetails(new SessionDetails("user1", "session2", "PostAuthentication", SESSION_TIMEOUT));
+		assertTrue(nodeA.isValid("user1", "session1"));
+		assertTrue(nodeA.isValid("user1", "session2"));
+
+		nodeB.markForRemoveSessionDetails("user1", "session1");
+		nodeB.updateAuthenticationState("user1", "session2", "PreAuthentication");
+
+		assertEquals(0, nodeA.getValidityCache().size());
+	}
+
+	//Only the sessions of that user are dropped, even one whose UserId starts with it.
+	@Test
+	public void testRemoveAllOnOtherNodeInvalidatesSessionsOfUser() throws Exception
+	{
+		nodeA.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT));
+		nodeA.storeSessionDetails(new SessionDetails("user1", "session2", "PostAuthentication", SESSION_TIMEOUT));
+		nodeA.storeSessionDetails(new SessionDetails("user1:a", "session3", "PostAuthentication", SESSION_TIMEOUT));
+		assertTrue(nodeA.isValid("user1", "session1"));
+		assertTrue(nodeA.isValid("user1", "session2"));
+		assertTrue(nodeA.isValid("user1:a", "session3"));
+
+		nodeB.removeAllSessionDetails("user1");
+
+		assertEquals(1, nodeA.getValidityCache().size());
+		assertFalse(nodeA.isValid("user1", "session1"));
+		assertFalse(nodeA.isValid("user1", "session2"));
+		assertTrue(nodeA.isValid("user1:a", "session3"));
+	}
+
+	@Test
+	public void testEntryDoesNotOutliveSession() throws Exception
+	{
+		long almostExpired = System.currentTimeMillis() - (SESSION_TIMEOUT * 1000) + 50;
+		nodeA.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT, almostExpired, almostExpired));
+
+		assertTrue(nodeA.isValid("user1", "session1"));
+		Thread.sleep(100);
+		assertFalse(nodeA.isValid("user1", "session1"));
+	}
+
+	@Test
+	public void testInvalidationDuringLookupIsNotCached() throws Exception
+	{
+		SessionValidityCache cache = new SessionValidityCache(100, 60000L);
+		long stamp = cache.stamp();
+		cache.invalidated("user1", "session1");
+		cache.put("user1", "session1", Long.MAX_VALUE, stamp);
+
+		assertFalse(cache.isValid("user1", "session1"));
+	}
+
+	@Test
+	public void testSizeIsBounded() throws Exception
+	{
+		SessionValidityCache cache = new SessionValidityCache(10, 60000L);
+		for (int i = 0; i < 100; ++i)
+		{
+			cache.put("user" + i, "session" + i, Long.MAX_VALUE, cache.stamp());
+		}
+
+		assertTrue(cache.size() <= 10);
+	}
+
+	@Test
+	public void testEvictionDropsExpiredEntriesFirst() throws Exception
+	{
+		SessionValidityCache cache = new SessionValidityCache(10, 60000L);
+		for (int i = 0; i < 5; ++i)
+		{
+			cache.put("expiredUser" + i, "session" + i, 0L, cache.stamp());
+			cache.put("user" + i, "session" + i, Long.MAX_VALUE, cache.stamp());
+		}
+		for (int i = 5; i < 10; ++i)
+		{
+			cache.put("user" + i, "session" + i, Long.MAX_VALUE, cache.stamp());
+		}
+
+		assertEquals(10, cache.size());
+		for (int i = 0; i < 10; ++i)
+		{
+			assertTrue("user" + i, cache.isValid("user" + i, "session" + i));
+		}
+	}
+
+	@Test
+	public void testInvalidatedAllRemovesOnlyThatUser() throws Exception
+	{
+		SessionValidityCache cache = new SessionValidityCache(100, 60000L);
+		cache.put("user:1", "session1", Long.MAX_VALUE, cache.stamp());
+		cache.put("user:1", "session2", Long.MAX_VALUE, cache.stamp());
+		cache.put("user", "1:session1", Long.MAX_VALUE, cache.stamp());
+		cache.put("user:10", "session1", Long.MAX_VALUE, cache.stamp());
+
+		cache.invalidatedAll("user:1");
+
+		assertFalse(cache.isValid("user:1", "session1"));
+		assertFalse(cache.isValid("user:1", "session2"));
+		assertTrue(cache.isValid("user", "1:session1"));
+		assertTrue(cache.isValid("user:10", "session1"));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testResynchronizeClears() throws Exception
+	{
+		nodeA.storeSessionDetails(new SessionDetails("user1", "session1", "PostAuthentication", SESSION_TIMEOUT));
+		assertTrue(nodeA.isValid("user1", "session1"));
+
+		channel.reconnect();
+
+		assertEquals(0, nodeA.getValidityCache().size());
+	}
+
+	private static final class LocalInvalidationChannel implements SessionInvalidationChannel
+	{
+		private List<SessionInvalidationListener> listeners = new CopyOnWriteArrayList<>();
+
+		@Override
+		public void publish(String userId, String sessionId) throws DAOException
+		{
+			for (SessionInvalidationListener listener : listeners)
+			{
+				listener.invalidated(userId, sessionId);
+			}
+		}
+
+		@Override
+		public void publishAll(String userId) throws DAOException
+		{
+			for (SessionInvalidationListener listener : listeners)
+			{
+				listener.invalidatedAll(userId);
+			}
+		}
+
+		@Override
+		public void subscribe(SessionInvalidationListener listener)
+		{
+			listeners.add(listener);
+		}
+
+		public void reconnect()
+		{
+			for (SessionInvalidationListener listener : listeners)
+			{
+				listener.resynchronize();
+			}
+		}
+	}
+
+	private static final class SharedStoreDAO extends AbstractSessionManagementDAO
+	{
+		private Map<String, SessionDetails> store;
+		private int getSessionDetailsCount;
+
+		public SharedStoreDAO(Map<String, SessionDetails> store, SessionValidityCache validityCache, SessionInvalidationChannel channel)
+		{
+			super(SESSION_TIMEOUT, 5);
+			this.store = store;
+			enableValidityCache(validityCache, channel);
+		}
+
+		@Override
+		public void storeSessionDetails(SessionDetails sessionDetails) throws DAOException
+		{
+			store.put(sessionDetails.getSessionId(), sessionDetails);
+		}
+
+		@Override
+		public SessionDetails getSessionDetails(String userId, String sessionId) throws DAOException
+		{
+			getSessionDetailsCount++;
+			return store.get(sessionId);
+		}
+
+		@Override
+		public List<SessionDetails> getAllSessionDetails(String userId) throws DAOException
+		{
+			return new ArrayList<>(store.values());
+		}
+
+		@Override
+		public void removeSessionDetails(String userId, String sessionId) throws DAOException
+		{
+			store.remove(sessionId);
+			invalidate(userId, sessionId);
+		}
+
+		@Override
+		public void removeAllSessionDetails(String userId) throws DAOException
+		{
+			store.values().removeIf(sessionDetails -> sessionDetails.getUserId().equals(userId));
+			invalidateAll(userId);
+		}
+
+		@Override
+		public void markForRemoveSessionDetails(String userId, String sessionId) throws DAOException
+		{
+			invalidate(userId, sessionId);
+		}
+
+		@Override
+		public void updateLastAccessed(String userId, String sessionId) throws DAOException
+		{
+		}
+
+		@Override
+		public void updateAuthenticationState(String userId, String sessionId, String authenticationState) throws DAOException
+		{
+			invalidate(userId, sessionId);
+		}
+
+		@Override
+		protected List<String> getAllUserSessionIds(String userId) throws DAOException
+		{
+			return new ArrayList<>(store.keySet());
+		}
+
+		@Override
+		protected void removeAllExpiredSessionDetails(String userId) throws DAOException
+		{
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.piangles.backbone.services.session.SessionDetails;
+
+/**
+ * The clock is controlled by the test and the wheels are advanced by hand,
+ * nothing here waits on real time.
+ */
+public class TimingWheelTest
+{
+	private static final long SESSION_TIMEOUT = 60;
+	private static final int MARK_SESSION_TIMEOUT = 5;
+
+	private AtomicLong clock;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		clock = new AtomicLong(1_000_000L);
+	}
+
+	@Test
+	public void testItemExpiresOnlyOnceDue() throws Exception
+	{
+		List<String> expired = new ArrayList<>();
+		TimingWheel<String> wheel = new TimingWheel<>(100, 8, clock::get, (item, now) -> {
+			expired.add(item);
+			return 0L;
+		});
+		wheel.schedule("early", clock.get() + 250);
+		//Further away than one rotation of 800ms.
+		wheel.schedule("late", clock.get() + 2000);
+
+		clock.addAndGet(200);
+		assertEquals(0, wheel.advance());
+
+		clock.addAndGet(100);
+		assertEquals(1, wheel.advance());
+		assertEquals("early", expired.get(0));
+
+		clock.addAndGet(1000);
+		assertEquals(0, wheel.advance());
+
+		clock.addAndGet(800);
+		assertEquals(1, wheel.advance());
+		assertEquals("late", expired.get(1));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testHandlerCanReschedule() throws Exception
+	{
+		int[] calls = new int[1];
+		TimingWheel<String> wheel = new TimingWheel<>(100, 8, clock::get, (item, now) -> {
+			calls[0]++;
+			return calls[0] == 1 ? now + 500 : 0L;
+		});
+		wheel.schedule("session", clock.get() + 100);
+
+		clock.addAndGet(200);
+		wheel.advance();
+		assertEquals(1, wheel.size());
+
+		clock.addAndGet(400);
+		wheel.advance();
+		assertEquals(1, calls[0]);
+
+		clock.addAndGet(200);
+		wheel.advance();
+		assertEquals(2, calls[0]);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testInMemorySessionIsRemovedOnExpiry() throws Exception
+	{
+		InMemoryDAOImpl dao = new InMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, clock::get);
+		dao.storeSessionDetails(createSessionDetails("user1", "session1"));
+
+		clock.addAndGet(SESSION_TIMEOUT * 1000 - 1000);
+		dao.getExpiryWheel().advance();
+		assertNotNull(dao.getSessionDetails("user1", "session1"));
+
+		clock.addAndGet(2000);
+		dao.getExpiryWheel().advance();
+		assertNull(dao.getSessionDetails("user1", "session1"));
+		assertEquals(0, dao.getScheduledExpiryCount());
+	}
+
+	@Test
+	public void testInMemoryTouchPostponesExpiry() throws Exception
+	{
+		InMemoryDAOImpl dao = new InMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, clock::get);
+		dao.storeSessionDetails(createSessionDetails("user1", "session1"));
+
+		clock.addAndGet(30000);
+		dao.updateLastAccessed("user1", "session1");
+
+		clock.addAndGet(40000);
+		dao.getExpiryWheel().advance();
+		assertTrue(dao.isValid("user1", "session1"));
+		assertEquals(1, dao.getScheduledExpiryCount());
+
+		clock.addAndGet(30000);
+		dao.getExpiryWheel().advance();
+		assertNull(dao.getSessionDetails("user1", "session1"));
+	}
+
+	@Test
+	public void testInMemoryMarkForRemove() throws Exception
+	{
+		InMemoryDAOImpl dao = new InMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, clock::get);
+		dao.storeSessionDetails(createSessionDetails("user1", "session1"));
+		dao.storeSessionDetails(createSessionDetails("user1", "session2"));
+
+		dao.markForRemoveSessionDetails("user1", "session1");
+		dao.markForRemoveSessionDetails("user1", "session2");
+		clock.addAndGet(1000);
+		dao.updateLastAccessed("user1", "session2");
+
+		clock.addAndGet(MARK_SESSION_TIMEOUT * 1000 + 1000);
+		dao.getExpiryWheel().advance();
+		assertNull(dao.getSessionDetails("user1", "session1"));
+		assertTrue(dao.isValid("user1", "session2"));
+	}
+
+	@Test
+	public void testConcurrentInMemoryExpiryAndMarkForRemove() throws Exception
+	{
+		ConcurrentInMemoryDAOImpl dao = new ConcurrentInMemoryDAOImpl(SESSION_TIMEOUT, MARK_SESSION_TIMEOUT, clock::get);
+		dao.storeSessionDetails(createSessionDetails("user1", "session1"));
+		dao.storeSessionDetails(createSessionDetails("user2", "session2"));
+
+		dao.markForRemoveSessionDetails("user1", "session1");
+		clock.addAndGet(MARK_SESSION_TIMEOUT * 1000 + 1000);
+		dao.getExpiryWheel().advance();
+		assertNull(dao.getSessionDetails("user1", "session1"));
+		assertTrue(dao.isValid("user2", "session2"));
+
+		clock.addAndGet(SESSION_TIMEOUT * 1000);
+		dao.getExpiryWheel().advance();
+		assertFalse(dao.isValid("user2", "session2"));
+		assertNull(dao.getSessionDetails("user2", "session2"));
+		assertEquals(0, dao.getScheduledExpiryCount());
+	}
+
+	private SessionDetails createSessionDetails(String userId, String sessionId)
+	{
+		return new SessionDetails(userId, sessionId, "PostAuthentication", SESSION_TIMEOUT, clock.get(), clock.get());
+	}
+}
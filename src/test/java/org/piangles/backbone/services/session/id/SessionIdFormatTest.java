@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.id;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Test;
+
+public class SessionIdFormatTest
+{
+	@Test
+	public void testUUIDFormatSameAsUUID() throws Exception
+	{
+		for (int i = 0; i < 1000; ++i)
+		{
+			UUID uuid = UUID.randomUUID();
+			String sessionId = SessionIdFormat.UUID.format(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+			assertEquals(uuid.toString(), sessionId);
+			assertTrue(SessionIdFormat.UUID.matches(sessionId));
+			assertEquals(uuid.getMostSignificantBits(), SessionIdFormat.UUID.getHighBits(sessionId));
+			assertEquals(uuid.getLeastSignificantBits(), SessionIdFormat.UUID.getLowBits(sessionId));
+		}
+	}
+
+	@Test
+	public void testBase64UrlFormatSameAsBase64UrlEncoder() throws Exception
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < 1000; ++i)
+		{
+			long highBits = random.nextLong();
+			long lowBits = random.nextLong();
+			String expected = Base64.getUrlEncoder().withoutPadding().encodeToString(ByteBuffer.allocate(16).putLong(highBits).putLong(lowBits).array());
+
+			String sessionId = SessionIdFormat.Base64Url.format(highBits, lowBits);
+			assertEquals(expected, sessionId);
+			assertTrue(SessionIdFormat.Base64Url.matches(sessionId));
+			assertEquals(highBits, SessionIdFormat.Base64Url.getHighBits(sessionId));
+			assertEquals(lowBits, SessionIdFormat.Base64Url.getLowBits(sessionId));
+		}
+	}
+
+	@Test
+	public void testMatchesRejectsOtherFormats() throws Exception
+	{
+		String uuid = UUID.randomUUID().toString();
+		assertFalse(SessionIdFormat.UUID.matches(null));
+		assertFalse(SessionIdFormat.UUID.matches(uuid.toUpperCase()));
+		assertFalse(SessionIdFormat.UUID.matches(uuid.replace('-', 'a')));
+		assertFalse(SessionIdFormat.Base64Url.matches(uuid));
+		assertFalse(SessionIdFormat.Base64Url.matches("AAAAAAAAAAAAAAAAAAAAA+"));
+		//Bits past the 128th set.
+		assertFalse(SessionIdFormat.Base64Url.matches("AAAAAAAAAAAAAAAAAAAAAB"));
+		assertTrue(SessionIdFormat.Base64Url.matches("AAAAAAAAAAAAAAAAAAAAAw"));
+	}
+
+	@Test
+	public void testGeneratorsProduceDistinctIdsInFormat() throws Exception
+	{
+		for (SessionIdFormat format : SessionIdFormat.values())
+		{
+			for (SessionIdGenerator generator : new SessionIdGenerator[] {new DRBGSessionIdGenerator(format), new UUIDSessionIdGenerator(format)})
+			{
+				Set<String> sessionIds = new HashSet<>();
+				for (int i = 0; i < 10000; ++i)
+				{
+					String sessionId = generator.generate();
+					assertTrue(sessionId, format.matches(sessionId));
+					sessionIds.add(sessionId);
+				}
+				assertEquals(10000, sessionIds.size());
+			}
+		}
+	}
+
+	//Virtual threads share the DRBG generators, none of them may hand out the same bytes twice.
+	@Test
+	public void testDRBGGeneratorOnVirtualThreadsProducesDistinctIds() throws Exception
+	{
+		DRBGSessionIdGenerator generator = new DRBGSessionIdGenerator(SessionIdFormat.Base64Url);
+		Set<String> sessionIds = ConcurrentHashMap.newKeySet();
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+		{
+			for (int i = 0; i < 10000; ++i)
+			{
+				executor.execute(() -> sessionIds.add(generator.generate()));
+			}
+		}
+		assertEquals(10000, sessionIds.size());
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.piangles.backbone.services.logging.LoggingService;
+
+public class AsyncSessionLoggerTest
+{
+	private static final long WAIT_IN_MILLISECONDS = 5000;
+
+	private List<String> logged = new CopyOnWriteArrayList<>();
+
+	@Test
+	public void testFormatting() throws Exception
+	{
+		assertEquals("UserId:u1 SessionId:s1", LogMessages.format("UserId:{} SessionId:{}", 2, "u1", "s1", null));
+		assertEquals("UserId:u1 SessionId:{}", LogMessages.format("UserId:{} SessionId:{}", 1, "u1", null, null));
+		assertEquals("a null c", LogMessages.format("{} {} {}", 3, "a", null, "c"));
+		assertEquals("No arguments", LogMessages.format("No arguments", 2, "a", "b", null));
+	}
+
+	@Test
+	public void testEventsAreLoggedInOrder() throws Exception
+	{
+		AsyncSessionLogger sessionLogger = new AsyncSessionLogger(createLoggingService(null), 128, 1);
+		for (int i = 0; i < 100; ++i)
+		{
+			sessionLogger.info("Event:{}", i);
+		}
+		sessionLogger.error("Failed", new Exception());
+		waitForLogged(101);
+
+		for (int i = 0; i < 100; ++i)
+		{
+			assertEquals("INFO Event:" + i, logged.get(i));
+		}
+		assertEquals("ERROR Failed", logged.get(100));
+		assertEquals(0, sessionLogger.getDroppedCount());
+	}
+
+	@Test
+	public void testSampling() throws Exception
+	{
+		AsyncSessionLogger sessionLogger = new AsyncSessionLogger(createLoggingService(null), 1024, 10);
+		for (int i = 0; i < 10000; ++i)
+		{
+			sessionLogger.info("Event:{}", i);
+			if (i % 1000 == 0)
+			{
+				sessionLogger.error("Failed:" + i, new Exception());
+			}
+		}
+		Thread.sleep(500);
+
+		long errors = logged.stream().filter(line -> line.startsWith("ERROR")).count();
+		long infos = logged.size() - errors + sessionLogger.getDroppedCount();
+		assertEquals("Errors are never sampled", 10, errors);
+		assertTrue("About one in ten, was " + infos, infos > 700 && infos < 1300);
+	}
+
+	@Test
+	public void testInfoDroppedAndErrorLoggedOnCallerWhenFull() throws Exception
+	{
+		CountDownLatch release = new CountDownLatch(1);
+		AsyncSessionLogger sessionLogger = new AsyncSessionLogger(createLoggingService(release), 4, 1);
+		//The first one blocks the consumer, four more fill the ring.
+		sessionLogger.info("Event:{}", 0);
+		Thread.sleep(100);
+		for (int i = 1; i < 10; ++i)
+		{
+			sessionLogger.info("Event:{}", i);
+		}
+		sessionLogger.error("Failed", new Exception());
+		assertTrue("Written on the calling thread", logged.contains("ERROR Failed"));
+
+		release.countDown();
+		waitForLogged(6);
+		assertEquals(10 - 5, sessionLogger.getDroppedCount());
+	}
+
+	private LoggingService createLoggingService(CountDownLatch release)
+	{
+		return (LoggingService)Proxy.newProxyInstance(LoggingService.class.getClassLoader(), new Class<?>[] {LoggingService.class}, (proxy, method, args) -> {
+			if (release != null && "info".equals(method.getName()))
+			{
+				release.await(WAIT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+			}
+			logged.add(method.getName().toUpperCase() + " " + args[0]);
+			return null;
+		});
+	}
+
+	private void waitForLogged(int count) throws Exception
+	{
+		long deadline = System.currentTimeMillis() + WAIT_IN_MILLISECONDS;
+		while (logged.size() < count && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(count, logged.size());
+	}
+}
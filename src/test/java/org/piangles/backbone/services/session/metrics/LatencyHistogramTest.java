@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest
+{
+	@Test
+	public void testBucketsAreContiguous() throws Exception
+	{
+		for (long value = 0; value < 1_000_000; ++value)
+		{
+			int index = LatencyHistogram.bucketIndex(value);
+			assertTrue("Value " + value + " above its bucket", value <= LatencyHistogram.highestValueInBucket(index));
+			assertTrue("Value " + value + " below its bucket", index == 0 || value > LatencyHistogram.highestValueInBucket(index - 1));
+		}
+	}
+
+	@Test
+	public void testPercentilesWithinPrecision() throws Exception
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		//1us to 10ms in 1us steps, value at percentile p is p% of 10ms.
+		for (long micros = 1; micros <= 10_000; ++micros)
+		{
+			histogram.record(micros * 1000);
+		}
+		long[] values = histogram.getValuesAtPercentiles(50.0, 99.0, 100.0);
+
+		assertEquals(10_000, histogram.getTotalCount());
+		assertWithin(5_000_000, values[0]);
+		assertWithin(9_900_000, values[1]);
+		assertEquals(10_000_000, values[2]);
+		assertEquals(10_000_000, histogram.getMax());
+		assertWithin(5_000_500, histogram.getMean());
+	}
+
+	@Test
+	public void testEmptyAndOutOfRange() throws Exception
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValuesAtPercentiles(99.0)[0]);
+		assertEquals(0, histogram.getMean());
+
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		long[] values = histogram.getValuesAtPercentiles(50.0, 100.0);
+		assertEquals(0, values[0]);
+		assertEquals(histogram.getMax(), values[1]);
+	}
+
+	@Test
+	public void testRedisTrafficCountedAgainstOperationInProgress() throws Exception
+	{
+		SessionMetrics metrics = new SessionMetrics();
+		OperationMetrics operation = metrics.getOperation("operation");
+
+		OperationMetrics.recordRedis(5, 5);
+		long start = operation.begin();
+		OperationMetrics.recordRedis(3, 1);
+		OperationMetrics.recordRedis(1, 1);
+		operation.end(start, true);
+		OperationMetrics.recordRedis(5, 5);
+
+		OperationMetrics.Snapshot snapshot = metrics.snapshot().getOperations().get(0);
+		assertEquals(1, snapshot.getCount());
+		assertEquals(1, snapshot.getErrorCount());
+		assertEquals(4, snapshot.getRedisCommandCount());
+		assertEquals(2, snapshot.getRedisRoundTripCount());
+	}
+
+	//Within the 1/32 precision of the buckets.
+	private static void assertWithin(long expected, long actual)
+	{
+		assertTrue("Expected about " + expected + " was " + actual, Math.abs(actual - expected) <= expected / 32);
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ 
+ 
+ 
+package org.piangles.backbone.services.session.token;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class SessionTokensTest
+{
+	private static final byte[] KEY = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final long VALIDITY = 30000L;
+	private static final String SESSION_ID = "0f8fad5b-d9cb-469f-a165-70867728950e";
+
+	private AtomicLong clock = new AtomicLong(1700000000000L);
+
+	@Test
+	public void testIssuedTokenIsValidForItsUser() throws Exception
+	{
+		SessionTokens sessionTokens = new SessionTokens(KEY, VALIDITY, clock::get);
+		String token = sessionTokens.issue("user1", SESSION_ID);
+
+		assertTrue(token, token.startsWith(SESSION_ID + "."));
+		assertTrue(sessionTokens.isValid("user1", token));
+		assertFalse(sessionTokens.isValid("user2", token));
+		assertFalse("Not a token", sessionTokens.isValid("user1", SESSION_ID));
+		assertFalse("Other key", new SessionTokens("another key".getBytes(StandardCharsets.US_ASCII), VALIDITY, clock::get).isValid("user1", token));
+	}
+
+	@Test
+	public void testTamperedTokenIsNotValid() throws Exception
+	{
+		SessionTokens sessionTokens = new SessionTokens(KEY, VALIDITY, clock::get);
+		String token = sessionTokens.issue("user1", SESSION_ID);
+		int issuedAtIndex = token.indexOf('.') + 1;
+		int signatureIndex = token.lastIndexOf('.') + 1;
+
+		//Pushing IssuedAt forward to extend the validity.
+		String extended = token.substring(0, issuedAtIndex) + Long.toString(clock.get() + VALIDITY, Character.MAX_RADIX) + token.substring(signatureIndex - 1);
+		assertFalse(sessionTokens.isValid("user1", extended));
+		assertFalse(sessionTokens.isValid("user1", "a" + token.substring(1)));
+		assertFalse(sessionTokens.isValid("user1", token.substring(0, signatureIndex) + "AAAAAAAAAAAAAAAAAAAAAA"));
+		assertFalse(sessionTokens.isValid("user1", "a.b.c"));
+	}
+
+	@Test
+	public void testTokenIsOnlyValidWithinValidity() throws Exception
+	{
+		SessionTokens sessionTokens = new SessionTokens(KEY, VALIDITY, clock::get);
+		String token = sessionTokens.issue("user1", SESSION_ID);
+
+		clock.addAndGet(VALIDITY - 1);
+		assertTrue(sessionTokens.isValid("user1", token));
+		clock.addAndGet(1);
+		assertFalse(sessionTokens.isValid("user1", token));
+	}
+
+	@Test
+	public void testRevokedTokenIsNotValid() throws Exception
+	{
+		SessionTokens sessionTokens = new SessionTokens(KEY, VALIDITY, clock::get);
+		String token = sessionTokens.issue("user1", SESSION_ID);
+		String otherToken = sessionTokens.issue("user1", "1f8fad5b-d9cb-469f-a165-70867728950e");
+
+		sessionTokens.invalidated("user1", token);
+		sessionTokens.invalidated("user1", SESSION_ID);
+		assertFalse(sessionTokens.isValid("user1", token));
+		assertTrue(sessionTokens.isValid("user1", otherToken));
+		assertEquals(1, sessionTokens.getRevokedCount());
+
+		//Revocations are dropped once the token is past its validity.
+		clock.addAndGet(VALIDITY + 2000);
+		sessionTokens.getRevocationExpiry().advance();
+		assertEquals(0, sessionTokens.getRevokedCount());
+		assertFalse(sessionTokens.isValid("user1", token));
+	}
+
+	@Test
+	public void testTokensOfUserIssuedBeforeRevokeAllAreNotValid() throws Exception
+	{
+		SessionTokens sessionTokens = new SessionTokens(KEY, VALIDITY, clock::get);
+		String token = sessionTokens.issue("user1", SESSION_ID);
+		String otherUserToken = sessionTokens.issue("user2", SESSION_ID);
+
+		clock.addAndGet(1);
+		sessionTokens.invalidatedAll("user1");
+		assertFalse(sessionTokens.isValid("user1", token));
+		assertTrue(sessionTokens.isValid("user2", otherUserToken));
+
+		clock.addAndGet(1);
+		String laterToken = sessionTokens.issue("user1", SESSION_ID);
+		assertTrue(sessionTokens.isValid("user1", laterToken));
+
+		//Revoked again before the first one is dropped, kept until the tokens before the second are past their validity.
+		clock.addAndGet(VALIDITY / 2);
+		sessionTokens.invalidatedAll("user1");
+		assertFalse(sessionTokens.isValid("user1", laterToken));
+		clock.addAndGet(VALIDITY / 2 + 2000);
+		sessionTokens.getUserRevocationExpiry().advance();
+		assertEquals(1, sessionTokens.getRevokedUserCount());
+		clock.addAndGet(VALIDITY / 2 + 2000);
+		sessionTokens.getUserRevocationExpiry().advance();
+		assertEquals(0, sessionTokens.getRevokedUserCount());
+	}
+
+	@Test
+	public void testTokensIssuedBeforeResynchronizeAreNotTrusted() throws Exception
+	{
+		SessionTokens sessionTokens = new SessionTokens(KEY, VALIDITY, clock::get);
+		String token = sessionTokens.issue("user1", SESSION_ID);
+
+		clock.addAndGet(1);
+		sessionTokens.resynchronize();
+		assertFalse(sessionTokens.isValid("user1", token));
+
+		clock.addAndGet(1);
+		assertTrue(sessionTokens.isValid("user1", sessionTokens.issue("user1", SESSION_ID)));
+	}
+}